@@ -0,0 +1,90 @@
+package FTPBenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Files the benchmarks transfer. They are made in a directory under the
+ * current directory, since the server resolves the names it is sent
+ * against its own current directory and both run in the same JVM.
+ */
+public class FTPBenchmarkFiles {
+
+	private FTPBenchmarkFiles() {
+	}
+
+	/**
+	 * @return A new, empty directory under the current directory
+	 * @throws IOException If it cannot be made
+	 */
+	public static Path createDirectory() throws IOException {
+		return Files.createTempDirectory(Paths.get("").toAbsolutePath(), "ftp-bench-");
+	}
+
+	/**
+	 * Writes a file of random bytes, so compression and sparse files do
+	 * not make a transfer cheaper than it would be.
+	 * @param file The file
+	 * @param size Number of bytes
+	 * @return The file
+	 * @throws IOException If it cannot be written
+	 */
+	public static File create(Path file, long size) throws IOException {
+
+		ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024);
+		byte[] bytes = new byte[block.capacity()];
+
+		new Random(size).nextBytes(bytes);
+		block.put(bytes);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			long written = 0;
+
+			while (written < size) {
+
+				block.clear().limit((int) Math.min(block.capacity(), size - written));
+
+				while (block.hasRemaining()) {
+					written += channel.write(block);
+				}
+			}
+		}
+
+		return file.toFile();
+	}
+
+	/**
+	 * @param directory A directory under the current directory
+	 * @param file A file in it
+	 * @return The name to send the server for the file
+	 */
+	public static String name(Path directory, String file) {
+		return Paths.get("").toAbsolutePath().relativize(directory.resolve(file)).toString();
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 * @param directory The directory
+	 * @throws IOException If something cannot be deleted
+	 */
+	public static void delete(Path directory) throws IOException {
+
+		try (Stream<Path> paths = Files.walk(directory)) {
+
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package FTPBenchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line options. Results are
+ * written to jmh-result.json unless -rf or -rff say otherwise, so runs of
+ * different releases can be compared.
+ */
+public class FTPBenchmarks {
+
+	private static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+
+		CommandLineOptions options = new CommandLineOptions(args);
+
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+
+		if (options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers()
+				|| options.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+
+		if (!options.getResult().hasValue()) {
+			builder.result(RESULT_FILE);
+		}
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,102 @@
+package FTPBenchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import FTPServer.FTPCommandParser;
+import FTPServer.FTPCommandType;
+
+/**
+ * Time to parse one text protocol line the way the server did, a String
+ * split with a Scanner and the command upper cased and looked up, against
+ * FTPCommandParser reading the bytes in place. Run with -prof gc to see
+ * the bytes each allocates per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FTPCommandParserBenchmark {
+
+	@Param({ "pwd", "GET file.txt", "put report-2024.csv &", "MKDIR \"new folder\"" })
+	public String line;
+
+	private final Charset charset = Charset.defaultCharset();
+	private final FTPCommandParser parser = new FTPCommandParser(charset);
+
+	// The line as the connection buffers it, with its terminator
+	private ByteBuffer input;
+	private int end;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		byte[] bytes = (line + "\r\n").getBytes(charset);
+
+		input = ByteBuffer.allocate(bytes.length).put(bytes).flip();
+		end = bytes.length - 2;
+	}
+
+	@Benchmark
+	public void scanner(Blackhole blackhole) {
+
+		String commands = new String(input.array(), input.arrayOffset(), end, charset);
+		String command;
+		String arguments = null;
+		boolean hasBackgroundIndicator = false;
+
+		try (Scanner separateClientCommand = new Scanner(commands)) {
+
+			command = separateClientCommand.next().toUpperCase();
+
+			if (separateClientCommand.hasNext()) {
+				arguments = separateClientCommand.next();
+			}
+
+			if (separateClientCommand.hasNext()) {
+				hasBackgroundIndicator = separateClientCommand.next().equals("&");
+			}
+		}
+
+		blackhole.consume(FTPCommandType.valueOf(command));
+		blackhole.consume(arguments);
+		blackhole.consume(hasBackgroundIndicator);
+	}
+
+	@Benchmark
+	public void parser(Blackhole blackhole) {
+
+		parser.parse(input, 0, end);
+
+		blackhole.consume(parser.type());
+		blackhole.consume(parser.background());
+	}
+
+	@Benchmark
+	public void parserWithArgument(Blackhole blackhole) {
+
+		parser.parse(input, 0, end);
+
+		blackhole.consume(parser.type());
+		blackhole.consume(parser.argument());
+		blackhole.consume(parser.background());
+	}
+}
@@ -0,0 +1,81 @@
+package FTPBenchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FTPServer.FTPServerConfig;
+
+/**
+ * Time to get one file over loopback, in the foreground and in the
+ * background, for every size and every way ftp.get.strategy lets the
+ * server read the file: a heap buffer, a direct buffer, transferTo or a
+ * mapped file. The file is read once before measuring, so it is served
+ * from the page cache as a busy server would serve it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FTPGetBenchmark {
+
+	@Param({ "1024", "1048576", "67108864", "4294967296" })
+	public long size;
+
+	@Param({ FTPServerConfig.GET_HEAP, FTPServerConfig.GET_DIRECT, FTPServerConfig.GET_TRANSFER,
+			FTPServerConfig.GET_MMAP })
+	public String strategy;
+
+	private Path directory;
+	private String name;
+	private FTPLoopbackServer server;
+	private FTPLoopbackClient client;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		System.setProperty("ftp.get.strategy", strategy);
+
+		directory = FTPBenchmarkFiles.createDirectory();
+		FTPBenchmarkFiles.create(directory.resolve("get.bin"), size);
+		name = FTPBenchmarkFiles.name(directory, "get.bin");
+
+		server = new FTPLoopbackServer();
+		client = new FTPLoopbackClient(server.port());
+		client.get(name);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		client.close();
+		server.close();
+		FTPBenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public long get() throws IOException {
+		return client.get(name);
+	}
+
+	@Benchmark
+	public long getBackground() throws IOException {
+		return client.getBackground(name);
+	}
+}
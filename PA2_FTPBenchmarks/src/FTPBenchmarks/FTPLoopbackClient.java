@@ -0,0 +1,293 @@
+package FTPBenchmarks;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Client session in the text protocol, as lean as it can be so the
+ * benchmarks measure the server. Data of a get is read and dropped, data
+ * of a put is sent from the file with transferTo. Background transfers
+ * ask for a port of the server's pool and send the token it announces,
+ * like myftp does.
+ */
+public class FTPLoopbackClient implements Closeable {
+
+	// Buffer data is read into and dropped
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final Connection control;
+
+	/**
+	 * Opens a session.
+	 * @param port Port of the server on the loopback address
+	 * @throws IOException If the server cannot be reached
+	 */
+	public FTPLoopbackClient(int port) throws IOException {
+		control = new Connection(port);
+	}
+
+	/**
+	 * Gets a file and drops its data.
+	 * @param name Name of the file, relative to the server's current directory
+	 * @return Number of bytes received
+	 * @throws IOException If the server does not answer as expected
+	 */
+	public long get(String name) throws IOException {
+
+		control.writeLine("GET " + name);
+		control.expect("EXISTS");
+
+		long length = Long.parseLong(control.readLine());
+
+		control.writeLine("READY");
+		control.skip(length);
+		control.expect("SENT");
+
+		return length;
+	}
+
+	/**
+	 * Puts a file.
+	 * @param name Name the file is stored under, relative to the server's current directory
+	 * @param file The file to send
+	 * @return Number of bytes sent
+	 * @throws IOException If the server does not answer as expected
+	 */
+	public long put(String name, File file) throws IOException {
+
+		control.writeLine("PUT " + name);
+		control.writeLine(Long.toString(file.length()));
+		control.expect("READY");
+
+		long length = control.send(file);
+
+		control.expect("RECEIVED");
+
+		return length;
+	}
+
+	/**
+	 * Gets a file in the background and waits until the server closed the
+	 * data connection, which it does once the file is sent.
+	 * @param name Name of the file, relative to the server's current directory
+	 * @return Number of bytes received
+	 * @throws IOException If the server does not answer as expected
+	 */
+	public long getBackground(String name) throws IOException {
+
+		control.writeLine("GET " + name + " &");
+		control.expect("EXISTS");
+
+		try (Connection data = openData()) {
+
+			long length = Long.parseLong(data.readLine());
+
+			data.writeLine("READY");
+			data.skip(length);
+			data.awaitEnd();
+
+			return length;
+		}
+	}
+
+	/**
+	 * Puts a file in the background and waits until the server closed the
+	 * data connection, which it does once the file is stored.
+	 * @param name Name the file is stored under, relative to the server's current directory
+	 * @param file The file to send
+	 * @return Number of bytes sent
+	 * @throws IOException If the server does not answer as expected
+	 */
+	public long putBackground(String name, File file) throws IOException {
+
+		control.writeLine("PUT " + name + " &");
+
+		try (Connection data = openData()) {
+
+			data.writeLine(Long.toString(file.length()));
+			data.expect("READY");
+
+			long length = data.send(file);
+
+			data.channel.shutdownOutput();
+			data.awaitEnd();
+
+			return length;
+		}
+	}
+
+	/**
+	 * Asks the server for a port of its pool and opens the data connection
+	 * of a background transfer on it.
+	 */
+	private Connection openData() throws IOException {
+
+		control.writeLine("0");
+
+		// Command id, port and token as hex digits
+		String[] announcement = control.readLine().trim().split(" ");
+
+		if (announcement.length != 3) {
+			throw new IOException("Server did not announce a data port: " + String.join(" ", announcement));
+		}
+
+		Connection data = new Connection(Integer.parseInt(announcement[1]));
+		ByteBuffer token = ByteBuffer.allocate(8).putLong(0, Long.parseUnsignedLong(announcement[2], 16));
+
+		while (token.hasRemaining()) {
+			data.channel.write(token);
+		}
+
+		return data;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+			control.writeLine("QUIT");
+		}
+		finally {
+			control.close();
+		}
+	}
+
+	/**
+	 * A connection to the server that is read line by line and skipped
+	 * over for data, through one buffer.
+	 */
+	private static class Connection implements Closeable {
+
+		private final SocketChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+
+		Connection(int port) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+			// Requests are a line or two, they should not wait for the replies to be acknowledged
+			channel.socket().setTcpNoDelay(true);
+		}
+
+		String readLine() throws IOException {
+
+			StringBuilder line = new StringBuilder();
+
+			while (true) {
+
+				while (buffer.hasRemaining()) {
+
+					char next = (char) buffer.get();
+
+					if (next == '\n') {
+						return line.toString();
+					}
+
+					if (next != '\r') {
+						line.append(next);
+					}
+				}
+
+				if (!fill()) {
+					throw new EOFException("Server closed the connection");
+				}
+			}
+		}
+
+		void expect(String expected) throws IOException {
+
+			String line = readLine();
+
+			if (!line.equalsIgnoreCase(expected)) {
+				throw new IOException("Expected " + expected + ", server sent " + line);
+			}
+		}
+
+		void writeLine(String line) throws IOException {
+
+			ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		}
+
+		/**
+		 * Reads and drops count bytes.
+		 */
+		void skip(long count) throws IOException {
+
+			while (count > 0) {
+
+				if (!buffer.hasRemaining() && !fill()) {
+					throw new EOFException("Server closed the connection with " + count + " bytes left");
+				}
+
+				int skipped = (int) Math.min(buffer.remaining(), count);
+
+				buffer.position(buffer.position() + skipped);
+				count -= skipped;
+			}
+		}
+
+		/**
+		 * Sends a whole file.
+		 * @return Number of bytes sent
+		 */
+		long send(File file) throws IOException {
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+				FileChannel source = raf.getChannel();
+				long length = source.size();
+				long sent = 0;
+
+				while (sent < length) {
+					sent += source.transferTo(sent, length - sent, channel);
+				}
+
+				return sent;
+			}
+		}
+
+		/**
+		 * Reads until the server closes the connection.
+		 */
+		void awaitEnd() throws IOException {
+
+			buffer.clear().flip();
+
+			while (fill()) {
+				buffer.clear().flip();
+			}
+		}
+
+		/**
+		 * Reads more bytes into the empty buffer.
+		 * @return False once the server closed the connection
+		 */
+		private boolean fill() throws IOException {
+
+			buffer.clear();
+
+			int read = channel.read(buffer);
+
+			buffer.flip();
+
+			return read >= 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
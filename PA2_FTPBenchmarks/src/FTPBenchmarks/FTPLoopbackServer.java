@@ -0,0 +1,95 @@
+package FTPBenchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+import FTPServer.FTPServerWorker;
+
+/**
+ * The server as myftpserver runs it, one FTPServerWorker per session, on a
+ * loopback port picked by the system. Every session gets a thread of its
+ * own, so the benchmarks measure the worker and not a pool, unless an
+ * executor to run them on is given.
+ */
+public class FTPLoopbackServer implements Closeable {
+
+	private final ServerSocketChannel listener;
+
+	// Executor the sessions run on, null for a thread of their own each
+	private final ExecutorService sessions;
+
+	/**
+	 * Starts accepting sessions, each on a thread of its own.
+	 * @throws IOException If no loopback port can be bound
+	 */
+	public FTPLoopbackServer() throws IOException {
+		this(null);
+	}
+
+	/**
+	 * Starts accepting sessions.
+	 * @param sessions Executor the sessions run on, shut down on close. Null for a thread per session
+	 * @throws IOException If no loopback port can be bound
+	 */
+	public FTPLoopbackServer(ExecutorService sessions) throws IOException {
+
+		this.sessions = sessions;
+
+		listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		Thread acceptor = new Thread(this::accept, "ftp-bench-acceptor");
+
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return Port the server accepts sessions on
+	 */
+	public int port() {
+		return listener.socket().getLocalPort();
+	}
+
+	private void accept() {
+
+		try {
+
+			while (true) {
+
+				SocketChannel session = listener.accept();
+
+				if (sessions != null) {
+					sessions.execute(new FTPServerWorker(session.socket()));
+					continue;
+				}
+
+				Thread worker = new Thread(new FTPServerWorker(session.socket()), "ftp-bench-session");
+
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+		catch (ClosedChannelException e) {
+			// Closed by the benchmark
+		}
+		catch (IOException e) {
+			System.err.println("IOException while accepting sessions: " + e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		listener.close();
+
+		if (sessions != null) {
+			sessions.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package FTPBenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to put one file over loopback, in the foreground and in the
+ * background, for every size. The server stores every put under the same
+ * name, so each one replaces the file the last one stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FTPPutBenchmark {
+
+	@Param({ "1024", "1048576", "67108864", "4294967296" })
+	public long size;
+
+	private Path directory;
+	private File file;
+	private String name;
+	private FTPLoopbackServer server;
+	private FTPLoopbackClient client;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		directory = FTPBenchmarkFiles.createDirectory();
+		file = FTPBenchmarkFiles.create(directory.resolve("source.bin"), size);
+		name = FTPBenchmarkFiles.name(directory, "put.bin");
+
+		server = new FTPLoopbackServer();
+		client = new FTPLoopbackClient(server.port());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		client.close();
+		server.close();
+		FTPBenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public long put() throws IOException {
+		return client.put(name, file);
+	}
+
+	@Benchmark
+	public long putBackground() throws IOException {
+		return client.putBackground(name, file);
+	}
+}
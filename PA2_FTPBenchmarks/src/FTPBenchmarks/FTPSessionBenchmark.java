@@ -0,0 +1,140 @@
+package FTPBenchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FTPServer.FTPServerConfig;
+
+/**
+ * Time for many open sessions to each get a small file at the same time,
+ * with the sessions on platform threads as in threaded mode or on a
+ * virtual thread each as in virtual mode. The threaded pool has a thread
+ * for every session, as ftp.server.sessions would have to be raised to
+ * for all of them to be served. Virtual threads need Java 21 or newer,
+ * on older runtimes the virtual trials fail in setup and the threaded
+ * ones still run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FTPSessionBenchmark {
+
+	// Size of the file every session gets
+	private static final long FILE_SIZE = 64 * 1024;
+
+	@Param({ FTPServerConfig.MODE_THREADED, FTPServerConfig.MODE_VIRTUAL })
+	public String mode;
+
+	@Param({ "16", "256", "1024" })
+	public int sessions;
+
+	private Path directory;
+	private String name;
+	private FTPLoopbackServer server;
+	private List<FTPLoopbackClient> clients;
+	private ExecutorService drivers;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		System.setProperty("ftp.server.mode", mode);
+
+		// First, so a runtime without virtual threads leaves nothing behind
+		ExecutorService executor = sessionExecutor();
+
+		directory = FTPBenchmarkFiles.createDirectory();
+		FTPBenchmarkFiles.create(directory.resolve("session.bin"), FILE_SIZE);
+		name = FTPBenchmarkFiles.name(directory, "session.bin");
+
+		server = new FTPLoopbackServer(executor);
+		clients = new ArrayList<FTPLoopbackClient>();
+
+		for (int i = 0; i < sessions; i++) {
+			clients.add(new FTPLoopbackClient(server.port()));
+		}
+
+		// The Client side of every session gets a thread of its own, so
+		// all of them ask at once
+		drivers = Executors.newFixedThreadPool(sessions);
+	}
+
+	private ExecutorService sessionExecutor() {
+
+		if (mode.equals(FTPServerConfig.MODE_VIRTUAL)) {
+
+			try {
+				return (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21 or newer", e);
+			}
+		}
+
+		return Executors.newFixedThreadPool(sessions);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		if (drivers != null) {
+			drivers.shutdownNow();
+		}
+
+		if (clients != null) {
+
+			for (FTPLoopbackClient client : clients) {
+				client.close();
+			}
+		}
+
+		if (server != null) {
+			server.close();
+		}
+
+		FTPBenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public long getAll() throws InterruptedException, ExecutionException {
+
+		List<Callable<Long>> gets = new ArrayList<Callable<Long>>();
+
+		for (FTPLoopbackClient client : clients) {
+			gets.add(() -> client.get(name));
+		}
+
+		long received = 0;
+
+		for (Future<Long> get : drivers.invokeAll(gets)) {
+			received += get.get();
+		}
+
+		return received;
+	}
+}
@@ -0,0 +1,66 @@
+package FTPClient;
+
+/**
+ * Client settings read from system properties (-Dname=value) so the
+ * command line of myftp stays the same. Every setting has a default that
+ * matches the behavior of the Client before the setting existed.
+ */
+public class FTPClientConfig {
+
+	/** Line based control protocol every server understands (the default) */
+	public static final String PROTOCOL_TEXT = "text";
+
+	/** Framed control protocol, negotiated with PROTO BINARY */
+	public static final String PROTOCOL_BINARY = "binary";
+
+	/** File data is sent as it is (the default) */
+	public static final String COMPRESSION_OFF = "off";
+
+	/** File data is sent without a checksum (the default) */
+	public static final String VERIFY_OFF = "off";
+
+	private FTPClientConfig() {
+	}
+
+	/**
+	 * @return Control protocol the Client asks the server for, ftp.protocol
+	 */
+	public static String protocol() {
+		return System.getProperty("ftp.protocol", PROTOCOL_TEXT).toLowerCase();
+	}
+
+	/**
+	 * @return Number of batch commands sent ahead of their responses in the binary protocol, ftp.pipeline.window
+	 */
+	public static int pipelineWindow() {
+		return Math.max(1, Integer.getInteger("ftp.pipeline.window", 64));
+	}
+
+	/**
+	 * @return Deflater level get and put data is compressed with: off, fast, default or best, ftp.compress
+	 */
+	public static String compression() {
+		return System.getProperty("ftp.compress", COMPRESSION_OFF).toLowerCase();
+	}
+
+	/**
+	 * @return Checksum get and put data is verified with: off, crc32c or sha256, ftp.verify
+	 */
+	public static String verification() {
+		return System.getProperty("ftp.verify", VERIFY_OFF).toLowerCase();
+	}
+
+	/**
+	 * @return True to run all background transfers over one data connection, ftp.data.mux
+	 */
+	public static boolean dataMux() {
+		return Boolean.getBoolean("ftp.data.mux");
+	}
+
+	/**
+	 * @return Data connections a pget opens unless the command names a count, ftp.pget.streams. 0 picks the count from the file size
+	 */
+	public static int pgetStreams() {
+		return Math.max(0, Integer.getInteger("ftp.pget.streams", 0));
+	}
+}
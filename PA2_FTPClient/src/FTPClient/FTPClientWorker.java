@@ -1,6 +1,7 @@
 package FTPClient;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -8,18 +9,24 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -49,17 +56,30 @@ public class FTPClientWorker implements Runnable{
 
 	boolean quitCommand = false;	
 
+	// True once the server agreed to the binary protocol
+	private boolean binary = false;
+
+	// Deflater level of get and put data once the server agreed to COMPRESS
+	private int compressionLevel = FTPCompression.OFF;
+
+	// Checksum algorithm of get and put data once the server agreed to VERIFY
+	private String verifyAlgorithm = null;
+
+	// Data connection carrying the background transfers once the server agreed to MUX
+	private FTPMux dataMux = null;
+	private int nextRequestId = 1;
+
+	// Request frames not yet written to the server
+	private final ByteArrayOutputStream queuedRequests = new ByteArrayOutputStream();
+
 	private String currentDirectory;
 	private String sysFileSeparator;
 
 	private ExecutorService executorPool;
 
-	private static int threadCount = 1;
-
 	private Socket getSocket;
 	private Socket putSocket;
 
-	private static Map<String, Boolean> statusMap = new HashMap<String, Boolean>();
 
 	/**
 	 * Initializes newly created FTPClientWorker object before use.
@@ -104,6 +124,22 @@ public class FTPClientWorker implements Runnable{
 
 			tOutputToServer = new PrintStream(tClientSocket.getOutputStream(), true);
 
+			if (FTPClientConfig.protocol().equals(FTPClientConfig.PROTOCOL_BINARY)) {
+				protoCommand();
+			}
+
+			if (!FTPClientConfig.compression().equals(FTPClientConfig.COMPRESSION_OFF)) {
+				compressCommand();
+			}
+
+			if (!FTPClientConfig.verification().equals(FTPClientConfig.VERIFY_OFF)) {
+				verifyCommand();
+			}
+
+			if (FTPClientConfig.dataMux()) {
+				muxCommand();
+			}
+
 			while (!quitCommand) {
 				try {
 					commands();
@@ -137,6 +173,12 @@ public class FTPClientWorker implements Runnable{
 				if (nClientSocket != null) {
 					nClientSocket.close();
 				}
+
+				// Streams still on the shared data connection fail instead of waiting on it
+				if (dataMux != null) {
+					dataMux.close();
+				}
+
 				if (tInputFromServer != null) {
 					tInputFromServer.close();
 				}
@@ -176,79 +218,164 @@ public class FTPClientWorker implements Runnable{
 			String commands = userInputScanner.nextLine();
 			String command = null;
 			String arguments = null;
-			String backgroundIndicator = null;
 			boolean hasBackgroundIndicator = false;
 
+			List<String> words = FTPCommandLine.split(commands);
 
-			try (Scanner separateCommand = new Scanner(commands)) {
-
-				if (separateCommand.hasNext()) {
-
-					command = separateCommand.next();
-				}
-				else {
-					System.out.print("myftp> ");
-					continue;              		  
-				}
+			if (words == null) {
+				System.out.println("Unrecognized command format! Please try again.");
+				System.out.print("myftp> ");
+				continue;
+			}
 
-				if (separateCommand.hasNext()) {
+			if (words.isEmpty()) {
+				System.out.print("myftp> ");
+				continue;              		  
+			}
 
-					arguments = separateCommand.next();
-				}
+			command = words.get(0);
 
-				if (separateCommand.hasNext()) {
-					backgroundIndicator = separateCommand.next();
+			if (words.size() > 1) {
 
-					if (!backgroundIndicator.equals("&")) {
-						System.out.println("Unrecognized command format! Please try again.");
-						System.out.print("myftp> ");
-						continue;              		  
-					}
-					else {
-						hasBackgroundIndicator = true;
-					}
-				}
+				arguments = words.get(1);
 			}
 
-			// If else block to route the command
-			if (command.toUpperCase().equals("GET")) {
+			// The third word of pget is its number of data connections
+			if ((words.size() > 2) && !command.toUpperCase().equals("PGET")) {
 
-				if (hasBackgroundIndicator) {
-					getCommandBackground(command, arguments);				
+				if (!words.get(2).equals("&")) {
+					System.out.println("Unrecognized command format! Please try again.");
+					System.out.print("myftp> ");
+					continue;              		  
 				}
 				else {
-					getCommand(command, arguments);
+					hasBackgroundIndicator = true;
 				}
 			}
-			else if (command.toUpperCase().equals("PUT")) {	
 
-				if (hasBackgroundIndicator) {
-					putCommandBackground(command, arguments);
-				}
-				else {
-					putCommand(command, arguments);
-				}
+			if (!routeCommand(commands, command, arguments, hasBackgroundIndicator)) {
+				break;
 			}
-			else if (command.toUpperCase().equals("LS")) {
 
-				lsCommand(commands);
+			System.out.print("\nmyftp> ");
+		}
+	}
+
+	/**
+	 * Runs one command entered by the user or read from a batch file.
+	 * @param commands String representation of the whole command line
+	 * @param command String representation of the command
+	 * @param arguments String representation of the argument, may be null
+	 * @param hasBackgroundIndicator True if the command is to run in the background
+	 * @return False once the user quit
+	 * @throws IOException
+	 */
+	private boolean routeCommand(String commands, String command, String arguments,
+			boolean hasBackgroundIndicator) throws IOException {
+
+		// If else block to route the command
+		if (command.toUpperCase().equals("GET")) {
+
+			if (hasBackgroundIndicator) {
+				getCommandBackground(command, arguments, 0);
+			}
+			else {
+				getCommand(command, arguments, 0);
 			}
-			else if (command.toUpperCase().equals("TERMINATE")) {
+		}
+		else if (command.toUpperCase().equals("PUT")) {	
 
-				terminateCommand(command, arguments);        		
+			if (hasBackgroundIndicator) {
+				putCommandBackground(command, arguments, 0);
+			}
+			else {
+				putCommand(command, arguments, 0);
 			}
-			else if (command.toUpperCase().equals("QUIT")) {
+		}
+		else if (command.toUpperCase().equals("DPUT")) {
 
-				quitCommand(commands);
-				break;
+			dputCommand(command, arguments);
+		}
+		else if (command.toUpperCase().equals("CPUT")) {
+
+			cputCommand(command, arguments);
+		}
+		else if (command.toUpperCase().equals("REGET")) {
+
+			regetCommand(arguments, hasBackgroundIndicator);
+		}
+		else if (command.toUpperCase().equals("REPUT")) {
+
+			reputCommand(arguments, hasBackgroundIndicator);
+		}
+		else if (command.toUpperCase().equals("MGET")) {
+
+			if (hasBackgroundIndicator) {
+				mgetCommandBackground(command, arguments);
 			}
 			else {
+				mgetCommand(command, arguments);
+			}
+		}
+		else if (command.toUpperCase().equals("MPUT")) {
 
-				remainingCommands(commands);
+			if (hasBackgroundIndicator) {
+				mputCommandBackground(command, arguments);
+			}
+			else {
+				mputCommand(command, arguments);
 			}
+		}
+		else if (command.toUpperCase().equals("PGET")) {
 
-			System.out.print("\nmyftp> ");
+			pgetCommand(commands);
+		}
+		else if (command.toUpperCase().equals("SIZE")) {
+
+			sizeCommand(arguments);
+		}
+		else if (command.toUpperCase().equals("CHECKSUM")) {
+
+			checksumCommand(arguments);
+		}
+		else if (command.toUpperCase().equals("LS")) {
+
+			lsCommand(commands);
+		}
+		else if (command.toUpperCase().equals("TERMINATE")) {
+
+			terminateCommand(command, arguments);        		
+		}
+		else if (command.toUpperCase().equals("JOBS")) {
+
+			jobsCommand();
+		}
+		else if (command.toUpperCase().equals("STAT")) {
+
+			statCommand(arguments);
+		}
+		else if (command.toUpperCase().equals("RJOBS")) {
+
+			rjobsCommand();
+		}
+		else if (command.toUpperCase().equals("RSTAT")) {
+
+			rstatCommand(arguments);
+		}
+		else if (command.toUpperCase().equals("BATCH")) {
+
+			batchCommand(arguments);
+		}
+		else if (command.toUpperCase().equals("QUIT")) {
+
+			quitCommand(commands);
+		}
+		else {
+
+			remainingCommands(commands, command, arguments);
 		}
+
+		return !quitCommand;
 	}  
 
 	/**
@@ -256,29 +383,49 @@ public class FTPClientWorker implements Runnable{
 	 * it to the client.
 	 * @param command String representation of command entered by user
 	 * @param arguments String representation of file name entered by user
+	 * @param offset Offset the server was told to start at with REST, 0 for the whole file
 	 * @throws IOException 
 	 */
-	private synchronized void getCommand(String command, String arguments) throws IOException {
+	private synchronized void getCommand(String command, String arguments, long offset) throws IOException {
 
-		// Send command and file name to server
-		messageServer(command + " " + arguments);
+		long filesLength;
 
-		// If file is not found on server inform user and return from method   		
-		if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
-			System.out.println("File not found.");
-			return;
+		if (binary) {
+
+			// The response announces the length and the file follows right away
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.GET, FTPFrame.encode(arguments)), false);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				response.readPayload(FTPTransferEngine.inputChannel(nClientSocket));
+				System.out.println("File not found.");
+				return;
+			}
+
+			filesLength = response.length();
 		}
+		else {
+
+			// Send command and file name to server
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+
+			// If file is not found on server inform user and return from method
+			if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
+				System.out.println("File not found.");
+				return;
+			}
 
-		// Get file length from server to setup for transfer
-		String filesLengthString = receiveServerResponse();
-		Integer filesLength = Integer.parseInt(filesLengthString);
+			// Get file length from server to setup for transfer
+			String filesLengthString = receiveServerResponse();
+			filesLength = Long.parseLong(filesLengthString);
+		}
 
 		FileChannel channel = null;
 		RandomAccessFile raf = null;
 
-		// Try to create a file output stream and byte buffer the size of the file length.
-		// Read input from server into byte buffer then proceed to use 
-		// (buffered) file output stream to write from byte buffer to the created file.
+		boolean intact = true;
+
+		// Try to open the file to receive into. Once the server is ready
+		// write the data to the file as it arrives, a buffer at a time.
 		// Inform user upon file transfer completion.
 		// Catch possible errors.
 		try {
@@ -293,39 +440,26 @@ public class FTPClientWorker implements Runnable{
 			
 			channel = raf.getChannel();
 
-			FileLock lock = channel.tryLock();
-
-			byte[] buffer = new byte[filesLength];
-
-			messageServer("READY");
-			
-			// Fragment the file to receive
-			int times = (filesLength / 1000);
-
-			// IF file under 1000 receive whole thing
-			if(filesLength < 1000) {
-
-				nInputFromServer.read(buffer, 0, buffer.length);
-
-				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-
-				channel.write(byteBuffer);						
+			FileLock lock = FTPTransferEngine.tryLock(channel, false);
 
+			if (!binary) {
+				messageServer("READY");
 			}
-			for(int i = 0; i < times; i++) {
 
+			FTPDigest digest = FTPDigest.of(verifyAlgorithm);
 
-				if((1000*i) < (buffer.length - 1000)) {					
-					nInputFromServer.read(buffer, (1000*i), 1000);					
-				}
-				else {
-					nInputFromServer.read(buffer, (1000*i), buffer.length - (1000*i));
-				}
+			long received = FTPDataStream.receive(FTPTransferEngine.inputChannel(nClientSocket),
+					channel, offset, filesLength, compressionLevel, digest, null);
 
+			// A file that arrived changed keeps nothing of this transfer
+			intact = (received < filesLength) || FTPDataStream.verify(FTPTransferEngine.inputChannel(nClientSocket), digest);
+
+			if (!intact) {
+				received = 0;
 			}
 
-			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-			channel.write(byteBuffer);
+			// Drop whatever an older, longer copy of the file left behind
+			channel.truncate(offset + received);
 
 			newFile.setReadable(true, false);
 			newFile.setWritable(true, false);
@@ -343,278 +477,1470 @@ public class FTPClientWorker implements Runnable{
 			raf.close();
 		}
 
-		if ((receiveServerResponse()).toUpperCase().equals("SENT")) {
+		boolean sent = binary || (receiveServerResponse()).toUpperCase().equals("SENT");
+
+		if (!intact) {
+			System.out.println("File " + arguments + " retrieving failed, checksum mismatch.");
+		}
+		else if (sent) {
 			System.out.println("File " + arguments + " retrieving complete."); 
 		}
 	}	
 
+	/**
+	 * Command dput sends a new version of a file as the differences to the
+	 * copy on the server. Only the parts of the file the server does not
+	 * have go over the wire as data, the rest is sent as references to
+	 * blocks of the server's copy.
+	 * @param command String representation of command entered by user
+	 * @param arguments String representation of file name entered by user
+	 * @throws IOException
+	 */
+	private synchronized void dputCommand(String command, String arguments) throws IOException {
+
+		File fileToSend = new File(arguments);
+
+		if (!fileToSend.exists()) {
+			System.out.println("File not found");
+			return;
+		}
+
+		int requestId = 0;
+		String response;
+
+		// The server announces the block size and number of its signatures
+		if (binary) {
+
+			requestId = requestServer(FTPFrame.DPUT, FTPFrame.encode(arguments));
+
+			FTPFrame frame = receiveServerFrame(requestId, true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? frame.text() : "";
+		}
+		else {
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+			response = receiveServerResponse();
+		}
+
+		String[] announcement = response.split(" ");
+
+		if ((announcement.length != 2) || !announcement[0].matches("\\d+") || !announcement[1].matches("\\d+")) {
+			System.out.println("File " + arguments + " sending failed.");
+			return;
+		}
+
+		if (!binary) {
+			messageServer("READY");
+		}
+
+		long fileLength = fileToSend.length();
+		long literalBytes = 0;
+
+		try (RandomAccessFile raf = new RandomAccessFile(fileToSend, "r")) {
+
+			FileChannel channel = raf.getChannel();
+			FTPTransferEngine.tryLock(channel, true);
+
+			FTPDelta.Signatures signatures = FTPDelta.receiveSignatures(FTPTransferEngine.inputChannel(nClientSocket),
+					Integer.parseInt(announcement[0]), Long.parseLong(announcement[1]));
+
+			literalBytes = FTPDelta.send(channel, signatures, FTPTransferEngine.outputChannel(nClientSocket),
+					FTPDigest.of(verifyAlgorithm));
+		}
+
+		if (binary) {
+			FTPFrame frame = receiveServerFrame(requestId, true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? "RECEIVED" : frame.text();
+		}
+		else {
+			response = receiveServerResponse();
+		}
+
+		if (response.toUpperCase().equals("RECEIVED")) {
+			System.out.println("File " + arguments + " sending complete, " + literalBytes + " of "
+					+ fileLength + " bytes sent as data.");
+		}
+		else if (response.toUpperCase().equals("CHECKSUM MISMATCH")) {
+			System.out.println("File " + arguments + " sending failed, checksum mismatch.");
+		}
+		else {
+			System.out.println("File " + arguments + " sending failed.");
+		}
+	}
+
 	/**
 	 * Command get retrieves a file from the server and copy
 	 * it to the client.
 	 * @param command String representation of command entered by user
 	 * @param arguments String representation of file name entered by user
+	 * @param offset Offset the server was told to start at with REST, 0 for the whole file
 	 * @throws IOException 
 	 */
-	private void getCommandBackground(String command, String arguments) throws IOException {		
+	private void getCommandBackground(String command, String arguments, long offset) throws IOException {
 
-		// Send put command and filename to Server
-		messageServer(command + " " + arguments + " &" );
+		InetAddress hostName = nClientSocket.getInetAddress();
 
-		// If file is not found on server inform user and return from method   		
-		if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
-			System.out.println("File not found.");
-			return;
+		String announcement;
+
+		if (binary) {
+
+			// The request asks the server for a data port
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.GET_BACKGROUND,
+					FTPFrame.encodeBackground(FTPDataPorts.PASSIVE, arguments)), true);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				System.out.println("File not found.");
+				return;
+			}
+
+			announcement = response.text();
 		}
+		else {
+
+			// Send put command and filename to Server
+			messageServer(command + " " + FTPCommandLine.quote(arguments) + " &" );
+
+			// If file is not found on server inform user and return from method
+			if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
+				System.out.println("File not found.");
+				return;
+			}
+
+			messageServer(Integer.toString(FTPDataPorts.PASSIVE));
+
+			announcement = receiveServerResponse();
+		}
+
+		FTPDataPorts.Endpoint endpoint = FTPDataPorts.parse(announcement);
 
-		int getPortNumber;
+		System.out.println("Command ID:  " + endpoint.commandID());
+
+		getSocket = endpoint.connect(hostName, dataMux);
+
+		// The length of the file arrives over the data connection
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(endpoint.commandID(), serverName(),
+				"get", arguments, -1);
+
+		executorPool.submit(new FTPGetBackground(getSocket, arguments, transfer, offset));
+
+  
+	}
+
+	/**
+	 * Command put sends a file to the server from the client.
+	 * @param command command String representation of command entered by user
+	 * @param arguments String representation of file name entered by user
+	 * @param offset Offset the server was told to start at with REST, 0 for the whole file
+	 * @throws IOException 
+	 */
+	private synchronized void putCommand(String command, String arguments, long offset) throws IOException {
+
+		// Setup File object to prepare to send to server
+		File fileToSend = new File(arguments);
 		
-		if((nClientSocket.getPort() + threadCount) != tPortNumber) {
-			getPortNumber = (nClientSocket.getPort() + threadCount);
+		// If file name entered by user does not exist inform user
+		// and return from method.
+		if (!fileToSend.exists()) {
+			System.out.println("File not found");
+			
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(fileToSend, "r");
+		FileChannel pChannel = raf.getChannel();
+
+		FileLock lock = FTPTransferEngine.tryLock(pChannel, true);
+
+		long fileLength = pChannel.size() - offset;
+
+		int requestId = 0;
+
+		if (binary) {
+
+			// The file follows the request as the payload of a DATA frame
+			requestId = queueRequest(FTPFrame.PUT, FTPFrame.encode(arguments));
+			queuedRequests.writeBytes(FTPFrame.header(FTPFrame.DATA, requestId, FTPFrame.STATUS_REQUEST, fileLength));
+			flushRequests();
 		}
 		else {
-			getPortNumber = (nClientSocket.getPort() + (threadCount + 1));
+
+			// Send put command and filename to server
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+
+			// Send file length to server
+			messageServer(Long.toString(fileLength));
 		}
 
-		InetAddress hostName = nClientSocket.getInetAddress();
+		boolean ready = binary || (receiveServerResponse().toUpperCase().equals("READY"));
+
+		sendPutData(arguments, raf, pChannel, lock, offset, fileLength, requestId, ready);
+	}
+
+	/**
+	 * Command cput sends a file to the server unless the server has its
+	 * content already. The SHA-256 of the file goes first, and if the
+	 * server's content store knows it the file is created from there and
+	 * no data is sent.
+	 * @param command command String representation of command entered by user
+	 * @param arguments String representation of file name entered by user
+	 * @throws IOException
+	 */
+	private synchronized void cputCommand(String command, String arguments) throws IOException {
+
+		File fileToSend = new File(arguments);
+
+		if (!fileToSend.exists()) {
+			System.out.println("File not found");
+			return;
+		}
+
+		byte[] hash = FTPDigest.digestFile(fileToSend, FTPDigest.SHA256);
 
+		RandomAccessFile raf = new RandomAccessFile(fileToSend, "r");
+		FileChannel pChannel = raf.getChannel();
+
+		FileLock lock = FTPTransferEngine.tryLock(pChannel, true);
+
+		long fileLength = pChannel.size();
+
+		int requestId = 0;
+		String response;
+
+		if (binary) {
+
+			requestId = requestServer(FTPFrame.CPUT, FTPFrame.encodeHashed(hash, arguments));
+
+			FTPFrame frame = receiveServerFrame(requestId, true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? frame.text() : "";
+		}
+		else {
+
+			// Send command and file name, then the hash and length of the file
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+			messageServer(FTPDigest.hex(hash) + " " + fileLength);
+
+			response = receiveServerResponse();
+		}
+
+		if (!response.toUpperCase().equals("READY")) {
+
+			pChannel.close();
+			raf.close();
+
+			if (response.toUpperCase().equals("HAVE IT")) {
+				System.out.println("File " + arguments + " sending complete, the server had its content.");
+			}
+			else {
+				System.out.println("File " + arguments + " sending failed.");
+			}
+
+			return;
+		}
+
+		// The file follows as the payload of a DATA frame
+		if (binary) {
+			queuedRequests.writeBytes(FTPFrame.header(FTPFrame.DATA, requestId, FTPFrame.STATUS_REQUEST, fileLength));
+			flushRequests();
+		}
 
-		String getPort = Integer.toString(getPortNumber);
+		sendPutData(arguments, raf, pChannel, lock, 0, fileLength, requestId, true);
+	}
+
+	/**
+	 * Sends the data of a put the server was told about and reports the
+	 * server's answer.
+	 * @param arguments String representation of file name entered by user
+	 * @param raf The file being sent, closed once the data is sent
+	 * @param pChannel FileChannel of the file
+	 * @param lock Lock held on the file, may be null
+	 * @param offset Offset in the file of the first byte to send
+	 * @param fileLength Number of bytes to send
+	 * @param requestId Request id of the put in the binary protocol
+	 * @param ready True if the server is ready for the data
+	 * @throws IOException
+	 */
+	private void sendPutData(String arguments, RandomAccessFile raf, FileChannel pChannel, FileLock lock,
+			long offset, long fileLength, int requestId, boolean ready) throws IOException {
+
+		// Once the server is ready stream the file straight from the
+		// file channel to the socket in bounded chunks.
+		// Inform user upon file transfer completion.
+		// Catch possible errors.
+		try {
+
+			if (ready) {
+				FTPDataStream.send(pChannel, offset, fileLength, FTPTransferEngine.outputChannel(nClientSocket),
+						compressionLevel, FTPDigest.of(verifyAlgorithm), null);
+			}
+			
+			// Release the lock - if it is not null!
+			if( lock != null ) {
+				lock.release();
+			}
+		} 
+		catch (FileNotFoundException e) {
+			System.err.println("FileNotFoundException: " + e + "\n" + e.getMessage());
+		} 
+		catch (IOException e) {
+			System.err.println("IOException: " + e + "\n" + e.getMessage());
+		} 
+		finally {
+			pChannel.close(); 
+			raf.close();
+		}
+
+		String response;
+
+		if (binary) {
+			FTPFrame frame = receiveServerFrame(requestId, true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? "RECEIVED" : frame.text();
+		}
+		else {
+			response = receiveServerResponse();
+		}
+
+		if (response.toUpperCase().equals("RECEIVED")) {
+			System.out.println("File " + arguments + " sending complete.");
+		}
+		else if (response.toUpperCase().equals("CHECKSUM MISMATCH")) {
+			System.out.println("File " + arguments + " sending failed, checksum mismatch.");
+		}
+		else if (response.toUpperCase().startsWith("INCOMPLETE ")) {
+			System.out.println("File " + arguments + " sending incomplete, the server has "
+					+ response.substring("INCOMPLETE ".length()) + " bytes. reput " + arguments + " sends the rest.");
+		}
+		else {
+			System.out.println("File " + arguments + " sending failed.");
+		}
+	}
+
+	/**
+	 * Command put sends a file to the server from the client.
+	 * @param command command String representation of command entered by user
+	 * @param arguments String representation of file name entered by user
+	 * @param offset Offset the server was told to start at with REST, 0 for the whole file
+	 * @throws IOException 
+	 */
+	private void putCommandBackground(String command, String arguments, long offset) throws IOException {
+
+		// Setup File object to prepare to send to server
+		File fileToSend = new File(arguments);
+
+		// If file name entered by user does not exist inform user
+		// and return from method.
+		if (!fileToSend.exists()) {
+			System.out.println("File not found");
+			return;
+		}
+
+		InetAddress hostName = nClientSocket.getInetAddress();
+
+		String announcement;
+
+		if (binary) {
+
+			// The request asks the server for a data port
+			announcement = receiveServerFrame(requestServer(FTPFrame.PUT_BACKGROUND,
+					FTPFrame.encodeBackground(FTPDataPorts.PASSIVE, arguments)), true).text();
+		}
+		else {
+
+			// Send put command and filename to Server
+			messageServer(command + " " + FTPCommandLine.quote(arguments) + " &" );
+
+			messageServer(Integer.toString(FTPDataPorts.PASSIVE));
+
+			announcement = receiveServerResponse();
+		}
+
+		FTPDataPorts.Endpoint endpoint = FTPDataPorts.parse(announcement);
+
+		System.out.println("Command ID:  " + endpoint.commandID());
+
+		putSocket = endpoint.connect(hostName, dataMux);
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(endpoint.commandID(), serverName(),
+				"put", arguments, Math.max(0, fileToSend.length() - offset));
+
+		executorPool.submit(new FTPPutBackground(putSocket, arguments, transfer, offset));
+
+
+	}
+
+	/**
+	 * Command reget continues a get that was cut short. The server is told
+	 * to start at the length of the local copy, so only the missing tail
+	 * of the file is sent.
+	 * @param arguments String representation of file name entered by user
+	 * @param hasBackgroundIndicator True if the transfer is to run in the background
+	 * @throws IOException
+	 */
+	private void regetCommand(String arguments, boolean hasBackgroundIndicator) throws IOException {
+
+		File partialFile = new File(currentDirectory + sysFileSeparator + arguments);
+
+		long filesLength = fileSize(arguments);
+
+		if (filesLength < 0) {
+			System.out.println("File not found.");
+			return;
+		}
+
+		long offset = partialFile.isFile() ? partialFile.length() : 0;
+
+		// A local copy longer than the server's file is not a part of it
+		if (offset > filesLength) {
+			offset = 0;
+		}
+
+		if (!restartServer(offset)) {
+			return;
+		}
+
+		if (hasBackgroundIndicator) {
+			getCommandBackground("GET", arguments, offset);
+		}
+		else {
+			getCommand("GET", arguments, offset);
+		}
+	}
+
+	/**
+	 * Command reput continues a put that was cut short. The server is told
+	 * to start at the length of its copy and only the missing tail of the
+	 * local file is sent.
+	 * @param arguments String representation of file name entered by user
+	 * @param hasBackgroundIndicator True if the transfer is to run in the background
+	 * @throws IOException
+	 */
+	private void reputCommand(String arguments, boolean hasBackgroundIndicator) throws IOException {
+
+		File fileToSend = new File(arguments);
+
+		if (!fileToSend.exists()) {
+			System.out.println("File not found");
+			return;
+		}
+
+		long offset = Math.max(0, fileSize(arguments));
+
+		// A copy on the server longer than the local file is not a part of it
+		if (offset > fileToSend.length()) {
+			offset = 0;
+		}
+
+		if (!restartServer(offset)) {
+			return;
+		}
+
+		if (hasBackgroundIndicator) {
+			putCommandBackground("PUT", arguments, offset);
+		}
+		else {
+			putCommand("PUT", arguments, offset);
+		}
+	}
+
+	/**
+	 * Tells the server to start the next transfer at an offset.
+	 * @param offset Offset to start at, nothing is sent for 0
+	 * @return True if the server agreed
+	 * @throws IOException
+	 */
+	private boolean restartServer(long offset) throws IOException {
+
+		if (offset == 0) {
+			return true;
+		}
+
+		boolean restarting;
+
+		if (binary) {
+			restarting = receiveServerFrame(requestServer(FTPFrame.REST,
+					FTPFrame.encode(Long.toString(offset))), true).status() == FTPFrame.STATUS_OK;
+		}
+		else {
+			messageServer("REST " + offset);
+			restarting = receiveServerResponse().toUpperCase().startsWith("RESTARTING");
+		}
+
+		if (restarting) {
+			System.out.println("Restarting at byte " + offset + ".");
+		}
+		else {
+			System.out.println("Server cannot restart at byte " + offset + ".");
+		}
+
+		return restarting;
+	}
+
+	/**
+	 * Command mget retrieves every file on the server whose name matches
+	 * the pattern, all over one stream.
+	 * @param command String representation of command entered by user
+	 * @param arguments Glob pattern entered by user, e.g. *.log
+	 * @throws IOException
+	 */
+	private synchronized void mgetCommand(String command, String arguments) throws IOException {
+
+		int numberOfFiles;
+
+		if (binary) {
+
+			// The files follow the response right away
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.MGET, FTPFrame.encode(arguments)), true);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				System.out.println("No files matched.");
+				return;
+			}
+
+			numberOfFiles = Integer.parseInt(response.text());
+		}
+		else {
+
+			// Send command and pattern to server
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+
+			if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
+				System.out.println("No files matched.");
+				return;
+			}
+
+			numberOfFiles = Integer.parseInt(receiveServerResponse());
+
+			messageServer("READY");
+		}
+
+		// The stream ends with its own marker, no response follows it
+		int received = FTPFileStream.receive(FTPTransferEngine.inputChannel(nClientSocket),
+				new File(currentDirectory), null);
+
+		System.out.println(received + " of " + numberOfFiles + " files retrieving complete.");
+	}
+
+	/**
+	 * Command mput sends every local file whose name matches the pattern
+	 * to the server, all over one stream.
+	 * @param command String representation of command entered by user
+	 * @param arguments Glob pattern entered by user, e.g. *.log
+	 * @throws IOException
+	 */
+	private synchronized void mputCommand(String command, String arguments) throws IOException {
+
+		List<File> files = expandPattern(arguments);
+
+		if (files.isEmpty()) {
+			System.out.println("No files matched.");
+			return;
+		}
+
+		int requestId = 0;
+
+		if (binary) {
+
+			// The files follow the request right away
+			requestId = requestServer(FTPFrame.MPUT, FTPFrame.encode(arguments));
+		}
+		else {
+
+			// Send command and pattern to server
+			messageServer(command + " " + FTPCommandLine.quote(arguments));
+
+			if (!(receiveServerResponse().toUpperCase().equals("READY"))) {
+				return;
+			}
+		}
+
+		int sent = FTPFileStream.send(files, FTPTransferEngine.outputChannel(nClientSocket), null);
+
+		String response = binary ? receiveServerFrame(requestId, true).text() : receiveServerResponse();
+
+		if (response.toUpperCase().startsWith("RECEIVED")) {
+			System.out.println(sent + " files sending complete.");
+		}
+	}
+
+	/**
+	 * Command mget in the background, the files arrive over one data
+	 * connection.
+	 * @param command String representation of command entered by user
+	 * @param arguments Glob pattern entered by user
+	 * @throws IOException
+	 */
+	private void mgetCommandBackground(String command, String arguments) throws IOException {
+
+		InetAddress hostName = nClientSocket.getInetAddress();
+
+		String announcement;
+
+		if (binary) {
+
+			// The request asks the server for a data port
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.MGET_BACKGROUND,
+					FTPFrame.encodeBackground(FTPDataPorts.PASSIVE, arguments)), true);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				System.out.println("No files matched.");
+				return;
+			}
+
+			announcement = response.text();
+		}
+		else {
+
+			messageServer(command + " " + FTPCommandLine.quote(arguments) + " &");
+
+			if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
+				System.out.println("No files matched.");
+				return;
+			}
+
+			messageServer(Integer.toString(FTPDataPorts.PASSIVE));
+
+			announcement = receiveServerResponse();
+		}
+
+		FTPDataPorts.Endpoint endpoint = FTPDataPorts.parse(announcement);
+
+		System.out.println("Command ID:  " + endpoint.commandID());
+
+		Socket mgetSocket = endpoint.connect(hostName, dataMux);
+
+		// The server expands the pattern, so the length of the files is not known
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(endpoint.commandID(), serverName(),
+				"mget", arguments, -1);
+
+		executorPool.submit(new FTPMGetBackground(mgetSocket, transfer));
+	}
+
+	/**
+	 * Command mput in the background, the files go over one data
+	 * connection.
+	 * @param command String representation of command entered by user
+	 * @param arguments Glob pattern entered by user
+	 * @throws IOException
+	 */
+	private void mputCommandBackground(String command, String arguments) throws IOException {
+
+		List<File> files = expandPattern(arguments);
+
+		if (files.isEmpty()) {
+			System.out.println("No files matched.");
+			return;
+		}
+
+		InetAddress hostName = nClientSocket.getInetAddress();
+
+		String announcement;
+
+		if (binary) {
+
+			// The request asks the server for a data port
+			announcement = receiveServerFrame(requestServer(FTPFrame.MPUT_BACKGROUND,
+					FTPFrame.encodeBackground(FTPDataPorts.PASSIVE, arguments)), true).text();
+		}
+		else {
+
+			messageServer(command + " " + FTPCommandLine.quote(arguments) + " &");
+			messageServer(Integer.toString(FTPDataPorts.PASSIVE));
+
+			announcement = receiveServerResponse();
+		}
+
+		FTPDataPorts.Endpoint endpoint = FTPDataPorts.parse(announcement);
+
+		System.out.println("Command ID:  " + endpoint.commandID());
+
+		Socket mputSocket = endpoint.connect(hostName, dataMux);
+
+		long total = 0;
+
+		for (File file : files) {
+			total += file.length();
+		}
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(endpoint.commandID(), serverName(),
+				"mput", arguments, total);
+
+		executorPool.submit(new FTPMPutBackground(mputSocket, files, transfer));
+	}
+
+	/**
+	 * Command pget retrieves a file over several data connections at once.
+	 * Each connection carries one byte range that is written at its offset
+	 * in a temporary file next to the local one. Every range is checked
+	 * against the CRC32C the server computed, and the temporary file only
+	 * replaces the local one if all of them match. Runs in the foreground,
+	 * so it cannot be terminated.
+	 * @param commands The command line, pget file [connections]
+	 * @throws IOException
+	 */
+	private synchronized void pgetCommand(String commands) throws IOException {
+
+		String fileName = null;
+		int streams = FTPClientConfig.pgetStreams();
+
+		List<String> words = FTPCommandLine.split(commands);
+
+		if ((words != null) && (words.size() > 1)) {
+			fileName = words.get(1);
+		}
+
+		if ((words != null) && (words.size() == 3)) {
+
+			try {
+				streams = Integer.parseInt(words.get(2));
+			}
+			catch (NumberFormatException e) {
+				fileName = null;
+			}
+		}
+
+		if ((fileName == null) || (words.size() > 3)) {
+			System.out.println("Unrecognized command format! Please try again.");
+			return;
+		}
+
+		long filesLength = fileSize(fileName);
+
+		if (filesLength < 0) {
+			System.out.println("File not found.");
+			return;
+		}
+
+		if (streams <= 0) {
+			streams = FTPSegmentTransfer.streamsFor(filesLength);
+		}
+
+		// Never more connections than bytes
+		streams = (int) Math.max(1, Math.min(Math.min(streams, FTPSegmentTransfer.MAX_STREAMS), filesLength));
+
+		InetAddress hostName = nClientSocket.getInetAddress();
+
+		String announcement;
+
+		if (binary) {
+
+			// The request asks the server for a data port and carries the number of connections
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.PGET,
+					FTPFrame.encodeSegmented(FTPDataPorts.PASSIVE, streams, fileName)), true);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				System.out.println("File not found.");
+				return;
+			}
+
+			announcement = response.text();
+		}
+		else {
+
+			messageServer("PGET " + FTPCommandLine.quote(fileName));
+
+			if ((receiveServerResponse()).toUpperCase().equals("NOT FOUND")) {
+				System.out.println("File not found.");
+				return;
+			}
+
+			messageServer(Integer.toString(FTPDataPorts.PASSIVE));
+			messageServer(Integer.toString(streams));
+
+			announcement = receiveServerResponse();
+		}
+
+		FTPDataPorts.Endpoint endpoint = FTPDataPorts.parse(announcement);
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(endpoint.commandID(), serverName(),
+				"pget", fileName, filesLength);
+
+		File newFile = new File(currentDirectory + sysFileSeparator + fileName);
+		File partFile = null;
+		boolean intact = true;
+
+		List<Socket> segmentSockets = new ArrayList<Socket>();
+
+		// Try to connect every segment before any of them starts, then
+		// fetch them all at once into a file of their own next to the
+		// target. The target is only replaced once every segment arrived
+		// intact, a failed pget leaves it as it was. Catch possible errors.
+		try {
+
+			partFile = Files.createTempFile(newFile.getAbsoluteFile().getParentFile().toPath(),
+					"." + newFile.getName(), ".pget").toFile();
+
+			try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+
+				FileChannel channel = raf.getChannel();
+
+				raf.setLength(filesLength);
+
+				// Segments open connections of their own even with MUX, the
+				// point of pget is more than one TCP connection
+				for (int i = 0; i < streams; i++) {
+					segmentSockets.add(endpoint.connect(hostName, null));
+				}
+
+				List<Future<Boolean>> segments = new ArrayList<Future<Boolean>>();
+
+				for (int i = 0; i < streams; i++) {
+
+					Socket segmentSocket = segmentSockets.get(i);
+					long offset = filesLength * i / streams;
+					long length = filesLength * (i + 1) / streams - offset;
+
+					segments.add(executorPool.submit(() -> FTPSegmentTransfer.fetch(segmentSocket, channel,
+							offset, length, transfer)));
+				}
+
+				for (Future<Boolean> segment : segments) {
+
+					try {
+						intact &= segment.get();
+					}
+					catch (ExecutionException e) {
+						System.err.println("IOException: " + e.getCause() + "\n" + e.getCause().getMessage());
+						intact = false;
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						intact = false;
+					}
+				}
+			}
+
+			if (intact) {
+
+				Files.move(partFile.toPath(), newFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+				newFile.setReadable(true, false);
+				newFile.setWritable(true, false);
+			}
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e + "\n" + e.getMessage());
+			intact = false;
+		}
+		finally {
+
+			for (Socket segmentSocket : segmentSockets) {
+				segmentSocket.close();
+			}
+
+			if (!intact && (partFile != null)) {
+				partFile.delete();
+			}
+
+			if (!intact) {
+				transfer.failed();
+			}
+
+			transfer.finish();
+		}
+
+		if (intact) {
+			System.out.println("File " + fileName + " retrieving complete (" + streams + " segments verified).");
+		}
+		else {
+			System.out.println("File " + fileName + " did not arrive intact and was left as it was.");
+		}
+	}
+
+	/**
+	 * Command size shows the length of a file on the server.
+	 * @param arguments String representation of file name entered by user
+	 * @throws IOException
+	 */
+	private void sizeCommand(String arguments) throws IOException {
+
+		long filesLength = fileSize(arguments);
+
+		if (filesLength < 0) {
+			System.out.println("File not found.");
+		}
+		else {
+			System.out.println(filesLength);
+		}
+	}
+
+	/**
+	 * Asks the server for the length of a file.
+	 * @param fileName Name of the file
+	 * @return The length or -1 if the file does not exist
+	 * @throws IOException
+	 */
+	private long fileSize(String fileName) throws IOException {
+
+		String response;
+
+		if (binary) {
+
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.SIZE, FTPFrame.encode(fileName)), true);
+
+			if (frame.status() != FTPFrame.STATUS_OK) {
+				return -1;
+			}
+
+			response = frame.text();
+		}
+		else {
+
+			messageServer("SIZE " + FTPCommandLine.quote(fileName));
+
+			response = receiveServerResponse();
+
+			if (response.toUpperCase().equals("NOT FOUND")) {
+				return -1;
+			}
+		}
+
+		return Long.parseLong(response);
+	}
+
+	/**
+	 * Expands a glob pattern in the local current directory.
+	 * @param pattern The pattern entered by the user
+	 * @return The matching files, empty if there are none or the pattern is invalid
+	 */
+	private List<File> expandPattern(String pattern) {
+
+		try {
+			return FTPFileStream.expand(new File(currentDirectory), pattern);
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e);
+			return new ArrayList<File>();
+		}
+	}
+
+	/**
+	 * Command ls retrieves list of files and directories in the current
+	 * directory on the server.
+	 * @param commands String representation of the ls command entered by the user
+	 * @throws IOException
+	 */
+	private void lsCommand(String commands) throws IOException {
+
+		BufferedReader listing = nInputFromServerBuffered;
+
+		if (binary) {
+
+			// The whole listing arrives as the payload of one frame
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.LS, FTPFrame.encode(null)), true);
+			listing = new BufferedReader(new StringReader(response.text()));
+		}
+		else {
+
+			// Send ls command to user
+			messageServer(commands);
+		}
+
+		printListing(listing);
+	}
+
+	/**
+	 * Reads a listing sent for ls and prints it for the user.
+	 * @param listing The number of filenames followed by one filename per line
+	 * @throws IOException
+	 */
+	private void printListing(BufferedReader listing) throws IOException {
+
+		// Receive as a string the number of filenames the server will be sending
+		String numberOfFilesString = listing.readLine();
+
+		// Parse the String to an int
+		int numberOfFiles = Integer.parseInt(numberOfFilesString);
+
+		// Create a List to store the filenames
+		List<String> fileList = new ArrayList<String>();
+
+		// Iterate for the number of filenames to be received 
+		// and add each filename to the List
+		for(int index = 0; index < numberOfFiles; index ++) {
+			fileList.add(listing.readLine());
+		}
+
+		// Iterate over the List and print the filenames for the user
+		for(String file : fileList) {        			
+			System.out.println(file);
+		}		
+	}	
+
+	/**
+	 * Sends delete, cd, mkdir, or pwd command to the server.
+	 * Receives server's response and prints for user.
+	 * @param commands String representation of command entered by user
+	 * @param command String representation of the command
+	 * @param arguments String representation of the argument, may be null
+	 * @throws IOException
+	 */
+	private void remainingCommands(String commands, String command, String arguments) throws IOException {
+
+		if (binary) {
+
+			int opcode = FTPFrame.opcodeOf(command);
+
+			if (opcode < 0) {
+				System.out.print("Unknown command");
+				return;
+			}
+
+			System.out.print(receiveServerFrame(requestServer(opcode, FTPFrame.encode(arguments)), true).text());
+			return;
+		}
+
+		messageServer(commands); 
+		System.out.print(receiveServerResponse());
+	}	
+
+
+	/**
+	 * Runs the commands in a local batch file, one per line. In the binary
+	 * protocol delete, cd, mkdir, pwd and ls are sent ahead without
+	 * waiting, up to the pipeline window, and their responses are printed
+	 * in order as they arrive. Any other command waits for all outstanding
+	 * responses and then runs on its own. In the text protocol every
+	 * command runs on its own.
+	 * @param fileName Name of the batch file
+	 * @throws IOException
+	 */
+	private void batchCommand(String fileName) throws IOException {
+
+		if ((fileName == null) || !new File(fileName).isFile()) {
+			System.out.println("File not found");
+			return;
+		}
+
+		int window = FTPClientConfig.pipelineWindow();
+
+		// Request id and opcode of every request still waiting for its response
+		Deque<int[]> outstanding = new ArrayDeque<int[]>();
+
+		for (String commands : Files.readAllLines(Paths.get(fileName))) {
+
+			String command = null;
+			String arguments = null;
+			boolean hasBackgroundIndicator = false;
+
+			List<String> words = FTPCommandLine.split(commands);
+
+			if ((words == null) || words.isEmpty()) {
+				continue;
+			}
+
+			command = words.get(0);
+
+			if (words.size() > 1) {
+				arguments = words.get(1);
+			}
+
+			if (words.size() > 2) {
+				hasBackgroundIndicator = words.get(2).equals("&");
+			}
+
+			int opcode = command.toUpperCase().equals("LS") ? FTPFrame.LS : FTPFrame.opcodeOf(command);
+
+			if (binary && (opcode > 0)) {
+
+				if (outstanding.size() >= window) {
+					flushRequests();
+					printResponse(outstanding.poll());
+				}
+
+				outstanding.add(new int[] { queueRequest(opcode, FTPFrame.encode(arguments)), opcode });
+				continue;
+			}
+
+			// Everything else waits until the server caught up
+			flushRequests();
+
+			while (!outstanding.isEmpty()) {
+				printResponse(outstanding.poll());
+			}
+
+			if (!routeCommand(commands, command, arguments, hasBackgroundIndicator)) {
+				return;
+			}
+
+			System.out.println();
+		}
+
+		flushRequests();
+
+		while (!outstanding.isEmpty()) {
+			printResponse(outstanding.poll());
+		}
+	}
+
+	/**
+	 * Receives the response to a pipelined request and prints it for
+	 * the user.
+	 * @param request Request id and opcode of the request
+	 * @throws IOException
+	 */
+	private void printResponse(int[] request) throws IOException {
+
+		FTPFrame response = receiveServerFrame(request[0], true);
+
+		if (request[1] == FTPFrame.LS) {
+			printListing(new BufferedReader(new StringReader(response.text())));
+		}
+		else if (!response.text().isEmpty()) {
+			System.out.println(response.text());
+		}
+	}
+
+	/**
+	 * Sends terminate command via tPort along with command to terminate
+	 * @param command String representation of the command
+	 * @param commandID String representation of the commandID to terminate
+	 */
+	private void terminateCommand(String command, String commandID) {
+
+		messageServerTerminate(commandID);
+
+		FTPTransferRegistry.cancel(commandID);
+
+	}
+
+	/**
+	 * Command jobs lists the background transfers of this Client with
+	 * their progress, rate and time left.
+	 */
+	private void jobsCommand() {
+
+		List<FTPTransferRegistry.Transfer> transfers = FTPTransferRegistry.transfers();
+
+		if (transfers.isEmpty()) {
+			System.out.println("No background transfers.");
+		}
+
+		for (FTPTransferRegistry.Transfer transfer : transfers) {
+			System.out.println(transfer.describe());
+		}
+	}
+
+	/**
+	 * Command stat shows the progress, rate and time left of one
+	 * background transfer of this Client.
+	 * @param commandID String representation of the commandID of the transfer
+	 */
+	private void statCommand(String commandID) {
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.get(String.valueOf(commandID).trim());
+
+		System.out.println((transfer == null) ? "No such transfer." : transfer.describe());
+	}
+
+	/**
+	 * Command rjobs lists the background transfers of this session as the
+	 * server sees them.
+	 * @throws IOException
+	 */
+	private void rjobsCommand() throws IOException {
+
+		BufferedReader listing = nInputFromServerBuffered;
+
+		if (binary) {
+
+			// The whole listing arrives as the payload of one frame
+			FTPFrame response = receiveServerFrame(requestServer(FTPFrame.JOBS, FTPFrame.encode(null)), true);
+
+			if (response.status() != FTPFrame.STATUS_OK) {
+				System.out.println("Server does not support JOBS.");
+				return;
+			}
+
+			listing = new BufferedReader(new StringReader(response.text()));
+		}
+		else {
+			messageServer("JOBS");
+		}
+
+		// The number of transfers, followed by one line per transfer
+		String numberOfTransfersString = listing.readLine();
+
+		if ((numberOfTransfersString == null) || !numberOfTransfersString.matches("\\d+")) {
+			System.out.println("Server does not support JOBS.");
+			return;
+		}
+
+		int numberOfTransfers = Integer.parseInt(numberOfTransfersString);
+
+		if (numberOfTransfers == 0) {
+			System.out.println("No background transfers on the server.");
+		}
+
+		for (int index = 0; index < numberOfTransfers; index++) {
+			System.out.println(listing.readLine());
+		}
+	}
+
+	/**
+	 * Command rstat shows one background transfer of this session as the
+	 * server sees it.
+	 * @param commandID String representation of the commandID of the transfer
+	 * @throws IOException
+	 */
+	private void rstatCommand(String commandID) throws IOException {
+
+		String response;
+
+		if (binary) {
+
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.STAT, FTPFrame.encode(commandID)), true);
+
+			if (frame.status() == FTPFrame.STATUS_UNKNOWN_COMMAND) {
+				System.out.println("Server does not support STAT.");
+				return;
+			}
+
+			response = frame.text();
+		}
+		else {
 
-		messageServer(getPort);
+			messageServer("STAT " + commandID);
 
-		String commandID = receiveServerResponse();
+			response = receiveServerResponse();
+		}
 
-		// Put commandID and run status in hashmap
-		statusMap.put(commandID, true);
+		System.out.println(response.toUpperCase().equals("NOT FOUND") ? "No such transfer." : response);
+	}
 
-		System.out.println("Command ID:  " + commandID);
+	/**
+	 * Sends quit command to server and sets quitCommand boolean
+	 * to true to exit loop.
+	 * @param commands String representation of quit command
+	 * @throws IOException
+	 */
+	private void quitCommand(String commands) throws IOException {
 
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		if (binary) {
+			requestServer(FTPFrame.QUIT, FTPFrame.encode(null));
+		}
+		else {
+			messageServer(commands);
 		}
 
-		getSocket = new Socket(hostName, getPortNumber);
+		messageServerTerminate("QUIT");
+		quitCommand = true;
+	}	
 
-		threadCount++;
+	/**
+	 * Asks the server to switch to the binary protocol. A server that does
+	 * not know PROTO answers Unknown command and the text protocol is kept.
+	 */
+	private void protoCommand() {
 
+		messageServer("PROTO BINARY");
 
-		executorPool.submit(new FTPGetBackground(getSocket, arguments, commandID));
+		binary = "PROTO BINARY".equals(receiveServerResponse());
 
-  
+		if (!binary) {
+			System.out.println("Server does not support the binary protocol, using text.");
+		}
 	}
 
 	/**
-	 * Command put sends a file to the server from the client.
-	 * @param command command String representation of command entered by user
-	 * @param arguments String representation of file name entered by user
-	 * @throws IOException 
+	 * Asks the server to compress get and put data at the configured
+	 * level. Servers that do not know COMPRESS keep the data as it is.
+	 * @throws IOException
 	 */
-	private synchronized void putCommand(String command, String arguments) throws IOException {
+	private void compressCommand() throws IOException {
 
-		// Setup File object to prepare to send to server
-		File fileToSend = new File(arguments);
-		
-		// If file name entered by user does not exist inform user
-		// and return from method.
-		if (!fileToSend.exists()) {
-			System.out.println("File not found");
-			
-			return;
-		}
-		RandomAccessFile raf = new RandomAccessFile(fileToSend, "rw");
-		FileChannel pChannel = raf.getChannel();
+		String level = FTPClientConfig.compression();
+		String response;
 
-		FileLock lock = pChannel.tryLock();
-		
-		// Send put command and filename to server
-		messageServer(command + " " + arguments);  
+		if (binary) {
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.COMPRESS, FTPFrame.encode(level)), true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? frame.text() : "";
+		}
+		else {
+			messageServer("COMPRESS " + level);
+			response = receiveServerResponse();
+		}
 
-		// Send file length to server
-		messageServer(Long.toString(fileToSend.length()));
+		if (response.toUpperCase().startsWith("COMPRESS ")) {
+			compressionLevel = FTPCompression.level(response.substring("COMPRESS ".length()));
+		}
 
-		// Try to create a byte buffer the size of the file length.
-		// Read from file into file input stream then proceed to read
-		// from (buffered) file input stream into byte buffer. Write from
-		// the byte buffer to the output stream to the Server.
-		// Inform user upon file transfer completion.
-		// Catch possible errors.
-		try {
+		if (compressionLevel == FTPCompression.OFF) {
+			System.out.println("Server does not support compression level " + level + ", sending data as it is.");
+		}
+	}
 
-			byte[] buffer = new byte[(int) fileToSend.length()];
+	/**
+	 * Asks the server to send a checksum with get and put data. Servers
+	 * that do not know VERIFY send the data without one.
+	 * @throws IOException
+	 */
+	private void verifyCommand() throws IOException {
 
-			ByteBuffer byteBuffer = ByteBuffer.allocate(buffer.length);
+		String algorithm = FTPClientConfig.verification();
+		String response;
 
-			pChannel.read(byteBuffer);
+		if (binary) {
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.VERIFY, FTPFrame.encode(algorithm)), true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? frame.text() : "";
+		}
+		else {
+			messageServer("VERIFY " + algorithm);
+			response = receiveServerResponse();
+		}
 
-			buffer = byteBuffer.array();
+		if (response.toUpperCase().startsWith("VERIFY ")) {
+			verifyAlgorithm = FTPDigest.algorithm(response.substring("VERIFY ".length()));
+		}
 
-			if((receiveServerResponse().toUpperCase().equals("READY"))) {
-				// Fragment the file send
-				int times = (buffer.length / 1000);
+		if (verifyAlgorithm == null) {
+			System.out.println("Server does not support checksum " + algorithm + ", sending data without one.");
+		}
+	}
 
-				// IF file under 1000 send whole thing
-				if(buffer.length < 1000) {
-					nOutputToServer.write(buffer, 0, buffer.length);
-					nOutputToServer.flush();
-				}
-				for(int i = 0; i < times; i++) {
+	/**
+	 * Asks the server for one data connection that carries every
+	 * background transfer of the session. Servers that do not know MUX
+	 * keep one connection per transfer.
+	 * @throws IOException
+	 */
+	private void muxCommand() throws IOException {
 
-					if((1000*i) < (buffer.length - 1000)) {
-						nOutputToServer.write(buffer, (1000*i), 1000);
-					}
-					else {
-						nOutputToServer.write(buffer, (1000*i), buffer.length - (1000*i));
-					}  
+		String response;
 
-					nOutputToServer.flush();
-				}
-			}
-			
-			// Release the lock - if it is not null!
-			if( lock != null ) {
-				lock.release();
-			}
-		} 
-		catch (FileNotFoundException e) {
-			System.err.println("FileNotFoundException: " + e + "\n" + e.getMessage());
-		} 
-		catch (IOException e) {
-			System.err.println("IOException: " + e + "\n" + e.getMessage());
-		} 
-		finally {
-			pChannel.close(); 
-			raf.close();
+		if (binary) {
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.MUX, FTPFrame.encode(null)), true);
+			response = (frame.status() == FTPFrame.STATUS_OK) ? frame.text() : "";
+		}
+		else {
+			messageServer("MUX");
+			response = receiveServerResponse();
 		}
 
-		if ((receiveServerResponse()).toUpperCase().equals("RECEIVED")) {
-			System.out.println("File " + arguments + " sending complete.");
+		if (!response.toUpperCase().startsWith("MUX ")) {
+			System.out.println("Server does not support MUX, background transfers use a connection each.");
+			return;
 		}
+
+		dataMux = new FTPMux(FTPDataPorts.parse(response).connect(nClientSocket.getInetAddress(), null));
 	}
 
 	/**
-	 * Command put sends a file to the server from the client.
-	 * @param command command String representation of command entered by user
+	 * Command checksum shows the checksum of a file on the server and
+	 * whether the local file of the same name matches it.
 	 * @param arguments String representation of file name entered by user
-	 * @throws IOException 
+	 * @throws IOException
 	 */
-	private void putCommandBackground(String command, String arguments) throws IOException {
+	private void checksumCommand(String arguments) throws IOException {
 
-		// Setup File object to prepare to send to server
-		File fileToSend = new File(arguments);
+		String response;
 
-		// If file name entered by user does not exist inform user
-		// and return from method.
-		if (!fileToSend.exists()) {
-			System.out.println("File not found");
-			return;
-		}
+		if (binary) {
+
+			FTPFrame frame = receiveServerFrame(requestServer(FTPFrame.CHECKSUM, FTPFrame.encode(arguments)), true);
 
-		int putPortNumber;
+			if (frame.status() != FTPFrame.STATUS_OK) {
+				System.out.println("File not found.");
+				return;
+			}
 
-		if((nClientSocket.getPort() + threadCount) != tPortNumber) {
-			putPortNumber = nClientSocket.getPort() + threadCount;
+			response = frame.text();
 		}
 		else {
-			putPortNumber = nClientSocket.getPort() + (threadCount + 1);
-		}
-
-		InetAddress hostName = nClientSocket.getInetAddress();
 
+			messageServer("CHECKSUM " + FTPCommandLine.quote(arguments));
 
-		// Send put command and filename to Server
-		messageServer(command + " " + arguments + " &" );  
+			response = receiveServerResponse();
 
-		String putPort = Integer.toString(putPortNumber);
-
-		messageServer(putPort);
+			if (response.toUpperCase().equals("NOT FOUND")) {
+				System.out.println("File not found.");
+				return;
+			}
+		}
 
-		String commandID = receiveServerResponse();
-		System.out.println("Command ID:  " + commandID);
+		System.out.println(response);
 
-		// Put commandID and run status in hashmap
-		statusMap.put(commandID, true);
+		// The answer is the algorithm and the checksum as hex digits
+		String[] parts = response.split(" ");
+		File localFile = new File(currentDirectory + sysFileSeparator + arguments);
 
-		putSocket = new Socket(hostName, putPortNumber);
+		if ((parts.length == 2) && (FTPDigest.of(parts[0]) != null) && localFile.isFile()) {
 
-		threadCount++;
+			String local = FTPDigest.hex(FTPDigest.digestFile(localFile, parts[0]));
 
+			System.out.println(local.equals(parts[1]) ? "Local file matches." : "Local file differs: " + local);
+		}
+	}
 
+	/**
+	 * Sends a request frame to the server.
+	 * @param opcode Opcode of the request
+	 * @param payload Argument of the request
+	 * @return Request id the response will carry
+	 * @throws IOException
+	 */
+	private int requestServer(int opcode, byte[] payload) throws IOException {
 
-		executorPool.submit(new FTPPutBackground(putSocket, arguments, commandID));
+		int requestId = queueRequest(opcode, payload);
 
+		flushRequests();
 
+		return requestId;
 	}
 
 	/**
-	 * Command ls retrieves list of files and directories in the current
-	 * directory on the server.
-	 * @param commands String representation of the ls command entered by the user
+	 * Queues a request frame to be sent with the next flushRequests.
+	 * @param opcode Opcode of the request
+	 * @param payload Argument of the request
+	 * @return Request id the response will carry
 	 */
-	private void lsCommand(String commands) {
+	private int queueRequest(int opcode, byte[] payload) {
 
-		// Send ls command to user
-		messageServer(commands);
+		int requestId = nextRequestId++;
 
-		// Receive as a string the number of filenames the server will be sending
-		String numberOfFilesString = receiveServerResponse();
+		queuedRequests.writeBytes(FTPFrame.frame(opcode, requestId, FTPFrame.STATUS_REQUEST, payload));
 
-		// Parse the String to an int
-		int numberOfFiles = Integer.parseInt(numberOfFilesString);
+		return requestId;
+	}
 
-		// Create a List to store the filenames
-		List<String> fileList = new ArrayList<String>();
+	/**
+	 * Sends all queued request frames to the server in one write.
+	 * @throws IOException
+	 */
+	private void flushRequests() throws IOException {
 
-		// Iterate for the number of filenames to be received 
-		// and add each filename to the List
-		for(int index = 0; index < numberOfFiles; index ++) {
-			fileList.add(receiveServerResponse());
+		if (queuedRequests.size() > 0) {
+			FTPFrame.writeFully(FTPTransferEngine.outputChannel(nClientSocket),
+					ByteBuffer.wrap(queuedRequests.toByteArray()));
+			queuedRequests.reset();
 		}
-
-		// Iterate over the List and print the filenames for the user
-		for(String file : fileList) {        			
-			System.out.println(file);
-		}		
-	}	
+	}
 
 	/**
-	 * Sends delete, cd, mkdir, or pwd command to the server.
-	 * Receives server's response and prints for user.
-	 * @param commands String representation of command entered by user
+	 * Receives the server's response frame to a request.
+	 * @param requestId Request id of the request
+	 * @param withPayload False to leave the payload of a successful response,
+	 * the file data of a GET, for the caller to read
+	 * @return The response frame
+	 * @throws IOException
 	 */
-	private void remainingCommands(String commands) {
-		messageServer(commands); 
-		System.out.print(receiveServerResponse());
-	}	
+	private FTPFrame receiveServerFrame(int requestId, boolean withPayload) throws IOException {
 
+		FTPFrame response = FTPFrame.readHeader(FTPTransferEngine.inputChannel(nClientSocket));
 
-	/**
-	 * Sends terminate command via tPort along with command to terminate
-	 * @param command String representation of the command
-	 * @param commandID String representation of the commandID to terminate
-	 */
-	private void terminateCommand(String command, String commandID) {
+		if (response == null) {
+			throw new IOException("Server closed the connection");
+		}
 
-		messageServerTerminate(commandID);
+		if (response.requestId() != requestId) {
+			throw new IOException("Response to request " + response.requestId()
+					+ " while waiting for request " + requestId);
+		}
 
-		if(statusMap.containsKey(commandID)) {
-			statusMap.replace(commandID, false);
+		if (withPayload) {
+			response = response.readPayload(FTPTransferEngine.inputChannel(nClientSocket));
 		}
 
+		return response;
 	}
 
-	/**
-	 * Sends quit command to server and sets quitCommand boolean
-	 * to true to exit loop.
-	 * @param commands String representation of quit command
-	 */
-	private void quitCommand(String commands) {
-		messageServer(commands);
-		messageServerTerminate("QUIT");
-		quitCommand = true;
-	}	
-
 	/**
 	 * Sends messages to the server and flushes the stream.
 	 * @param message String representation of message to send to server
@@ -640,6 +1966,13 @@ public class FTPClientWorker implements Runnable{
 		return serverResponse;
 	}
 
+	/**
+	 * @return Address of the server, naming the session in the FTPTransferRegistry
+	 */
+	private String serverName() {
+		return String.valueOf(nClientSocket.getRemoteSocketAddress());
+	}
+
 	/**
 	 * Sends terminate message to the server and flushes the stream.
 	 * @param message String representation of terminate message to send to server
@@ -667,6 +2000,98 @@ public class FTPClientWorker implements Runnable{
 
 	// Inner classes for background Get and Put
 
+	/**
+	 * Receives the files of a background mget over its data connection
+	 */
+	protected class FTPMGetBackground implements Runnable {
+
+		private final Socket mSocket;
+		private final FTPTransferRegistry.Transfer transfer;
+
+		FTPMGetBackground(Socket socket, FTPTransferRegistry.Transfer transfer) {
+			this.mSocket = socket;
+			this.transfer = transfer;
+		}
+
+		@Override
+		public void run() {
+
+			// Try receiving the files, checking for termination between
+			// reads. Catch possible errors.
+			boolean completed = false;
+
+			try {
+				FTPFileStream.receive(FTPTransferEngine.inputChannel(mSocket), new File(currentDirectory), transfer);
+				completed = true;
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e + "\n" + e.getMessage());
+			}
+			finally {
+
+				try {
+					mSocket.close();
+				}
+				catch (IOException e) {
+					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
+				}
+
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
+		}
+	}
+
+	/**
+	 * Sends the files of a background mput over its data connection
+	 */
+	protected class FTPMPutBackground implements Runnable {
+
+		private final Socket mSocket;
+		private final List<File> files;
+		private final FTPTransferRegistry.Transfer transfer;
+
+		FTPMPutBackground(Socket socket, List<File> files, FTPTransferRegistry.Transfer transfer) {
+			this.mSocket = socket;
+			this.files = files;
+			this.transfer = transfer;
+		}
+
+		@Override
+		public void run() {
+
+			// Try streaming the files, checking for termination between
+			// files and chunks. Catch possible errors.
+			boolean completed = false;
+
+			try {
+				FTPFileStream.send(files, FTPTransferEngine.outputChannel(mSocket), transfer);
+				completed = true;
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e + "\n" + e.getMessage());
+			}
+			finally {
+
+				try {
+					mSocket.close();
+				}
+				catch (IOException e) {
+					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
+				}
+
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
+		}
+	}
+
 
 	/**
 	 * Inner class to be run via separate thread to Get file from Server
@@ -685,23 +2110,25 @@ public class FTPClientWorker implements Runnable{
 
 		private FileChannel gChannel;
 
-		private Thread currentThread;
+		private final FTPTransferRegistry.Transfer transfer;
 
-		private boolean cleanUp = false;
+		// Offset the server was told to start at with REST
+		private final long offset;
 
-		FTPGetBackground (Socket socket, String fileName, String commandID){
+		FTPGetBackground (Socket socket, String fileName, FTPTransferRegistry.Transfer transfer, long offset){
 			this.gSocket = socket;
 			this.fileName = fileName;
+			this.transfer = transfer;
+			this.offset = offset;
 			this.gCurrentDirectory = System.getProperty("user.dir");
 			this.gSysFileSeparator = System.getProperty("file.separator");
-
-			currentThread = Thread.currentThread();
-			currentThread.setName(commandID);
 		}
 
 		@Override
 		public void run(){
 
+			boolean completed = false;
+
 			try {
 
 				gInputFromServer = new DataInputStream(gSocket.getInputStream());
@@ -715,7 +2142,7 @@ public class FTPClientWorker implements Runnable{
 			}
 
 			try {
-				getFileFromServer();
+				completed = getFileFromServer();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -739,20 +2166,27 @@ public class FTPClientWorker implements Runnable{
 				} catch (IOException e) {
 					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
 				}
-			}
 
-			statusMap.remove(currentThread.getName());
+				// Also on unchecked exceptions, or the transfer would be listed forever
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
 		}
 
 
 		/**
 		 * Get File from server
+		 * @return False if not all of it arrived intact
 		 * @throws IOException 
 		 */
-		private synchronized void getFileFromServer() throws IOException {
+		private synchronized boolean getFileFromServer() throws IOException {
 
 			File fileToCreate = null;
 			RandomAccessFile raf = null;
+			boolean complete = false;
 
 			try {
 
@@ -762,52 +2196,37 @@ public class FTPClientWorker implements Runnable{
 				raf = new RandomAccessFile(fileToCreate, "rw");
 				gChannel = raf.getChannel();
 
-				FileLock lock = gChannel.tryLock();
+				FileLock lock = FTPTransferEngine.tryLock(gChannel, false);
 
 				// Receive file length from Client
 				String fileLengthFromServer = receiveServerResponseGet();
 
-				// Parse String of file length to int
-				Integer filesLength = Integer.parseInt(fileLengthFromServer);
+				// Parse String of file length to long
+				long filesLength = Long.parseLong(fileLengthFromServer);
 
-				byte[] buffer = new byte[filesLength];
+				transfer.total(filesLength);
 
 				messageServerGet("READY");
 
-				// Fragment the file to receive
-				int times = (filesLength / 1000);
-
-				// IF file under 1000 receive whole thing
-				if(filesLength < 1000) {
-					gInputFromServer.read(buffer, 0, buffer.length);
+				// Write the file as it arrives, checking for
+				// termination between reads
+				FTPDigest digest = FTPDigest.of(verifyAlgorithm);
 
-					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+				long received = FTPDataStream.receive(FTPTransferEngine.inputChannel(gSocket), gChannel,
+						offset, filesLength, compressionLevel, digest, transfer);
 
-					gChannel.write(byteBuffer);	
+				complete = (received == filesLength);
 
+				// A file that arrived changed keeps nothing of this transfer
+				if (complete && !FTPDataStream.verify(FTPTransferEngine.inputChannel(gSocket), digest)) {
+					System.out.println("File " + fileName + " retrieving failed, checksum mismatch.");
+					received = 0;
+					complete = false;
 				}
 
-				for(int i = 0; i < times; i++) {
-
-
-					if((1000*i) < (filesLength - 1000)) {
-						gInputFromServer.read(buffer, (1000*i), 1000);
-					}
-					else {
-						gInputFromServer.read(buffer, (1000*i), buffer.length - (1000*i));
-					} 
-
-					if(!statusMap.get(currentThread.getName())) {
-
-						cleanUp = true;
-
-						break;
-					}
-				}
-				if(!cleanUp) {
-					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-					gChannel.write(byteBuffer);
-				}
+				// A terminated transfer keeps what arrived so reget can
+				// continue it, anything after it is left over from an older copy
+				gChannel.truncate(offset + received);
 
 				// Release the lock - if it is not null!
 				if( lock != null ) {
@@ -825,11 +2244,9 @@ public class FTPClientWorker implements Runnable{
 
 				fileToCreate.setReadable(true, false);
 				fileToCreate.setWritable(true, false);
-
-				if(cleanUp) {
-					fileToCreate.delete();
-				}
 			}
+
+			return complete;
 		}
 
 
@@ -873,14 +2290,16 @@ public class FTPClientWorker implements Runnable{
 		private FileChannel pChannel;
 
 		private String fileName = null;
-		private Thread currentThread;
+		private final FTPTransferRegistry.Transfer transfer;
 
-		FTPPutBackground (Socket socket, String fileName, String commandID){
+		// Offset the server was told to start at with REST
+		private final long offset;
+
+		FTPPutBackground (Socket socket, String fileName, FTPTransferRegistry.Transfer transfer, long offset){
 			this.pClientSocket = socket;
 			this.fileName = fileName;
-
-			currentThread = Thread.currentThread();
-			currentThread.setName(commandID);
+			this.transfer = transfer;
+			this.offset = offset;
 		}
 
 		@Override
@@ -888,6 +2307,8 @@ public class FTPClientWorker implements Runnable{
 			// Try assigning input and output streams and starting while loop
 			// catch possible errors and inform user. Finally close all streams
 			// and socket.
+			boolean completed = false;
+
 			try {					
 
 				pInputFromServer = new DataInputStream(pClientSocket.getInputStream());
@@ -895,7 +2316,7 @@ public class FTPClientWorker implements Runnable{
 
 				pOutputToServer = new PrintStream(pClientSocket.getOutputStream(), true);
 
-				putFile();
+				completed = putFile();
 
 			}
 			catch(IOException e) {
@@ -931,64 +2352,57 @@ public class FTPClientWorker implements Runnable{
 					System.err.println("Interrupted thread Exception while trying to close thread:  " 
 							+ e + "\n" + e.getMessage());
 				}
-			}
 
-			statusMap.remove(currentThread.getName());
+				// Also on unchecked exceptions, or the transfer would be listed forever
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
 		}
 
-		private synchronized void putFile() throws IOException {
+		/**
+		 * Sends the file from the offset on.
+		 * @return False if not all of it was sent or it arrived changed
+		 */
+		private synchronized boolean putFile() throws IOException {
 
 			RandomAccessFile raf = null;
+			boolean complete = false;
+
 			try {
 
 				// Setup File object to prepare to send to server
 				File fileToSend = new File(fileName);	
-				raf = new RandomAccessFile(fileToSend, "rw");
+				raf = new RandomAccessFile(fileToSend, "r");
 				pChannel = raf.getChannel();
 
-				FileLock lock = pChannel.tryLock();
+				FileLock lock = FTPTransferEngine.tryLock(pChannel, true);
 
-				// Parse Long of file length to a String to send to server
-				String fileLengthString = Long.toString(fileToSend.length());
+				long fileLength = pChannel.size() - offset;
+
+				// Parse Long of the length of the rest of the file to a String to send to server
+				String fileLengthString = Long.toString(fileLength);
 
 				// Send file length to server
 				messageServerPut(fileLengthString);
 
-				//ByteBuffer byteBuffer = ByteBuffer.allocate((int) fileToSend.length());
-
-				byte[] buffer = new byte[(int) fileToSend.length()];
-
-				ByteBuffer byteBuffer = ByteBuffer.allocate(buffer.length);
-
-				pChannel.read(byteBuffer);
-
-				buffer = byteBuffer.array();;
-
 				if((receiveServerResponsePut().toUpperCase().equals("READY"))) {
 
-					// Fragment the file send
-					int times = (buffer.length / 1000);
+					// Stream the file in bounded chunks, checking
+					// for termination between chunks
+					long sent = FTPDataStream.send(pChannel, offset, fileLength,
+							FTPTransferEngine.outputChannel(pClientSocket), compressionLevel,
+							FTPDigest.of(verifyAlgorithm), transfer);
 
-					// IF file under 1000 send whole thing
-					if(buffer.length < 1000) {
-						pOutputToServer.write(buffer, 0, buffer.length);
-						pOutputToServer.flush();
-					}
-
-					for(int i = 0; i < times; i++) {
-
-						if((1000*i) < (buffer.length - 1000)) {
-							pOutputToServer.write(buffer, (1000*i), 1000);
-						}
-						else {
-							pOutputToServer.write(buffer, (1000*i), buffer.length - (1000*i));
-						}  
-
-						pOutputToServer.flush();
+					complete = (sent == fileLength);
 
-						if(!statusMap.get(currentThread.getName())) {
-							break;
-						}
+					// With a checksum the server tells whether the file arrived as it was sent
+					if ((verifyAlgorithm != null) && complete
+							&& "CHECKSUM MISMATCH".equals(receiveServerResponsePut())) {
+						System.out.println("File " + fileName + " sending failed, checksum mismatch.");
+						complete = false;
 					}
 
 					// Release the lock - if it is not null!
@@ -1006,10 +2420,14 @@ public class FTPClientWorker implements Runnable{
 			} 
 			finally {
 
-				pChannel.close();
-				raf.close();
-
+				// Nothing was opened if the file does not exist
+				if (raf != null) {
+					pChannel.close();
+					raf.close();
+				}
 			}
+
+			return complete;
 		}
 
 		/**
@@ -0,0 +1,95 @@
+package FTPClient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits command lines into words the way the server does, and quotes
+ * file names for the server. A word in double quotes may contain spaces,
+ * and a backslash in it keeps the next character as it is, e.g.
+ * get "my \"best\" file.txt". Unquoted words end at the first whitespace.
+ */
+public class FTPCommandLine {
+
+	private FTPCommandLine() {
+	}
+
+	/**
+	 * @param line A command line
+	 * @return Its words without their quotes, null if a quote is never closed
+	 */
+	public static List<String> split(String line) {
+
+		List<String> words = new ArrayList<String>(3);
+		StringBuilder word = new StringBuilder();
+		int index = 0;
+
+		while (true) {
+
+			while ((index < line.length()) && Character.isWhitespace(line.charAt(index))) {
+				index++;
+			}
+
+			if (index == line.length()) {
+				return words;
+			}
+
+			word.setLength(0);
+
+			if (line.charAt(index) != '"') {
+
+				while ((index < line.length()) && !Character.isWhitespace(line.charAt(index))) {
+					word.append(line.charAt(index++));
+				}
+			}
+			else {
+
+				index++;
+
+				while ((index < line.length()) && (line.charAt(index) != '"')) {
+
+					if ((line.charAt(index) == '\\') && (index + 1 < line.length())) {
+						index++;
+					}
+
+					word.append(line.charAt(index++));
+				}
+
+				if (index == line.length()) {
+					return null;
+				}
+
+				index++;
+			}
+
+			words.add(word.toString());
+		}
+	}
+
+	/**
+	 * @param word A file name or other argument, may be null
+	 * @return The word in double quotes if the server would otherwise not read it as one word
+	 */
+	public static String quote(String word) {
+
+		if ((word == null) || (!word.isEmpty() && (word.charAt(0) != '"')
+				&& word.chars().noneMatch(Character::isWhitespace))) {
+			return word;
+		}
+
+		StringBuilder quoted = new StringBuilder(word.length() + 2).append('"');
+
+		for (int index = 0; index < word.length(); index++) {
+
+			char next = word.charAt(index);
+
+			if ((next == '"') || (next == '\\')) {
+				quoted.append('\\');
+			}
+
+			quoted.append(next);
+		}
+
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,420 @@
+package FTPClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * File data of get and put once the server agreed to COMPRESS. The data
+ * is cut into independent blocks of BLOCK_SIZE bytes and every block goes
+ * out as
+ *
+ *   u8 type, u32 length, u32 stored length, stored bytes
+ *
+ * where RAW blocks carry the bytes as they are and DEFLATED blocks carry
+ * them compressed with a raw Deflater. The announced length of a transfer
+ * stays the length of the file, so the receiver knows which block is the
+ * last. Blocks are compressed several at a time on a shared pool and
+ * written in order. Once a block does not compress, the following blocks
+ * are sent raw and only every SAMPLE_INTERVAL-th one is tried again, so
+ * incompressible data costs little CPU.
+ */
+public class FTPCompression {
+
+	/** Compression level of a session that did not turn it on */
+	static final int OFF = -2;
+
+	static final int BLOCK_SIZE = 256 * 1024;
+	static final int HEADER_SIZE = 9;
+
+	// Block types
+	static final int RAW = 0;
+	static final int DEFLATED = 1;
+
+	// A block is only sent compressed if it shrinks to this share of its length
+	private static final double MAX_RATIO = 0.9;
+
+	// Blocks sent raw before compression is tried again
+	private static final int SAMPLE_INTERVAL = 16;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	// Blocks read ahead of the one being written
+	private static final int WINDOW = 2 * THREADS;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private static final ExecutorService compressors = Executors.newFixedThreadPool(THREADS, block -> {
+		Thread thread = new Thread(block, "ftp-compress-" + threadNumber.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private FTPCompression() {
+	}
+
+	/**
+	 * Returns the Deflater level for a name sent with COMPRESS.
+	 * @param name fast, default, best or off
+	 * @return The level or OFF if the name is unknown
+	 */
+	static int level(String name) {
+
+		if (name == null) {
+			return OFF;
+		}
+
+		switch(name.toUpperCase()) {
+
+		case "FAST":
+			return Deflater.BEST_SPEED;
+
+		case "DEFAULT":
+			return Deflater.DEFAULT_COMPRESSION;
+
+		case "BEST":
+			return Deflater.BEST_COMPRESSION;
+
+		default:
+			return OFF;
+		}
+	}
+
+	/**
+	 * @param level A level returned by level(String)
+	 * @return The name the level is sent as
+	 */
+	static String name(int level) {
+
+		switch(level) {
+
+		case Deflater.BEST_SPEED:
+			return "FAST";
+
+		case Deflater.DEFAULT_COMPRESSION:
+			return "DEFAULT";
+
+		case Deflater.BEST_COMPRESSION:
+			return "BEST";
+
+		default:
+			return "OFF";
+		}
+	}
+
+	/**
+	 * Sends count bytes of the file starting at position as blocks.
+	 * @param source FileChannel of the file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param level Deflater level of the session
+	 * @param digest Updated with the bytes of the file as they are read. May be null
+	 * @param keepSending Checked before every block, stops the transfer when false. May be null
+	 * @return Number of bytes of the file actually sent
+	 * @throws IOException
+	 */
+	static long send(FileChannel source, long position, long count, WritableByteChannel target,
+			int level, FTPDigest digest, BooleanSupplier keepSending) throws IOException {
+
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		long read = 0;
+		long sent = 0;
+		int blocks = 0;
+		boolean compressible = true;
+
+		try {
+
+			while ((keepSending == null) || keepSending.getAsBoolean()) {
+
+				// Keep the pool busy with the blocks after the one written next
+				while ((read < count) && (pending.size() < WINDOW)) {
+
+					byte[] block = readBlock(source, position + read, (int) Math.min(BLOCK_SIZE, count - read));
+
+					// The file got shorter while we were sending it
+					if (block.length == 0) {
+						count = read;
+						break;
+					}
+
+					read += block.length;
+
+					if (digest != null) {
+						digest.update(block, 0, block.length);
+					}
+
+					if (compressible || (blocks % SAMPLE_INTERVAL == 0)) {
+						pending.add(compressors.submit(() -> deflate(block, level)));
+					}
+					else {
+						pending.add(CompletableFuture.completedFuture(raw(block)));
+					}
+
+					blocks++;
+				}
+
+				if (pending.isEmpty()) {
+					break;
+				}
+
+				ByteBuffer encoded = ByteBuffer.wrap(await(pending.poll()));
+
+				compressible = (encoded.get(0) == DEFLATED);
+				sent += encoded.getInt(1);
+
+				while (encoded.hasRemaining()) {
+					target.write(encoded);
+				}
+
+				FTPTransferRegistry.progress(keepSending, encoded.getInt(1));
+			}
+		}
+		finally {
+
+			for (Future<byte[]> block : pending) {
+				block.cancel(false);
+			}
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Receives blocks until count bytes of the file arrived and writes
+	 * them to the file starting at position.
+	 * @param source Channel of the socket to receive from
+	 * @param target FileChannel of the file to write to
+	 * @param position Offset in the file of the first byte to write
+	 * @param count Number of bytes of the file to receive
+	 * @param digest Updated with the bytes of the file as they are written. May be null
+	 * @param keepReceiving Checked before every block, stops the transfer when false. May be null
+	 * @return Number of bytes actually received and written
+	 * @throws IOException If a block is corrupt
+	 */
+	static long receive(ReadableByteChannel source, FileChannel target, long position, long count,
+			FTPDigest digest, BooleanSupplier keepReceiving) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		ByteBuffer stored = ByteBuffer.allocate(BLOCK_SIZE);
+		byte[] inflated = new byte[BLOCK_SIZE];
+
+		Inflater inflater = new Inflater(true);
+		long received = 0;
+
+		try {
+
+			while (received < count) {
+
+				if ((keepReceiving != null) && (!keepReceiving.getAsBoolean())) {
+					break;
+				}
+
+				header.clear();
+
+				if (!readFully(source, header)) {
+					break;
+				}
+
+				int type = header.get(0);
+				int length = header.getInt(1);
+				int storedLength = header.getInt(5);
+
+				checkHeader(type, length, storedLength, count - received);
+
+				stored.clear();
+				stored.limit(storedLength);
+
+				if (!readFully(source, stored)) {
+					break;
+				}
+
+				stored.flip();
+
+				ByteBuffer block = stored;
+
+				if (type == DEFLATED) {
+					block = ByteBuffer.wrap(inflated, 0, inflate(inflater, stored, inflated, length));
+				}
+
+				if (digest != null) {
+					digest.update(block.duplicate());
+				}
+
+				while (block.hasRemaining()) {
+					received += target.write(block, position + received);
+				}
+
+				FTPTransferRegistry.progress(keepReceiving, length);
+			}
+		}
+		finally {
+			inflater.end();
+		}
+
+		return received;
+	}
+
+	/**
+	 * Compresses a block, or stores it raw if it does not shrink enough.
+	 */
+	private static byte[] deflate(byte[] block, int level) {
+
+		Deflater deflater = new Deflater(level, true);
+
+		try {
+
+			deflater.setInput(block);
+			deflater.finish();
+
+			// Output that does not fit means the block is not worth compressing
+			byte[] encoded = new byte[HEADER_SIZE + (int) (block.length * MAX_RATIO)];
+			int storedLength = 0;
+
+			while (!deflater.finished() && (HEADER_SIZE + storedLength < encoded.length)) {
+				storedLength += deflater.deflate(encoded, HEADER_SIZE + storedLength,
+						encoded.length - HEADER_SIZE - storedLength);
+			}
+
+			if (!deflater.finished()) {
+				return raw(block);
+			}
+
+			ByteBuffer.wrap(encoded).put((byte) DEFLATED).putInt(block.length).putInt(storedLength);
+
+			byte[] trimmed = new byte[HEADER_SIZE + storedLength];
+			System.arraycopy(encoded, 0, trimmed, 0, trimmed.length);
+
+			return trimmed;
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Encodes a block as it is.
+	 */
+	private static byte[] raw(byte[] block) {
+		return ByteBuffer.allocate(HEADER_SIZE + block.length).put((byte) RAW)
+				.putInt(block.length).putInt(block.length).put(block).array();
+	}
+
+	/**
+	 * Inflates one block.
+	 * @return The length of the block
+	 */
+	private static int inflate(Inflater inflater, ByteBuffer stored, byte[] inflated, int length) throws IOException {
+
+		inflater.reset();
+		inflater.setInput(stored.array(), 0, stored.limit());
+
+		int inflatedLength = 0;
+
+		try {
+
+			while (inflatedLength < length) {
+
+				int count = inflater.inflate(inflated, inflatedLength, length - inflatedLength);
+
+				if ((count == 0) && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+
+				inflatedLength += count;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed block", e);
+		}
+
+		if (inflatedLength != length) {
+			throw new IOException("Compressed block inflated to " + inflatedLength + " instead of " + length + " bytes");
+		}
+
+		return inflatedLength;
+	}
+
+	/**
+	 * Rejects a block header that does not fit the transfer.
+	 */
+	private static void checkHeader(int type, int length, int storedLength, long remaining) throws IOException {
+
+		if (((type != RAW) && (type != DEFLATED)) || (length <= 0) || (length > BLOCK_SIZE)
+				|| (length > remaining) || (storedLength < 0) || (storedLength > BLOCK_SIZE)
+				|| ((type == RAW) && (storedLength != length))) {
+			throw new IOException("Corrupt compressed block header");
+		}
+	}
+
+	/**
+	 * Reads up to length bytes of the file starting at position.
+	 * @return The bytes, fewer if the file ended first
+	 */
+	private static byte[] readBlock(FileChannel source, long position, int length) throws IOException {
+
+		ByteBuffer block = ByteBuffer.allocate(length);
+
+		while (block.hasRemaining()) {
+			if (source.read(block, position + block.position()) < 0) {
+				break;
+			}
+		}
+
+		if (block.hasRemaining()) {
+			byte[] shorter = new byte[block.position()];
+			System.arraycopy(block.array(), 0, shorter, 0, shorter.length);
+			return shorter;
+		}
+
+		return block.array();
+	}
+
+	/**
+	 * Fills the buffer from the channel.
+	 * @return False if the channel ended first
+	 */
+	private static boolean readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Waits for a block to be encoded.
+	 */
+	private static byte[] await(Future<byte[]> block) throws IOException {
+
+		try {
+			return block.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Compressing a block failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package FTPClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Data connections of background transfers on the ports the server picks.
+ * The Client asks for port 0, and the server answers the command id
+ * followed by the port and a token as hex digits
+ *
+ *   command id, port, token
+ *
+ * The server listens on the port before it answers, so the Client
+ * connects right away and sends the token as 8 bytes first thing on every
+ * data connection, which is how the server tells the connections of all
+ * its Clients apart. With an FTPMux the token opens a stream on it instead.
+ */
+public class FTPDataPorts {
+
+	// Port sent to ask the server for one of its ports
+	static final int PASSIVE = 0;
+
+	static final int TOKEN_LENGTH = 8;
+
+	private FTPDataPorts() {
+	}
+
+	/**
+	 * Reads the answer to a background request.
+	 * @param announcement Command id, port and token sent by the server
+	 * @return The endpoint
+	 * @throws IOException If the server did not announce a port
+	 */
+	static Endpoint parse(String announcement) throws IOException {
+
+		String[] fields = announcement.trim().split(" ");
+
+		if (fields.length != 3) {
+			throw new IOException("Server did not announce a data port: " + announcement);
+		}
+
+		try {
+			return new Endpoint(fields[0], Integer.parseInt(fields[1]), Long.parseUnsignedLong(fields[2], 16));
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Server did not announce a data port: " + announcement);
+		}
+	}
+
+	/**
+	 * Where the data connections of one transfer go.
+	 */
+	static class Endpoint {
+
+		private final String commandID;
+		private final int port;
+		private final long token;
+
+		private Endpoint(String commandID, int port, long token) {
+			this.commandID = commandID;
+			this.port = port;
+			this.token = token;
+		}
+
+		/**
+		 * @return Command id of the transfer
+		 */
+		String commandID() {
+			return commandID;
+		}
+
+		/**
+		 * Opens a data connection and sends the token. The socket is
+		 * connected through a SocketChannel so it can be used with the
+		 * channel based transfers.
+		 * @param hostName Address of the server
+		 * @param mux Data connection of the session to open a stream on instead. May be null
+		 * @return Connected Socket, or the stream
+		 * @throws IOException
+		 */
+		Socket connect(InetAddress hostName, FTPMux mux) throws IOException {
+
+			if ((mux != null) && mux.isOpen()) {
+				return mux.open(token);
+			}
+
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostName, port));
+			ByteBuffer tokenBuffer = ByteBuffer.allocate(TOKEN_LENGTH).putLong(0, token);
+
+			try {
+				while (tokenBuffer.hasRemaining()) {
+					channel.write(tokenBuffer);
+				}
+			}
+			catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+
+			return channel.socket();
+		}
+	}
+}
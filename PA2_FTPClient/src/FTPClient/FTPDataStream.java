@@ -0,0 +1,128 @@
+package FTPClient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The file data of one get or put, sent the way the session agreed on:
+ * raw or as FTPCompression blocks, and once VERIFY is on followed by the
+ * checksum of the data
+ *
+ *   u8 length, checksum
+ *
+ * computed by the sender while it sends. The receiver computes its own
+ * while it writes and compares the two, so neither side reads the file a
+ * second time.
+ */
+public class FTPDataStream {
+
+	private FTPDataStream() {
+	}
+
+	/**
+	 * Sends count bytes of a file starting at position.
+	 * @param source FileChannel of the file
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param compressionLevel Deflater level of the session or FTPCompression.OFF
+	 * @param digest Empty digest of the session's algorithm, null to send no checksum
+	 * @param keepSending Checked between chunks, stops the transfer when false. May be null
+	 * @return Number of bytes of the file actually sent
+	 * @throws IOException
+	 */
+	static long send(FileChannel source, long position, long count, WritableByteChannel target,
+			int compressionLevel, FTPDigest digest, BooleanSupplier keepSending) throws IOException {
+
+		long sent;
+
+		if (compressionLevel != FTPCompression.OFF) {
+			sent = FTPCompression.send(source, position, count, target, compressionLevel, digest, keepSending);
+		}
+		else if (digest != null) {
+			sent = FTPTransferEngine.sendChecksummed(source, position, count, target, digest, keepSending);
+		}
+		else {
+			sent = FTPTransferEngine.sendFile(source, position, count, target, keepSending);
+		}
+
+		if ((digest != null) && (sent == count)) {
+
+			byte[] value = digest.digest();
+
+			ByteBuffer trailer = ByteBuffer.allocate(1 + value.length).put((byte) value.length).put(value);
+			trailer.flip();
+
+			while (trailer.hasRemaining()) {
+				target.write(trailer);
+			}
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Receives count bytes of a file and writes them starting at position.
+	 * Once all arrived, verify reads and checks the sender's checksum.
+	 * @param source Channel of the socket to receive from
+	 * @param target FileChannel of the file to write to
+	 * @param position Offset in the file of the first byte to write
+	 * @param count Number of bytes to receive
+	 * @param compressionLevel Deflater level of the session or FTPCompression.OFF
+	 * @param digest Empty digest of the session's algorithm, null if no checksum is sent
+	 * @param keepReceiving Checked between reads, stops the transfer when false. May be null
+	 * @return Number of bytes actually received and written
+	 * @throws IOException
+	 */
+	static long receive(ReadableByteChannel source, FileChannel target, long position, long count,
+			int compressionLevel, FTPDigest digest, BooleanSupplier keepReceiving) throws IOException {
+
+		if (compressionLevel != FTPCompression.OFF) {
+			return FTPCompression.receive(source, target, position, count, digest, keepReceiving);
+		}
+
+		if (digest != null) {
+			return FTPTransferEngine.receiveChecksummed(source, target, position, count, digest, keepReceiving);
+		}
+
+		return FTPTransferEngine.receiveFile(source, target, position, count, keepReceiving);
+	}
+
+	/**
+	 * Reads the sender's checksum and compares it with the one computed
+	 * while receiving.
+	 * @param source Channel of the socket to receive from
+	 * @param digest Digest filled by receive, null if no checksum is sent
+	 * @return True if the checksums match or none is sent
+	 * @throws IOException
+	 */
+	static boolean verify(ReadableByteChannel source, FTPDigest digest) throws IOException {
+
+		if (digest == null) {
+			return true;
+		}
+
+		ByteBuffer length = ByteBuffer.allocate(1);
+		readFully(source, length);
+
+		ByteBuffer value = ByteBuffer.allocate(length.get(0) & 0xff);
+		readFully(source, value);
+
+		return Arrays.equals(value.array(), digest.digest());
+	}
+
+	private static void readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) < 0) {
+				throw new EOFException("Connection closed before the checksum arrived");
+			}
+		}
+	}
+}
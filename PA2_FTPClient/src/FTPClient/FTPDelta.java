@@ -0,0 +1,387 @@
+package FTPClient;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * New version of a file sent as the differences to the copy the server
+ * already has, for dput. The server describes its copy by one signature
+ * per whole block of blockSize bytes
+ *
+ *   u32 weak checksum, 16 byte MD5
+ *
+ * and the Client answers with the new contents as a list of operations
+ *
+ *   u8 COPY, u64 first block, u32 number of blocks
+ *   u8 LITERAL, u32 length, bytes
+ *   u8 END, u64 length of the new file
+ *
+ * The weak checksum is the rolling checksum of rsync, so the Client can
+ * look for the blocks of the old copy at every offset of its file for a
+ * few additions per byte and only computes an MD5 where the weak one
+ * matches. A run of unchanged blocks costs 13 bytes on the wire.
+ */
+public class FTPDelta {
+
+	// Operations
+	static final int END = 0;
+	static final int COPY = 1;
+	static final int LITERAL = 2;
+
+	static final int SIGNATURE_SIZE = 20;
+
+	static final int MIN_BLOCK_SIZE = 2 * 1024;
+	static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	// Longest literal sent in one operation, also the size of the window
+	// the file is scanned through
+	static final int MAX_LITERAL = 1024 * 1024;
+
+	// Most signatures accepted from the server
+	static final long MAX_BLOCKS = 1L << 26;
+
+	private FTPDelta() {
+	}
+
+	/**
+	 * Computes the weak checksum of a block.
+	 * @param block Buffer holding the block
+	 * @param offset Offset of the block in the buffer
+	 * @param length Length of the block
+	 * @return The sum of the bytes in the low and their weighted sum in the high 16 bits
+	 */
+	static int weak(byte[] block, int offset, int length) {
+
+		int a = 0;
+		int b = 0;
+
+		for (int i = 0; i < length; i++) {
+			int x = block[offset + i] & 0xff;
+			a = (a + x) & 0xffff;
+			b = (b + (length - i) * x) & 0xffff;
+		}
+
+		return a | (b << 16);
+	}
+
+	/**
+	 * Receives the signatures of the server's copy.
+	 * @param source Channel of the socket to receive from
+	 * @param blockSize Block size the server picked
+	 * @param blocks Number of signatures the server announced
+	 * @return The signatures, indexed by weak checksum
+	 * @throws IOException If the announcement is out of range or the stream ends early
+	 */
+	static Signatures receiveSignatures(ReadableByteChannel source, int blockSize, long blocks) throws IOException {
+
+		if ((blockSize < MIN_BLOCK_SIZE) || (blockSize > MAX_BLOCK_SIZE) || (blocks < 0) || (blocks > MAX_BLOCKS)) {
+			throw new IOException("Server announced " + blocks + " signatures of " + blockSize + " byte blocks");
+		}
+
+		Signatures signatures = new Signatures(blockSize, (int) blocks);
+		ByteBuffer batch = ByteBuffer.allocate(FTPTransferEngine.BUFFER_SIZE - FTPTransferEngine.BUFFER_SIZE % SIGNATURE_SIZE);
+
+		int received = 0;
+
+		while (received < blocks) {
+
+			batch.clear();
+			batch.limit((int) Math.min(batch.capacity(), (blocks - received) * SIGNATURE_SIZE));
+
+			while (batch.hasRemaining()) {
+				if (source.read(batch) < 0) {
+					throw new EOFException("Server closed the connection inside the signatures");
+				}
+			}
+
+			batch.flip();
+
+			while (batch.hasRemaining()) {
+				signatures.add(received++, batch);
+			}
+		}
+
+		return signatures;
+	}
+
+	/**
+	 * Scans a file for blocks of the server's copy and sends the file as
+	 * copies of those blocks and literals for everything else.
+	 * @param source FileChannel of the new version of the file
+	 * @param signatures Signatures of the server's copy
+	 * @param target Channel of the socket to send to
+	 * @param digest Updated with the bytes of the file and sent after END. May be null
+	 * @return Number of bytes sent as literals
+	 * @throws IOException
+	 */
+	static long send(FileChannel source, Signatures signatures, WritableByteChannel target, FTPDigest digest)
+			throws IOException {
+
+		int blockSize = signatures.blockSize;
+		byte[] window = new byte[MAX_LITERAL];
+
+		MessageDigest md5 = md5();
+		Operations operations = new Operations(target);
+
+		// Bytes of the file in the window, the block being looked at and
+		// the bytes before it that did not match anything yet
+		int end = 0;
+		int start = 0;
+		int literalStart = 0;
+
+		long position = 0;
+		boolean eof = false;
+
+		// Rolling checksum of the block at start
+		boolean rolling = false;
+		int a = 0;
+		int b = 0;
+
+		while (true) {
+
+			// Rolling on needs the byte after the block
+			if (!eof && (end - start <= blockSize)) {
+
+				operations.literal(window, literalStart, start - literalStart);
+
+				System.arraycopy(window, start, window, 0, end - start);
+				end -= start;
+				start = 0;
+				literalStart = 0;
+
+				while (!eof && (end < window.length)) {
+
+					int read = source.read(ByteBuffer.wrap(window, end, window.length - end), position);
+
+					if (read < 0) {
+						eof = true;
+						break;
+					}
+
+					if (digest != null) {
+						digest.update(window, end, read);
+					}
+
+					end += read;
+					position += read;
+				}
+			}
+
+			if (end - start < blockSize) {
+				break;
+			}
+
+			if (!rolling) {
+
+				int weak = weak(window, start, blockSize);
+
+				a = weak & 0xffff;
+				b = weak >>> 16;
+				rolling = true;
+			}
+
+			int block = signatures.find(a | (b << 16), window, start, md5);
+
+			if (block >= 0) {
+
+				operations.literal(window, literalStart, start - literalStart);
+				operations.copy(block);
+
+				start += blockSize;
+				literalStart = start;
+				rolling = false;
+				continue;
+			}
+
+			if (end - start == blockSize) {
+				break;
+			}
+
+			int out = window[start] & 0xff;
+			int in = window[start + blockSize] & 0xff;
+
+			a = (a - out + in) & 0xffff;
+			b = (b - blockSize * out + a) & 0xffff;
+
+			start++;
+		}
+
+		operations.literal(window, literalStart, end - literalStart);
+		operations.end(position, (digest != null) ? digest.digest() : null);
+
+		return operations.literalBytes;
+	}
+
+	private static MessageDigest md5() {
+
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java runtime has MD5", e);
+		}
+	}
+
+	/**
+	 * Signatures of the server's copy in a hash table of weak checksums
+	 * chained through arrays, so a large file costs no object per block.
+	 */
+	static class Signatures {
+
+		private final int blockSize;
+		private final int[] weak;
+		private final byte[] strong;
+
+		// First block of every bucket and the next block of the same bucket, -1 for none
+		private final int[] buckets;
+		private final int[] next;
+
+		Signatures(int blockSize, int blocks) {
+
+			this.blockSize = blockSize;
+			this.weak = new int[blocks];
+			this.strong = new byte[blocks * 16];
+			this.buckets = new int[Math.max(16, Integer.highestOneBit(Math.max(1, blocks)) * 2)];
+			this.next = new int[blocks];
+
+			Arrays.fill(buckets, -1);
+		}
+
+		/**
+		 * Reads the signature of a block from the buffer.
+		 */
+		private void add(int block, ByteBuffer buffer) {
+
+			weak[block] = buffer.getInt();
+			buffer.get(strong, block * 16, 16);
+
+			int bucket = bucket(weak[block]);
+
+			next[block] = buckets[bucket];
+			buckets[bucket] = block;
+		}
+
+		/**
+		 * Looks for a block of the server's copy with the same contents.
+		 * @param weakChecksum Weak checksum of the candidate
+		 * @param buffer Buffer holding the candidate
+		 * @param offset Offset of the candidate in the buffer
+		 * @param md5 Digest to compute the MD5 of the candidate with, only if the weak checksum matches
+		 * @return Index of the matching block or -1
+		 */
+		int find(int weakChecksum, byte[] buffer, int offset, MessageDigest md5) {
+
+			byte[] candidate = null;
+
+			for (int block = buckets[bucket(weakChecksum)]; block >= 0; block = next[block]) {
+
+				if (weak[block] != weakChecksum) {
+					continue;
+				}
+
+				if (candidate == null) {
+					md5.update(buffer, offset, blockSize);
+					candidate = md5.digest();
+				}
+
+				if (Arrays.equals(strong, block * 16, block * 16 + 16, candidate, 0, 16)) {
+					return block;
+				}
+			}
+
+			return -1;
+		}
+
+		private int bucket(int weakChecksum) {
+			return (weakChecksum * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(buckets.length));
+		}
+	}
+
+	/**
+	 * Writes operations, joining copies of consecutive blocks into one.
+	 */
+	private static class Operations {
+
+		private final DataOutputStream output;
+
+		// Copy not written yet, copyCount 0 for none
+		private long copyFirst = 0;
+		private int copyCount = 0;
+
+		private long literalBytes = 0;
+
+		Operations(WritableByteChannel target) {
+			this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(target),
+					FTPTransferEngine.BUFFER_SIZE));
+		}
+
+		void copy(long block) throws IOException {
+
+			if ((copyCount > 0) && (block == copyFirst + copyCount) && (copyCount < Integer.MAX_VALUE)) {
+				copyCount++;
+				return;
+			}
+
+			flushCopy();
+
+			copyFirst = block;
+			copyCount = 1;
+		}
+
+		void literal(byte[] buffer, int offset, int length) throws IOException {
+
+			if (length == 0) {
+				return;
+			}
+
+			flushCopy();
+
+			output.writeByte(LITERAL);
+			output.writeInt(length);
+			output.write(buffer, offset, length);
+
+			literalBytes += length;
+		}
+
+		/**
+		 * Ends the operations, followed by the checksum as FTPDataStream sends it.
+		 */
+		void end(long length, byte[] checksum) throws IOException {
+
+			flushCopy();
+
+			output.writeByte(END);
+			output.writeLong(length);
+
+			if (checksum != null) {
+				output.writeByte(checksum.length);
+				output.write(checksum);
+			}
+
+			output.flush();
+		}
+
+		private void flushCopy() throws IOException {
+
+			if (copyCount == 0) {
+				return;
+			}
+
+			output.writeByte(COPY);
+			output.writeLong(copyFirst);
+			output.writeInt(copyCount);
+
+			copyCount = 0;
+		}
+	}
+}
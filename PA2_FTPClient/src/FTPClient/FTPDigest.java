@@ -0,0 +1,189 @@
+package FTPClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum of file data computed while it is transferred. CRC32C is cheap
+ * enough to keep up with the network and catches corruption, SHA-256 also
+ * catches changes made on purpose. Implements Checksum so it can be handed
+ * to the transfers that already checksum the bytes they move.
+ */
+public class FTPDigest implements Checksum {
+
+	static final String CRC32C = "CRC32C";
+	static final String SHA256 = "SHA-256";
+
+	private final String algorithm;
+
+	// Exactly one of the two is set
+	private final Checksum checksum;
+	private final MessageDigest messageDigest;
+
+	// The finished value of messageDigest, which can only be finished once
+	private byte[] value;
+
+	private FTPDigest(String algorithm, Checksum checksum, MessageDigest messageDigest) {
+		this.algorithm = algorithm;
+		this.checksum = checksum;
+		this.messageDigest = messageDigest;
+	}
+
+	/**
+	 * Returns the name an algorithm is sent as.
+	 * @param name crc32c, sha-256 or sha256 in any case
+	 * @return CRC32C, SHA-256 or null if the name is unknown
+	 */
+	static String algorithm(String name) {
+
+		if (name == null) {
+			return null;
+		}
+
+		switch(name.toUpperCase()) {
+
+		case CRC32C:
+			return CRC32C;
+
+		case SHA256:
+		case "SHA256":
+			return SHA256;
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Creates an empty digest.
+	 * @param algorithm CRC32C, SHA-256 or null
+	 * @return The digest or null if no algorithm is given
+	 */
+	static FTPDigest of(String algorithm) {
+
+		if (CRC32C.equals(algorithm)) {
+			return new FTPDigest(CRC32C, new java.util.zip.CRC32C(), null);
+		}
+
+		if (SHA256.equals(algorithm)) {
+
+			try {
+				return new FTPDigest(SHA256, null, MessageDigest.getInstance(SHA256));
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Every Java runtime has " + SHA256, e);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads a whole file and returns its digest.
+	 * @param file The file
+	 * @param algorithm CRC32C or SHA-256
+	 * @return The digest
+	 * @throws IOException
+	 */
+	static byte[] digestFile(File file, String algorithm) throws IOException {
+
+		FTPDigest digest = of(algorithm);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(FTPTransferEngine.BUFFER_SIZE);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+			FileChannel channel = raf.getChannel();
+			FTPTransferEngine.tryLock(channel, true);
+
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * @param digest A digest
+	 * @return The digest as lower case hex digits
+	 */
+	static String hex(byte[] digest) {
+		return HexFormat.of().formatHex(digest);
+	}
+
+	/**
+	 * @return CRC32C or SHA-256
+	 */
+	String algorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return The digest of everything added so far, 4 bytes for CRC32C
+	 */
+	byte[] digest() {
+
+		if (checksum != null) {
+			return ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array();
+		}
+
+		if (value == null) {
+			value = messageDigest.digest();
+		}
+
+		return value;
+	}
+
+	@Override
+	public void update(int b) {
+		update(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+
+		if (checksum != null) {
+			checksum.update(b, off, len);
+		}
+		else {
+			messageDigest.update(b, off, len);
+		}
+	}
+
+	@Override
+	public void update(ByteBuffer buffer) {
+
+		if (checksum != null) {
+			checksum.update(buffer);
+		}
+		else {
+			messageDigest.update(buffer);
+		}
+	}
+
+	@Override
+	public long getValue() {
+		return (checksum != null) ? checksum.getValue() : ByteBuffer.wrap(digest()).getLong();
+	}
+
+	@Override
+	public void reset() {
+
+		if (checksum != null) {
+			checksum.reset();
+		}
+		else {
+			messageDigest.reset();
+			value = null;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package FTPClient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One frame of the binary control protocol the Client switches to with
+ * PROTO BINARY. Every frame starts with a fixed size header
+ *
+ *   u8 opcode, u32 request id, u16 status, u64 payload length
+ *
+ * in network byte order, followed by the payload. A request carries status
+ * 0 and its argument as UTF-8 in the payload. Background requests put the
+ * Client's data port in front of the file name as a u16, PGET requests the
+ * data port and the number of data connections as two u16, CPUT requests
+ * the 32 byte SHA-256 of the file. A data port of 0 asks the server to
+ * pick one as described in FTPDataPorts. Every response repeats the opcode and request id of its request and carries a numeric
+ * status and the message, listing or file data as payload. MGET responses
+ * and MPUT requests are followed by an FTPFileStream, DPUT responses by
+ * the signatures and then the operations of an FTPDelta.
+ *
+ * File data never needs a READY round trip: a GET response announces the
+ * length of the file in its header and the file follows as its payload,
+ * and a PUT request is followed by a DATA frame whose payload is the file.
+ * Once COMPRESS is on, the file data of both is sent as FTPCompression
+ * blocks and the announced length stays the length of the file. Once
+ * VERIFY is on, the file data of both is followed by its checksum as
+ * described in FTPDataStream.
+ */
+public class FTPFrame {
+
+	static final int HEADER_SIZE = 15;
+
+	static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	// Opcodes
+	static final int GET = 1;
+	static final int PUT = 2;
+	static final int GET_BACKGROUND = 3;
+	static final int PUT_BACKGROUND = 4;
+	static final int DELETE = 5;
+	static final int LS = 6;
+	static final int CD = 7;
+	static final int MKDIR = 8;
+	static final int PWD = 9;
+	static final int QUIT = 10;
+	static final int DATA = 11;
+	static final int MGET = 12;
+	static final int MPUT = 13;
+	static final int MGET_BACKGROUND = 14;
+	static final int MPUT_BACKGROUND = 15;
+	static final int SIZE = 16;
+	static final int PGET = 17;
+	static final int REST = 18;
+	static final int COMPRESS = 19;
+	static final int VERIFY = 20;
+	static final int CHECKSUM = 21;
+	static final int DPUT = 22;
+	static final int CPUT = 23;
+	static final int MUX = 24;
+	static final int JOBS = 25;
+	static final int STAT = 26;
+
+	// Status codes
+	static final int STATUS_REQUEST = 0;
+	static final int STATUS_OK = 200;
+	static final int STATUS_BAD_REQUEST = 400;
+	static final int STATUS_NOT_FOUND = 404;
+	static final int STATUS_FAILED = 500;
+	static final int STATUS_UNKNOWN_COMMAND = 501;
+
+	private final int opcode;
+	private final int requestId;
+	private final int status;
+	private final long length;
+
+	// Null for frames whose payload is streamed separately
+	private final byte[] payload;
+
+	FTPFrame(int opcode, int requestId, int status, long length, byte[] payload) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.status = status;
+		this.length = length;
+		this.payload = payload;
+	}
+
+	/**
+	 * Returns the opcode of a command that is sent to the server as is.
+	 * @param command The command entered by the user
+	 * @return The opcode or -1 if the command is unknown
+	 */
+	static int opcodeOf(String command) {
+
+		switch(command.toUpperCase()) {
+
+		case "DELETE":
+			return DELETE;
+
+		case "CD":
+			return CD;
+
+		case "MKDIR":
+			return MKDIR;
+
+		case "PWD":
+			return PWD;
+
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Encodes the argument of a request.
+	 * @param argument The argument, may be null
+	 * @return The payload
+	 */
+	static byte[] encode(String argument) {
+		return (argument == null) ? new byte[0] : argument.getBytes(CHARSET);
+	}
+
+	/**
+	 * Encodes the data port and file name of a background request.
+	 * @param port The port the Client connects to for the file data
+	 * @param fileName Name of the file
+	 * @return The payload
+	 */
+	static byte[] encodeBackground(int port, String fileName) {
+
+		byte[] name = encode(fileName);
+
+		return ByteBuffer.allocate(2 + name.length).putShort((short) port).put(name).array();
+	}
+
+	/**
+	 * Encodes the data port, number of data connections and file name of
+	 * a PGET request.
+	 * @param port The port the Client connects to for the segments
+	 * @param streams Number of data connections the Client opens
+	 * @param fileName Name of the file
+	 * @return The payload
+	 */
+	static byte[] encodeSegmented(int port, int streams, String fileName) {
+
+		byte[] name = encode(fileName);
+
+		return ByteBuffer.allocate(4 + name.length).putShort((short) port).putShort((short) streams).put(name).array();
+	}
+
+	/**
+	 * Encodes the hash and file name of a CPUT request.
+	 * @param hash SHA-256 of the file
+	 * @param fileName Name of the file
+	 * @return The payload
+	 */
+	static byte[] encodeHashed(byte[] hash, String fileName) {
+
+		byte[] name = encode(fileName);
+
+		return ByteBuffer.allocate(hash.length + name.length).put(hash).put(name).array();
+	}
+
+	/**
+	 * Encodes a frame with its payload.
+	 * @param opcode Opcode of the frame
+	 * @param requestId Request id of the frame
+	 * @param status Status of the frame
+	 * @param payload Payload of the frame
+	 * @return The encoded frame
+	 */
+	static byte[] frame(int opcode, int requestId, int status, byte[] payload) {
+
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+
+		putHeader(frame, opcode, requestId, status, payload.length);
+		frame.put(payload);
+
+		return frame.array();
+	}
+
+	/**
+	 * Encodes the header of a frame whose payload is written separately.
+	 * @param opcode Opcode of the frame
+	 * @param requestId Request id of the frame
+	 * @param status Status of the frame
+	 * @param length Length of the payload that will follow
+	 * @return The encoded header
+	 */
+	static byte[] header(int opcode, int requestId, int status, long length) {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		putHeader(header, opcode, requestId, status, length);
+
+		return header.array();
+	}
+
+	/**
+	 * Writes the whole buffer to the channel.
+	 * @param channel Channel to the server
+	 * @param buffer The bytes to write
+	 * @throws IOException
+	 */
+	static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads the next frame header, blocking until it arrives.
+	 * @param channel Channel from the server
+	 * @return The frame without its payload or null if the server disconnected
+	 * @throws IOException
+	 */
+	static FTPFrame readHeader(ReadableByteChannel channel) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		if (!readFully(channel, header)) {
+			return null;
+		}
+
+		return new FTPFrame(header.get(0) & 0xff, header.getInt(1), header.getShort(5) & 0xffff,
+				header.getLong(7), null);
+	}
+
+	/**
+	 * Reads the payload of a frame whose header was just read.
+	 * @param channel Channel from the server
+	 * @return The same frame with its payload
+	 * @throws IOException
+	 */
+	FTPFrame readPayload(ReadableByteChannel channel) throws IOException {
+
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IOException("Frame of " + length + " bytes is too large");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+
+		if (!readFully(channel, buffer)) {
+			throw new EOFException("Server closed the connection");
+		}
+
+		return new FTPFrame(opcode, requestId, status, length, buffer.array());
+	}
+
+	/**
+	 * @return Opcode of the frame
+	 */
+	int opcode() {
+		return opcode;
+	}
+
+	/**
+	 * @return Request id the frame belongs to
+	 */
+	int requestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return Status of a response, STATUS_REQUEST for requests
+	 */
+	int status() {
+		return status;
+	}
+
+	/**
+	 * @return Length of the payload
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * @return The payload decoded as text
+	 */
+	String text() {
+		return (payload == null) ? "" : new String(payload, CHARSET);
+	}
+
+	private static void putHeader(ByteBuffer buffer, int opcode, int requestId, int status, long length) {
+		buffer.put((byte) opcode);
+		buffer.putInt(requestId);
+		buffer.putShort((short) status);
+		buffer.putLong(length);
+	}
+
+	/**
+	 * Fills the buffer from the channel.
+	 * @return False if the channel ended before anything was read
+	 */
+	private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer) < 0) {
+
+				if (buffer.position() == 0) {
+					return false;
+				}
+
+				throw new EOFException("Server closed the connection in the middle of a frame");
+			}
+		}
+
+		return true;
+	}
+}
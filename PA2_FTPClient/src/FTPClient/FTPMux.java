@@ -0,0 +1,459 @@
+package FTPClient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One data connection per session that carries the data of any number of
+ * background transfers at once, set up with MUX. Every transfer is a
+ * stream of its own, and the streams take turns on the connection in
+ * frames of at most MAX_FRAME bytes
+ *
+ *   u32 stream id, u8 type, u32 payload length, payload
+ *
+ * The Client starts a stream with OPEN and the 8 byte token the server
+ * announced for the transfer. DATA carries the bytes of a stream, CLOSE
+ * ends it in both directions and CREDIT, a u32, lets the other side send
+ * that many more bytes. Neither side sends more than WINDOW bytes of a
+ * stream the other has not read yet, so a transfer that stops reading
+ * only holds back its own stream.
+ *
+ * Streams are handed to the transfers as a Socket, so a transfer runs
+ * over a stream the way it runs over a connection of its own.
+ */
+public class FTPMux {
+
+	// Frame types
+	static final int OPEN = 1;
+	static final int DATA = 2;
+	static final int CREDIT = 3;
+	static final int CLOSE = 4;
+
+	static final int HEADER_SIZE = 9;
+	static final int MAX_FRAME = 64 * 1024;
+
+	// Bytes of a stream that may be sent ahead of the reader
+	static final int WINDOW = 512 * 1024;
+
+	private final SocketChannel channel;
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+	// Frames go out whole, and the streams get the connection in turns
+	private final ReentrantLock writeLock = new ReentrantLock(true);
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+	private volatile boolean open = true;
+
+	/**
+	 * Starts reading the frames of a data connection.
+	 * @param socket Data connection, connected through a SocketChannel
+	 */
+	FTPMux(Socket socket) {
+
+		this.channel = socket.getChannel();
+
+		Thread reader = new Thread(this::read, "ftp-mux");
+
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return False once the data connection is lost
+	 */
+	boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Opens a stream for a transfer.
+	 * @param token Token the server announced for the transfer
+	 * @return The stream
+	 * @throws IOException If the data connection is lost
+	 */
+	Socket open(long token) throws IOException {
+
+		Stream stream = new Stream(nextStreamId.getAndIncrement());
+
+		streams.put(stream.id, stream);
+
+		try {
+			writeFrame(stream.id, OPEN, ByteBuffer.allocate(FTPDataPorts.TOKEN_LENGTH).putLong(0, token));
+		}
+		catch (IOException e) {
+			streams.remove(stream.id);
+			throw e;
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Closes the data connection and every stream on it.
+	 */
+	void close() {
+
+		open = false;
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			System.err.println("IOException while closing data connection: " + e);
+		}
+	}
+
+	/**
+	 * Hands the frames that arrive to their streams until the connection
+	 * ends. Never waits for a stream, every stream has room for what the
+	 * other side may send.
+	 */
+	private void read() {
+
+		ByteBuffer frameHeader = ByteBuffer.allocate(HEADER_SIZE);
+
+		try {
+
+			// The other side closing the connection between frames is the normal end
+			while (readFully(frameHeader.clear())) {
+
+				int streamId = frameHeader.getInt(0);
+				int type = frameHeader.get(4);
+				int length = frameHeader.getInt(5);
+
+				if ((length < 0) || (length > MAX_FRAME)) {
+					throw new IOException("Data connection frame of " + length + " bytes");
+				}
+
+				byte[] payload = new byte[length];
+
+				if (!readFully(ByteBuffer.wrap(payload))) {
+					throw new EOFException("Data connection closed inside a frame");
+				}
+
+				Stream stream = streams.get(streamId);
+
+				switch(type) {
+
+				case DATA:
+					if (stream != null) {
+						stream.received(payload);
+					}
+					break;
+
+				case CREDIT:
+					if ((stream != null) && (length == 4)) {
+						stream.credited(ByteBuffer.wrap(payload).getInt());
+					}
+					break;
+
+				case CLOSE:
+					if (stream != null) {
+						stream.closedByPeer();
+					}
+					break;
+
+				default:
+					throw new IOException("Unknown data connection frame " + type);
+				}
+			}
+		}
+		catch (IOException e) {
+			if (open) {
+				System.err.println("Data connection lost: " + e);
+			}
+		}
+		finally {
+
+			close();
+
+			for (Stream stream : streams.values()) {
+				stream.failed();
+			}
+		}
+	}
+
+	/**
+	 * @return False if the connection ended before the first byte
+	 * @throws EOFException If the connection ended after it
+	 */
+	private boolean readFully(ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer) < 0) {
+
+				if (buffer.position() == 0) {
+					return false;
+				}
+
+				throw new EOFException("Data connection closed inside a frame");
+			}
+		}
+
+		return true;
+	}
+
+	private void writeFrame(int streamId, int type, ByteBuffer payload) throws IOException {
+
+		writeLock.lock();
+
+		try {
+
+			header.clear();
+			header.putInt(streamId).put((byte) type).putInt(payload.remaining()).flip();
+
+			ByteBuffer[] frame = { header, payload };
+
+			while (header.hasRemaining() || payload.hasRemaining()) {
+				channel.write(frame);
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * One stream of the data connection.
+	 */
+	private class Stream extends Socket {
+
+		private final int id;
+
+		// Payloads that arrived and are not read yet
+		private final ArrayDeque<ByteBuffer> received = new ArrayDeque<ByteBuffer>();
+
+		// Bytes read since the last CREDIT
+		private int consumed = 0;
+
+		// Bytes this side may still send
+		private int window = WINDOW;
+
+		private boolean closed = false;
+		private boolean closedByPeer = false;
+		private boolean failed = false;
+
+		private final InputStream input = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+
+				byte[] b = new byte[1];
+
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Stream.this.read(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				Stream.this.close();
+			}
+		};
+
+		private final OutputStream output = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Stream.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				Stream.this.close();
+			}
+		};
+
+		Stream(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return output;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Ends the stream in both directions, like closing a socket.
+		 */
+		@Override
+		public void close() throws IOException {
+
+			synchronized (this) {
+
+				if (closed) {
+					return;
+				}
+
+				closed = true;
+				received.clear();
+				notifyAll();
+			}
+
+			streams.remove(id);
+
+			if (open) {
+				writeFrame(id, CLOSE, ByteBuffer.allocate(0));
+			}
+		}
+
+		private int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			int read;
+			int credit;
+
+			synchronized (this) {
+
+				while (received.isEmpty()) {
+
+					if (closed) {
+						throw new SocketException("Socket closed");
+					}
+
+					if (closedByPeer) {
+						return -1;
+					}
+
+					if (failed) {
+						throw new SocketException("Data connection lost");
+					}
+
+					waitForPeer();
+				}
+
+				ByteBuffer payload = received.peek();
+
+				read = Math.min(len, payload.remaining());
+				payload.get(b, off, read);
+
+				if (!payload.hasRemaining()) {
+					received.poll();
+				}
+
+				// Give the window back in halves, not for every read
+				consumed += read;
+
+				if ((consumed < WINDOW / 2) || closedByPeer) {
+					return read;
+				}
+
+				credit = consumed;
+				consumed = 0;
+			}
+
+			writeFrame(id, CREDIT, ByteBuffer.allocate(4).putInt(0, credit));
+
+			return read;
+		}
+
+		private void write(byte[] b, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				int count;
+
+				synchronized (this) {
+
+					while ((window == 0) && !closed && !closedByPeer && !failed) {
+						waitForPeer();
+					}
+
+					if (closed) {
+						throw new SocketException("Socket closed");
+					}
+
+					if (closedByPeer || failed) {
+						throw new SocketException(failed ? "Data connection lost" : "Stream closed by server");
+					}
+
+					count = Math.min(len, Math.min(window, MAX_FRAME));
+					window -= count;
+				}
+
+				writeFrame(id, DATA, ByteBuffer.wrap(b, off, count));
+
+				off += count;
+				len -= count;
+			}
+		}
+
+		private void waitForPeer() throws InterruptedIOException {
+
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting on data connection");
+			}
+		}
+
+		private synchronized void received(byte[] payload) {
+
+			if (!closed && (payload.length > 0)) {
+				received.add(ByteBuffer.wrap(payload));
+				notifyAll();
+			}
+		}
+
+		private synchronized void credited(int bytes) {
+			window += bytes;
+			notifyAll();
+		}
+
+		private synchronized void closedByPeer() {
+			closedByPeer = true;
+			notifyAll();
+		}
+
+		private synchronized void failed() {
+			failed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package FTPClient;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * One byte range of a file fetched over its own data connection for
+ * pget. Once connected the Client asks for its range
+ *
+ *   u64 offset, u64 length
+ *
+ * and the server answers with the bytes of the range followed by their
+ * CRC32C as a u32. The bytes are written at their offset in the local
+ * file as they arrive, so the segments of one file can be fetched at the
+ * same time.
+ */
+public class FTPSegmentTransfer {
+
+	static final int REQUEST_SIZE = 16;
+
+	// Most data connections one pget opens
+	static final int MAX_STREAMS = 16;
+
+	// Smallest segment worth its own connection when the count is picked from the file size
+	static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private FTPSegmentTransfer() {
+	}
+
+	/**
+	 * Picks the number of data connections for a file.
+	 * @param size Length of the file
+	 * @return One connection per MIN_SEGMENT_SIZE bytes, at least 1 and at most MAX_STREAMS
+	 */
+	static int streamsFor(long size) {
+		return (int) Math.max(1, Math.min(MAX_STREAMS, size / MIN_SEGMENT_SIZE));
+	}
+
+	/**
+	 * Asks for a range and writes it at its offset in the file.
+	 * @param socket Data connection of the segment
+	 * @param target FileChannel of the local file
+	 * @param offset Offset of the first byte of the range
+	 * @param length Number of bytes in the range
+	 * @param keepReceiving Checked before every read, stops the segment when false. May be null
+	 * @return True if the whole range arrived and matches the server's checksum
+	 * @throws IOException
+	 */
+	static boolean fetch(Socket socket, FileChannel target, long offset, long length,
+			BooleanSupplier keepReceiving) throws IOException {
+
+		ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE).putLong(offset).putLong(length);
+		request.flip();
+
+		FTPFrame.writeFully(FTPTransferEngine.outputChannel(socket), request);
+
+		ReadableByteChannel source = FTPTransferEngine.inputChannel(socket);
+		CRC32C checksum = new CRC32C();
+
+		if (FTPTransferEngine.receiveChecksummed(source, target, offset, length, checksum, keepReceiving) < length) {
+			return false;
+		}
+
+		ByteBuffer trailer = ByteBuffer.allocate(4);
+
+		while (trailer.hasRemaining()) {
+			if (source.read(trailer) < 0) {
+				return false;
+			}
+		}
+
+		return trailer.getInt(0) == (int) checksum.getValue();
+	}
+}
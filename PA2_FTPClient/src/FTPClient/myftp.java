@@ -1,6 +1,7 @@
 package FTPClient;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -63,12 +64,13 @@ public class myftp {
 	    }
 
 		// Try creating a stream socket and connect it to the specified port number
-		// on the named host. Create new Runnable FTPClientWorker and pass to 
-		// thread executor. Upon thread completion (user entered quit) return to here and proceed
+		// on the named host. The normal socket is opened through a channel for the file
+		// transfers. Create new Runnable FTPClientWorker and pass to thread executor.
+		// Upon thread completion (user entered quit) return to here and proceed
 		//  with thread and program shutdown. Catch Possible errors and inform user.
 		try {
 
-			nSocket = new Socket(hostName, nPortNumber);
+			nSocket = FTPTransferEngine.connect(InetAddress.getByName(hostName), nPortNumber);
 			tSocket = new Socket(hostName, tPortNumber);
 
 			Runnable clientProgram = new FTPClientWorker(nSocket, tSocket, tPortNumber);
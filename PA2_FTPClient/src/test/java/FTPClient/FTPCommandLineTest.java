@@ -0,0 +1,70 @@
+package FTPClient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class FTPCommandLineTest {
+
+	@Test
+	void splitsAtWhitespace() {
+		assertEquals(List.of("get", "a.txt", "&"), FTPCommandLine.split("  get\ta.txt   & "));
+	}
+
+	@Test
+	void emptyLine() {
+		assertTrue(FTPCommandLine.split("").isEmpty());
+		assertTrue(FTPCommandLine.split(" \t ").isEmpty());
+	}
+
+	@Test
+	void quotedWords() {
+		assertEquals(List.of("put", "my file.txt", "&"), FTPCommandLine.split("put \"my file.txt\" &"));
+		assertEquals(List.of("get", "a \"b\" c\\d"), FTPCommandLine.split("get \"a \\\"b\\\" c\\\\d\""));
+		assertEquals(List.of("mkdir", ""), FTPCommandLine.split("mkdir \"\""));
+	}
+
+	@Test
+	void backslashOutsideQuotesIsKept() {
+		assertEquals(List.of("cd", "dir\\sub"), FTPCommandLine.split("cd dir\\sub"));
+	}
+
+	@Test
+	void unterminatedQuote() {
+		assertNull(FTPCommandLine.split("get \"my file.txt"));
+	}
+
+	@Test
+	void plainWordsAreNotQuoted() {
+		assertNull(FTPCommandLine.quote(null));
+		assertEquals("a.txt", FTPCommandLine.quote("a.txt"));
+		assertEquals("dir\\a.txt", FTPCommandLine.quote("dir\\a.txt"));
+	}
+
+	@Test
+	void quotedWordsSplitBackToThemselves() {
+
+		String[] words = { "my file.txt", "", "\"quoted\"", "tab\there", "back\\slash and space", "ends with\\" };
+
+		for (String word : words) {
+
+			String quoted = FTPCommandLine.quote(word);
+
+			assertTrue(quoted.startsWith("\""), quoted);
+			assertEquals(List.of("get", word, "&"), FTPCommandLine.split("get " + quoted + " &"), quoted);
+		}
+	}
+
+	@Test
+	void quoteOfAPlainWordIsTheWord() {
+
+		String word = "report-2024.csv";
+
+		assertSame(word, FTPCommandLine.quote(word));
+	}
+}
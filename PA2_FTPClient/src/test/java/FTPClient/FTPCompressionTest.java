@@ -0,0 +1,277 @@
+package FTPClient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FTPCompressionTest {
+
+	private static final int BLOCK_SIZE = FTPCompression.BLOCK_SIZE;
+
+	@TempDir
+	Path directory;
+
+	/**
+	 * Header of a block on the wire.
+	 */
+	private static class Block {
+
+		final int type;
+		final int length;
+		final int storedLength;
+
+		Block(int type, int length, int storedLength) {
+			this.type = type;
+			this.length = length;
+			this.storedLength = storedLength;
+		}
+	}
+
+	private static byte[] random(int length, long seed) {
+
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Bytes that shrink to about a third.
+	 */
+	private static byte[] text(int length, long seed) {
+
+		Random random = new Random(seed);
+		byte[] bytes = new byte[length];
+
+		for (int index = 0; index < length; index++) {
+			bytes[index] = (byte) "etaoin shrdlu\n".charAt(random.nextInt(14));
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Random bytes followed by zeros, so the bytes shrink to about the random share.
+	 */
+	private static byte[] partlyRandom(int length, double randomShare, long seed) {
+		return Arrays.copyOf(random((int) (length * randomShare), seed), length);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		for (byte[] part : parts) {
+			bytes.writeBytes(part);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Sends part of a file.
+	 * @return The blocks as they went out
+	 */
+	private byte[] send(byte[] file, long position, long count, FTPDigest digest) throws IOException {
+
+		Path path = Files.write(directory.resolve("source"), file);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+		try (FileChannel source = FileChannel.open(path)) {
+
+			long length = FTPCompression.send(source, position, count, Channels.newChannel(sent),
+					Deflater.BEST_SPEED, digest, null);
+
+			assertEquals(Math.max(0, Math.min(count, file.length - position)), length);
+		}
+
+		return sent.toByteArray();
+	}
+
+	private static List<Block> blocks(byte[] sent) {
+
+		ByteBuffer buffer = ByteBuffer.wrap(sent);
+		List<Block> blocks = new ArrayList<Block>();
+
+		while (buffer.hasRemaining()) {
+
+			Block block = new Block(buffer.get(), buffer.getInt(), buffer.getInt());
+
+			blocks.add(block);
+			buffer.position(buffer.position() + block.storedLength);
+		}
+
+		return blocks;
+	}
+
+	@Test
+	void partOfAFileArrivesAtAnOffset() throws IOException {
+
+		byte[] file = concat(text(2 * BLOCK_SIZE, 1), random(BLOCK_SIZE, 2), text(5000, 3));
+
+		// Neither the start nor the count is a multiple of the block size
+		long position = 777;
+		int count = 2 * BLOCK_SIZE + 12345;
+
+		FTPDigest sentDigest = FTPDigest.of(FTPDigest.CRC32C);
+		byte[] sent = send(file, position, count, sentDigest);
+
+		List<Block> blocks = blocks(sent);
+
+		assertEquals(3, blocks.size());
+		assertEquals(BLOCK_SIZE, blocks.get(0).length);
+		assertEquals(BLOCK_SIZE, blocks.get(1).length);
+		assertEquals(12345, blocks.get(2).length);
+		assertEquals(FTPCompression.DEFLATED, blocks.get(0).type);
+
+		Path path = directory.resolve("target");
+		FTPDigest receivedDigest = FTPDigest.of(FTPDigest.CRC32C);
+
+		try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			assertEquals(count, FTPCompression.receive(Channels.newChannel(new ByteArrayInputStream(sent)), target,
+					333, count, receivedDigest, null));
+		}
+
+		byte[] received = Files.readAllBytes(path);
+
+		assertEquals(333 + count, received.length);
+		assertArrayEquals(new byte[333], Arrays.copyOf(received, 333));
+		assertArrayEquals(Arrays.copyOfRange(file, (int) position, (int) position + count),
+				Arrays.copyOfRange(received, 333, received.length));
+		assertArrayEquals(sentDigest.digest(), receivedDigest.digest());
+	}
+
+	@Test
+	void countBeyondTheEndOfTheFile() throws IOException {
+
+		byte[] file = text(BLOCK_SIZE + 10, 4);
+
+		List<Block> blocks = blocks(send(file, BLOCK_SIZE - 20, 5 * BLOCK_SIZE, null));
+
+		assertEquals(1, blocks.size());
+		assertEquals(30, blocks.get(0).length);
+	}
+
+	@Test
+	void blocksOnlyCompressIfTheyShrinkEnough() throws IOException {
+
+		Block shrinks = blocks(send(partlyRandom(BLOCK_SIZE, 0.8, 5), 0, BLOCK_SIZE, null)).get(0);
+
+		assertEquals(FTPCompression.DEFLATED, shrinks.type);
+		assertTrue(shrinks.storedLength <= 0.9 * BLOCK_SIZE);
+
+		// Smaller, but not by 10%
+		Block shrinksTooLittle = blocks(send(partlyRandom(BLOCK_SIZE, 0.95, 6), 0, BLOCK_SIZE, null)).get(0);
+
+		assertEquals(FTPCompression.RAW, shrinksTooLittle.type);
+		assertEquals(BLOCK_SIZE, shrinksTooLittle.storedLength);
+
+		Block grows = blocks(send(random(1000, 7), 0, 1000, null)).get(0);
+
+		assertEquals(FTPCompression.RAW, grows.type);
+		assertEquals(1000, grows.storedLength);
+	}
+
+	@Test
+	void incompressibleBlocksArriveAsTheyAre() throws IOException {
+
+		byte[] file = random(3 * BLOCK_SIZE + 1, 8);
+		byte[] sent = send(file, 0, file.length, null);
+
+		for (Block block : blocks(sent)) {
+			assertEquals(FTPCompression.RAW, block.type);
+			assertEquals(block.length, block.storedLength);
+		}
+
+		assertEquals(file.length + 4 * FTPCompression.HEADER_SIZE, sent.length);
+
+		Path path = directory.resolve("target");
+
+		try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FTPCompression.receive(Channels.newChannel(new ByteArrayInputStream(sent)), target, 0, file.length, null, null);
+		}
+
+		assertArrayEquals(file, Files.readAllBytes(path));
+	}
+
+	@Test
+	void compressionIsTriedAgainEverySixteenBlocks() throws IOException {
+
+		// Blocks up to a sample past the blocks compressed ahead do not
+		// compress, the rest would
+		int window = 2 * Runtime.getRuntime().availableProcessors();
+		int sample = (window / 16 + 1) * 16;
+
+		byte[] file = concat(random((sample + 1) * BLOCK_SIZE, 9), text(32 * BLOCK_SIZE, 10));
+
+		List<Block> blocks = blocks(send(file, 0, file.length, null));
+
+		assertEquals(sample + 33, blocks.size());
+
+		// Up to the next sample they are not even tried
+		for (int block = sample + 1; block < sample + 16; block++) {
+			assertEquals(FTPCompression.RAW, blocks.get(block).type, "Block " + block);
+		}
+
+		assertEquals(FTPCompression.DEFLATED, blocks.get(sample + 16).type);
+		assertEquals(FTPCompression.DEFLATED, blocks.get(sample + 32).type);
+	}
+
+	@Test
+	void corruptBlocksAreRejected() throws IOException {
+
+		byte[] sent = send(text(1000, 11), 0, 1000, null);
+		Path path = directory.resolve("target");
+
+		try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+			// Longer than announced
+			assertThrows(IOException.class, () -> FTPCompression.receive(
+					Channels.newChannel(new ByteArrayInputStream(sent)), target, 0, 999, null, null));
+
+			byte[] unknownType = sent.clone();
+			unknownType[0] = 7;
+
+			assertThrows(IOException.class, () -> FTPCompression.receive(
+					Channels.newChannel(new ByteArrayInputStream(unknownType)), target, 0, 1000, null, null));
+
+			byte[] corrupt = sent.clone();
+			Arrays.fill(corrupt, FTPCompression.HEADER_SIZE, corrupt.length, (byte) 0xff);
+
+			assertThrows(IOException.class, () -> FTPCompression.receive(
+					Channels.newChannel(new ByteArrayInputStream(corrupt)), target, 0, 1000, null, null));
+		}
+	}
+
+	@Test
+	void streamEndingEarlyStopsTheReceive() throws IOException {
+
+		byte[] file = random(BLOCK_SIZE + 100, 12);
+		byte[] sent = send(file, 0, file.length, null);
+		Path path = directory.resolve("target");
+
+		try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			assertEquals(BLOCK_SIZE, FTPCompression.receive(Channels.newChannel(
+					new ByteArrayInputStream(sent, 0, sent.length - 50)), target, 0, file.length, null, null));
+		}
+	}
+}
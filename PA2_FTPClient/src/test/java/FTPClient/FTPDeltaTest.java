@@ -0,0 +1,308 @@
+package FTPClient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Sends edited files against the signatures of their old version and
+ * rebuilds them from the operations the way the server does.
+ */
+class FTPDeltaTest {
+
+	private static final int BLOCK_SIZE = FTPDelta.MIN_BLOCK_SIZE;
+
+	@TempDir
+	Path directory;
+
+	// Bytes sent as literals by the last delta
+	private long literalBytes;
+
+	private static byte[] random(int length, long seed) {
+
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		for (byte[] part : parts) {
+			bytes.writeBytes(part);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Signatures of the whole blocks of the old version, as the server sends them.
+	 */
+	private static byte[] signatures(byte[] basis, int blockSize) throws NoSuchAlgorithmException {
+
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		ByteBuffer signatures = ByteBuffer.allocate(basis.length / blockSize * FTPDelta.SIGNATURE_SIZE);
+
+		for (int offset = 0; offset + blockSize <= basis.length; offset += blockSize) {
+			md5.update(basis, offset, blockSize);
+			signatures.putInt(FTPDelta.weak(basis, offset, blockSize));
+			signatures.put(md5.digest());
+		}
+
+		return signatures.array();
+	}
+
+	/**
+	 * Sends the new version against the signatures of the old one.
+	 * @return The operations
+	 */
+	private byte[] delta(byte[] basis, byte[] file) throws Exception {
+
+		long blocks = basis.length / BLOCK_SIZE;
+
+		FTPDelta.Signatures signatures = FTPDelta.receiveSignatures(
+				Channels.newChannel(new ByteArrayInputStream(signatures(basis, BLOCK_SIZE))), BLOCK_SIZE, blocks);
+
+		Path path = Files.write(directory.resolve("file"), file);
+		ByteArrayOutputStream operations = new ByteArrayOutputStream();
+
+		try (FileChannel source = FileChannel.open(path)) {
+			literalBytes = FTPDelta.send(source, signatures, Channels.newChannel(operations), null);
+		}
+
+		return operations.toByteArray();
+	}
+
+	/**
+	 * Rebuilds the new version from the old one and the operations.
+	 */
+	private static byte[] apply(byte[] basis, byte[] operations) throws IOException {
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(operations));
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+
+		while (true) {
+
+			int operation = input.readUnsignedByte();
+
+			switch(operation) {
+
+			case FTPDelta.COPY: {
+
+				long first = input.readLong();
+				int count = input.readInt();
+
+				assertTrue((count > 0) && (first + count <= basis.length / BLOCK_SIZE), "COPY out of range");
+
+				file.write(basis, (int) first * BLOCK_SIZE, count * BLOCK_SIZE);
+				break;
+			}
+
+			case FTPDelta.LITERAL: {
+
+				int length = input.readInt();
+
+				assertTrue((length > 0) && (length <= FTPDelta.MAX_LITERAL), "LITERAL of " + length + " bytes");
+
+				file.write(input.readNBytes(length));
+				break;
+			}
+
+			case FTPDelta.END:
+
+				assertEquals(file.size(), input.readLong());
+				assertEquals(0, input.available(), "Bytes after END");
+
+				return file.toByteArray();
+
+			default:
+				throw new AssertionError("Unknown operation " + operation);
+			}
+		}
+	}
+
+	private void assertRoundTrip(byte[] basis, byte[] file) throws Exception {
+		assertArrayEquals(file, apply(basis, delta(basis, file)));
+	}
+
+	@Test
+	void weakChecksumRollsLikeItIsRecomputed() {
+
+		byte[] bytes = random(3 * BLOCK_SIZE, 1);
+
+		int weak = FTPDelta.weak(bytes, 0, BLOCK_SIZE);
+		int a = weak & 0xffff;
+		int b = weak >>> 16;
+
+		for (int start = 0; start + BLOCK_SIZE < bytes.length; start++) {
+
+			int out = bytes[start] & 0xff;
+			int in = bytes[start + BLOCK_SIZE] & 0xff;
+
+			a = (a - out + in) & 0xffff;
+			b = (b - BLOCK_SIZE * out + a) & 0xffff;
+
+			assertEquals(FTPDelta.weak(bytes, start + 1, BLOCK_SIZE), a | (b << 16), "At " + (start + 1));
+		}
+	}
+
+	@Test
+	void unchangedFileIsOnlyCopies() throws Exception {
+
+		byte[] basis = random(20 * BLOCK_SIZE, 2);
+
+		byte[] operations = delta(basis, basis);
+
+		assertArrayEquals(basis, apply(basis, operations));
+		assertEquals(0, literalBytes);
+
+		// One COPY of all blocks and END
+		assertEquals(13 + 9, operations.length);
+	}
+
+	@Test
+	void insertShiftsTheRestOfTheFile() throws Exception {
+
+		byte[] basis = random(20 * BLOCK_SIZE + 500, 3);
+		byte[] inserted = random(77, 4);
+
+		// Inside a block, so the blocks after it are only found by rolling
+		byte[] file = concat(Arrays.copyOf(basis, 5 * BLOCK_SIZE + 100), inserted,
+				Arrays.copyOfRange(basis, 5 * BLOCK_SIZE + 100, basis.length));
+
+		assertRoundTrip(basis, file);
+
+		// The block holding the insert and the partial block at the end
+		assertEquals(BLOCK_SIZE + inserted.length + 500, literalBytes);
+	}
+
+	@Test
+	void insertAtTheStart() throws Exception {
+
+		byte[] basis = random(10 * BLOCK_SIZE, 5);
+		byte[] file = concat(new byte[] { 42 }, basis);
+
+		assertRoundTrip(basis, file);
+		assertEquals(1, literalBytes);
+	}
+
+	@Test
+	void deleteInsideABlock() throws Exception {
+
+		byte[] basis = random(20 * BLOCK_SIZE, 6);
+		byte[] file = concat(Arrays.copyOf(basis, 7 * BLOCK_SIZE + 300),
+				Arrays.copyOfRange(basis, 7 * BLOCK_SIZE + 900, basis.length));
+
+		assertRoundTrip(basis, file);
+
+		// What is left of the block the bytes were deleted from
+		assertEquals(BLOCK_SIZE - 600, literalBytes);
+	}
+
+	@Test
+	void deleteWholeBlocks() throws Exception {
+
+		byte[] basis = random(20 * BLOCK_SIZE, 7);
+		byte[] file = concat(Arrays.copyOf(basis, 3 * BLOCK_SIZE),
+				Arrays.copyOfRange(basis, 9 * BLOCK_SIZE, basis.length));
+
+		assertRoundTrip(basis, file);
+		assertEquals(0, literalBytes);
+	}
+
+	@Test
+	void append() throws Exception {
+
+		byte[] basis = random(20 * BLOCK_SIZE, 8);
+		byte[] appended = random(3 * BLOCK_SIZE + 17, 9);
+
+		assertRoundTrip(basis, concat(basis, appended));
+		assertEquals(appended.length, literalBytes);
+	}
+
+	@Test
+	void emptyBasis() throws Exception {
+
+		byte[] file = random(5 * BLOCK_SIZE + 3, 10);
+
+		assertRoundTrip(new byte[0], file);
+		assertEquals(file.length, literalBytes);
+	}
+
+	@Test
+	void basisShorterThanOneBlock() throws Exception {
+
+		byte[] basis = random(BLOCK_SIZE - 1, 11);
+		byte[] file = concat(basis, random(10, 12));
+
+		assertRoundTrip(basis, file);
+		assertEquals(file.length, literalBytes);
+	}
+
+	@Test
+	void fileShorterThanOneBlock() throws Exception {
+
+		byte[] basis = random(10 * BLOCK_SIZE, 13);
+		byte[] file = Arrays.copyOf(basis, BLOCK_SIZE - 1);
+
+		assertRoundTrip(basis, file);
+		assertEquals(file.length, literalBytes);
+	}
+
+	@Test
+	void emptyFile() throws Exception {
+
+		byte[] basis = random(10 * BLOCK_SIZE, 14);
+
+		assertRoundTrip(basis, new byte[0]);
+		assertEquals(0, literalBytes);
+	}
+
+	@Test
+	void editsAcrossTheScanWindow() throws Exception {
+
+		// Longer than the window the file is scanned through, with an insert
+		// just before its end so a block straddles two fills
+		int length = 3 * FTPDelta.MAX_LITERAL;
+		byte[] basis = random(length, 15);
+		int at = FTPDelta.MAX_LITERAL - BLOCK_SIZE / 2;
+
+		byte[] file = concat(Arrays.copyOf(basis, at), random(5, 16), Arrays.copyOfRange(basis, at, length));
+
+		assertRoundTrip(basis, file);
+		assertTrue(literalBytes <= BLOCK_SIZE + 5, "Sent " + literalBytes + " literal bytes");
+	}
+
+	@Test
+	void signaturesOutOfRangeAreRejected() {
+
+		ByteArrayInputStream none = new ByteArrayInputStream(new byte[0]);
+
+		assertThrows(IOException.class, () -> FTPDelta.receiveSignatures(Channels.newChannel(none), 1024, 0));
+		assertThrows(IOException.class,
+				() -> FTPDelta.receiveSignatures(Channels.newChannel(none), BLOCK_SIZE, FTPDelta.MAX_BLOCKS + 1));
+
+		// Fewer signatures than announced
+		assertThrows(IOException.class, () -> FTPDelta.receiveSignatures(Channels.newChannel(none), BLOCK_SIZE, 1));
+	}
+}
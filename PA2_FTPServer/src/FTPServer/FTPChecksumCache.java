@@ -0,0 +1,143 @@
+package FTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checksums of whole files, so CHECKSUM and verified gets of a file that
+ * did not change do not read it again. Entries are kept per path and
+ * algorithm and are only used while the file still has the length and
+ * modification time it had when its checksum was computed. Writes through
+ * this server drop the entries of the file at once. At most
+ * ftp.checksum.cache.entries checksums are kept, the least recently used
+ * are dropped first.
+ */
+public class FTPChecksumCache {
+
+	private static final int MAX_ENTRIES = FTPServerConfig.checksumCacheEntries();
+
+	// Keyed by algorithm and absolute path, in access order
+	private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	private FTPChecksumCache() {
+	}
+
+	/**
+	 * Returns the cached checksum of a file if it is still current.
+	 * @param file The file
+	 * @param algorithm CRC32C or SHA-256
+	 * @param length Length the file has now
+	 * @param modified Modification time the file has now
+	 * @return The checksum or null if none is cached for this version of the file
+	 */
+	static synchronized byte[] get(File file, String algorithm, long length, long modified) {
+
+		Entry entry = entries.get(key(file, algorithm));
+
+		if ((entry == null) || (entry.length != length) || (entry.modified != modified)) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+
+		return entry.digest;
+	}
+
+	/**
+	 * @return Number of checksums answered from the cache
+	 */
+	static long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of checksums that had to be computed
+	 */
+	static long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Caches the checksum of a file.
+	 * @param file The file
+	 * @param algorithm CRC32C or SHA-256
+	 * @param length Length of the file the checksum was computed from
+	 * @param modified Modification time of the file before the checksum was computed
+	 * @param digest The checksum
+	 */
+	static synchronized void put(File file, String algorithm, long length, long modified, byte[] digest) {
+
+		if (MAX_ENTRIES > 0) {
+			entries.put(key(file, algorithm), new Entry(length, modified, digest));
+		}
+	}
+
+	/**
+	 * Returns the checksum of a file, reading the file only if no current
+	 * checksum is cached.
+	 * @param file The file
+	 * @param algorithm CRC32C or SHA-256
+	 * @return The checksum
+	 * @throws IOException
+	 */
+	static byte[] checksum(File file, String algorithm) throws IOException {
+
+		// Taken before reading so a change during the read is noticed later
+		long length = file.length();
+		long modified = file.lastModified();
+
+		byte[] digest = get(file, algorithm, length, modified);
+
+		if (digest == null) {
+			digest = FTPDigest.digestFile(file, algorithm);
+			put(file, algorithm, length, modified, digest);
+		}
+
+		return digest;
+	}
+
+	/**
+	 * Drops the checksums of a file that is about to be, or just was,
+	 * changed or deleted.
+	 * @param file The file
+	 */
+	static synchronized void invalidate(File file) {
+		entries.remove(key(file, FTPDigest.CRC32C));
+		entries.remove(key(file, FTPDigest.SHA256));
+	}
+
+	private static String key(File file, String algorithm) {
+		return algorithm + ":" + file.getAbsolutePath();
+	}
+
+	/**
+	 * A checksum and the version of the file it belongs to
+	 */
+	private static class Entry {
+
+		private final long length;
+		private final long modified;
+		private final byte[] digest;
+
+		Entry(long length, long modified, byte[] digest) {
+			this.length = length;
+			this.modified = modified;
+			this.digest = digest;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package FTPServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a text protocol line into its command, its argument and the
+ * background indicator &amp;, reading the bytes where the connection
+ * buffered them. The command is matched against the known commands byte
+ * by byte, ignoring case, so a line is parsed without allocating; only
+ * the argument becomes a String, once a command asks for it.
+ *
+ * An argument in double quotes may contain spaces, and a backslash in it
+ * keeps the next character as it is, e.g. GET "my \"best\" file.txt".
+ * Unquoted arguments end at the first whitespace, as before.
+ *
+ * A parser is reused for every line of a session and is not thread safe.
+ */
+public class FTPCommandParser {
+
+	// The commands of the text protocol
+	private static final FTPCommandType[] COMMANDS = {
+			FTPCommandType.GET, FTPCommandType.PUT, FTPCommandType.MGET, FTPCommandType.MPUT,
+			FTPCommandType.PGET, FTPCommandType.DPUT, FTPCommandType.CPUT, FTPCommandType.SIZE,
+			FTPCommandType.REST, FTPCommandType.COMPRESS, FTPCommandType.VERIFY, FTPCommandType.CHECKSUM,
+			FTPCommandType.MUX, FTPCommandType.JOBS, FTPCommandType.STAT, FTPCommandType.DELETE,
+			FTPCommandType.LS, FTPCommandType.CD, FTPCommandType.MKDIR, FTPCommandType.PWD,
+			FTPCommandType.QUIT, FTPCommandType.PROTO };
+
+	// Names of the commands as bytes, in the order of COMMANDS
+	private static final byte[][] NAMES = new byte[COMMANDS.length][];
+
+	static {
+		for (int index = 0; index < COMMANDS.length; index++) {
+			NAMES[index] = COMMANDS[index].name().getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private final Charset charset;
+
+	private FTPCommandType type;
+	private boolean empty;
+	private boolean background;
+	private boolean wellFormed;
+
+	// Bytes of the argument with its quotes and escapes removed, the length is -1 if there is none
+	private byte[] argumentBytes = new byte[256];
+	private int argumentLength;
+	private String argument;
+
+	/**
+	 * @param charset Charset arguments are decoded with
+	 */
+	public FTPCommandParser(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Parses one line. The buffer's position and limit are left as they are.
+	 * @param line Buffer holding the line
+	 * @param start Index of the first byte of the line
+	 * @param end Index after the last byte of the line, without its terminator
+	 * @return False if the line holds nothing but whitespace
+	 */
+	public boolean parse(ByteBuffer line, int start, int end) {
+
+		type = FTPCommandType.UNKNOWN;
+		background = false;
+		wellFormed = true;
+		argumentLength = -1;
+		argument = null;
+
+		int index = skipWhitespace(line, start, end);
+
+		empty = (index == end);
+
+		if (empty) {
+			return false;
+		}
+
+		int commandEnd = wordEnd(line, index, end);
+
+		type = command(line, index, commandEnd);
+		index = skipWhitespace(line, commandEnd, end);
+
+		if (index < end) {
+			index = skipWhitespace(line, argument(line, index, end), end);
+		}
+
+		if (index < end) {
+
+			int wordEnd = wordEnd(line, index, end);
+
+			if ((wordEnd - index == 1) && (line.get(index) == '&')) {
+				background = true;
+			}
+			else {
+				wellFormed = false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return True if the last line held nothing but whitespace
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @return The command of the last line, UNKNOWN for one the server does not know.
+	 * Commands ending with &amp; are still GET, PUT, etc., see background()
+	 */
+	public FTPCommandType type() {
+		return type;
+	}
+
+	/**
+	 * @return True if the last line ended with &amp;
+	 */
+	public boolean background() {
+		return background;
+	}
+
+	/**
+	 * @return False if the last line had a third word other than &amp; or an unterminated quote
+	 */
+	public boolean wellFormed() {
+		return wellFormed;
+	}
+
+	/**
+	 * @return The argument of the last line without its quotes, null if it had none
+	 */
+	public String argument() {
+
+		if ((argument == null) && (argumentLength >= 0)) {
+			argument = new String(argumentBytes, 0, argumentLength, charset);
+		}
+
+		return argument;
+	}
+
+	/**
+	 * Finds the command a word names.
+	 */
+	private static FTPCommandType command(ByteBuffer line, int start, int end) {
+
+		int length = end - start;
+
+		for (int candidate = 0; candidate < NAMES.length; candidate++) {
+
+			byte[] name = NAMES[candidate];
+
+			if (name.length != length) {
+				continue;
+			}
+
+			int index = 0;
+
+			while ((index < length) && (upperCase(line.get(start + index)) == name[index])) {
+				index++;
+			}
+
+			if (index == length) {
+				return COMMANDS[candidate];
+			}
+		}
+
+		return FTPCommandType.UNKNOWN;
+	}
+
+	/**
+	 * Copies the argument starting at start into argumentBytes.
+	 * @return Index after the argument
+	 */
+	private int argument(ByteBuffer line, int start, int end) {
+
+		argumentLength = 0;
+
+		if (line.get(start) != '"') {
+
+			int wordEnd = wordEnd(line, start, end);
+
+			for (int index = start; index < wordEnd; index++) {
+				appendArgument(line.get(index));
+			}
+
+			return wordEnd;
+		}
+
+		int index = start + 1;
+
+		while (index < end) {
+
+			byte next = line.get(index++);
+
+			if (next == '"') {
+				return index;
+			}
+
+			if ((next == '\\') && (index < end)) {
+				next = line.get(index++);
+			}
+
+			appendArgument(next);
+		}
+
+		// The quote is never closed, the argument is the rest of the line
+		wellFormed = false;
+
+		return end;
+	}
+
+	private void appendArgument(byte next) {
+
+		if (argumentLength == argumentBytes.length) {
+			byte[] larger = new byte[argumentBytes.length * 2];
+			System.arraycopy(argumentBytes, 0, larger, 0, argumentLength);
+			argumentBytes = larger;
+		}
+
+		argumentBytes[argumentLength++] = next;
+	}
+
+	private static int skipWhitespace(ByteBuffer line, int index, int end) {
+
+		while ((index < end) && whitespace(line.get(index))) {
+			index++;
+		}
+
+		return index;
+	}
+
+	private static int wordEnd(ByteBuffer line, int index, int end) {
+
+		while ((index < end) && !whitespace(line.get(index))) {
+			index++;
+		}
+
+		return index;
+	}
+
+	private static boolean whitespace(byte next) {
+		return (next == ' ') || (next == '\t') || (next == '\r') || (next == '\n') || (next == '\f') || (next == 0x0B);
+	}
+
+	private static byte upperCase(byte next) {
+		return ((next >= 'a') && (next <= 'z')) ? (byte) (next - ('a' - 'A')) : next;
+	}
+}
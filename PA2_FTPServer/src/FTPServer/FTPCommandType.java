@@ -0,0 +1,93 @@
+package FTPServer;
+
+/**
+ * The commands a Client can send, in either protocol. Commands run in the
+ * background are types of their own, their latency is only the time to
+ * set the transfer up.
+ */
+public enum FTPCommandType {
+
+	GET(FTPFrame.GET),
+	PUT(FTPFrame.PUT),
+	GET_BACKGROUND(FTPFrame.GET_BACKGROUND),
+	PUT_BACKGROUND(FTPFrame.PUT_BACKGROUND),
+	MGET(FTPFrame.MGET),
+	MPUT(FTPFrame.MPUT),
+	MGET_BACKGROUND(FTPFrame.MGET_BACKGROUND),
+	MPUT_BACKGROUND(FTPFrame.MPUT_BACKGROUND),
+	PGET(FTPFrame.PGET),
+	DPUT(FTPFrame.DPUT),
+	CPUT(FTPFrame.CPUT),
+	SIZE(FTPFrame.SIZE),
+	REST(FTPFrame.REST),
+	COMPRESS(FTPFrame.COMPRESS),
+	VERIFY(FTPFrame.VERIFY),
+	CHECKSUM(FTPFrame.CHECKSUM),
+	MUX(FTPFrame.MUX),
+	JOBS(FTPFrame.JOBS),
+	STAT(FTPFrame.STAT),
+	DELETE(FTPFrame.DELETE),
+	LS(FTPFrame.LS),
+	CD(FTPFrame.CD),
+	MKDIR(FTPFrame.MKDIR),
+	PWD(FTPFrame.PWD),
+	QUIT(FTPFrame.QUIT),
+	PROTO(-1),
+	TERMINATE(-1),
+	UNKNOWN(-1);
+
+	// Types by opcode, looked up for every request frame
+	private static final FTPCommandType[] byOpcode = new FTPCommandType[64];
+
+	static {
+
+		for (FTPCommandType type : values()) {
+
+			if (type.opcode >= 0) {
+				byOpcode[type.opcode] = type;
+			}
+		}
+	}
+
+	private final int opcode;
+
+	FTPCommandType(int opcode) {
+		this.opcode = opcode;
+	}
+
+	/**
+	 * @param opcode Opcode of a request frame
+	 * @return The type, UNKNOWN for an opcode no command has
+	 */
+	static FTPCommandType of(int opcode) {
+
+		FTPCommandType type = ((opcode >= 0) && (opcode < byOpcode.length)) ? byOpcode[opcode] : null;
+
+		return (type == null) ? UNKNOWN : type;
+	}
+
+	/**
+	 * @return The type of this command run in the background, this type
+	 * for commands that have no background form
+	 */
+	FTPCommandType inBackground() {
+
+		switch(this) {
+
+		case GET:
+			return GET_BACKGROUND;
+
+		case PUT:
+			return PUT_BACKGROUND;
+
+		case MGET:
+			return MGET_BACKGROUND;
+
+		case MPUT:
+			return MPUT_BACKGROUND;
+
+		default:
+			return this;
+		}
+	}
+}
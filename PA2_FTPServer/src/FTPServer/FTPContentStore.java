@@ -0,0 +1,201 @@
+package FTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+/**
+ * Store that keeps one copy of every distinct content uploaded to this
+ * server, turned on with ftp.store.dir. Every file that arrived is hashed
+ * with SHA-256 and its directory entry becomes a hard link to the store
+ * object of that hash, so files with the same content share their disk
+ * space. CPUT offers the hash before the data: if the object is there,
+ * the file is linked to it and no data is sent at all.
+ *
+ * Objects are never written once stored. A file about to be written in
+ * place is detached from its object first, so the files sharing it keep
+ * their content. Objects no file links to any more are removed when the
+ * server starts. The store has to be on the same file system as the
+ * files it deduplicates, and files changed outside of this server change
+ * every file they share their object with.
+ */
+public class FTPContentStore {
+
+	private static final Path STORE = FTPServerConfig.storeDirectory().isEmpty() ? null
+			: Paths.get(FTPServerConfig.storeDirectory()).toAbsolutePath();
+
+	private FTPContentStore() {
+	}
+
+	/**
+	 * @return True if ftp.store.dir is set
+	 */
+	static boolean enabled() {
+		return STORE != null;
+	}
+
+	/**
+	 * Makes a file the content of a stored object, if there is one.
+	 * @param hash SHA-256 of the content as hex digits
+	 * @param file The file to create or replace
+	 * @return True if the file now has the content, false if the store does not have it
+	 */
+	static synchronized boolean link(String hash, File file) {
+
+		if (!enabled() || !hash.matches("[0-9a-f]{64}")) {
+			return false;
+		}
+
+		Path object = object(hash);
+
+		if (!Files.isRegularFile(object)) {
+			return false;
+		}
+
+		try {
+			replaceWithLink(file.toPath(), object);
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a file that just arrived to the store. A content the store has
+	 * already replaces the file with a link to its object, a new content
+	 * becomes an object linked to the file. Failing to do so only costs
+	 * the space the store would have saved.
+	 * @param file The file
+	 */
+	static void ingest(File file) {
+
+		if (!enabled() || !file.isFile()) {
+			return;
+		}
+
+		try {
+
+			String hash = FTPDigest.hex(FTPChecksumCache.checksum(file, FTPDigest.SHA256));
+
+			synchronized (FTPContentStore.class) {
+
+				Path object = object(hash);
+
+				if (!Files.isRegularFile(object)) {
+					Files.createDirectories(object.getParent());
+					Files.createLink(object, file.toPath());
+				}
+				else if (!Files.isSameFile(object, file.toPath())) {
+					replaceWithLink(file.toPath(), object);
+				}
+			}
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			System.err.println("Could not store " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Gives a file that shares a stored object a content of its own, before
+	 * it is written in place.
+	 * @param file The file
+	 * @param keepContents True to copy the content, false if the file is about to be overwritten
+	 * @throws IOException If the file still shares its content
+	 */
+	static void detach(File file, boolean keepContents) throws IOException {
+
+		Path path = file.toPath();
+
+		if (!enabled() || !Files.isRegularFile(path) || !shared(path)) {
+			return;
+		}
+
+		if (!keepContents) {
+			Files.delete(path);
+			return;
+		}
+
+		Path copy = sibling(path, ".detach");
+
+		Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the objects no file links to any more in the background.
+	 */
+	static void startSweeping() {
+
+		if (!enabled() || !Files.isDirectory(STORE)) {
+			return;
+		}
+
+		Thread sweeper = new Thread(() -> {
+
+			try (Stream<Path> objects = Files.walk(STORE, 2)) {
+
+				objects.filter(Files::isRegularFile).forEach(object -> {
+
+					synchronized (FTPContentStore.class) {
+
+						try {
+							if (!shared(object)) {
+								Files.delete(object);
+							}
+						}
+						catch (IOException e) {
+							System.err.println("Could not remove " + object + ": " + e);
+						}
+					}
+				});
+			}
+			catch (IOException e) {
+				System.err.println("IOException while sweeping the content store: " + e);
+			}
+		}, "ftp-store-sweep");
+
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * Points a directory entry at an object. The link is made next to the
+	 * file and moved over it, so the file always has one content or the other.
+	 */
+	private static void replaceWithLink(Path file, Path object) throws IOException {
+
+		Path link = sibling(file, ".link");
+
+		Files.deleteIfExists(link);
+		Files.createLink(link, object);
+		Files.move(link, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return True if more than one directory entry links to the file.
+	 * Also true if the file system cannot tell, so nothing shared is written.
+	 */
+	private static boolean shared(Path path) throws IOException {
+
+		try {
+			return ((Integer) Files.getAttribute(path, "unix:nlink")) > 1;
+		}
+		catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	private static Path object(String hash) {
+		return STORE.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static Path sibling(Path file, String suffix) {
+		return file.toAbsolutePath().resolveSibling("." + file.getFileName() + suffix);
+	}
+}
@@ -0,0 +1,442 @@
+package FTPServer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Control connection to a Client on top of a SocketChannel. Starts out
+ * line based and switches to FTPFrames once the Client negotiates the
+ * binary protocol. Incoming bytes are kept in one buffer that is shared by
+ * requests and raw file data, so nothing read ahead is ever lost. Requests
+ * can be read blocking (a session thread) or polled after a non-blocking
+ * fill (the reactor), which lets a session move between the two.
+ */
+public class FTPControlConnection {
+
+	// Initial and largest size of the buffer requests are read into
+	private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private final SocketChannel channel;
+	private final PrintStream output;
+	private final Charset charset = Charset.defaultCharset();
+	private final FTPCommandParser parser = new FTPCommandParser(charset);
+
+	// Always kept in read mode, bytes between position and limit are unread
+	private ByteBuffer input;
+
+	// Response frames waiting to be written, kept in write mode
+	private ByteBuffer frames;
+
+	private boolean binary = false;
+
+	/**
+	 * Initializes the connection to the Client.
+	 * @param channel SocketChannel connected to the Client
+	 */
+	public FTPControlConnection(SocketChannel channel) {
+		this.channel = channel;
+		this.output = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel)), true);
+
+		input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		input.flip();
+	}
+
+	/**
+	 * Blocks until a complete request, a line or a frame depending on the
+	 * protocol, is buffered.
+	 * @return True once a request is buffered, false if the Client disconnected
+	 * @throws IOException
+	 */
+	public boolean awaitRequest() throws IOException {
+
+		while (!requestBuffered()) {
+			if (fill() < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return True if a complete request, a line or a frame depending on
+	 * the protocol, is buffered
+	 */
+	public boolean requestBuffered() {
+
+		if (!binary) {
+
+			for (int index = input.position(); index < input.limit(); index++) {
+				if (input.get(index) == '\n') {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		if (input.remaining() < FTPFrame.HEADER_SIZE) {
+			return false;
+		}
+
+		// A frame too large to ever be buffered is handed on so pollFrame can reject it
+		long length = input.getLong(input.position() + 7);
+
+		return (length < 0) || (length > MAX_LINE_LENGTH - FTPFrame.HEADER_SIZE)
+				|| (input.remaining() - FTPFrame.HEADER_SIZE >= length);
+	}
+
+	/**
+	 * Returns the next request frame with its payload if it has been read.
+	 * @return The frame or null if none is buffered
+	 * @throws IOException If the payload is too large for a request
+	 */
+	public FTPFrame pollFrame() throws IOException {
+
+		if (!requestBuffered()) {
+			return null;
+		}
+
+		long length = input.getLong(input.position() + 7);
+
+		if ((length < 0) || (length > MAX_LINE_LENGTH - FTPFrame.HEADER_SIZE)) {
+			throw new IOException("Request frame of " + length + " bytes is too large");
+		}
+
+		byte[] payload = new byte[(int) length];
+		input.get(input.position() + FTPFrame.HEADER_SIZE, payload);
+
+		FTPFrame frame = FTPFrame.peekHeader(input, payload);
+		input.position(input.position() + FTPFrame.HEADER_SIZE + payload.length);
+
+		return frame;
+	}
+
+	/**
+	 * Reads the header of a frame whose payload the caller then reads
+	 * through dataInput, blocking until it arrives.
+	 * @return The frame without its payload or null if the Client disconnected
+	 * @throws IOException
+	 */
+	public FTPFrame readFrameHeader() throws IOException {
+
+		while (input.remaining() < FTPFrame.HEADER_SIZE) {
+			if (fill() < 0) {
+				return null;
+			}
+		}
+
+		FTPFrame frame = FTPFrame.peekHeader(input, null);
+		input.position(input.position() + FTPFrame.HEADER_SIZE);
+
+		return frame;
+	}
+
+	/**
+	 * Reads and drops count bytes of data, e.g. the payload of a frame
+	 * that could not be used.
+	 * @param count Number of bytes to drop
+	 * @throws IOException
+	 */
+	public void discard(long count) throws IOException {
+
+		ReadableByteChannel data = dataInput();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, FTPTransferEngine.BUFFER_SIZE));
+
+		while (count > 0) {
+
+			buffer.clear();
+			buffer.limit((int) Math.min(count, buffer.capacity()));
+
+			int read = data.read(buffer);
+
+			if (read < 0) {
+				throw new IOException("Client disconnected");
+			}
+
+			count -= read;
+		}
+	}
+
+	/**
+	 * Queues a response frame. It is written with the next flush, together
+	 * with any other frames queued before.
+	 * @param opcode Opcode of the request answered
+	 * @param requestId Request id of the request answered
+	 * @param status Status of the response
+	 * @param payload Payload of the response
+	 * @throws IOException
+	 */
+	public void writeFrame(int opcode, int requestId, int status, byte[] payload) throws IOException {
+
+		reserve(FTPFrame.HEADER_SIZE + payload.length);
+
+		FTPFrame.putHeader(frames, opcode, requestId, status, payload.length);
+
+		if (frames.remaining() >= payload.length) {
+			frames.put(payload);
+		}
+		else {
+			// Too large to queue, goes straight to the Client
+			flush();
+			writeFully(ByteBuffer.wrap(payload));
+		}
+	}
+
+	/**
+	 * Queues the header of a response frame whose payload the caller then
+	 * writes to dataOutput.
+	 * @param opcode Opcode of the request answered
+	 * @param requestId Request id of the request answered
+	 * @param status Status of the response
+	 * @param length Length of the payload that will follow
+	 * @throws IOException
+	 */
+	public void writeFrameHeader(int opcode, int requestId, int status, long length) throws IOException {
+		reserve(FTPFrame.HEADER_SIZE);
+		FTPFrame.putHeader(frames, opcode, requestId, status, length);
+	}
+
+	/**
+	 * Writes out any buffered text and queued frames.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+
+		output.flush();
+
+		if ((frames != null) && (frames.position() > 0)) {
+			frames.flip();
+			writeFully(frames);
+			frames.clear();
+		}
+	}
+
+	/**
+	 * Switches the connection between lines and frames.
+	 * @param binary True for FTPFrames, false for lines
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * @return True once the Client has switched to FTPFrames
+	 */
+	public boolean binary() {
+		return binary;
+	}
+
+	/**
+	 * Returns the next complete line, blocking until one arrives.
+	 * @return The line without its terminator or null if the Client disconnected
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+
+		String line;
+
+		while ((line = pollLine()) == null) {
+			if (fill() < 0) {
+				return null;
+			}
+		}
+
+		return line;
+	}
+
+	/**
+	 * Returns the next complete line if one has already been read.
+	 * @return The line without its terminator or null if none is buffered
+	 */
+	public String pollLine() {
+
+		int terminator = lineTerminator();
+
+		if (terminator < 0) {
+			return null;
+		}
+
+		int start = input.position();
+		int end = lineEnd(terminator);
+
+		String line = new String(input.array(), input.arrayOffset() + start, end - start, charset);
+		input.position(terminator + 1);
+
+		return line;
+	}
+
+	/**
+	 * Parses the next complete line where it is buffered, if one has
+	 * already been read. The parser is the same for every line.
+	 * @return The parser holding the command or null if no line is buffered
+	 */
+	public FTPCommandParser pollCommand() {
+
+		int terminator = lineTerminator();
+
+		if (terminator < 0) {
+			return null;
+		}
+
+		parser.parse(input, input.position(), lineEnd(terminator));
+		input.position(terminator + 1);
+
+		return parser;
+	}
+
+	/**
+	 * @return Index of the next buffered '\n', -1 if none is buffered
+	 */
+	private int lineTerminator() {
+
+		for (int index = input.position(); index < input.limit(); index++) {
+			if (input.get(index) == '\n') {
+				return index;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return Index after the last byte of the line ending at terminator, without a '\r'
+	 */
+	private int lineEnd(int terminator) {
+		return ((terminator > input.position()) && (input.get(terminator - 1) == '\r')) ? terminator - 1 : terminator;
+	}
+
+	/**
+	 * Reads whatever the channel has into the input buffer. Blocks only if
+	 * the channel is in blocking mode.
+	 * @return Number of bytes read, 0 if none were available, -1 at end of stream
+	 * @throws IOException If a line is longer than the largest allowed
+	 */
+	public int fill() throws IOException {
+
+		if (input.position() == 0 && input.limit() == input.capacity()) {
+
+			if (input.capacity() >= MAX_LINE_LENGTH) {
+				throw new IOException("Command line longer than " + MAX_LINE_LENGTH + " bytes");
+			}
+
+			ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+			larger.put(input);
+			larger.flip();
+			input = larger;
+		}
+
+		input.compact();
+
+		try {
+			return channel.read(input);
+		}
+		finally {
+			input.flip();
+		}
+	}
+
+	/**
+	 * Channel to read raw file data from. Hands out any bytes that are
+	 * still buffered before reading from the socket.
+	 * @return ReadableByteChannel for data sent by the Client
+	 */
+	public ReadableByteChannel dataInput() {
+
+		return new ReadableByteChannel() {
+
+			@Override
+			public int read(ByteBuffer destination) throws IOException {
+
+				if (!input.hasRemaining()) {
+					return channel.read(destination);
+				}
+
+				int count = Math.min(input.remaining(), destination.remaining());
+				ByteBuffer slice = input.slice();
+				slice.limit(count);
+				destination.put(slice);
+				input.position(input.position() + count);
+
+				return count;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Channel to write raw file data to. Anything still buffered in the
+	 * text output or queued as frames is flushed first so the order on
+	 * the wire is kept.
+	 * @return WritableByteChannel for data sent to the Client
+	 * @throws IOException
+	 */
+	public WritableByteChannel dataOutput() throws IOException {
+		flush();
+		return channel;
+	}
+
+	/**
+	 * @return Text output to the Client, flushed after every println
+	 */
+	public PrintStream output() {
+		return output;
+	}
+
+	/**
+	 * @return SocketChannel connected to the Client
+	 */
+	public SocketChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * Makes room for count more bytes of queued frames, flushing what is
+	 * queued if the buffer is full.
+	 */
+	private void reserve(int count) throws IOException {
+
+		if (frames == null) {
+			frames = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		}
+
+		if (frames.remaining() < count) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the whole buffer to the channel.
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Closes the output and the channel.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		output.close();
+		channel.close();
+	}
+}
@@ -0,0 +1,357 @@
+package FTPServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listeners for the data connections of background transfers, bound once
+ * on the ports of ftp.data.ports and shared by every session. A transfer
+ * opens an Endpoint, tells the Client its port and token with the command
+ * id, and the Client sends the 8 byte token first thing on each data
+ * connection. One selector thread accepts the connections and hands each
+ * to the Endpoint of its token, so any number of Clients can start
+ * transfers on the same ports at once and nothing is bound per transfer.
+ *
+ * A Client that set up an FTPMux sends the token to open a stream on it
+ * instead of opening a connection, and the stream is handed over the same
+ * way.
+ *
+ * A Client that asks for port 0 gets a port of the pool. Any other port is
+ * one the Client picked itself, as Clients did before the pool, and is
+ * listened on for that transfer only.
+ */
+public class FTPDataPorts {
+
+	static final int TOKEN_LENGTH = 8;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	// Endpoints still waiting for connections, by token
+	private static final Map<Long, Endpoint> endpoints = new ConcurrentHashMap<Long, Endpoint>();
+
+	private static final List<Integer> ports = new ArrayList<Integer>();
+	private static final AtomicInteger nextPort = new AtomicInteger();
+
+	private FTPDataPorts() {
+	}
+
+	/**
+	 * Binds the listeners and starts accepting data connections.
+	 * @throws IOException If a port of ftp.data.ports cannot be bound
+	 */
+	static synchronized void start() throws IOException {
+
+		if (!ports.isEmpty()) {
+			return;
+		}
+
+		Selector selector = Selector.open();
+
+		for (int port : portRange(FTPServerConfig.dataPorts())) {
+
+			ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+			listener.configureBlocking(false);
+			listener.register(selector, SelectionKey.OP_ACCEPT);
+
+			ports.add(listener.socket().getLocalPort());
+		}
+
+		Thread acceptor = new Thread(() -> accept(selector), "ftp-data-ports");
+
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Opens an endpoint for the data connections of one transfer.
+	 * @param portNumber Port number sent by the Client, 0 for a port of the pool
+	 * @param connections Number of data connections the transfer takes
+	 * @return The endpoint, to be closed once the connections are accepted
+	 * @throws IOException If the port the Client picked cannot be bound
+	 */
+	static Endpoint open(int portNumber, int connections) throws IOException {
+
+		if (portNumber != 0) {
+			ServerSocket listener = ServerSocketChannel.open().bind(new InetSocketAddress(portNumber)).socket();
+			listener.setSoTimeout((int) FTPServerConfig.dataAcceptTimeoutMillis());
+			return new Endpoint(listener, 0, 0, connections);
+		}
+
+		start();
+
+		long token;
+		Endpoint endpoint;
+
+		do {
+			token = random.nextLong();
+			endpoint = new Endpoint(null, ports.get(Math.floorMod(nextPort.getAndIncrement(), ports.size())), token,
+					connections);
+		}
+		while (endpoints.putIfAbsent(token, endpoint) != null);
+
+		return endpoint;
+	}
+
+	/**
+	 * Parses ftp.data.ports.
+	 * @param range A port, a range first-last, or empty for one port picked by the system
+	 * @return The ports to listen on
+	 */
+	private static List<Integer> portRange(String range) {
+
+		List<Integer> ports = new ArrayList<Integer>();
+
+		if (range.isBlank()) {
+			ports.add(0);
+			return ports;
+		}
+
+		String[] bounds = range.trim().split("-", 2);
+
+		int first = Integer.parseInt(bounds[0].trim());
+		int last = (bounds.length == 2) ? Integer.parseInt(bounds[1].trim()) : first;
+
+		if ((first < 0) || (last > 65535) || (first > last)) {
+			throw new IllegalArgumentException("ftp.data.ports is not a port range: " + range);
+		}
+
+		for (int port = first; port <= last; port++) {
+			ports.add(port);
+		}
+
+		return ports;
+	}
+
+	/**
+	 * Accepts data connections, reads their tokens without blocking and
+	 * hands them to their endpoints. Connections that do not send a known
+	 * token in time are closed.
+	 */
+	private static void accept(Selector selector) {
+
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(FTPServerConfig.dataAcceptTimeoutMillis());
+
+		while (true) {
+
+			try {
+
+				selector.select(1000);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isAcceptable()) {
+
+						SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+
+						if (channel != null) {
+							channel.configureBlocking(false);
+							channel.register(selector, SelectionKey.OP_READ, new Pending());
+						}
+					}
+					else if (key.isReadable()) {
+						readToken(key);
+					}
+				}
+
+				long now = System.nanoTime();
+
+				for (SelectionKey key : selector.keys()) {
+					if ((key.attachment() instanceof Pending)
+							&& (now - ((Pending) key.attachment()).acceptedAt > timeoutNanos)) {
+						key.cancel();
+						close(key.channel());
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println("IOException while accepting data connections: " + e);
+			}
+		}
+	}
+
+	private static void readToken(SelectionKey key) throws IOException {
+
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer token = ((Pending) key.attachment()).token;
+
+		int read;
+
+		try {
+			read = channel.read(token);
+		}
+		catch (IOException e) {
+			read = -1;
+		}
+
+		if (read < 0) {
+			key.cancel();
+			close(channel);
+			return;
+		}
+
+		if (token.hasRemaining()) {
+			return;
+		}
+
+		key.cancel();
+		channel.configureBlocking(true);
+
+		if (!connected(token.getLong(0), channel.socket())) {
+			close(channel);
+		}
+	}
+
+	/**
+	 * Hands a data connection to the transfer waiting for it.
+	 * @param token Token the Client sent
+	 * @param socket The data connection, or a stream of an FTPMux
+	 * @return False if no transfer waits for a connection with this token
+	 */
+	static boolean connected(long token, Socket socket) {
+
+		Endpoint endpoint = endpoints.get(token);
+
+		return (endpoint != null) && endpoint.connected(socket);
+	}
+
+	private static void close(Closeable closeable) {
+
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e);
+		}
+	}
+
+	/**
+	 * A data connection whose token is not read yet.
+	 */
+	private static class Pending {
+
+		private final ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH);
+		private final long acceptedAt = System.nanoTime();
+	}
+
+	/**
+	 * Where the data connections of one transfer arrive.
+	 */
+	static class Endpoint implements Closeable {
+
+		// Listener on the port the Client picked, null for a port of the pool
+		private final ServerSocket listener;
+
+		private final int port;
+		private final long token;
+
+		private final BlockingQueue<Socket> connected;
+		private int expected;
+
+		private Endpoint(ServerSocket listener, int port, long token, int connections) {
+			this.listener = listener;
+			this.port = port;
+			this.token = token;
+			this.connected = new ArrayBlockingQueue<Socket>(connections);
+			this.expected = connections;
+		}
+
+		/**
+		 * Tells the Client where to connect, together with the command id.
+		 * @param commandID Command id of the transfer
+		 * @return The command id, followed by the port and the token as hex digits for a port of the pool
+		 */
+		String announce(String commandID) {
+			return (listener != null) ? commandID : commandID + " " + port + " " + Long.toHexString(token);
+		}
+
+		/**
+		 * Waits for the next data connection of the transfer.
+		 * @return The connected socket
+		 * @throws IOException If the Client does not connect within ftp.data.accept.timeout.ms
+		 */
+		Socket accept() throws IOException {
+
+			if (listener != null) {
+				return listener.accept();
+			}
+
+			try {
+
+				Socket socket = connected.poll(FTPServerConfig.dataAcceptTimeoutMillis(), TimeUnit.MILLISECONDS);
+
+				if (socket == null) {
+					throw new SocketTimeoutException("No data connection on port " + port + " in time");
+				}
+
+				return socket;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketTimeoutException("Interrupted while waiting for a data connection");
+			}
+		}
+
+		/**
+		 * Hands a data connection that sent the token to the transfer.
+		 * @return False if the transfer takes no more connections
+		 */
+		private synchronized boolean connected(Socket socket) {
+
+			if (expected == 0) {
+				return false;
+			}
+
+			if (--expected == 0) {
+				endpoints.remove(token, this);
+			}
+
+			return connected.offer(socket);
+		}
+
+		/**
+		 * Stops waiting for data connections. Connections that arrived but
+		 * were never accepted are closed.
+		 */
+		@Override
+		public void close() {
+
+			if (listener != null) {
+				FTPDataPorts.close(listener);
+				return;
+			}
+
+			synchronized (this) {
+				expected = 0;
+				endpoints.remove(token, this);
+			}
+
+			for (Socket socket = connected.poll(); socket != null; socket = connected.poll()) {
+				FTPDataPorts.close(socket);
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package FTPServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The file data of one get or put, sent the way the session agreed on:
+ * raw or as FTPCompression blocks, and once VERIFY is on followed by the
+ * checksum of the data
+ *
+ *   u8 length, checksum
+ *
+ * computed by the sender while it sends. The receiver computes its own
+ * while it writes and compares the two, so neither side reads the file a
+ * second time. A get of a whole file whose checksum is in the
+ * FTPChecksumCache is sent with transferTo and the cached checksum.
+ */
+public class FTPDataStream {
+
+	private FTPDataStream() {
+	}
+
+	/**
+	 * Sends count bytes of a file starting at position.
+	 * @param file The file, used to look up and cache its checksum
+	 * @param source FileChannel of the file
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param compressionLevel Deflater level of the session or FTPCompression.OFF
+	 * @param digest Empty digest of the session's algorithm, null to send no checksum
+	 * @param keepSending Checked between chunks, stops the transfer when false. May be null
+	 * @return Number of bytes of the file actually sent
+	 * @throws IOException
+	 */
+	static long send(File file, FileChannel source, long position, long count, WritableByteChannel target,
+			int compressionLevel, FTPDigest digest, BooleanSupplier keepSending) throws IOException {
+
+		long modified = file.lastModified();
+
+		// The checksum of a whole file may be known already
+		byte[] knownDigest = null;
+
+		if ((digest != null) && (position == 0)) {
+			knownDigest = FTPChecksumCache.get(file, digest.algorithm(), count, modified);
+		}
+
+		FTPDigest computing = (knownDigest == null) ? digest : null;
+		long sent;
+
+		if (compressionLevel != FTPCompression.OFF) {
+			sent = FTPCompression.send(source, position, count, target, compressionLevel, computing, keepSending);
+		}
+		else if (computing != null) {
+			sent = FTPTransferEngine.sendChecksummed(source, position, count, target, computing, keepSending);
+		}
+		else if (FTPServerConfig.getStrategy().equals(FTPServerConfig.GET_HEAP)
+				|| FTPServerConfig.getStrategy().equals(FTPServerConfig.GET_DIRECT)) {
+			sent = FTPTransferEngine.sendBuffered(source, position, count, target,
+					FTPServerConfig.getStrategy().equals(FTPServerConfig.GET_DIRECT), keepSending);
+		}
+		else {
+			sent = FTPTransferEngine.sendFile(source, position, count, target, keepSending);
+		}
+
+		if ((digest == null) || (sent < count)) {
+			return sent;
+		}
+
+		if (knownDigest == null) {
+
+			knownDigest = digest.digest();
+
+			if (position == 0) {
+				FTPChecksumCache.put(file, digest.algorithm(), count, modified, knownDigest);
+			}
+		}
+
+		writeDigest(target, knownDigest);
+
+		return sent;
+	}
+
+	/**
+	 * Sends file contents that are already in memory.
+	 * @param content The bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param digest Empty digest of the session's algorithm, null to send no checksum
+	 * @return Number of bytes sent
+	 * @throws IOException
+	 */
+	static long send(ByteBuffer content, WritableByteChannel target, FTPDigest digest) throws IOException {
+
+		if (digest != null) {
+			digest.update(content.duplicate());
+		}
+
+		long sent = FTPTransferEngine.sendBuffer(content, target);
+
+		if (digest != null) {
+			writeDigest(target, digest.digest());
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Receives count bytes of a file and writes them starting at position.
+	 * Once all arrived, verify reads and checks the sender's checksum.
+	 * @param source Channel of the socket to receive from
+	 * @param target FileChannel of the file to write to
+	 * @param position Offset in the file of the first byte to write
+	 * @param count Number of bytes to receive
+	 * @param compressionLevel Deflater level of the session or FTPCompression.OFF
+	 * @param digest Empty digest of the session's algorithm, null if no checksum is sent
+	 * @param keepReceiving Checked between reads, stops the transfer when false. May be null
+	 * @return Number of bytes actually received and written
+	 * @throws IOException
+	 */
+	static long receive(ReadableByteChannel source, FileChannel target, long position, long count,
+			int compressionLevel, FTPDigest digest, BooleanSupplier keepReceiving) throws IOException {
+
+		if (compressionLevel != FTPCompression.OFF) {
+			return FTPCompression.receive(source, target, position, count, digest, keepReceiving);
+		}
+
+		if (digest != null) {
+			return FTPTransferEngine.receiveChecksummed(source, target, position, count, digest, keepReceiving);
+		}
+
+		return FTPTransferEngine.receiveFile(source, target, position, count, keepReceiving);
+	}
+
+	/**
+	 * Reads the sender's checksum and compares it with the one computed
+	 * while receiving.
+	 * @param source Channel of the socket to receive from
+	 * @param digest Digest filled by receive, null if no checksum is sent
+	 * @return True if the checksums match or none is sent
+	 * @throws IOException
+	 */
+	static boolean verify(ReadableByteChannel source, FTPDigest digest) throws IOException {
+		return (digest == null) || Arrays.equals(readDigest(source), digest.digest());
+	}
+
+	/**
+	 * Reads the checksum that follows the data.
+	 * @param source Channel of the socket to receive from
+	 * @return The sender's checksum
+	 * @throws IOException
+	 */
+	static byte[] readDigest(ReadableByteChannel source) throws IOException {
+
+		ByteBuffer length = ByteBuffer.allocate(1);
+		readFully(source, length);
+
+		ByteBuffer digest = ByteBuffer.allocate(length.get(0) & 0xff);
+		readFully(source, digest);
+
+		return digest.array();
+	}
+
+	private static void writeDigest(WritableByteChannel target, byte[] digest) throws IOException {
+
+		ByteBuffer trailer = ByteBuffer.allocate(1 + digest.length).put((byte) digest.length).put(digest);
+		trailer.flip();
+
+		FTPTransferEngine.sendBuffer(trailer, target);
+	}
+
+	private static void readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) < 0) {
+				throw new EOFException("Connection closed before the checksum arrived");
+			}
+		}
+	}
+}
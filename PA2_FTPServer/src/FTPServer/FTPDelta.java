@@ -0,0 +1,300 @@
+package FTPServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * New version of a file sent as the differences to the copy the server
+ * already has, for DPUT. The server describes its copy by one signature
+ * per whole block of blockSize bytes
+ *
+ *   u32 weak checksum, 16 byte MD5
+ *
+ * and the Client answers with the new contents as a list of operations
+ *
+ *   u8 COPY, u64 first block, u32 number of blocks
+ *   u8 LITERAL, u32 length, bytes
+ *   u8 END, u64 length of the new file
+ *
+ * The weak checksum is the rolling checksum of rsync, so the Client can
+ * look for the blocks of the old copy at every offset of its file for a
+ * few additions per byte and only computes an MD5 where the weak one
+ * matches. A run of unchanged blocks costs 13 bytes on the wire.
+ */
+public class FTPDelta {
+
+	// Operations
+	static final int END = 0;
+	static final int COPY = 1;
+	static final int LITERAL = 2;
+
+	static final int SIGNATURE_SIZE = 20;
+
+	static final int MIN_BLOCK_SIZE = 2 * 1024;
+	static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	// Longest literal the Client may send in one operation
+	static final int MAX_LITERAL = 1024 * 1024;
+
+	private FTPDelta() {
+	}
+
+	/**
+	 * Picks the block size for a file. Blocks of about the square root of
+	 * the length keep both the signatures and the bytes resent around a
+	 * change small.
+	 * @param length Length of the server's copy
+	 * @return The block size, a multiple of 1 KB
+	 */
+	static int blockSize(long length) {
+
+		long size = ((long) Math.sqrt(length) + 1023) & ~1023L;
+
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Computes the weak checksum of a block.
+	 * @param block Buffer holding the block
+	 * @param offset Offset of the block in the buffer
+	 * @param length Length of the block
+	 * @return The sum of the bytes in the low and their weighted sum in the high 16 bits
+	 */
+	static int weak(byte[] block, int offset, int length) {
+
+		int a = 0;
+		int b = 0;
+
+		for (int i = 0; i < length; i++) {
+			int x = block[offset + i] & 0xff;
+			a = (a + x) & 0xffff;
+			b = (b + (length - i) * x) & 0xffff;
+		}
+
+		return a | (b << 16);
+	}
+
+	/**
+	 * Sends the signatures of the first blocks of the server's copy.
+	 * @param basis FileChannel of the server's copy
+	 * @param blockSize Block size picked for the copy
+	 * @param blocks Number of whole blocks in the copy
+	 * @param target Channel of the socket to send to
+	 * @throws IOException If the copy got shorter
+	 */
+	static void sendSignatures(FileChannel basis, int blockSize, long blocks, WritableByteChannel target) throws IOException {
+
+		ByteBuffer block = ByteBuffer.allocate(blockSize);
+		ByteBuffer batch = ByteBuffer.allocate(FTPTransferEngine.BUFFER_SIZE);
+		MessageDigest md5 = md5();
+
+		for (long i = 0; i < blocks; i++) {
+
+			block.clear();
+
+			while (block.hasRemaining()) {
+				if (basis.read(block, i * blockSize + block.position()) < 0) {
+					throw new EOFException("File got shorter while its signatures were sent");
+				}
+			}
+
+			if (batch.remaining() < SIGNATURE_SIZE) {
+				flush(batch, target);
+			}
+
+			md5.update(block.array(), 0, blockSize);
+
+			batch.putInt(weak(block.array(), 0, blockSize));
+			batch.put(md5.digest());
+		}
+
+		flush(batch, target);
+	}
+
+	/**
+	 * Receives the operations of the Client and writes the new file.
+	 * @param source Channel of the socket to receive from
+	 * @param basis FileChannel of the server's copy, null if there is none
+	 * @param blockSize Block size of the signatures
+	 * @param blocks Number of signatures sent
+	 * @param target FileChannel of the new file
+	 * @param digest Updated with the bytes of the new file as they are written. May be null
+	 * @return Length of the new file
+	 * @throws IOException If an operation is corrupt or the stream ends early
+	 */
+	static long apply(ReadableByteChannel source, FileChannel basis, int blockSize, long blocks,
+			FileChannel target, FTPDigest digest) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(12);
+		ByteBuffer buffer = ByteBuffer.allocate(FTPTransferEngine.BUFFER_SIZE);
+
+		long written = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (true) {
+
+				int operation = read(source, header, 1).get(0);
+
+				switch(operation) {
+
+				case COPY: {
+
+					read(source, header, 12);
+
+					long first = header.getLong(0);
+					int count = header.getInt(8);
+
+					if ((first < 0) || (count <= 0) || (first > blocks - count)) {
+						throw new IOException("COPY of blocks the old file does not have");
+					}
+
+					written += copy(basis, first * blockSize, (long) count * blockSize, target, written, buffer, digest);
+					break;
+				}
+
+				case LITERAL: {
+
+					int length = read(source, header, 4).getInt(0);
+
+					if ((length <= 0) || (length > MAX_LITERAL)) {
+						throw new IOException("LITERAL of " + length + " bytes");
+					}
+
+					written += copy(source, length, target, written, buffer, digest);
+					break;
+				}
+
+				case END: {
+
+					long length = read(source, header, 8).getLong(0);
+
+					if (length != written) {
+						throw new IOException("New file should be " + length + " bytes but is " + written);
+					}
+
+					return written;
+				}
+
+				default:
+					throw new IOException("Unknown delta operation " + operation);
+				}
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+	}
+
+	/**
+	 * Copies blocks of the server's copy to the new file.
+	 * @return Number of bytes copied
+	 */
+	private static long copy(FileChannel basis, long position, long count, FileChannel target, long targetPosition,
+			ByteBuffer buffer, FTPDigest digest) throws IOException {
+
+		long copied = 0;
+
+		while (copied < count) {
+
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+
+			if (basis.read(buffer, position + copied) < 0) {
+				throw new EOFException("Old file got shorter while the new one was built");
+			}
+
+			copied += write(buffer, target, targetPosition + copied, digest);
+		}
+
+		return copied;
+	}
+
+	/**
+	 * Copies the bytes of a literal from the socket to the new file.
+	 * @return Number of bytes copied
+	 */
+	private static long copy(ReadableByteChannel source, int count, FileChannel target, long targetPosition,
+			ByteBuffer buffer, FTPDigest digest) throws IOException {
+
+		long copied = 0;
+
+		while (copied < count) {
+
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+
+			if (source.read(buffer) < 0) {
+				throw new EOFException("Delta stream ended inside a literal");
+			}
+
+			copied += write(buffer, target, targetPosition + copied, digest);
+		}
+
+		return copied;
+	}
+
+	private static int write(ByteBuffer buffer, FileChannel target, long position, FTPDigest digest) throws IOException {
+
+		buffer.flip();
+
+		if (digest != null) {
+			digest.update(buffer.duplicate());
+		}
+
+		int written = 0;
+
+		while (buffer.hasRemaining()) {
+			written += target.write(buffer, position + written);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Reads exactly count bytes into the start of the buffer.
+	 * @return The buffer
+	 */
+	private static ByteBuffer read(ReadableByteChannel source, ByteBuffer buffer, int count) throws IOException {
+
+		buffer.clear();
+		buffer.limit(count);
+
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) < 0) {
+				throw new EOFException("Delta stream ended early");
+			}
+		}
+
+		return buffer;
+	}
+
+	private static void flush(ByteBuffer batch, WritableByteChannel target) throws IOException {
+
+		batch.flip();
+
+		while (batch.hasRemaining()) {
+			target.write(batch);
+		}
+
+		batch.clear();
+	}
+
+	private static MessageDigest md5() {
+
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java runtime has MD5", e);
+		}
+	}
+}
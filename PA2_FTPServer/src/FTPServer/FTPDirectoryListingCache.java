@@ -0,0 +1,319 @@
+package FTPServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide cache of the directory listings sent for LS. Each cached
+ * directory is watched with a WatchService, whose events add and remove
+ * names as files come and go, so an LS of an unchanged directory does not
+ * touch the disk at all. The encoded response is cached too and sent with
+ * a single write.
+ *
+ * A listing is read from disk again once it is older than the configured
+ * staleness, in case the platform's WatchService misses or delays events.
+ * The least recently listed directories are dropped once more than the
+ * configured number are cached. The cache is off unless ftp.ls.cache.dirs
+ * is set.
+ */
+public class FTPDirectoryListingCache {
+
+	private static final int maxDirectories = FTPServerConfig.listingCacheDirectories();
+	private static final long stalenessMillis = FTPServerConfig.listingCacheStalenessMillis();
+
+	// Least recently listed first, guarded by its own lock
+	private static final LinkedHashMap<String, Listing> listings =
+			new LinkedHashMap<String, Listing>(16, 0.75f, true);
+
+	private static WatchService watchService = null;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	private FTPDirectoryListingCache() {
+	}
+
+	/**
+	 * Returns the LS response for a directory: the number of entries
+	 * followed by one name per line.
+	 * @param directory The directory to list
+	 * @return The encoded response
+	 */
+	static byte[] response(File directory) {
+
+		if (maxDirectories <= 0) {
+			return encode(list(directory));
+		}
+
+		Path path = directory.toPath().toAbsolutePath().normalize();
+		String key = path.toString();
+		Listing listing;
+
+		synchronized (listings) {
+
+			listing = listings.get(key);
+
+			if ((listing != null) && (listing.names != null)
+					&& (System.currentTimeMillis() - listing.loadedAt < stalenessMillis)) {
+
+				if (listing.response == null) {
+					listing.response = encode(listing.names);
+				}
+
+				hits.increment();
+
+				return listing.response;
+			}
+
+			if (listing == null) {
+				listing = watch(key, path);
+			}
+		}
+
+		misses.increment();
+
+		// Events seen while listing mean the listing may already be out of date
+		long version;
+
+		synchronized (listings) {
+			version = listing.version;
+		}
+
+		Set<String> names = list(directory);
+		byte[] response = encode(names);
+
+		synchronized (listings) {
+
+			if ((listing.version == version) && (listings.get(key) == listing)) {
+				listing.names = names;
+				listing.response = response;
+				listing.loadedAt = System.currentTimeMillis();
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Drops the cached listing of a directory whose entries this server
+	 * just changed, rather than waiting for the watch event.
+	 * @param directory The directory that changed
+	 */
+	static void invalidate(File directory) {
+
+		if ((maxDirectories <= 0) || (directory == null)) {
+			return;
+		}
+
+		String key = directory.toPath().toAbsolutePath().normalize().toString();
+
+		synchronized (listings) {
+
+			Listing listing = listings.get(key);
+
+			if (listing != null) {
+				listing.version++;
+				listing.names = null;
+				listing.response = null;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of LS answered from the cache
+	 */
+	static long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of LS that had to list the directory
+	 */
+	static long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of directories whose listings are cached
+	 */
+	static int cachedDirectories() {
+
+		synchronized (listings) {
+			return listings.size();
+		}
+	}
+
+	/**
+	 * Starts watching a directory and adds an empty listing for it,
+	 * dropping the least recently listed directories if there are too
+	 * many. Callers hold the lock.
+	 */
+	private static Listing watch(String key, Path path) {
+
+		Listing listing = new Listing();
+
+		try {
+
+			if (watchService == null) {
+				watchService = FileSystems.getDefault().newWatchService();
+				startWatcher(watchService);
+			}
+
+			listing.watchKey = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		catch (IOException e) {
+			// Not watchable, the listing is then only refreshed once it is stale
+			System.err.println("IOException while watching directory:  " + e + "\n" + e.getMessage());
+		}
+
+		listings.put(key, listing);
+
+		Iterator<Listing> iterator = listings.values().iterator();
+
+		while ((listings.size() > maxDirectories) && iterator.hasNext()) {
+
+			Listing evicted = iterator.next();
+
+			if (evicted.watchKey != null) {
+				evicted.watchKey.cancel();
+			}
+
+			iterator.remove();
+		}
+
+		return listing;
+	}
+
+	/**
+	 * Starts the daemon thread applying watch events to the listings.
+	 */
+	private static void startWatcher(WatchService service) {
+
+		Thread watcher = new Thread(() -> {
+
+			try {
+				while (true) {
+					apply(service.take());
+				}
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+		}, "ftp-listing-watcher");
+
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Adds created and removes deleted names. Drops the listing if events
+	 * were lost or the directory itself went away.
+	 */
+	private static void apply(WatchKey watchKey) {
+
+		String key = ((Path) watchKey.watchable()).toString();
+
+		synchronized (listings) {
+
+			Listing listing = listings.get(key);
+
+			for (WatchEvent<?> event : watchKey.pollEvents()) {
+
+				if (listing == null) {
+					continue;
+				}
+
+				listing.version++;
+				listing.response = null;
+
+				if (listing.names == null) {
+					continue;
+				}
+
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					listing.names = null;
+				}
+				else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					listing.names.add(((Path) event.context()).toString());
+				}
+				else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					listing.names.remove(((Path) event.context()).toString());
+				}
+			}
+
+			if (!watchKey.reset() && (listing != null) && (listing.watchKey == watchKey)) {
+				listings.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Reads the names in a directory from disk, in the order the file
+	 * system returns them.
+	 */
+	private static Set<String> list(File directory) {
+
+		String directoryFiles[] = directory.list();
+
+		if (directoryFiles == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> names = new LinkedHashSet<String>(directoryFiles.length * 2);
+		Collections.addAll(names, directoryFiles);
+
+		return names;
+	}
+
+	/**
+	 * Encodes the LS response exactly as println would send it line by line.
+	 */
+	private static byte[] encode(Set<String> names) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + names.size() * 32);
+		PrintStream response = new PrintStream(bytes);
+
+		response.println(names.size());
+
+		for (String name : names) {
+			response.println(name);
+		}
+
+		response.flush();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A cached directory listing.
+	 */
+	private static class Listing {
+
+		private WatchKey watchKey;
+
+		// Null until read from disk, and again once events were lost
+		private Set<String> names;
+		private byte[] response;
+		private long loadedAt;
+
+		// Counts the changes seen, so a listing read while the directory
+		// changed is not cached
+		private long version;
+	}
+}
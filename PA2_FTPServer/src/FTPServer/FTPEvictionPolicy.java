@@ -0,0 +1,189 @@
+package FTPServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides which entry a byte bounded cache gives up when it needs room.
+ * The cache tells the policy about every insert, hit and removal and asks
+ * it for a victim. Callers hold the cache's lock, so implementations need
+ * no locking of their own.
+ */
+public interface FTPEvictionPolicy {
+
+	/** Evicts the least recently used entry */
+	String LRU = "lru";
+
+	/** Evicts the least frequently used entry, with counts aging over time */
+	String LFU = "lfu";
+
+	/**
+	 * @param key Key of an entry that was added
+	 */
+	void inserted(String key);
+
+	/**
+	 * @param key Key of an entry that was hit
+	 */
+	void accessed(String key);
+
+	/**
+	 * @param key Key of an entry that was removed
+	 */
+	void removed(String key);
+
+	/**
+	 * @return Key of the entry to evict next or null if there is none
+	 */
+	String victim();
+
+	/**
+	 * @param name LRU or LFU
+	 * @return A new policy of that name, LRU for unknown names
+	 */
+	static FTPEvictionPolicy of(String name) {
+
+		if (LFU.equalsIgnoreCase(name)) {
+			return new LeastFrequentlyUsed();
+		}
+
+		return new LeastRecentlyUsed();
+	}
+
+	/**
+	 * Least recently used entry first.
+	 */
+	class LeastRecentlyUsed implements FTPEvictionPolicy {
+
+		// Least recently used first
+		private final LinkedHashSet<String> order = new LinkedHashSet<String>();
+
+		@Override
+		public void inserted(String key) {
+			order.add(key);
+		}
+
+		@Override
+		public void accessed(String key) {
+			order.remove(key);
+			order.add(key);
+		}
+
+		@Override
+		public void removed(String key) {
+			order.remove(key);
+		}
+
+		@Override
+		public String victim() {
+			return order.isEmpty() ? null : order.iterator().next();
+		}
+	}
+
+	/**
+	 * Least frequently used entry first, least recently used among entries
+	 * hit equally often. All counts are halved every so many hits so that
+	 * files that were hot once but no longer are can be evicted eventually.
+	 */
+	class LeastFrequentlyUsed implements FTPEvictionPolicy {
+
+		// Hits per entry before all counts are halved
+		private static final int AGING_HITS_PER_ENTRY = 16;
+
+		private final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+
+		// Keys by frequency, least recently used first within a frequency
+		private final TreeMap<Integer, LinkedHashSet<String>> buckets = new TreeMap<Integer, LinkedHashSet<String>>();
+
+		private long hitsSinceAging = 0;
+
+		@Override
+		public void inserted(String key) {
+			frequencies.put(key, 1);
+			bucket(1).add(key);
+		}
+
+		@Override
+		public void accessed(String key) {
+
+			Integer frequency = frequencies.get(key);
+
+			if (frequency == null) {
+				return;
+			}
+
+			unlink(key, frequency);
+			frequencies.put(key, frequency + 1);
+			bucket(frequency + 1).add(key);
+
+			if (++hitsSinceAging > (long) AGING_HITS_PER_ENTRY * frequencies.size()) {
+				age();
+			}
+		}
+
+		@Override
+		public void removed(String key) {
+
+			Integer frequency = frequencies.remove(key);
+
+			if (frequency != null) {
+				unlink(key, frequency);
+			}
+		}
+
+		@Override
+		public String victim() {
+			return buckets.isEmpty() ? null : buckets.firstEntry().getValue().iterator().next();
+		}
+
+		private LinkedHashSet<String> bucket(int frequency) {
+
+			LinkedHashSet<String> bucket = buckets.get(frequency);
+
+			if (bucket == null) {
+				bucket = new LinkedHashSet<String>();
+				buckets.put(frequency, bucket);
+			}
+
+			return bucket;
+		}
+
+		private void unlink(String key, int frequency) {
+
+			LinkedHashSet<String> bucket = buckets.get(frequency);
+			bucket.remove(key);
+
+			if (bucket.isEmpty()) {
+				buckets.remove(frequency);
+			}
+		}
+
+		/**
+		 * Halves every count, keeping the recency order within each count.
+		 */
+		private void age() {
+
+			List<String> keys = new ArrayList<String>();
+
+			for (LinkedHashSet<String> bucket : buckets.values()) {
+				keys.addAll(bucket);
+			}
+
+			buckets.clear();
+
+			for (String key : keys) {
+
+				int frequency = Math.max(1, frequencies.get(key) / 2);
+
+				frequencies.put(key, frequency);
+				bucket(frequency).add(key);
+			}
+
+			hitsSinceAging = 0;
+		}
+	}
+}
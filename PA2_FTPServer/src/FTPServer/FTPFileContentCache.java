@@ -0,0 +1,202 @@
+package FTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide cache of the contents of small files, kept in direct
+ * buffers. A GET of a cached file is answered from memory without any
+ * file system call, not even to check that the file exists. The cache is
+ * bounded by total bytes and evicts through a pluggable FTPEvictionPolicy.
+ *
+ * Entries are dropped whenever this server changes or deletes the file,
+ * changes made to the files by other programs are not noticed. The cache
+ * is off unless ftp.cache.bytes is set.
+ */
+public class FTPFileContentCache {
+
+	private static final long capacityBytes = FTPServerConfig.cacheBytes();
+	private static final long maxFileSize = FTPServerConfig.cacheMaxFileSize();
+
+	private static final Map<String, ByteBuffer> contents = new HashMap<String, ByteBuffer>();
+	private static final FTPEvictionPolicy policy = FTPEvictionPolicy.of(FTPServerConfig.cachePolicy());
+
+	// Guarded by the lock on contents
+	private static long cachedBytes = 0;
+	private static long invalidations = 0;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	private FTPFileContentCache() {
+	}
+
+	/**
+	 * @return True if the cache is turned on
+	 */
+	static boolean enabled() {
+		return capacityBytes > 0;
+	}
+
+	/**
+	 * Looks up the contents of a file.
+	 * @param file The file
+	 * @return A read only buffer of the contents or null if the file is not cached
+	 */
+	static ByteBuffer get(File file) {
+
+		if (!enabled()) {
+			return null;
+		}
+
+		String key = key(file);
+		ByteBuffer content;
+
+		synchronized (contents) {
+
+			content = contents.get(key);
+
+			if (content != null) {
+				policy.accessed(key);
+			}
+		}
+
+		if (content == null) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+
+		return content.duplicate();
+	}
+
+	/**
+	 * Reads a small file into a direct buffer and caches it. Nothing is
+	 * cached if the file was invalidated while it was being read.
+	 * @param file The file
+	 * @param channel Open channel of the file
+	 * @param length Length of the file
+	 * @return A read only buffer of the contents or null if the file is too large to cache
+	 * @throws IOException
+	 */
+	static ByteBuffer load(File file, FileChannel channel, long length) throws IOException {
+
+		if (!enabled() || (length > maxFileSize) || (length > capacityBytes)) {
+			return null;
+		}
+
+		String key = key(file);
+		long generation;
+
+		synchronized (contents) {
+			generation = invalidations;
+		}
+
+		ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+
+		while (content.hasRemaining()) {
+			if (channel.read(content, content.position()) < 0) {
+				break;
+			}
+		}
+
+		content.flip();
+		content = content.asReadOnlyBuffer();
+
+		synchronized (contents) {
+
+			if (generation == invalidations) {
+
+				remove(key);
+
+				while ((cachedBytes + content.capacity() > capacityBytes) && (policy.victim() != null)) {
+					remove(policy.victim());
+				}
+
+				contents.put(key, content);
+				cachedBytes += content.capacity();
+				policy.inserted(key);
+			}
+		}
+
+		return content.duplicate();
+	}
+
+	/**
+	 * Drops the cached contents of a file that is being changed or deleted.
+	 * @param file The file
+	 */
+	static void invalidate(File file) {
+
+		if (!enabled()) {
+			return;
+		}
+
+		String key = key(file);
+
+		synchronized (contents) {
+			invalidations++;
+			remove(key);
+		}
+	}
+
+	/**
+	 * @return Number of GETs answered from the cache
+	 */
+	static long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of GETs that had to read the file
+	 */
+	static long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of bytes cached
+	 */
+	static long cachedBytes() {
+
+		synchronized (contents) {
+			return cachedBytes;
+		}
+	}
+
+	/**
+	 * @return Number of files cached
+	 */
+	static int cachedFiles() {
+
+		synchronized (contents) {
+			return contents.size();
+		}
+	}
+
+	/**
+	 * Removes an entry. Callers hold the lock.
+	 */
+	private static void remove(String key) {
+
+		ByteBuffer removed = contents.remove(key);
+
+		if (removed != null) {
+			cachedBytes -= removed.capacity();
+			policy.removed(key);
+		}
+	}
+
+	/**
+	 * @return Key of the file, its absolute normalized path. Needs no file system call.
+	 */
+	private static String key(File file) {
+		return file.toPath().toAbsolutePath().normalize().toString();
+	}
+}
@@ -0,0 +1,312 @@
+package FTPServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Many files sent back to back over one connection for MGET and MPUT.
+ * Every file is preceded by a small header
+ *
+ *   u16 name length, name (UTF-8), u64 file length
+ *
+ * and the stream ends with a name length of 0. Headers and small files
+ * are gathered in one buffer and written together, so a directory full of
+ * small files costs neither a round trip nor a write per file. Larger
+ * files go out with FTPTransferEngine.sendFile.
+ */
+public class FTPFileStream {
+
+	static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	// Longest file name a header may carry
+	static final int MAX_NAME_LENGTH = 1024;
+
+	// Files up to this size are copied into the gathering buffer
+	private static final int SMALL_FILE_SIZE = FTPTransferEngine.BUFFER_SIZE / 2;
+
+	private FTPFileStream() {
+	}
+
+	/**
+	 * Finds the regular files in a directory whose names match a glob.
+	 * @param directory The directory to search
+	 * @param glob The pattern, e.g. *.log
+	 * @return The matching files sorted by name
+	 * @throws IOException If the directory cannot be read or the pattern is invalid
+	 */
+	static List<File> expand(File directory, String glob) throws IOException {
+
+		List<File> files = new ArrayList<File>();
+
+		if (glob == null) {
+			return files;
+		}
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath(), glob)) {
+
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry)) {
+					files.add(entry.toFile());
+				}
+			}
+		}
+		catch (PatternSyntaxException e) {
+			throw new IOException("Invalid pattern " + glob, e);
+		}
+
+		Collections.sort(files);
+
+		return files;
+	}
+
+	/**
+	 * Sends the files and the end of stream marker.
+	 * @param files The files to send
+	 * @param target Channel to send to
+	 * @param keepSending Checked before every file and chunk, stops the stream when false. May be null
+	 * @return Number of files sent
+	 * @throws IOException
+	 */
+	static int send(List<File> files, WritableByteChannel target, BooleanSupplier keepSending) throws IOException {
+
+		ByteBuffer batch = ByteBuffer.allocateDirect(FTPTransferEngine.BUFFER_SIZE);
+		int sent = 0;
+
+		for (File file : files) {
+
+			if ((keepSending != null) && (!keepSending.getAsBoolean())) {
+				return sent;
+			}
+
+			byte[] name = file.getName().getBytes(CHARSET);
+
+			if (name.length > MAX_NAME_LENGTH) {
+				throw new IOException("File name too long: " + file.getName());
+			}
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+				FileChannel channel = raf.getChannel();
+				FTPTransferEngine.tryLock(channel, true);
+
+				long length = channel.size();
+				int headerLength = 2 + name.length + 8;
+
+				if (batch.remaining() < headerLength + Math.min(length, SMALL_FILE_SIZE)) {
+					flush(batch, target);
+				}
+
+				batch.putShort((short) name.length).put(name).putLong(length);
+
+				if (length <= SMALL_FILE_SIZE) {
+
+					// Read no further than the announced length, even if the file grew
+					int limit = batch.limit();
+					batch.limit(batch.position() + (int) length);
+
+					long read = 0;
+
+					while (read < length) {
+
+						int count = channel.read(batch, read);
+
+						if (count < 0) {
+							throw new IOException("File " + file.getName() + " got shorter while being sent");
+						}
+
+						read += count;
+					}
+
+					batch.limit(limit);
+
+					// The bytes are counted as sent once the batch is written
+					FTPTransferRegistry.progress(keepSending, length);
+				}
+				else {
+
+					flush(batch, target);
+
+					if (FTPTransferEngine.sendFile(channel, 0, length, target, keepSending) < length) {
+						return sent;
+					}
+				}
+			}
+
+			sent++;
+		}
+
+		if (batch.remaining() < 2) {
+			flush(batch, target);
+		}
+
+		batch.putShort((short) 0);
+		flush(batch, target);
+
+		return sent;
+	}
+
+	/**
+	 * Receives files into a directory until the end of stream marker.
+	 * A file that is cut short by the sender or by keepReceiving is
+	 * deleted.
+	 * @param source Channel to receive from
+	 * @param directory Directory to write the files to
+	 * @param keepReceiving Checked before every read, stops the stream when false. May be null
+	 * @param changed Told about every file before and after it is written. May be null
+	 * @return Number of files received completely
+	 * @throws IOException
+	 */
+	static int receive(ReadableByteChannel source, File directory, BooleanSupplier keepReceiving,
+			Consumer<File> changed) throws IOException {
+
+		// Always kept in read mode
+		ByteBuffer buffer = ByteBuffer.allocateDirect(FTPTransferEngine.BUFFER_SIZE);
+		buffer.flip();
+
+		int received = 0;
+
+		while ((keepReceiving == null) || keepReceiving.getAsBoolean()) {
+
+			if (!fill(source, buffer, 2)) {
+				return received;
+			}
+
+			int nameLength = buffer.getShort() & 0xffff;
+
+			if (nameLength == 0) {
+				return received;
+			}
+
+			if ((nameLength > MAX_NAME_LENGTH) || !fill(source, buffer, nameLength + 8)) {
+				throw new EOFException("File stream ended in the middle of a header");
+			}
+
+			byte[] name = new byte[nameLength];
+			buffer.get(name);
+
+			long length = buffer.getLong();
+			File file = new File(directory, fileName(new String(name, CHARSET)));
+			long written = 0;
+
+			if (changed != null) {
+				changed.accept(file);
+			}
+
+			// Content shared through the store is never written in place
+			FTPContentStore.detach(file, false);
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+
+				FileChannel channel = raf.getChannel();
+				FTPTransferEngine.tryLock(channel, false);
+
+				// Bytes of the file that arrived together with its header
+				while ((written < length) && buffer.hasRemaining()) {
+
+					ByteBuffer part = buffer.duplicate();
+					part.limit(part.position() + (int) Math.min(part.remaining(), length - written));
+
+					int count = channel.write(part, written);
+
+					written += count;
+					buffer.position(buffer.position() + count);
+
+					FTPTransferRegistry.received(keepReceiving, count);
+				}
+
+				if (written < length) {
+					written += FTPTransferEngine.receiveFile(source, channel, written, length - written, keepReceiving);
+				}
+
+				channel.truncate(written);
+			}
+			finally {
+				file.setReadable(true, false);
+				file.setWritable(true, false);
+
+				if (written < length) {
+					file.delete();
+				}
+
+				if (changed != null) {
+					changed.accept(file);
+				}
+			}
+
+			if (written < length) {
+				return received;
+			}
+
+			FTPContentStore.ingest(file);
+
+			received++;
+		}
+
+		return received;
+	}
+
+	/**
+	 * Keeps only the last part of a received name, so a sender cannot
+	 * write outside the target directory.
+	 */
+	private static String fileName(String name) throws IOException {
+
+		String fileName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+
+		if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+			throw new IOException("Invalid file name " + name);
+		}
+
+		return fileName;
+	}
+
+	/**
+	 * Writes out the gathered bytes and empties the buffer.
+	 */
+	private static void flush(ByteBuffer batch, WritableByteChannel target) throws IOException {
+
+		batch.flip();
+		FTPTransferEngine.sendBuffer(batch, target);
+		batch.clear();
+	}
+
+	/**
+	 * Reads until at least count bytes are buffered.
+	 * @return False if the stream ended first
+	 */
+	private static boolean fill(ReadableByteChannel source, ByteBuffer buffer, int count) throws IOException {
+
+		while (buffer.remaining() < count) {
+
+			buffer.compact();
+
+			try {
+				if (source.read(buffer) < 0) {
+					return false;
+				}
+			}
+			finally {
+				buffer.flip();
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,196 @@
+package FTPServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One frame of the binary control protocol a Client can switch to with
+ * PROTO BINARY. Every frame starts with a fixed size header
+ *
+ *   u8 opcode, u32 request id, u16 status, u64 payload length
+ *
+ * in network byte order, followed by the payload. A request carries status
+ * 0 and its argument as UTF-8 in the payload. Background requests put the
+ * Client's data port in front of the file name as a u16, PGET requests the
+ * data port and the number of data connections as two u16, CPUT requests
+ * the 32 byte SHA-256 of the file. A data port of 0 asks the server to
+ * pick one as described in FTPDataPorts. Every response repeats the opcode and request id of its request and carries a numeric
+ * status and the message, listing or file data as payload. MGET responses
+ * and MPUT requests are followed by an FTPFileStream, DPUT responses by
+ * the signatures and then the operations of an FTPDelta.
+ *
+ * File data never needs a READY round trip: a GET response announces the
+ * length of the file in its header and the file follows as its payload,
+ * and a PUT request is followed by a DATA frame whose payload is the file.
+ * Once COMPRESS is on, the file data of both is sent as FTPCompression
+ * blocks and the announced length stays the length of the file. Once
+ * VERIFY is on, the file data of both is followed by its checksum as
+ * described in FTPDataStream.
+ */
+public class FTPFrame {
+
+	static final int HEADER_SIZE = 15;
+
+	static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	// Opcodes
+	static final int GET = 1;
+	static final int PUT = 2;
+	static final int GET_BACKGROUND = 3;
+	static final int PUT_BACKGROUND = 4;
+	static final int DELETE = 5;
+	static final int LS = 6;
+	static final int CD = 7;
+	static final int MKDIR = 8;
+	static final int PWD = 9;
+	static final int QUIT = 10;
+	static final int DATA = 11;
+	static final int MGET = 12;
+	static final int MPUT = 13;
+	static final int MGET_BACKGROUND = 14;
+	static final int MPUT_BACKGROUND = 15;
+	static final int SIZE = 16;
+	static final int PGET = 17;
+	static final int REST = 18;
+	static final int COMPRESS = 19;
+	static final int VERIFY = 20;
+	static final int CHECKSUM = 21;
+	static final int DPUT = 22;
+	static final int CPUT = 23;
+	static final int MUX = 24;
+	static final int JOBS = 25;
+	static final int STAT = 26;
+
+	// Status codes
+	static final int STATUS_REQUEST = 0;
+	static final int STATUS_OK = 200;
+	static final int STATUS_BAD_REQUEST = 400;
+	static final int STATUS_NOT_FOUND = 404;
+	static final int STATUS_FAILED = 500;
+	static final int STATUS_UNKNOWN_COMMAND = 501;
+
+	private final int opcode;
+	private final int requestId;
+	private final int status;
+	private final long length;
+
+	// Null for frames whose payload is streamed separately
+	private final byte[] payload;
+
+	FTPFrame(int opcode, int requestId, int status, long length, byte[] payload) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.status = status;
+		this.length = length;
+		this.payload = payload;
+	}
+
+	/**
+	 * Writes a frame header into the buffer.
+	 * @param buffer Buffer with at least HEADER_SIZE bytes remaining
+	 * @param opcode Opcode of the frame
+	 * @param requestId Request id of the frame
+	 * @param status Status of the frame
+	 * @param length Length of the payload that follows the header
+	 */
+	static void putHeader(ByteBuffer buffer, int opcode, int requestId, int status, long length) {
+		buffer.put((byte) opcode);
+		buffer.putInt(requestId);
+		buffer.putShort((short) status);
+		buffer.putLong(length);
+	}
+
+	/**
+	 * Reads the frame header starting at the buffer's position without
+	 * consuming it.
+	 * @param buffer Buffer with at least HEADER_SIZE bytes remaining
+	 * @param payload The payload if it has been read, otherwise null
+	 * @return The frame
+	 */
+	static FTPFrame peekHeader(ByteBuffer buffer, byte[] payload) {
+
+		int position = buffer.position();
+
+		return new FTPFrame(buffer.get(position) & 0xff, buffer.getInt(position + 1),
+				buffer.getShort(position + 5) & 0xffff, buffer.getLong(position + 7), payload);
+	}
+
+	/**
+	 * @return Opcode of the frame
+	 */
+	int opcode() {
+		return opcode;
+	}
+
+	/**
+	 * @return Request id the frame belongs to
+	 */
+	int requestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return Status of a response, STATUS_REQUEST for requests
+	 */
+	int status() {
+		return status;
+	}
+
+	/**
+	 * @return Length of the payload
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * @return Data port sent in front of the file name of a background request
+	 */
+	int port() {
+		return ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+	}
+
+	/**
+	 * @return Number of data connections sent after the port of a PGET request
+	 */
+	int streams() {
+		return ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+	}
+
+	/**
+	 * @return SHA-256 sent in front of the file name of a CPUT request, as hex digits
+	 */
+	String hash() {
+
+		if (payload == null) {
+			return "";
+		}
+
+		return FTPDigest.hex(Arrays.copyOf(payload, Math.min(32, payload.length)));
+	}
+
+	/**
+	 * @return The argument of the request, or null if there is none
+	 */
+	String argument() {
+
+		int offset = ((opcode == GET_BACKGROUND) || (opcode == PUT_BACKGROUND)
+				|| (opcode == MGET_BACKGROUND) || (opcode == MPUT_BACKGROUND)) ? 2 : 0;
+
+		if (opcode == PGET) {
+			offset = 4;
+		}
+
+		if (opcode == CPUT) {
+			offset = 32;
+		}
+
+		if ((payload == null) || (payload.length <= offset)) {
+			return null;
+		}
+
+		return new String(payload, offset, payload.length - offset, CHARSET);
+	}
+}
@@ -0,0 +1,168 @@
+package FTPServer;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one command type, counted in buckets on a log scale. Every
+ * power of two of microseconds is split into 8 buckets, so a percentile is
+ * off by at most an eighth. The buckets are LongAdders, so sessions
+ * recording at the same time do not contend on one counter.
+ */
+public class FTPLatencyHistogram {
+
+	// Buckets per power of two, as bits
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Latencies are kept up to 2^41 microseconds, about 25 days
+	private static final int MAX_EXPONENT = 40;
+	static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private static final int BUCKETS = (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalMicros = new LongAdder();
+	private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+	FTPLatencyHistogram() {
+
+		for (int index = 0; index < BUCKETS; index++) {
+			buckets[index] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Counts one latency.
+	 * @param nanos The latency in nanoseconds
+	 */
+	void record(long nanos) {
+
+		long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+
+		buckets[index(micros)].increment();
+		count.increment();
+		totalMicros.add(micros);
+		maxMicros.accumulate(micros);
+	}
+
+	/**
+	 * @return Number of latencies counted
+	 */
+	long count() {
+		return count.sum();
+	}
+
+	/**
+	 * @return Average latency in milliseconds, 0 if none was counted
+	 */
+	double meanMillis() {
+
+		long counted = count.sum();
+
+		return (counted == 0) ? 0 : totalMicros.sum() / (counted * 1e3);
+	}
+
+	/**
+	 * @return Sum of all latencies in seconds
+	 */
+	double totalSeconds() {
+		return totalMicros.sum() / 1e6;
+	}
+
+	/**
+	 * Counts the latencies below each of the bounds, from one reading of
+	 * the buckets so the counts never decrease from bound to bound.
+	 * @param boundsMicros Increasing powers of two of microseconds, each a bound of the buckets
+	 * @return The count below each bound, followed by the count of all latencies
+	 */
+	long[] cumulativeCounts(long[] boundsMicros) {
+
+		long[] counts = new long[boundsMicros.length + 1];
+		int bound = 0;
+		long seen = 0;
+
+		for (int index = 0; index < BUCKETS; index++) {
+
+			while ((bound < boundsMicros.length) && (lowerBound(index) >= boundsMicros[bound])) {
+				counts[bound++] = seen;
+			}
+
+			seen += buckets[index].sum();
+		}
+
+		while (bound <= boundsMicros.length) {
+			counts[bound++] = seen;
+		}
+
+		return counts;
+	}
+
+	/**
+	 * @return Longest latency in milliseconds
+	 */
+	double maxMillis() {
+		return maxMicros.get() / 1e3;
+	}
+
+	/**
+	 * @param quantile The quantile, e.g. 0.99
+	 * @return The upper bound in milliseconds of the bucket the quantile falls in, 0 if none was counted
+	 */
+	double percentileMillis(double quantile) {
+
+		long[] counts = new long[BUCKETS];
+		long counted = 0;
+
+		for (int index = 0; index < BUCKETS; index++) {
+			counts[index] = buckets[index].sum();
+			counted += counts[index];
+		}
+
+		if (counted == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * counted));
+		long seen = 0;
+
+		for (int index = 0; index < BUCKETS; index++) {
+
+			seen += counts[index];
+
+			if (seen >= rank) {
+
+				long upper = (index + 1 < BUCKETS) ? lowerBound(index + 1) - 1 : MAX_MICROS;
+
+				return Math.min(upper, maxMicros.get()) / 1e3;
+			}
+		}
+
+		return maxMillis();
+	}
+
+	static int index(long micros) {
+
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int index) {
+
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+
+		return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+}
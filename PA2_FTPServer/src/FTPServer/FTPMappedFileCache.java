@@ -0,0 +1,263 @@
+package FTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide cache of memory mapped files for GET. A file is mapped once
+ * in regions of at most REGION_SIZE bytes and shared by every session that
+ * sends it, so repeated GETs of a hot file need neither heap buffers nor
+ * read calls. Mappings are reference counted while a transfer uses them and
+ * evicted least recently used first once the mapped bytes exceed the
+ * configured address space budget. A mapping in use is never evicted, so
+ * the budget can be exceeded for as long as such transfers run.
+ *
+ * The JDK unmaps a MappedByteBuffer only once it is garbage collected, so
+ * an evicted mapping stops counting against the budget right away but its
+ * address space is given back a little later.
+ */
+public class FTPMappedFileCache {
+
+	// Largest region a single MappedByteBuffer can cover
+	static final long REGION_SIZE = 1024L * 1024 * 1024;
+
+	private static final long budgetBytes = FTPServerConfig.mmapBudgetBytes();
+
+	// Least recently used first
+	private static final LinkedHashMap<String, MappedFile> mappings =
+			new LinkedHashMap<String, MappedFile>(16, 0.75f, true);
+
+	private static long mappedBytes = 0;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	private FTPMappedFileCache() {
+	}
+
+	/**
+	 * Returns the mapping of the file, mapping it first if it is not cached
+	 * or changed since it was mapped. Must be given back with release.
+	 * @param file The file to send
+	 * @return The mapped file or null if the file is too small or not a regular file
+	 * @throws IOException
+	 */
+	static MappedFile acquire(File file) throws IOException {
+
+		Path path = file.toPath().toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+		if (!attributes.isRegularFile() || attributes.size() < FTPServerConfig.mmapMinimumSize()) {
+			return null;
+		}
+
+		String key = path.toString();
+		long modified = attributes.lastModifiedTime().toMillis();
+
+		synchronized (mappings) {
+
+			MappedFile mapped = mappings.get(key);
+
+			if ((mapped != null) && (mapped.size == attributes.size()) && (mapped.modified == modified)) {
+				mapped.references++;
+				hits.increment();
+				return mapped;
+			}
+
+			if (mapped != null) {
+				remove(key);
+			}
+		}
+
+		misses.increment();
+
+		MappedFile mapped = map(path, attributes.size(), modified);
+
+		synchronized (mappings) {
+
+			// Another session may have mapped the same file meanwhile
+			MappedFile existing = mappings.get(key);
+
+			if ((existing != null) && (existing.size == mapped.size) && (existing.modified == mapped.modified)) {
+				existing.references++;
+				return existing;
+			}
+
+			if (existing != null) {
+				remove(key);
+			}
+
+			mapped.references++;
+			mappings.put(key, mapped);
+			mappedBytes += mapped.size;
+
+			evict();
+		}
+
+		return mapped;
+	}
+
+	/**
+	 * Gives back a mapping acquired for a transfer.
+	 * @param mapped The mapping the transfer is done with
+	 */
+	static void release(MappedFile mapped) {
+
+		synchronized (mappings) {
+			mapped.references--;
+			evict();
+		}
+	}
+
+	/**
+	 * Drops the mapping of a file that is about to be changed or deleted.
+	 * Transfers already using the mapping keep it until they release it.
+	 * @param file The file being changed
+	 */
+	static void invalidate(File file) {
+
+		String key = file.toPath().toAbsolutePath().normalize().toString();
+
+		synchronized (mappings) {
+			remove(key);
+		}
+	}
+
+	/**
+	 * @return Number of GETs sent from a mapping that was already cached
+	 */
+	static long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of GETs that had to map the file
+	 */
+	static long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of bytes currently mapped by the cache
+	 */
+	static long mappedBytes() {
+
+		synchronized (mappings) {
+			return mappedBytes;
+		}
+	}
+
+	/**
+	 * @return Number of files currently mapped by the cache
+	 */
+	static int mappedFiles() {
+
+		synchronized (mappings) {
+			return mappings.size();
+		}
+	}
+
+	/**
+	 * Maps the whole file read only, region by region.
+	 */
+	private static MappedFile map(Path path, long size, long modified) throws IOException {
+
+		int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+		MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+			for (int index = 0; index < regionCount; index++) {
+
+				long position = index * REGION_SIZE;
+				regions[index] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(REGION_SIZE, size - position));
+			}
+		}
+
+		return new MappedFile(path.toString(), size, modified, regions);
+	}
+
+	/**
+	 * Removes the mapping from the cache. Callers hold the lock.
+	 */
+	private static void remove(String key) {
+
+		MappedFile removed = mappings.remove(key);
+
+		if (removed != null) {
+			mappedBytes -= removed.size;
+		}
+	}
+
+	/**
+	 * Evicts unused mappings, least recently used first, until the mapped
+	 * bytes fit the budget. Callers hold the lock.
+	 */
+	private static void evict() {
+
+		Iterator<MappedFile> iterator = mappings.values().iterator();
+
+		while ((mappedBytes > budgetBytes) && iterator.hasNext()) {
+
+			MappedFile mapped = iterator.next();
+
+			if (mapped.references == 0) {
+				iterator.remove();
+				mappedBytes -= mapped.size;
+			}
+		}
+	}
+
+	/**
+	 * A file mapped into memory, shared by the transfers sending it.
+	 */
+	static class MappedFile {
+
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final MappedByteBuffer[] regions;
+
+		// Guarded by the lock on mappings
+		private int references = 0;
+
+		MappedFile(String path, long size, long modified, MappedByteBuffer[] regions) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.regions = regions;
+		}
+
+		/**
+		 * @return Length of the file when it was mapped
+		 */
+		long size() {
+			return size;
+		}
+
+		/**
+		 * @return Path of the file
+		 */
+		String path() {
+			return path;
+		}
+
+		/**
+		 * @return The mapped regions in file order, each REGION_SIZE long except the last.
+		 * Shared between transfers, so only ever read through duplicates.
+		 */
+		MappedByteBuffer[] regions() {
+			return regions;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package FTPServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves /metrics in the Prometheus text format on ftp.metrics.port, with
+ * the JDK's HTTP server on a thread of its own. Every value is read from
+ * the LongAdders and volatile fields the server updates while serving, so
+ * a scrape takes none of the locks the sessions and transfers use.
+ *
+ * Command latencies are histograms whose bounds are powers of two of
+ * microseconds, the bounds of the FTPLatencyHistogram buckets, so the
+ * counts are exact.
+ */
+public class FTPMetricsEndpoint {
+
+	// Bounds of the latency buckets, 128 microseconds to about 33.5 seconds
+	private static final long[] LATENCY_BOUNDS_MICROS = new long[10];
+
+	static {
+		for (int index = 0; index < LATENCY_BOUNDS_MICROS.length; index++) {
+			LATENCY_BOUNDS_MICROS[index] = 1L << (7 + 2 * index);
+		}
+	}
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private FTPMetricsEndpoint() {
+	}
+
+	/**
+	 * Starts serving /metrics if ftp.metrics.port is set.
+	 * @throws IOException If the port cannot be bound
+	 */
+	static void start() throws IOException {
+
+		int port = FTPServerConfig.metricsPort();
+
+		if (port <= 0) {
+			return;
+		}
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(FTPServerConfig.metricsHost(), port), 0);
+
+		server.createContext("/metrics", FTPMetricsEndpoint::serve);
+		server.start();
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+
+		try {
+
+			if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = render().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, body.length);
+
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return The metrics in the Prometheus text format
+	 */
+	static String render() {
+
+		StringBuilder text = new StringBuilder(16 * 1024);
+
+		gauge(text, "ftp_sessions_active", "Sessions connected now", FTPServerMetrics.activeSessions());
+		counter(text, "ftp_sessions_total", "Sessions connected since the server started",
+				FTPServerMetrics.totalSessions());
+
+		counter(text, "ftp_sent_bytes_total", "File bytes sent to Clients", FTPServerMetrics.bytesSent());
+		counter(text, "ftp_received_bytes_total", "File bytes received from Clients",
+				FTPServerMetrics.bytesReceived());
+
+		gauge(text, "ftp_background_transfers", "Background transfers running", FTPTransferRegistry.count());
+		counter(text, "ftp_background_transfers_failed_total", "Background transfers that ended on an error",
+				FTPServerMetrics.failedTransfers());
+		gauge(text, "ftp_transfer_workers", "Workers running background transfers",
+				FTPTransferScheduler.workerCount());
+		gauge(text, "ftp_transfer_workers_busy", "Workers running a transfer now",
+				FTPTransferScheduler.activeTransfers());
+		gauge(text, "ftp_transfer_queue_depth", "Background transfers waiting for a worker",
+				FTPTransferScheduler.queueDepth());
+
+		header(text, "ftp_transfer_queue_wait_seconds", "Time background transfers waited for a worker", "summary");
+		text.append("ftp_transfer_queue_wait_seconds_sum ").append(FTPTransferScheduler.totalWaitMillis() / 1e3)
+				.append('\n');
+		text.append("ftp_transfer_queue_wait_seconds_count ").append(FTPTransferScheduler.startedTransfers())
+				.append('\n');
+
+		gauge(text, "ftp_transfer_permits_available", "Transfers that may still start moving file data",
+				FTPTransferLimiter.available());
+
+		header(text, "ftp_cache_hits_total", "Lookups answered from a cache", "counter");
+		cacheSample(text, "ftp_cache_hits_total", "content", FTPFileContentCache.hits());
+		cacheSample(text, "ftp_cache_hits_total", "mmap", FTPMappedFileCache.hits());
+		cacheSample(text, "ftp_cache_hits_total", "listing", FTPDirectoryListingCache.hits());
+		cacheSample(text, "ftp_cache_hits_total", "checksum", FTPChecksumCache.hits());
+
+		header(text, "ftp_cache_misses_total", "Lookups a cache could not answer", "counter");
+		cacheSample(text, "ftp_cache_misses_total", "content", FTPFileContentCache.misses());
+		cacheSample(text, "ftp_cache_misses_total", "mmap", FTPMappedFileCache.misses());
+		cacheSample(text, "ftp_cache_misses_total", "listing", FTPDirectoryListingCache.misses());
+		cacheSample(text, "ftp_cache_misses_total", "checksum", FTPChecksumCache.misses());
+
+		header(text, "ftp_cache_hit_ratio", "Share of lookups answered from a cache", "gauge");
+		cacheSample(text, "ftp_cache_hit_ratio", "content",
+				ratio(FTPFileContentCache.hits(), FTPFileContentCache.misses()));
+		cacheSample(text, "ftp_cache_hit_ratio", "mmap",
+				ratio(FTPMappedFileCache.hits(), FTPMappedFileCache.misses()));
+		cacheSample(text, "ftp_cache_hit_ratio", "listing",
+				ratio(FTPDirectoryListingCache.hits(), FTPDirectoryListingCache.misses()));
+		cacheSample(text, "ftp_cache_hit_ratio", "checksum",
+				ratio(FTPChecksumCache.hits(), FTPChecksumCache.misses()));
+
+		header(text, "ftp_command_duration_seconds", "Time from reading a request to the end of its reply",
+				"histogram");
+
+		for (FTPCommandType type : FTPCommandType.values()) {
+
+			FTPLatencyHistogram histogram = FTPServerMetrics.latency(type);
+			long[] counts = histogram.cumulativeCounts(LATENCY_BOUNDS_MICROS);
+			String command = "command=\"" + type.name() + "\"";
+
+			for (int index = 0; index < LATENCY_BOUNDS_MICROS.length; index++) {
+				text.append("ftp_command_duration_seconds_bucket{").append(command).append(",le=\"")
+						.append(BigDecimal.valueOf(LATENCY_BOUNDS_MICROS[index], 6).toPlainString()).append("\"} ")
+						.append(counts[index]).append('\n');
+			}
+
+			long count = counts[LATENCY_BOUNDS_MICROS.length];
+
+			text.append("ftp_command_duration_seconds_bucket{").append(command).append(",le=\"+Inf\"} ")
+					.append(count).append('\n');
+			text.append("ftp_command_duration_seconds_sum{").append(command).append("} ")
+					.append(histogram.totalSeconds()).append('\n');
+			text.append("ftp_command_duration_seconds_count{").append(command).append("} ")
+					.append(count).append('\n');
+		}
+
+		return text.toString();
+	}
+
+	private static void header(StringBuilder text, String name, String help, String type) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void gauge(StringBuilder text, String name, String help, Number value) {
+		header(text, name, help, "gauge");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder text, String name, String help, Number value) {
+		header(text, name, help, "counter");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void cacheSample(StringBuilder text, String name, String cache, Number value) {
+		text.append(name).append("{cache=\"").append(cache).append("\"} ").append(value).append('\n');
+	}
+
+	private static double ratio(long hits, long misses) {
+		return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+	}
+}
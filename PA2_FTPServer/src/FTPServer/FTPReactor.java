@@ -0,0 +1,281 @@
+package FTPServer;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Event driven server mode. A small set of selector threads owns every
+ * control and terminate connection and reads from them without blocking.
+ * Only once a complete request has arrived is the session handed to
+ * a worker thread, which runs the command with the connection in blocking
+ * mode and then gives the session back to its selector. Idle sessions
+ * therefore cost no thread at all.
+ */
+public class FTPReactor {
+
+	// Variable Declaration
+	private final SelectorLoop[] loops;
+	private final ExecutorService commandPool;
+
+	private int nextLoop = 0;
+
+	/**
+	 * Starts the selector threads and the worker pool.
+	 * @param selectorThreads Number of selector threads owning the connections
+	 * @param workerThreads Number of threads running commands
+	 * @throws IOException
+	 */
+	public FTPReactor(int selectorThreads, int workerThreads) throws IOException {
+
+		loops = new SelectorLoop[selectorThreads];
+
+		for (int index = 0; index < loops.length; index++) {
+
+			loops[index] = new SelectorLoop();
+
+			Thread loopThread = new Thread(loops[index], "ftp-selector-" + index);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+
+		commandPool = Executors.newFixedThreadPool(workerThreads);
+	}
+
+	/**
+	 * Accepts control and terminate connections on the calling thread and
+	 * spreads them over the selector threads. Does not return.
+	 * @param normalServerChannel Channel accepting control connections
+	 * @param terminateServerChannel Channel accepting terminate connections
+	 * @throws IOException
+	 */
+	public void serve(ServerSocketChannel normalServerChannel, ServerSocketChannel terminateServerChannel)
+			throws IOException {
+
+		Selector acceptSelector = Selector.open();
+
+		normalServerChannel.configureBlocking(false);
+		normalServerChannel.register(acceptSelector, SelectionKey.OP_ACCEPT, Boolean.FALSE);
+
+		terminateServerChannel.configureBlocking(false);
+		terminateServerChannel.register(acceptSelector, SelectionKey.OP_ACCEPT, Boolean.TRUE);
+
+		while (true) {
+
+			acceptSelector.select();
+
+			Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+
+			while (keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+
+				if (channel == null) {
+					continue;
+				}
+
+				channel.configureBlocking(false);
+
+				FTPControlConnection connection = new FTPControlConnection(channel);
+				FTPSession session;
+
+				if ((Boolean) key.attachment()) {
+					session = new FTPServerWorker.FTPServerTerminate(connection);
+				}
+				else {
+					session = new FTPServerWorker(connection);
+					System.out.println("Connected to client");
+				}
+
+				SelectorLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+
+				loop.register(new Registration(connection, session, loop));
+			}
+		}
+	}
+
+	/**
+	 * Runs the buffered request on a worker thread, followed by any
+	 * requests the Client already sent behind it, then gives the session
+	 * back to its selector or closes it.
+	 * @param registration The session to run the request for
+	 */
+	private void runCommands(Registration registration) {
+
+		try {
+
+			boolean open = registration.session.serveRequest();
+
+			while (open && registration.connection.requestBuffered()) {
+				open = registration.session.serveRequest();
+			}
+
+			if (open) {
+				registration.connection.channel().configureBlocking(false);
+				registration.loop.register(registration);
+			}
+			else {
+				registration.session.close();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("Exception while running command:  " + e + "\n" + e.getMessage());
+			registration.session.close();
+		}
+	}
+
+	/**
+	 * A session together with its connection and the selector that owns it.
+	 */
+	private static class Registration {
+
+		private final FTPControlConnection connection;
+		private final FTPSession session;
+		private final SelectorLoop loop;
+
+		Registration(FTPControlConnection connection, FTPSession session, SelectorLoop loop) {
+			this.connection = connection;
+			this.session = session;
+			this.loop = loop;
+		}
+	}
+
+	/**
+	 * One selector thread. Reads from its connections until a full request
+	 * is buffered, then hands the session to the worker pool.
+	 */
+	private class SelectorLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+
+		SelectorLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Queues a session to be watched by this selector. Safe to call
+		 * from any thread.
+		 * @param registration The session to watch
+		 */
+		void register(Registration registration) {
+			pending.add(registration);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+
+			List<Registration> handoffs = new ArrayList<Registration>();
+
+			while (true) {
+
+				try {
+
+					selector.select();
+
+					Registration registration;
+
+					while ((registration = pending.poll()) != null) {
+
+						try {
+							registration.connection.channel().register(selector, SelectionKey.OP_READ, registration);
+						}
+						catch (ClosedChannelException e) {
+							registration.session.close();
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						if (key.isValid() && key.isReadable()) {
+							read(key, handoffs);
+						}
+					}
+
+					if (!handoffs.isEmpty()) {
+
+						// Let the selector drop the cancelled keys so the
+						// channels can be put back into blocking mode
+						selector.selectNow();
+
+						for (Registration handoff : handoffs) {
+							dispatch(handoff);
+						}
+
+						handoffs.clear();
+					}
+				}
+				catch (IOException e) {
+					System.err.println("IOException in selector loop:  " + e + "\n" + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Reads what is available and collects the session for hand off
+		 * once a full request is buffered.
+		 * @param key SelectionKey of the readable connection
+		 * @param handoffs Sessions to hand to the worker pool
+		 */
+		private void read(SelectionKey key, List<Registration> handoffs) {
+
+			Registration registration = (Registration) key.attachment();
+			int count;
+
+			try {
+				count = registration.connection.fill();
+			}
+			catch (IOException e) {
+				count = -1;
+			}
+
+			if (count < 0) {
+				key.cancel();
+				registration.session.close();
+				return;
+			}
+
+			if (registration.connection.requestBuffered()) {
+				key.cancel();
+				handoffs.add(registration);
+			}
+		}
+
+		/**
+		 * Puts the connection in blocking mode and runs the request on
+		 * the worker pool.
+		 * @param registration The session to hand off
+		 */
+		private void dispatch(Registration registration) {
+
+			try {
+				registration.connection.channel().configureBlocking(true);
+				commandPool.execute(() -> runCommands(registration));
+			}
+			catch (IOException e) {
+				System.err.println("IOException while handing off command:  " + e + "\n" + e.getMessage());
+				registration.session.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package FTPServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * One byte range of a file sent over its own data connection for PGET.
+ * The Client opens one connection per segment and asks for its range
+ *
+ *   u64 offset, u64 length
+ *
+ * and the server answers with the bytes of the range followed by their
+ * CRC32C as a u32, so the Client can check every segment it writes at
+ * its offset in the local file.
+ */
+public class FTPSegmentTransfer {
+
+	static final int REQUEST_SIZE = 16;
+
+	// Most data connections one PGET may ask for
+	static final int MAX_STREAMS = 64;
+
+	private FTPSegmentTransfer() {
+	}
+
+	/**
+	 * Reads the range the Client asks for and sends it with its checksum.
+	 * @param socket Data connection of the segment
+	 * @param file The file being sent
+	 * @param keepSending Checked before every read, stops the segment when false. May be null
+	 * @return True if the whole range and its checksum were sent
+	 * @throws IOException If the request is cut short or the range is outside of the file
+	 */
+	static boolean serve(Socket socket, File file, BooleanSupplier keepSending) throws IOException {
+
+		ReadableByteChannel source = FTPTransferEngine.inputChannel(socket);
+		ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+
+		while (request.hasRemaining()) {
+			if (source.read(request) < 0) {
+				throw new EOFException("Client closed the segment connection before asking for a range");
+			}
+		}
+
+		long offset = request.getLong(0);
+		long length = request.getLong(8);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+			FileChannel channel = raf.getChannel();
+			FTPTransferEngine.tryLock(channel, true);
+
+			if ((offset < 0) || (length < 0) || (length > channel.size() - offset)) {
+				throw new IOException("Segment of " + length + " bytes at " + offset + " is outside of " + file.getName());
+			}
+
+			WritableByteChannel target = FTPTransferEngine.outputChannel(socket);
+			CRC32C checksum = new CRC32C();
+
+			if (FTPTransferEngine.sendChecksummed(channel, offset, length, target, checksum, keepSending) < length) {
+				return false;
+			}
+
+			ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) checksum.getValue());
+			trailer.flip();
+
+			FTPTransferEngine.sendBuffer(trailer, target);
+
+			return true;
+		}
+	}
+}
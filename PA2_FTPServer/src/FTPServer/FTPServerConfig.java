@@ -0,0 +1,210 @@
+package FTPServer;
+
+/**
+ * Server settings read from system properties (-Dname=value) so the
+ * command line of myftpserver stays the same. Every setting has a default
+ * that matches the behavior of the server before the setting existed.
+ */
+public class FTPServerConfig {
+
+	/** One thread per control session from a fixed pool (the default) */
+	public static final String MODE_THREADED = "threaded";
+
+	/** Selector threads own the control sessions, workers run the commands */
+	public static final String MODE_REACTOR = "reactor";
+
+	/** One virtual thread per control session and per background transfer, experimental */
+	public static final String MODE_VIRTUAL = "virtual";
+
+	/** GET streams the file with FileChannel.transferTo (the default) */
+	public static final String GET_TRANSFER = "transfer";
+
+	/** GET sends files from memory mappings shared between sessions */
+	public static final String GET_MMAP = "mmap";
+
+	/** GET reads the file into a heap buffer and writes it from there */
+	public static final String GET_HEAP = "heap";
+
+	/** GET reads the file into a direct buffer and writes it from there */
+	public static final String GET_DIRECT = "direct";
+
+	private FTPServerConfig() {
+	}
+
+	/**
+	 * @return How control sessions are executed, ftp.server.mode
+	 */
+	public static String serverMode() {
+		return System.getProperty("ftp.server.mode", MODE_THREADED).toLowerCase();
+	}
+
+	/**
+	 * @return Size of the session thread pool in threaded mode, ftp.server.sessions
+	 */
+	public static int sessionThreads() {
+		return Integer.getInteger("ftp.server.sessions", 20);
+	}
+
+	/**
+	 * @return Number of transfers that may move file data at the same time, ftp.server.transfers
+	 */
+	public static int transferPermits() {
+		return Integer.getInteger("ftp.server.transfers", 256);
+	}
+
+	/**
+	 * @return Number of workers running background transfers for all sessions, ftp.transfer.workers
+	 */
+	public static int transferWorkers() {
+		return Integer.getInteger("ftp.transfer.workers", 32);
+	}
+
+	/**
+	 * @return Number of background transfers that may wait for a worker, ftp.transfer.queue
+	 */
+	public static int transferQueueSize() {
+		return Integer.getInteger("ftp.transfer.queue", 1024);
+	}
+
+	/**
+	 * @return Number of background transfers one session may have queued or running, ftp.transfer.per.session
+	 */
+	public static int transfersPerSession() {
+		return Integer.getInteger("ftp.transfer.per.session", 10);
+	}
+
+	/**
+	 * @return Seconds between printed transfer scheduler reports, 0 for none, ftp.transfer.report.seconds
+	 */
+	public static int transferReportSeconds() {
+		return Integer.getInteger("ftp.transfer.report.seconds", 0);
+	}
+
+	/**
+	 * @return How GET reads the files it sends, ftp.get.strategy
+	 */
+	public static String getStrategy() {
+		return System.getProperty("ftp.get.strategy", GET_TRANSFER).toLowerCase();
+	}
+
+	/**
+	 * @return Bytes of files that may stay mapped for GET, ftp.mmap.budget.mb
+	 */
+	public static long mmapBudgetBytes() {
+		return Long.getLong("ftp.mmap.budget.mb", 4096L) * 1024 * 1024;
+	}
+
+	/**
+	 * @return Smallest file in bytes GET maps instead of streaming, ftp.mmap.min.size
+	 */
+	public static long mmapMinimumSize() {
+		return Long.getLong("ftp.mmap.min.size", 1024L * 1024);
+	}
+
+	/**
+	 * @return Bytes of small file contents kept in memory for GET, 0 turns the cache off, ftp.cache.bytes
+	 */
+	public static long cacheBytes() {
+		return Long.getLong("ftp.cache.bytes", 0L);
+	}
+
+	/**
+	 * @return Largest file in bytes kept in the content cache, ftp.cache.max.size
+	 */
+	public static long cacheMaxFileSize() {
+		return Long.getLong("ftp.cache.max.size", 1024L * 1024);
+	}
+
+	/**
+	 * @return Eviction policy of the content cache, lru or lfu, ftp.cache.policy
+	 */
+	public static String cachePolicy() {
+		return System.getProperty("ftp.cache.policy", FTPEvictionPolicy.LRU);
+	}
+
+	/**
+	 * @return Number of directories whose LS listings are cached, 0 turns the cache off, ftp.ls.cache.dirs
+	 */
+	public static int listingCacheDirectories() {
+		return Integer.getInteger("ftp.ls.cache.dirs", 0);
+	}
+
+	/**
+	 * @return Milliseconds after which a cached listing is read from disk again, ftp.ls.cache.staleness.ms
+	 */
+	public static long listingCacheStalenessMillis() {
+		return Long.getLong("ftp.ls.cache.staleness.ms", 30000L);
+	}
+
+	/**
+	 * @return Number of selector threads in reactor mode, ftp.reactor.selectors
+	 */
+	public static int selectorThreads() {
+		return Integer.getInteger("ftp.reactor.selectors",
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * @return Number of threads running commands in reactor mode, ftp.reactor.workers
+	 */
+	public static int reactorWorkers() {
+		return Integer.getInteger("ftp.reactor.workers", 32);
+	}
+
+	/**
+	 * @return Number of threads compressing blocks for COMPRESS sessions, ftp.compress.threads
+	 */
+	public static int compressionThreads() {
+		return Math.max(1, Integer.getInteger("ftp.compress.threads", Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @return Most file checksums kept by the FTPChecksumCache, ftp.checksum.cache.entries
+	 */
+	public static int checksumCacheEntries() {
+		return Integer.getInteger("ftp.checksum.cache.entries", 1024);
+	}
+
+	/**
+	 * @return Directory of the content store uploads are deduplicated in, empty turns the store off, ftp.store.dir
+	 */
+	public static String storeDirectory() {
+		return System.getProperty("ftp.store.dir", "");
+	}
+
+	/**
+	 * @return Ports the data connections of background transfers are accepted on,
+	 * a port or a range first-last, empty for one port picked by the system, ftp.data.ports
+	 */
+	public static String dataPorts() {
+		return System.getProperty("ftp.data.ports", "");
+	}
+
+	/**
+	 * @return Milliseconds a background transfer waits for its data connections, ftp.data.accept.timeout.ms
+	 */
+	public static long dataAcceptTimeoutMillis() {
+		return Long.getLong("ftp.data.accept.timeout.ms", 30000L);
+	}
+
+	/**
+	 * @return True if the FTPServerMetrics are published over JMX, ftp.jmx, off by default
+	 */
+	public static boolean jmxEnabled() {
+		return Boolean.parseBoolean(System.getProperty("ftp.jmx", "false"));
+	}
+
+	/**
+	 * @return Port /metrics is served on for Prometheus, 0 for none, ftp.metrics.port
+	 */
+	public static int metricsPort() {
+		return Integer.getInteger("ftp.metrics.port", 0);
+	}
+
+	/**
+	 * @return Address the /metrics listener binds to, ftp.metrics.host
+	 */
+	public static String metricsHost() {
+		return System.getProperty("ftp.metrics.host", "127.0.0.1");
+	}
+}
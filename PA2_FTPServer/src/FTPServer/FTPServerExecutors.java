@@ -0,0 +1,101 @@
+package FTPServer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors and threads sessions and background transfers run
+ * on for the configured server mode. In virtual mode every session gets its
+ * own virtual thread and the transfer workers are virtual threads too.
+ * Virtual threads need Java 21 or newer, so they are looked up reflectively
+ * and the server can still be built and run in the other modes on older
+ * runtimes.
+ *
+ * Virtual mode is experimental. It is built against Java 17 and has not
+ * yet been run on a runtime that has virtual threads, let alone measured
+ * against threaded mode with many sessions.
+ */
+public class FTPServerExecutors {
+
+	// Pool of the control sessions in threaded mode
+	private static volatile ThreadPoolExecutor sessionPool;
+
+	private FTPServerExecutors() {
+	}
+
+	/**
+	 * @return Executor the control sessions run on
+	 */
+	static ExecutorService sessionExecutor() {
+
+		if (FTPServerConfig.serverMode().equals(FTPServerConfig.MODE_VIRTUAL)) {
+
+			try {
+				return (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21 or newer", e);
+			}
+		}
+
+		sessionPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(FTPServerConfig.sessionThreads());
+
+		return sessionPool;
+	}
+
+	/**
+	 * @return Number of session threads serving a session, -1 if sessions do not run on a pool
+	 */
+	static int activeSessionThreads() {
+
+		ThreadPoolExecutor pool = sessionPool;
+
+		return (pool == null) ? -1 : pool.getActiveCount();
+	}
+
+	/**
+	 * @return Factory for the threads of the FTPTransferScheduler workers
+	 */
+	static ThreadFactory transferThreadFactory() {
+
+		if (FTPServerConfig.serverMode().equals(FTPServerConfig.MODE_VIRTUAL)) {
+
+			try {
+				// Call through the public Thread.Builder interface, the
+				// builder's own class is not accessible
+				Class<?> builderInterface = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+				builder = builderInterface.getMethod("name", String.class, long.class)
+						.invoke(builder, "ftp-transfer-", 0L);
+
+				return (ThreadFactory) builderInterface.getMethod("factory").invoke(builder);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21 or newer", e);
+			}
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+
+		return transfer -> new Thread(transfer, "ftp-transfer-" + threadNumber.getAndIncrement());
+	}
+
+	/**
+	 * @return True if this runtime can create virtual threads
+	 */
+	static boolean virtualThreadsAvailable() {
+
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
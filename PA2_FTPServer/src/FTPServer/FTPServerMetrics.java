@@ -0,0 +1,366 @@
+package FTPServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of what the server is doing, published over JMX when ftp.jmx is
+ * on. FTPServer:type=Server shows the sessions, the session and transfer
+ * pools and the bytes moved, and FTPServer:type=Command,name=GET and so on
+ * show the count and latency percentiles of every command type.
+ *
+ * Everything that is counted while serving goes into LongAdders, so the
+ * transfer loops only ever add to a cell of their own. The counters are
+ * summed when a JMX client reads them.
+ */
+public class FTPServerMetrics {
+
+	private static final LongAdder openedSessions = new LongAdder();
+	private static final LongAdder closedSessions = new LongAdder();
+
+	private static final LongAdder bytesSent = new LongAdder();
+	private static final LongAdder bytesReceived = new LongAdder();
+
+	private static final LongAdder failedTransfers = new LongAdder();
+
+	private static final Rate sendRate = new Rate();
+	private static final Rate receiveRate = new Rate();
+
+	private static final Map<FTPCommandType, FTPLatencyHistogram> latencies =
+			new EnumMap<FTPCommandType, FTPLatencyHistogram>(FTPCommandType.class);
+
+	static {
+		for (FTPCommandType type : FTPCommandType.values()) {
+			latencies.put(type, new FTPLatencyHistogram());
+		}
+	}
+
+	private FTPServerMetrics() {
+	}
+
+	/**
+	 * Registers the MBeans with the platform MBean server if ftp.jmx is on.
+	 * The server runs on without them if they cannot be registered.
+	 */
+	static void register() {
+
+		if (!FTPServerConfig.jmxEnabled()) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+
+			server.registerMBean(new Server(), new ObjectName("FTPServer:type=Server"));
+
+			for (FTPCommandType type : FTPCommandType.values()) {
+				server.registerMBean(new Command(latencies.get(type)),
+						new ObjectName("FTPServer:type=Command,name=" + type.name()));
+			}
+		}
+		catch (JMException e) {
+			System.err.println("JMException while registering MBeans: " + e);
+		}
+	}
+
+	static void sessionOpened() {
+		openedSessions.increment();
+	}
+
+	static void sessionClosed() {
+		closedSessions.increment();
+	}
+
+	/**
+	 * @param bytes Number of file bytes sent to a Client
+	 */
+	static void sent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * @param bytes Number of file bytes received from a Client
+	 */
+	static void received(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts a background transfer that ended before moving all its data.
+	 */
+	static void transferFailed() {
+		failedTransfers.increment();
+	}
+
+	/**
+	 * Counts one served command.
+	 * @param type Type of the command
+	 * @param nanos Time from reading the request to the end of the reply
+	 */
+	static void commandServed(FTPCommandType type, long nanos) {
+		latencies.get(type).record(nanos);
+	}
+
+	/**
+	 * @return Number of sessions connected now
+	 */
+	static int activeSessions() {
+		return (int) (openedSessions.sum() - closedSessions.sum());
+	}
+
+	/**
+	 * @return Number of sessions connected since the server started
+	 */
+	static long totalSessions() {
+		return openedSessions.sum();
+	}
+
+	/**
+	 * @return Number of file bytes sent since the server started
+	 */
+	static long bytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * @return Number of file bytes received since the server started
+	 */
+	static long bytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/**
+	 * @return Number of background transfers that failed since the server started
+	 */
+	static long failedTransfers() {
+		return failedTransfers.sum();
+	}
+
+	/**
+	 * @param type A command type
+	 * @return The latencies of the commands of that type
+	 */
+	static FTPLatencyHistogram latency(FTPCommandType type) {
+		return latencies.get(type);
+	}
+
+	/**
+	 * Attributes of FTPServer:type=Server.
+	 */
+	public interface ServerMXBean {
+
+		int getActiveSessions();
+
+		long getTotalSessions();
+
+		String getServerMode();
+
+		int getActiveSessionThreads();
+
+		int getBackgroundTransfers();
+
+		int getTransferWorkers();
+
+		int getActiveTransferWorkers();
+
+		int getQueuedTransfers();
+
+		long getStartedTransfers();
+
+		long getFailedTransfers();
+
+		double getAverageQueueWaitMillis();
+
+		double getMaxQueueWaitMillis();
+
+		int getAvailableTransferPermits();
+
+		long getBytesSent();
+
+		long getBytesReceived();
+
+		double getBytesSentPerSecond();
+
+		double getBytesReceivedPerSecond();
+	}
+
+	/**
+	 * Attributes of FTPServer:type=Command for one command type.
+	 */
+	public interface CommandMXBean {
+
+		long getCount();
+
+		double getMeanMillis();
+
+		double getP50Millis();
+
+		double getP99Millis();
+
+		double getP999Millis();
+
+		double getMaxMillis();
+	}
+
+	private static class Server implements ServerMXBean {
+
+		@Override
+		public int getActiveSessions() {
+			return activeSessions();
+		}
+
+		@Override
+		public long getTotalSessions() {
+			return totalSessions();
+		}
+
+		@Override
+		public String getServerMode() {
+			return FTPServerConfig.serverMode();
+		}
+
+		@Override
+		public int getActiveSessionThreads() {
+			return FTPServerExecutors.activeSessionThreads();
+		}
+
+		@Override
+		public int getBackgroundTransfers() {
+			return FTPTransferRegistry.count();
+		}
+
+		@Override
+		public int getTransferWorkers() {
+			return FTPTransferScheduler.workerCount();
+		}
+
+		@Override
+		public int getActiveTransferWorkers() {
+			return FTPTransferScheduler.activeTransfers();
+		}
+
+		@Override
+		public int getQueuedTransfers() {
+			return FTPTransferScheduler.queueDepth();
+		}
+
+		@Override
+		public long getStartedTransfers() {
+			return FTPTransferScheduler.startedTransfers();
+		}
+
+		@Override
+		public long getFailedTransfers() {
+			return failedTransfers();
+		}
+
+		@Override
+		public double getAverageQueueWaitMillis() {
+			return FTPTransferScheduler.averageWaitMillis();
+		}
+
+		@Override
+		public double getMaxQueueWaitMillis() {
+			return FTPTransferScheduler.maxWaitMillis();
+		}
+
+		@Override
+		public int getAvailableTransferPermits() {
+			return FTPTransferLimiter.available();
+		}
+
+		@Override
+		public long getBytesSent() {
+			return bytesSent();
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return bytesReceived();
+		}
+
+		@Override
+		public double getBytesSentPerSecond() {
+			return sendRate.perSecond(bytesSent());
+		}
+
+		@Override
+		public double getBytesReceivedPerSecond() {
+			return receiveRate.perSecond(bytesReceived());
+		}
+	}
+
+	private static class Command implements CommandMXBean {
+
+		private final FTPLatencyHistogram histogram;
+
+		Command(FTPLatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public long getCount() {
+			return histogram.count();
+		}
+
+		@Override
+		public double getMeanMillis() {
+			return histogram.meanMillis();
+		}
+
+		@Override
+		public double getP50Millis() {
+			return histogram.percentileMillis(0.5);
+		}
+
+		@Override
+		public double getP99Millis() {
+			return histogram.percentileMillis(0.99);
+		}
+
+		@Override
+		public double getP999Millis() {
+			return histogram.percentileMillis(0.999);
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return histogram.maxMillis();
+		}
+	}
+
+	/**
+	 * Bytes per second of a counter, over the time since it was last
+	 * computed but at least a second, so JMX clients polling at any
+	 * interval see a current rate.
+	 */
+	private static class Rate {
+
+		private static final long MIN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		private long lastTotal = 0;
+		private long lastNanos = System.nanoTime();
+		private double perSecond = 0;
+
+		synchronized double perSecond(long total) {
+
+			long now = System.nanoTime();
+
+			if (now - lastNanos >= MIN_NANOS) {
+				perSecond = (total - lastTotal) * 1e9 / (now - lastNanos);
+				lastTotal = total;
+				lastNanos = now;
+			}
+
+			return perSecond;
+		}
+	}
+}
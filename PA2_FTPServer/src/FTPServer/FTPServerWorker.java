@@ -8,16 +8,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * When a client connection arrives starts accepting commands and
@@ -26,30 +27,40 @@ import java.util.concurrent.Executors;
  * @author Christine McGee, Andrew Heywood, Matthew Singletary
  *
  */
-public class FTPServerWorker implements Runnable {
+public class FTPServerWorker implements Runnable, FTPSession {
 
 	// Variable Declaration
 	private Socket nSocket = null;
 
-	private DataInputStream nInputFromClient = null;
-	private BufferedReader nInputFromClientBuffered = null;
+	private FTPControlConnection connection = null;
 	private PrintStream nOutputToClient = null;
 
-	private static boolean quitCommand = false;
+	private boolean quitCommand = false;
 
-	private String root;
-	private String currentDirectory;
-	private String sysFileSeparator;
+	// Set once the session is counted as closed in the FTPServerMetrics
+	private boolean closed = false;
+
+	// Request being served once the Client uses the binary protocol, null for text
+	private FTPFrame binaryRequest = null;
 
-	ExecutorService fileTransferPool;
+	// Offset the next get or put starts at, set by REST
+	private long restartOffset = 0;
 
-	//private static String commandIDs = Integer.toString(100);
-	private static int commandIDsCounter = 1000;
+	// Deflater level of get and put data, set by COMPRESS
+	private int compressionLevel = FTPCompression.OFF;
 
-	private ServerSocket putServerSocket = null;
-	private ServerSocket getServerSocket = null;
+	// Checksum sent after get and put data, set by VERIFY. Null for none.
+	private String verifyAlgorithm = null;
+
+	// Data connection carrying the background transfers, set up by MUX. Null for none.
+	private FTPMux dataMux = null;
+
+	private String root;
+	private String currentDirectory;
+	private String sysFileSeparator;
 
-	private static Map<String, Boolean> statusMap = new HashMap<String, Boolean>();
+	// Limits how many background transfers this session has in the FTPTransferScheduler
+	private final Semaphore transferSlots;
 
 	/**
 	 * Initializes newly created FTPServerWorker object before use.
@@ -58,20 +69,33 @@ public class FTPServerWorker implements Runnable {
 	 * @param socket Socket created in myftpserver
 	 */
 	public FTPServerWorker(Socket nSocket) {
+		this(new FTPControlConnection(nSocket.getChannel()));
+	}
+
+	/**
+	 * Initializes newly created FTPServerWorker object for a control
+	 * connection that is already set up, e.g. one owned by the FTPReactor.
+	 * @param connection FTPControlConnection to the Client
+	 */
+	public FTPServerWorker(FTPControlConnection connection) {
 
-		this.nSocket = nSocket;
+		this.connection = connection;
+		this.nSocket = connection.channel().socket();
+		this.nOutputToClient = connection.output();
 
 		this.currentDirectory = System.getProperty("user.dir");
 		this.root = System.getProperty("user.home");
 		this.sysFileSeparator = System.getProperty("file.separator");
 
-		fileTransferPool = Executors.newFixedThreadPool(10);
+		transferSlots = FTPTransferScheduler.newSessionSlots();
+
+		FTPServerMetrics.sessionOpened();
 	}
 
 
-	/* Overrides the run() method from Runnable class and assigns the input
-	 * and output streams to variables. Creates loop to accept Client commands
-	 * until quit is received.
+	/* Overrides the run() method from Runnable class and creates loop
+	 * to accept Client commands until quit is received or the Client
+	 * disconnects.
 	 * (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
@@ -80,18 +104,18 @@ public class FTPServerWorker implements Runnable {
 
 		System.out.println("Connected to client");
 
-		// Try assigning input and output streams and starting while loop
-		// catch possible errors and inform user. Finally close all streams
-		// and socket.
+		// Try starting while loop, catch possible errors and inform user.
+		// Finally close the connection.
 		try {
-			nInputFromClient = new DataInputStream(nSocket.getInputStream());
-			nInputFromClientBuffered = new BufferedReader(new InputStreamReader(nInputFromClient));
-
-			nOutputToClient = new PrintStream(nSocket.getOutputStream(), true);
 
 			// Get the command and possible arguments from the client
 			while (!quitCommand) {
-				processCommand();
+
+				if (!connection.awaitRequest()) {
+					break;
+				}
+
+				serveRequest();
 			}
 		}
 		catch (IOException e) {
@@ -99,81 +123,234 @@ public class FTPServerWorker implements Runnable {
 			e.printStackTrace();
 		}
 		finally {
+			close();
+		}
+	}
 
-			// Close the input and output streams and the socket.
-			try {
+	/* Processes the next buffered request, a command line or a request
+	 * frame depending on the protocol the Client uses.
+	 * (non-Javadoc)
+	 * @see FTPServer.FTPSession#serveRequest()
+	 */
+	@Override
+	public boolean serveRequest() throws IOException {
 
-				if (nInputFromClient != null) {
-					nInputFromClient.close();
-				}
-				if (nOutputToClient != null) {
-					nOutputToClient.close();
-				}
-				if (nInputFromClientBuffered != null) {
-					nInputFromClientBuffered.close();
-				}
-				if (nSocket != null) {
-					nSocket.close();
-				}
+		if (connection.binary()) {
+			processFrame(connection.pollFrame());
+		}
+		else {
+			processCommand(connection.pollCommand());
+		}
+
+		return !quitCommand;
+	}
+
+	/* Closes the connection and the socket.
+	 * (non-Javadoc)
+	 * @see FTPServer.FTPSession#close()
+	 */
+	@Override
+	public void close() {
 
-				System.out.println("Disconnected from client");
+		if (!closed) {
+			closed = true;
+			FTPServerMetrics.sessionClosed();
+		}
 
-			} catch (IOException e) {
-				System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
-			}
+		// Streams still on the shared data connection fail instead of waiting on it
+		if (dataMux != null) {
+			dataMux.close();
+		}
+
+		try {
+			connection.close();
+
+			System.out.println("Disconnected from client");
+
+		} catch (IOException e) {
+			System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
 		}
 	}
 
 	/**
 	 * Processes command from Client to determine what method to call.
+	 * @param command The command line received from the Client, parsed where it was buffered
 	 * @throws IOException
 	 */
-	private void processCommand() throws IOException {
+	private void processCommand(FTPCommandParser command) throws IOException {
+
+		if ((command == null) || command.isEmpty()) {
+			return;
+		}
 
-		String commands = receiveClientResponse();
-		String command = null;
-		String arguments = null;
-		String backgroundIndicator = null;		
-		boolean hasBackgroundIndicator = false;
+		if (!command.wellFormed()) {
+			System.out.println("Unrecognized command format! Please try again.");
+		}
 
-		try (Scanner separateClientCommand = new Scanner(commands)) {
+		FTPCommandType type = command.type();
+		boolean hasBackgroundIndicator = command.background();
 
-			if (separateClientCommand.hasNext()) {
+		long startedAt = System.nanoTime();
 
-				command = separateClientCommand.next().toUpperCase();
+		try {
+			clientsCommand(type, command.argument(), hasBackgroundIndicator);
+		}
+		finally {
+			FTPServerMetrics.commandServed(hasBackgroundIndicator ? type.inBackground() : type,
+					System.nanoTime() - startedAt);
+		}
+	}
 
-				if (separateClientCommand.hasNext()) {
-					arguments = separateClientCommand.next();
-				}
+	/**
+	 * Processes a request frame from a Client using the binary protocol.
+	 * Responses are queued as frames and written together once no further
+	 * request is buffered, so a Client may send many requests ahead and
+	 * gets their responses in order, tagged with the request ids.
+	 * @param request The request frame received from the Client
+	 * @throws IOException
+	 */
+	private void processFrame(FTPFrame request) throws IOException {
 
-				if (separateClientCommand.hasNext()) {
+		long startedAt = System.nanoTime();
 
-					backgroundIndicator = separateClientCommand.next();
+		binaryRequest = request;
 
-					if (!backgroundIndicator.equals("&")) {
-						System.out.println("Unrecognized command format! Please try again.");
-					}
-					else {
-						hasBackgroundIndicator = true;
-					}
-				}
+		try {
+
+			String argument = request.argument();
+
+			switch(request.opcode()) {
+
+			case FTPFrame.GET:
+				getCommand(argument);
+				break;
+
+			case FTPFrame.PUT:
+				putCommand(argument, -1);
+				break;
+
+			case FTPFrame.GET_BACKGROUND:
+				getCommandBackground(argument);
+				break;
+
+			case FTPFrame.PUT_BACKGROUND:
+				putCommandBackground(argument);
+				break;
+
+			case FTPFrame.MGET:
+				mgetCommand(argument);
+				break;
+
+			case FTPFrame.MPUT:
+				mputCommand(argument);
+				break;
+
+			case FTPFrame.MGET_BACKGROUND:
+				mgetCommandBackground(argument);
+				break;
+
+			case FTPFrame.MPUT_BACKGROUND:
+				mputCommandBackground(argument);
+				break;
+
+			case FTPFrame.SIZE:
+				sizeCommand(argument);
+				break;
+
+			case FTPFrame.REST:
+				restCommand(argument);
+				break;
+
+			case FTPFrame.COMPRESS:
+				compressCommand(argument);
+				break;
+
+			case FTPFrame.VERIFY:
+				verifyCommand(argument);
+				break;
+
+			case FTPFrame.CHECKSUM:
+				checksumCommand(argument);
+				break;
+
+			case FTPFrame.DPUT:
+				dputCommand(argument);
+				break;
+
+			case FTPFrame.CPUT:
+				cputCommand(argument);
+				break;
+
+			case FTPFrame.MUX:
+				muxCommand();
+				break;
+
+			case FTPFrame.JOBS:
+				jobsCommand();
+				break;
+
+			case FTPFrame.STAT:
+				statCommand(argument);
+				break;
+
+			case FTPFrame.PGET:
+				pgetCommand(argument);
+				break;
+
+			case FTPFrame.DELETE:
+				deleteCommand(argument);
+				break;
+
+			case FTPFrame.LS:
+				lsCommand();
+				break;
+
+			case FTPFrame.CD:
+				cdCommand(argument);
+				break;
+
+			case FTPFrame.MKDIR:
+				mkdirCommand(argument);
+				break;
+
+			case FTPFrame.PWD:
+				pwdCommand();
+				break;
+
+			case FTPFrame.QUIT:
+				quitCommand();
+				break;
+
+			default:
+				reply(FTPFrame.STATUS_UNKNOWN_COMMAND, "Unknown command");
+				break;
+			}
+
+			// Requests the Client pipelined behind this one are answered
+			// first, so their responses go out together in one write
+			if (!connection.requestBuffered()) {
+				connection.flush();
 			}
-			clientsCommand(command, arguments, hasBackgroundIndicator);
+		}
+		finally {
+			binaryRequest = null;
+
+			FTPServerMetrics.commandServed(FTPCommandType.of(request.opcode()), System.nanoTime() - startedAt);
 		}
 	}
 
 	/**
 	 * Sends to different methods depending on command.
-	 * @param command String representation of command received from Clients
+	 * @param command Command received from Clients
 	 * @param arguments String representation of any arguments sent with command by Client
 	 * @throws IOException
 	 */
-	private void clientsCommand(String command, String arguments, boolean bgIndicator) throws IOException {
+	private void clientsCommand(FTPCommandType command, String arguments, boolean bgIndicator) throws IOException {
 
 		// Switch statement for clients different commands
 		switch(command) {
 
-		case "GET":
+		case GET:
 			if(bgIndicator) {
 				getCommandBackground(arguments);
 			}
@@ -182,39 +359,105 @@ public class FTPServerWorker implements Runnable {
 			}
 			break;
 
-		case "PUT":
+		case PUT:
 			if(bgIndicator) {
 				putCommandBackground(arguments);
 			}
 			else {
-				putCommand(arguments);
+				putCommand(arguments, -1);
 			}
 			break;
 
-		case "DELETE":
+		case MGET:
+			if(bgIndicator) {
+				mgetCommandBackground(arguments);
+			}
+			else {
+				mgetCommand(arguments);
+			}
+			break;
+
+		case MPUT:
+			if(bgIndicator) {
+				mputCommandBackground(arguments);
+			}
+			else {
+				mputCommand(arguments);
+			}
+			break;
+
+		case SIZE:
+			sizeCommand(arguments);
+			break;
+
+		case REST:
+			restCommand(arguments);
+			break;
+
+		case COMPRESS:
+			compressCommand(arguments);
+			break;
+
+		case VERIFY:
+			verifyCommand(arguments);
+			break;
+
+		case CHECKSUM:
+			checksumCommand(arguments);
+			break;
+
+		case DPUT:
+			dputCommand(arguments);
+			break;
+
+		case CPUT:
+			cputCommand(arguments);
+			break;
+
+		case MUX:
+			muxCommand();
+			break;
+
+		case JOBS:
+			jobsCommand();
+			break;
+
+		case STAT:
+			statCommand(arguments);
+			break;
+
+		case PGET:
+			pgetCommand(arguments);
+			break;
+
+		case DELETE:
 			deleteCommand(arguments);
 			break;
 
-		case "LS":
+		case LS:
 			lsCommand();
 			break;
 
-		case "CD":
+		case CD:
 			cdCommand(arguments);
 			break;
 
-		case "MKDIR":
+		case MKDIR:
 			mkdirCommand(arguments);
 			break;
 
-		case "PWD":
+		case PWD:
 			pwdCommand();
 			break;
 
-		case "QUIT":
+		case QUIT:
 			quitCommand();
 			break;
 
+		case PROTO:
+			protoCommand(arguments);
+			break;
+
 		default:
 			messageClient("Unknown command");
 			break;
@@ -228,63 +471,122 @@ public class FTPServerWorker implements Runnable {
 	 * @param argument String representation of the file name sent by Client
 	 * @throws IOException
 	 */
-	private synchronized void getCommand(String argument) throws IOException {
+	private void getCommand(String argument) throws IOException {
 
 		// Setup File object to prepare to send to Client
 		File fileClientWants = new File(currentDirectory + sysFileSeparator + argument);
 
+		long offset = takeRestartOffset();
+		boolean compressed = (compressionLevel != FTPCompression.OFF);
+		FTPDigest digest = FTPDigest.of(verifyAlgorithm);
+
+		// Answer small hot files from memory without touching the file
+		// system. Compressed data is always read from the file.
+		ByteBuffer cachedContent = compressed ? null : FTPFileContentCache.get(fileClientWants);
+
+		if (cachedContent != null) {
+
+			messageTextClient("EXISTS");
+
+			skip(cachedContent, offset);
+
+			if (announceFile(cachedContent.remaining())) {
+				FTPDataStream.send(cachedContent, connection.dataOutput(), digest);
+			}
+
+			messageTextClient("SENT");
+			return;
+		}
+
 		// If file name sent by Client does not exist inform
 		// Client and return from method.
 		if (!fileClientWants.exists()) {
-			messageClient("NOT FOUND");
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
 			return;
 		} else {
-			messageClient("EXISTS");
+			messageTextClient("EXISTS");
 		}
 
-		RandomAccessFile raf = new RandomAccessFile(fileClientWants, "rw");
-		FileChannel gChannel = raf.getChannel();
-		FileLock lock = gChannel.tryLock();
+		// Send hot files from the mapping shared by all sessions. Data that
+		// is checksummed is read from the file.
+		if (FTPServerConfig.getStrategy().equals(FTPServerConfig.GET_MMAP) && !compressed && (digest == null)) {
 
-		// Send length of file to Client
-		messageClient(Long.toString(fileClientWants.length()));
+			FTPMappedFileCache.MappedFile mapped = FTPMappedFileCache.acquire(fileClientWants);
 
-		// Try to create a byte buffer the size of the file length.
-		// Read from file into file input stream then proceed to read
-		// from (buffered) file input stream into byte buffer. Write from
-		// the byte buffer to the output stream to the Client.
-		// Inform user upon file transfer completion.
-		// Catch possible errors.
-		try {
+			if (mapped != null) {
 
-			byte[] buffer = new byte[(int) fileClientWants.length()];
-			ByteBuffer byteBuffer = ByteBuffer.allocate(buffer.length);
+				try {
 
-			gChannel.read(byteBuffer);
+					long start = Math.min(offset, mapped.size());
 
-			buffer = byteBuffer.array();
+					if (announceFile(mapped.size() - start)) {
+						FTPTransferEngine.sendMapped(mapped, start, mapped.size() - start, connection.dataOutput(), null);
+					}
+				}
+				finally {
+					FTPMappedFileCache.release(mapped);
+				}
 
-			if((receiveClientResponse().toUpperCase().equals("READY"))) {
-				nOutputToClient.write(buffer,0,buffer.length);
-				nOutputToClient.flush();
+				messageTextClient("SENT");
+				return;
 			}
+		}
 
-			// Release the lock - if it is not null!
-			if( lock != null ) {
-				lock.release();
+		try (RandomAccessFile raf = new RandomAccessFile(fileClientWants, "r");
+				FileChannel gChannel = raf.getChannel()) {
+
+			FileLock lock = FTPTransferEngine.tryLock(gChannel, true);
+
+			try {
+
+				long fileLength = gChannel.size();
+				long start = Math.min(offset, fileLength);
+
+				// Small files are read into the content cache once and sent from there
+				ByteBuffer loadedContent = compressed ? null
+						: FTPFileContentCache.load(fileClientWants, gChannel, fileLength);
+
+				// Send length of the rest of the file to Client. Once the Client
+				// is ready stream the file straight from the file channel to the
+				// socket in bounded chunks.
+				// Catch possible errors.
+				try {
+
+					if (announceFile(fileLength - start)) {
+
+						if (loadedContent != null) {
+							skip(loadedContent, start);
+							FTPDataStream.send(loadedContent, connection.dataOutput(), digest);
+						}
+						else {
+							FTPDataStream.send(fileClientWants, gChannel, start, fileLength - start,
+									connection.dataOutput(), compressionLevel, digest, null);
+						}
+					}
+				}
+				catch (FileNotFoundException e) {
+					System.err.println("FileNotFoundException: " + e);
+				}
+				catch (IOException e) {
+					System.err.println("IOException: " + e);
+
+					// The response frame announced the whole file, so the
+					// binary stream cannot be picked up again after it
+					if (binaryRequest != null) {
+						throw e;
+					}
+				}
+			}
+			finally {
+
+				// Release the lock - if it is not null!
+				if( lock != null ) {
+					lock.release();
+				}
 			}
 		}
-		catch (FileNotFoundException e) {
-			System.err.println("FileNotFoundException: " + e);
-		}
-		catch (IOException e) {
-			System.err.println("IOException: " + e);
-		}
-		finally {
-			gChannel.close();
-			raf.close();
-		}
-		messageClient("SENT");
+
+		messageTextClient("SENT");
 	}
 
 	/**
@@ -298,92 +600,129 @@ public class FTPServerWorker implements Runnable {
 		File fileClientWants = new File(currentDirectory + sysFileSeparator + argument);
 
 		String filePath;
-		String commandID;
+
+		long offset = takeRestartOffset();
 
 		// If file name sent by Client does not exist inform
 		// Client and return from method.
 		if (!fileClientWants.exists()) {
-			messageClient("NOT FOUND");
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
 			return;
 		} else {
-			messageClient("EXISTS");
+			messageTextClient("EXISTS");
 			filePath = fileClientWants.getAbsolutePath();
 		}
 
-		int portNumber = Integer.parseInt(receiveClientResponse());
-
-		getServerSocket = new ServerSocket(portNumber);
-
-		commandID = Integer.toString(commandIDsCounter);
+		int portNumber = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.port();
 
-		commandIDsCounter++;
-
-		messageClient(commandID);
-
-		// Put commandID and run status in hashmap
-		statusMap.put(commandID, true);
-
-		fileTransferPool.submit(new FTPGetBackground(getServerSocket.accept(), filePath, commandID));
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(sessionName(), "GET", filePath,
+				Math.max(0, fileClientWants.length() - offset));
 
+		runInBackground(portNumber, 1, transfer, socket -> new FTPGetBackground(socket, filePath, transfer, offset,
+				compressionLevel, verifyAlgorithm));
 	}
 
 	/**
 	 * Command put sends a file from the Client and copies
 	 * it to the Server.
 	 * @param argument String representation of file name
+	 * @param announcedLength Length of the file if CPUT already sent it, -1 to receive it
 	 * @throws IOException
 	 */
-	private synchronized void putCommand(String argument) throws IOException {
+	private void putCommand(String argument, long announcedLength) throws IOException {
 
 		FileChannel channel = null;
 		RandomAccessFile raf = null;
 
-		// Try to create a file output stream and byte buffer the size of the file length.
-		// Read input from Client into byte buffer then proceed to use
-		// (buffered) file output stream to write from byte buffer to the created file.
+		String filePath = (currentDirectory + sysFileSeparator + argument);
+
+		// Create new file at specified path name
+		File fileToCreate = new File(filePath);
+		invalidateCaches(fileToCreate);
+
+		long offset = takeRestartOffset();
+		long filesLength = 0;
+		boolean receiving = false;
+		boolean intact = true;
+		boolean complete = false;
+		int status = FTPFrame.STATUS_OK;
+
+		// Length of the file kept on disk once the data was received, -1 before
+		long stored = -1;
+
+		FTPDigest digest = FTPDigest.of(verifyAlgorithm);
+
+		// In the binary protocol the file follows the request right away
+		// as the payload of a DATA frame
+		if (binaryRequest != null) {
+
+			FTPFrame data = connection.readFrameHeader();
+
+			if ((data == null) || (data.opcode() != FTPFrame.DATA)) {
+				throw new IOException("Expected the DATA frame of request " + binaryRequest.requestId());
+			}
+
+			filesLength = data.length();
+		}
+
+		// Try to create the file and receive its length from the Client.
+		// Write the data to the file as it arrives, a buffer at a time.
 		// Inform Client upon file transfer completion.
 		// Catch possible errors.
 		try {
-			String filePath = (currentDirectory + sysFileSeparator + argument);
+			// Content shared through the store is never written in place
+			FTPContentStore.detach(fileToCreate, offset > 0);
 
-			// Create new file at specified path name
-			File fileToCreate = new File(filePath);
 			raf = new RandomAccessFile(fileToCreate, "rw");
 			channel = raf.getChannel();
 
-			FileLock lock = channel.tryLock();
+			FileLock lock = FTPTransferEngine.tryLock(channel, false);
 
-			// Receive file length from Client
-			String fileLengthFromClient = receiveClientResponse();
+			// A restart can only continue a file that is at least that long
+			boolean restartable = (offset <= channel.size());
 
-			// Parse String of file length to int
-			Integer filesLength = Integer.parseInt(fileLengthFromClient);
+			if ((binaryRequest == null) && (announcedLength >= 0)) {
+				filesLength = announcedLength;
+				messageClient(restartable ? "READY" : "RESTART FAILED");
+			}
+			else if (binaryRequest == null) {
 
-			byte[] buffer = new byte[filesLength];
+				// Receive length of the rest of the file from Client
+				String fileLengthFromClient = receiveClientResponse();
 
-			messageClient("READY");
+				// Parse String of file length to long
+				filesLength = Long.parseLong(fileLengthFromClient);
 
-			// Fragment the file to receive
-			int times = (filesLength / 1000);
+				messageClient(restartable ? "READY" : "RESTART FAILED");
+			}
 
-			// IF file under 1000 receive whole thing
-			if(filesLength < 1000) {
-				nInputFromClient.read(buffer, 0, buffer.length);
-				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-				channel.write(byteBuffer);
+			if (!restartable) {
+				throw new IOException("Cannot restart " + argument + " at " + offset + ", it is shorter");
 			}
 
-			for(int i = 0; i < times; i++) {
-				if((1000*i) < (buffer.length - 1000)) {
-					nInputFromClient.read(buffer, (1000*i), 1000);
-				}
-				else {
-					nInputFromClient.read(buffer, (1000*i), buffer.length - (1000*i));
-				}
+			receiving = true;
+
+			long received = FTPDataStream.receive(connection.dataInput(), channel, offset, filesLength,
+					compressionLevel, digest, null);
+
+			// A file that arrived changed keeps nothing of this transfer
+			intact = (received < filesLength) || FTPDataStream.verify(connection.dataInput(), digest);
+
+			if (!intact) {
+				received = 0;
+				status = FTPFrame.STATUS_FAILED;
+			}
+
+			complete = intact && (received == filesLength);
+
+			if (!complete) {
+				status = FTPFrame.STATUS_FAILED;
 			}
 
-			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-			channel.write(byteBuffer);
+			// Drop whatever an older, longer copy of the file left behind.
+			// A transfer cut short keeps what arrived so it can be restarted.
+			channel.truncate(offset + received);
+			stored = offset + received;
 
 			fileToCreate.setReadable(true, false);
 			fileToCreate.setWritable(true, false);
@@ -395,41 +734,663 @@ public class FTPServerWorker implements Runnable {
 		}
 		catch (IOException e) {
 			System.err.println("IOException: " + e);
+
+			status = FTPFrame.STATUS_FAILED;
+
+			// Skip the file that could not be stored so the next frame is
+			// found. Once part of it was read the stream is lost.
+			if ((binaryRequest != null) && receiving) {
+				throw e;
+			}
+			else if (binaryRequest != null) {
+
+				if (compressionLevel != FTPCompression.OFF) {
+					FTPCompression.discard(connection.dataInput(), filesLength);
+				}
+				else {
+					connection.discard(filesLength);
+				}
+
+				if (digest != null) {
+					FTPDataStream.readDigest(connection.dataInput());
+				}
+			}
 		}
 		finally {
-			channel.close();
-			raf.close();
+			if (raf != null) {
+				channel.close();
+				raf.close();
+			}
+
+			// Drop anything cached while the file was being written
+			invalidateCaches(fileToCreate);
+		}
+
+		if (complete) {
+			fileStored(fileToCreate, digest, offset);
+		}
+
+		if (!intact) {
+			reply(status, "CHECKSUM MISMATCH");
+			return;
 		}
 
-		messageClient("RECEIVED");
+		// Tell a Client whose file was cut short how much reput can keep
+		if (!complete && (stored >= 0)) {
+			reply(status, "INCOMPLETE " + stored);
+			return;
+		}
+
+		reply(status, (status == FTPFrame.STATUS_OK) ? "RECEIVED" : "FAILED");
 	}
 
 	/**
-	 * Receive file from Client
-	 * @param argument String representation of filename to receive
+	 * Command cput is a put that offers the SHA-256 of the file first. If
+	 * the content store has that content, the file is linked to it and no
+	 * data is sent, otherwise the put goes on as usual. In the text
+	 * protocol the hash and length of the file follow the command on one
+	 * line, in the binary protocol the hash is sent in front of the file
+	 * name and the file follows as a DATA frame once the server answers
+	 * READY.
+	 * @param argument String representation of file name
 	 * @throws IOException
 	 */
-	private void putCommandBackground(String argument) throws IOException {
+	private void cputCommand(String argument) throws IOException {
 
-		String filePath = (currentDirectory + sysFileSeparator + argument);
+		String hash;
+		long announcedLength = -1;
 
-		String commandID;
+		if (binaryRequest != null) {
+			hash = binaryRequest.hash();
+		}
+		else {
+
+			// The hash and the length of the file, null if the Client is gone
+			String response = receiveClientResponse();
+			String[] offer = (response == null) ? new String[0] : response.trim().split("\\s+");
+
+			if (offer.length != 2) {
+				reply(FTPFrame.STATUS_BAD_REQUEST, "BAD REQUEST");
+				return;
+			}
+
+			hash = offer[0].toLowerCase();
+
+			try {
+				announcedLength = Long.parseLong(offer[1]);
+			}
+			catch (NumberFormatException e) {
+				announcedLength = -1;
+			}
+
+			if (announcedLength < 0) {
+				reply(FTPFrame.STATUS_BAD_REQUEST, "BAD REQUEST");
+				return;
+			}
+		}
 
-		int portNumber = Integer.parseInt(receiveClientResponse());
+		File file = new File(currentDirectory + sysFileSeparator + argument);
 
-		putServerSocket = new ServerSocket(portNumber);
+		// The hash describes the whole file
+		takeRestartOffset();
 
-		commandID = Integer.toString(commandIDsCounter);
+		boolean linked = FTPContentStore.link(hash, file);
 
-		commandIDsCounter++;
-		System.out.println("command id sending to client " + commandID);
-		messageClient(commandID);
+		invalidateCaches(file);
 
-		// Put commandID and run status in hashmap
-		statusMap.put(commandID, true);
+		if (linked) {
+			reply(FTPFrame.STATUS_OK, "HAVE IT");
+			return;
+		}
 
-		fileTransferPool.execute(new FTPPutBackground(putServerSocket.accept(), filePath, commandID));
+		if (binaryRequest != null) {
+			reply(FTPFrame.STATUS_OK, "READY");
+			connection.flush();
+		}
 
+		putCommand(argument, announcedLength);
+	}
+
+	/**
+	 * Hands a file that arrived completely to the content store. A SHA-256
+	 * computed while the whole file arrived saves the store reading it again.
+	 * @param file The file
+	 * @param digest Digest of the data that arrived, null if VERIFY is off
+	 * @param offset Offset the transfer started at
+	 */
+	private static void fileStored(File file, FTPDigest digest, long offset) {
+
+		if ((digest != null) && (offset == 0) && digest.algorithm().equals(FTPDigest.SHA256)) {
+			FTPChecksumCache.put(file, FTPDigest.SHA256, file.length(), file.lastModified(), digest.digest());
+		}
+
+		FTPContentStore.ingest(file);
+	}
+
+	/**
+	 * Command dput receives a new version of a file as the differences to
+	 * the copy on the server. The server announces the block size and
+	 * number of its signatures, sends them once the Client is ready and
+	 * builds the new version from the FTPDelta operations the Client
+	 * answers with. The new version is written next to the file and only
+	 * moved over it once it is complete, so the old copy stays intact
+	 * until then. Without a copy on the server the whole file is sent as
+	 * literals.
+	 * @param argument String representation of file name
+	 * @throws IOException
+	 */
+	private void dputCommand(String argument) throws IOException {
+
+		File fileToUpdate = new File(currentDirectory + sysFileSeparator + argument);
+
+		// New version of the file, next to it so it can be moved over it
+		File newFile = null;
+
+		// A delta always describes the whole file
+		takeRestartOffset();
+
+		RandomAccessFile basisRaf = null;
+		RandomAccessFile newRaf = null;
+		FileChannel basis = null;
+		FileChannel target = null;
+
+		int status = FTPFrame.STATUS_OK;
+		boolean intact = true;
+		boolean receiving = false;
+
+		try {
+
+			if (fileToUpdate.isFile()) {
+				basisRaf = new RandomAccessFile(fileToUpdate, "r");
+				basis = basisRaf.getChannel();
+				FTPTransferEngine.tryLock(basis, true);
+			}
+
+			// A name of its own, sessions updating the same file at once
+			// must not write into each other's new version
+			newFile = Files.createTempFile(fileToUpdate.getAbsoluteFile().getParentFile().toPath(),
+					"." + fileToUpdate.getName(), ".dput").toFile();
+
+			newRaf = new RandomAccessFile(newFile, "rw");
+			target = newRaf.getChannel();
+
+			long basisLength = (basis == null) ? 0 : basis.size();
+			int blockSize = FTPDelta.blockSize(basisLength);
+			long blocks = basisLength / blockSize;
+
+			// Announce the signatures. In the text protocol they follow
+			// once the Client is ready, in the binary protocol right after
+			// the response frame.
+			if (binaryRequest != null) {
+				reply(FTPFrame.STATUS_OK, blockSize + " " + blocks);
+			}
+			else {
+
+				messageClient(blockSize + " " + blocks);
+
+				if (!receiveClientResponse().toUpperCase().equals("READY")) {
+					throw new IOException("Client did not take the signatures of " + argument);
+				}
+			}
+
+			receiving = true;
+
+			FTPDelta.sendSignatures(basis, blockSize, blocks, connection.dataOutput());
+
+			FTPDigest digest = FTPDigest.of(verifyAlgorithm);
+
+			FTPDelta.apply(connection.dataInput(), basis, blockSize, blocks, target, digest);
+
+			intact = FTPDataStream.verify(connection.dataInput(), digest);
+
+			if (!intact) {
+				status = FTPFrame.STATUS_FAILED;
+			}
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e);
+
+			status = FTPFrame.STATUS_FAILED;
+
+			// Once part of the delta was read the binary stream is lost
+			if ((binaryRequest != null) && receiving) {
+				newFile.delete();
+				throw e;
+			}
+		}
+		finally {
+
+			if (basisRaf != null) {
+				basis.close();
+				basisRaf.close();
+			}
+
+			if (newRaf != null) {
+				target.close();
+				newRaf.close();
+			}
+		}
+
+		if (status == FTPFrame.STATUS_OK) {
+
+			try {
+				Files.move(newFile.toPath(), fileToUpdate.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+				fileToUpdate.setReadable(true, false);
+				fileToUpdate.setWritable(true, false);
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e);
+				status = FTPFrame.STATUS_FAILED;
+			}
+
+			invalidateCaches(fileToUpdate);
+
+			if (status == FTPFrame.STATUS_OK) {
+				fileStored(fileToUpdate, null, 0);
+			}
+		}
+
+		if (newFile != null) {
+			newFile.delete();
+		}
+
+		if (!intact) {
+			reply(status, "CHECKSUM MISMATCH");
+			return;
+		}
+
+		reply(status, (status == FTPFrame.STATUS_OK) ? "RECEIVED" : "FAILED");
+	}
+
+	/**
+	 * Receive file from Client
+	 * @param argument String representation of filename to receive
+	 * @throws IOException
+	 */
+	private void putCommandBackground(String argument) throws IOException {
+
+		String filePath = (currentDirectory + sysFileSeparator + argument);
+
+		long offset = takeRestartOffset();
+
+		int portNumber = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.port();
+
+		// The length of the file arrives over the data connection
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(sessionName(), "PUT", filePath, -1);
+
+		System.out.println("command id sending to client " + transfer.id());
+
+		runInBackground(portNumber, 1, transfer, socket -> new FTPPutBackground(socket, filePath, transfer, offset,
+				compressionLevel, verifyAlgorithm));
+	}
+
+	/**
+	 * Command mget sends every file in the current directory whose name
+	 * matches the pattern to the Client, all over one FTPFileStream.
+	 * @param argument The glob pattern sent by the Client, e.g. *.log
+	 * @throws IOException
+	 */
+	private void mgetCommand(String argument) throws IOException {
+
+		List<File> files = expandPattern(argument);
+
+		if (files.isEmpty()) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		messageTextClient("EXISTS");
+
+		// Send the number of files to Client. In the text protocol the
+		// stream follows once the Client is ready, in the binary protocol
+		// right after the response frame. Nothing is sent after the
+		// stream, its end marker is the end of the command.
+		boolean ready;
+
+		if (binaryRequest != null) {
+			reply(FTPFrame.STATUS_OK, Integer.toString(files.size()));
+			ready = true;
+		}
+		else {
+			messageClient(Integer.toString(files.size()));
+			ready = receiveClientResponse().toUpperCase().equals("READY");
+		}
+
+		if (ready) {
+			FTPFileStream.send(files, connection.dataOutput(), null);
+		}
+	}
+
+	/**
+	 * Command mput receives the files the Client sends over one
+	 * FTPFileStream into the current directory. The Client expands the
+	 * pattern itself.
+	 * @param argument The glob pattern the Client expanded
+	 * @throws IOException
+	 */
+	private void mputCommand(String argument) throws IOException {
+
+		messageTextClient("READY");
+
+		int received = FTPFileStream.receive(connection.dataInput(), new File(currentDirectory), null,
+				FTPServerWorker::invalidateCaches);
+
+		reply(FTPFrame.STATUS_OK, "RECEIVED " + received);
+	}
+
+	/**
+	 * Sends the files matching the pattern to the Client over one
+	 * background data connection.
+	 * @param argument The glob pattern sent by the Client
+	 * @throws IOException
+	 */
+	private void mgetCommandBackground(String argument) throws IOException {
+
+		List<File> files = expandPattern(argument);
+
+		if (files.isEmpty()) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		messageTextClient("EXISTS");
+
+		int portNumber = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.port();
+
+		long total = 0;
+
+		for (File file : files) {
+			total += file.length();
+		}
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(sessionName(), "MGET", argument, total);
+
+		runInBackground(portNumber, 1, transfer, socket -> new FTPMGetBackground(socket, files, transfer));
+	}
+
+	/**
+	 * Receives the files the Client sends over one background data
+	 * connection into the current directory.
+	 * @param argument The glob pattern the Client expanded
+	 * @throws IOException
+	 */
+	private void mputCommandBackground(String argument) throws IOException {
+
+		int portNumber = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.port();
+
+		File directory = new File(currentDirectory);
+
+		// The Client expands the pattern, so the length of the files is not known
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(sessionName(), "MPUT", argument, -1);
+
+		runInBackground(portNumber, 1, transfer, socket -> new FTPMPutBackground(socket, directory, transfer));
+	}
+
+	/**
+	 * Command size sends the length of a file to the Client.
+	 * @param argument String representation of the file name sent by Client
+	 * @throws IOException
+	 */
+	private void sizeCommand(String argument) throws IOException {
+
+		File file = new File(currentDirectory + sysFileSeparator + argument);
+
+		if ((argument == null) || !file.isFile()) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		reply(FTPFrame.STATUS_OK, Long.toString(file.length()));
+	}
+
+	/**
+	 * Command rest makes the next get or put start at a byte offset
+	 * instead of at the beginning of the file, so a transfer that was cut
+	 * short only moves the part that is missing.
+	 * @param argument String representation of the offset sent by Client
+	 * @throws IOException
+	 */
+	private void restCommand(String argument) throws IOException {
+
+		long offset;
+
+		try {
+			offset = Long.parseLong(argument);
+		}
+		catch (NumberFormatException e) {
+			offset = -1;
+		}
+
+		if (offset < 0) {
+			reply(FTPFrame.STATUS_BAD_REQUEST, "BAD REQUEST");
+			return;
+		}
+
+		restartOffset = offset;
+
+		reply(FTPFrame.STATUS_OK, "RESTARTING AT " + offset);
+	}
+
+	/**
+	 * Command compress turns compressed get and put data on or off for
+	 * the rest of the session. The answer names the level in use, OFF
+	 * for a level this server does not know.
+	 * @param argument Name of the level sent by Client: fast, default, best or off
+	 * @throws IOException
+	 */
+	private void compressCommand(String argument) throws IOException {
+
+		compressionLevel = FTPCompression.level(argument);
+
+		reply(FTPFrame.STATUS_OK, "COMPRESS " + FTPCompression.name(compressionLevel));
+	}
+
+	/**
+	 * Command verify makes get and put data carry a checksum for the rest
+	 * of the session. The answer names the algorithm in use, OFF for an
+	 * algorithm this server does not know.
+	 * @param argument Name of the algorithm sent by Client: crc32c, sha256 or off
+	 * @throws IOException
+	 */
+	private void verifyCommand(String argument) throws IOException {
+
+		verifyAlgorithm = FTPDigest.algorithm(argument);
+
+		reply(FTPFrame.STATUS_OK, "VERIFY " + ((verifyAlgorithm == null) ? "OFF" : verifyAlgorithm));
+	}
+
+	/**
+	 * Command mux sets up one data connection for all background
+	 * transfers of the session. The Client is told a port and token as
+	 * for a background transfer and connects once, then opens a stream
+	 * of the FTPMux for each transfer instead of a connection.
+	 * @throws IOException
+	 */
+	private void muxCommand() throws IOException {
+
+		if ((dataMux != null) && dataMux.isOpen()) {
+			reply(FTPFrame.STATUS_BAD_REQUEST, "BAD REQUEST");
+			return;
+		}
+
+		try (FTPDataPorts.Endpoint endpoint = FTPDataPorts.open(0, 1)) {
+
+			reply(FTPFrame.STATUS_OK, endpoint.announce("MUX"));
+			connection.flush();
+
+			dataMux = new FTPMux(endpoint.accept());
+		}
+	}
+
+	/**
+	 * Command checksum sends the algorithm and checksum of a whole file,
+	 * using the session's VERIFY algorithm or CRC32C if it is off.
+	 * @param argument String representation of the file name sent by Client
+	 * @throws IOException
+	 */
+	private void checksumCommand(String argument) throws IOException {
+
+		File file = new File(currentDirectory + sysFileSeparator + argument);
+
+		if ((argument == null) || !file.isFile()) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		String algorithm = (verifyAlgorithm == null) ? FTPDigest.CRC32C : verifyAlgorithm;
+
+		reply(FTPFrame.STATUS_OK, algorithm + " " + FTPDigest.hex(FTPChecksumCache.checksum(file, algorithm)));
+	}
+
+	/**
+	 * Returns the offset set by REST and clears it, every REST applies
+	 * to one transfer only.
+	 * @return The offset, 0 if no REST came before the transfer
+	 */
+	private long takeRestartOffset() {
+
+		long offset = restartOffset;
+
+		restartOffset = 0;
+
+		return offset;
+	}
+
+	/**
+	 * Moves the buffer past the first bytes of a file a restarted get does
+	 * not send.
+	 * @param content Contents of the file
+	 * @param offset Number of bytes to skip
+	 */
+	private static void skip(ByteBuffer content, long offset) {
+		content.position(content.position() + (int) Math.min(offset, content.remaining()));
+	}
+
+	/**
+	 * Command pget sends one file over several data connections, one byte
+	 * range each. The Client asks for its ranges once connected, so the
+	 * server only needs to know how many connections to accept.
+	 * @param argument String representation of the file name sent by Client
+	 * @throws IOException
+	 */
+	private void pgetCommand(String argument) throws IOException {
+
+		File file = new File(currentDirectory + sysFileSeparator + argument);
+
+		if ((argument == null) || !file.isFile()) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		messageTextClient("EXISTS");
+
+		int portNumber = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.port();
+		int streams = (binaryRequest == null) ? Integer.parseInt(receiveClientResponse()) : binaryRequest.streams();
+
+		if ((streams < 1) || (streams > FTPSegmentTransfer.MAX_STREAMS)) {
+			reply(FTPFrame.STATUS_BAD_REQUEST, "BAD REQUEST");
+			return;
+		}
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.start(sessionName(), "PGET", file.getPath(),
+				file.length());
+
+		AtomicInteger remainingSegments = new AtomicInteger(streams);
+
+		runInBackground(portNumber, streams, transfer,
+				socket -> new FTPSegmentBackground(socket, file, transfer, remainingSegments));
+	}
+
+	/**
+	 * Tells the Client the id of a background transfer and where to
+	 * connect, then queues the transfer as each data connection arrives.
+	 * @param portNumber Port number sent by the Client, 0 for a port of the pool
+	 * @param connections Number of data connections the transfer takes
+	 * @param transfer The transfer, finished here if a connection does not arrive
+	 * @param background Creates what runs over one data connection
+	 * @throws IOException
+	 */
+	private void runInBackground(int portNumber, int connections, FTPTransferRegistry.Transfer transfer,
+			Function<Socket, Runnable> background) throws IOException {
+
+		try (FTPDataPorts.Endpoint endpoint = FTPDataPorts.open(portNumber, connections)) {
+
+			reply(FTPFrame.STATUS_OK, endpoint.announce(transfer.id()));
+			connection.flush();
+
+			for (int i = 0; i < connections; i++) {
+				FTPTransferScheduler.submit(transferSlots, background.apply(endpoint.accept()));
+			}
+		}
+		catch (IOException e) {
+			transfer.failed();
+			transfer.finish();
+			throw e;
+		}
+	}
+
+	/**
+	 * Lists the background transfers of this session with their progress,
+	 * as the number of transfers followed by one line per transfer like
+	 * the names of ls.
+	 * @throws IOException
+	 */
+	private void jobsCommand() throws IOException {
+
+		StringBuilder listing = new StringBuilder();
+		int count = 0;
+
+		for (FTPTransferRegistry.Transfer transfer : FTPTransferRegistry.transfers()) {
+
+			if (transfer.session().equals(sessionName())) {
+				listing.append('\n').append(transfer.describe());
+				count++;
+			}
+		}
+
+		reply(FTPFrame.STATUS_OK, count + listing.toString());
+	}
+
+	/**
+	 * Describes one background transfer of this session in one line.
+	 * @param argument Command id of the transfer
+	 * @throws IOException
+	 */
+	private void statCommand(String argument) throws IOException {
+
+		FTPTransferRegistry.Transfer transfer = FTPTransferRegistry.get(String.valueOf(argument).trim());
+
+		if ((transfer == null) || !transfer.session().equals(sessionName())) {
+			reply(FTPFrame.STATUS_NOT_FOUND, "NOT FOUND");
+			return;
+		}
+
+		reply(FTPFrame.STATUS_OK, transfer.describe());
+	}
+
+	/**
+	 * @return Address of the Client, naming the session in the FTPTransferRegistry
+	 */
+	private String sessionName() {
+		return String.valueOf(nSocket.getRemoteSocketAddress());
+	}
+
+	/**
+	 * Expands a glob pattern in the current directory.
+	 * @param pattern The pattern sent by the Client
+	 * @return The matching files, empty if there are none or the pattern is invalid
+	 */
+	private List<File> expandPattern(String pattern) {
+
+		try {
+			return FTPFileStream.expand(new File(currentDirectory), pattern);
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e);
+			return new ArrayList<File>();
+		}
 	}
 
 	/**
@@ -444,17 +1405,18 @@ public class FTPServerWorker implements Runnable {
 		// Catch any possible errors.
 		try {
 			File fileToDelete = new File(currentDirectory, argument);
+			invalidateCaches(fileToDelete);
 
 			if(fileToDelete.exists()) {
 				if(fileToDelete.delete()) {
-					messageClient("Removed " + fileToDelete.getName());
+					reply(FTPFrame.STATUS_OK, "Removed " + fileToDelete.getName());
 				}
 				else {
-					messageClient("Deletion of " + fileToDelete.getName() + " Failed");
+					reply(FTPFrame.STATUS_FAILED, "Deletion of " + fileToDelete.getName() + " Failed");
 				}
 			}
 			else {
-				messageClient("File does not exist.");
+				reply(FTPFrame.STATUS_NOT_FOUND, "File does not exist.");
 			}
 		}
 		catch(Exception e) {
@@ -463,29 +1425,24 @@ public class FTPServerWorker implements Runnable {
 	}
 
 	/**
-	 * Retrieves list of files from current directory and sends to Client
+	 * Retrieves list of files from current directory and sends to Client.
+	 * The count and the names go out in a single write, from the listing
+	 * cache when it is on.
 	 */
-	private void lsCommand() {
+	private void lsCommand() throws IOException {
 
 		File directoryFile = new File(determineCurrentDirectory());
 
-		String directoryFiles[] = directoryFile.list();
-
-		messageClient(Integer.toString(directoryFiles.length));
-
-		for(String file: directoryFiles){
-
-			messageClient(file);
-
-		}
+		reply(FTPFrame.STATUS_OK, FTPDirectoryListingCache.response(directoryFile));
 	}
 
 	/**
 	 * Takes Client arguments and determines which directory to change to then
 	 * changes current directory client is in.
 	 * @param argument The argument from the client
+	 * @throws IOException
 	 */
-	private void cdCommand(String argument) {
+	private void cdCommand(String argument) throws IOException {
 
 		String directory = determineCurrentDirectory();
 		String splitUpArgument[] = argument.split("sysFileSeparator");
@@ -511,21 +1468,25 @@ public class FTPServerWorker implements Runnable {
 					directory = directory + sysFileSeparator + argument;
 				}
 				else {
-					messageClient("No such file or directory.");
+					reply(FTPFrame.STATUS_NOT_FOUND, "No such file or directory.");
 					return;
 				}
 			}
 		}
 
 		this.currentDirectory = directory;
-		messageClient("");
+		reply(FTPFrame.STATUS_OK, "");
 	}
 
 	/**
 	 * Makes a directory in current directory as named by Client
 	 * @param argument The arguments from the Client
+	 * @throws IOException
 	 */
-	private void mkdirCommand(String argument) {
+	private void mkdirCommand(String argument) throws IOException {
+
+		boolean created = false;
+
 		if (argument != null) {
 
 			String newDirectoryPath = (currentDirectory + sysFileSeparator + argument);
@@ -533,23 +1494,35 @@ public class FTPServerWorker implements Runnable {
 			File directoryToMake = new File(newDirectoryPath);
 
 			if(!directoryToMake.mkdir()) {
-				messageClient("New Directory creation failed");
+				reply(FTPFrame.STATUS_FAILED, "New Directory creation failed");
+			}
+			else {
+				FTPDirectoryListingCache.invalidate(directoryToMake.getParentFile());
+				created = true;
 			}
 		}
 		else {
-			messageClient("Directory name must not be blank");
+			reply(FTPFrame.STATUS_BAD_REQUEST, "Directory name must not be blank");
 		}
 
-		messageClient("");
+		// The text protocol always ends with an empty line, a frame
+		// only has to be sent if no error was
+		if (binaryRequest == null) {
+			messageClient("");
+		}
+		else if (created) {
+			reply(FTPFrame.STATUS_OK, "");
+		}
 	}
 
 	/**
 	 * Sends the absolute path of the remote current working directory
 	 * to the Client
+	 * @throws IOException
 	 */
-	private void pwdCommand() {
+	private void pwdCommand() throws IOException {
 		determineCurrentDirectory();
-		messageClient("Remote working directory: " + currentDirectory);
+		reply(FTPFrame.STATUS_OK, "Remote working directory: " + currentDirectory);
 	}
 
 	/**
@@ -559,6 +1532,22 @@ public class FTPServerWorker implements Runnable {
 		quitCommand = true;
 	}
 
+	/**
+	 * Switches the session to the binary protocol if the Client asks for
+	 * it. Clients that never send PROTO keep using the text protocol.
+	 * @param argument The protocol the Client wants
+	 */
+	private void protoCommand(String argument) {
+
+		if ("BINARY".equalsIgnoreCase(argument)) {
+			messageClient("PROTO BINARY");
+			connection.setBinary(true);
+		}
+		else {
+			messageClient("PROTO TEXT");
+		}
+	}
+
 	/**
 	 * Determines the remote current directory from the System
 	 * @return currentDirectory String representing the current working directory
@@ -577,6 +1566,75 @@ public class FTPServerWorker implements Runnable {
 		nOutputToClient.flush();
 	}
 
+	/**
+	 * Answers the request being served, with a line in the text protocol
+	 * or a response frame in the binary protocol.
+	 * @param status Status of the response frame
+	 * @param message The message for the client
+	 * @throws IOException
+	 */
+	private void reply(int status, String message) throws IOException {
+
+		if (binaryRequest == null) {
+			messageClient(message);
+		}
+		else {
+			connection.writeFrame(binaryRequest.opcode(), binaryRequest.requestId(), status,
+					message.getBytes(FTPFrame.CHARSET));
+		}
+	}
+
+	/**
+	 * Answers the request being served with a response that is already
+	 * encoded, written as is in the text protocol.
+	 * @param status Status of the response frame
+	 * @param message The encoded message for the client
+	 * @throws IOException
+	 */
+	private void reply(int status, byte[] message) throws IOException {
+
+		if (binaryRequest == null) {
+			nOutputToClient.write(message, 0, message.length);
+			nOutputToClient.flush();
+		}
+		else {
+			connection.writeFrame(binaryRequest.opcode(), binaryRequest.requestId(), status, message);
+		}
+	}
+
+	/**
+	 * Sends a message only the text protocol has. Response frames carry
+	 * the same information in their header.
+	 * @param message The message for the client
+	 */
+	private void messageTextClient(String message) {
+
+		if (binaryRequest == null) {
+			messageClient(message);
+		}
+	}
+
+	/**
+	 * Tells the Client the length of the file about to be sent. In the
+	 * text protocol the Client answers READY first, in the binary protocol
+	 * the file follows right away as payload of the response frame.
+	 * @param length Length of the file
+	 * @return True if the file is to be sent
+	 * @throws IOException
+	 */
+	private boolean announceFile(long length) throws IOException {
+
+		if (binaryRequest != null) {
+			connection.writeFrameHeader(binaryRequest.opcode(), binaryRequest.requestId(),
+					FTPFrame.STATUS_OK, length);
+			return true;
+		}
+
+		messageClient(Long.toString(length));
+
+		return receiveClientResponse().toUpperCase().equals("READY");
+	}
+
 	/**
 	 * Receives clients response on normal communication socket
 	 * and returns its string representation
@@ -585,13 +1643,25 @@ public class FTPServerWorker implements Runnable {
 	private String receiveClientResponse() {
 		String clientResponse = null;
 		try {
-			clientResponse = nInputFromClientBuffered.readLine();
+			clientResponse = connection.readLine();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return clientResponse;
 	}
 
+	/**
+	 * Drops every cached copy of a file that is about to be, or just was,
+	 * changed or deleted, and the cached listing of its directory.
+	 * @param file The file being changed
+	 */
+	private static void invalidateCaches(File file) {
+		FTPMappedFileCache.invalidate(file);
+		FTPFileContentCache.invalidate(file);
+		FTPChecksumCache.invalidate(file);
+		FTPDirectoryListingCache.invalidate(file.getAbsoluteFile().getParentFile());
+	}
+
 
 
 
@@ -609,17 +1679,28 @@ public class FTPServerWorker implements Runnable {
 		private BufferedReader gInputFromClientBuffered = null;
 		private PrintStream gOutputToClient = null;
 
-		private FileChannel gChannel;
-
 		private String fileName = null;
-		private Thread currentThread;
 
-		FTPGetBackground (Socket socket, String filePath, String commandID){
+		// Entry of the transfer in the FTPTransferRegistry
+		private final FTPTransferRegistry.Transfer transfer;
+
+		// Offset the transfer starts at, set by REST
+		private final long offset;
+
+		// Deflater level of the session, set by COMPRESS
+		private final int compressionLevel;
+
+		// Checksum algorithm of the session, set by VERIFY
+		private final String verifyAlgorithm;
+
+		FTPGetBackground (Socket socket, String filePath, FTPTransferRegistry.Transfer transfer, long offset,
+				int compressionLevel, String verifyAlgorithm){
 			this.gSocket = socket;
 			this.fileName = filePath;
-
-			currentThread = Thread.currentThread();
-			currentThread.setName(commandID);
+			this.transfer = transfer;
+			this.offset = offset;
+			this.compressionLevel = compressionLevel;
+			this.verifyAlgorithm = verifyAlgorithm;
 		}
 
 		@Override
@@ -627,6 +1708,8 @@ public class FTPServerWorker implements Runnable {
 			// Try assigning input and output streams and starting while loop
 			// catch possible errors and inform user. Finally close all streams
 			// and socket.
+			boolean completed = false;
+
 			try {
 
 				gInputFromClient = new DataInputStream(gSocket.getInputStream());
@@ -634,8 +1717,7 @@ public class FTPServerWorker implements Runnable {
 
 				gOutputToClient = new PrintStream(gSocket.getOutputStream(), true);
 
-				getFileToClient();
-
+				completed = getFileToClient();
 			}
 			catch(IOException e) {
 				System.err.println("Stream creation failed:  " + e + "\n" + e.getMessage());
@@ -670,69 +1752,129 @@ public class FTPServerWorker implements Runnable {
 					System.err.println("Interrupted thread Exception while trying to close thread:  "
 							+ e + "\n" + e.getMessage());
 				}
-			}
 
-			statusMap.remove(currentThread.getName());
+				// Also on unchecked exceptions, or the transfer would be listed forever
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
 		}
 
-		private synchronized void getFileToClient() throws IOException {
+		/**
+		 * Sends the file from the offset on.
+		 * @return False if not all of it was sent
+		 */
+		private boolean getFileToClient() throws IOException {
 
-			RandomAccessFile raf = null;
+			boolean sentAll = false;
 
 			try {
 
 				// Setup File object to prepare to send to server
 				File fileToSend = new File(fileName);
-				raf = new RandomAccessFile(fileToSend, "rw");
-				gChannel = raf.getChannel();
 
-				FileLock lock = gChannel.tryLock();
+				boolean compressed = (compressionLevel != FTPCompression.OFF);
+				FTPDigest digest = FTPDigest.of(verifyAlgorithm);
+
+				// Answer small hot files from memory. Compressed data is
+				// always read from the file.
+				ByteBuffer cachedContent = compressed ? null : FTPFileContentCache.get(fileToSend);
+
+				if (cachedContent != null) {
 
+					skip(cachedContent, offset);
 
-				// Parse Long of file length to a String to send to server
-				String fileLengthString = Long.toString(fileToSend.length());
+					long length = cachedContent.remaining();
 
-				// Send file length to server
-				messageClientGet(fileLengthString);
+					messageClientGet(Long.toString(length));
 
-				byte[] buffer = new byte[(int) fileToSend.length()];
+					if (!"READY".equalsIgnoreCase(receiveClientResponseGet())) {
+						return false;
+					}
+
+					FTPDataStream.send(cachedContent, FTPTransferEngine.outputChannel(gSocket), digest);
+					transfer.add(length);
 
-				ByteBuffer byteBuffer = ByteBuffer.allocate(buffer.length);
+					return true;
+				}
 
-				gChannel.read(byteBuffer);
+				// Send hot files from the mapping shared by all sessions. Data
+				// that is checksummed is read from the file.
+				if (FTPServerConfig.getStrategy().equals(FTPServerConfig.GET_MMAP) && !compressed && (digest == null)) {
 
-				buffer = byteBuffer.array();
+					FTPMappedFileCache.MappedFile mapped = FTPMappedFileCache.acquire(fileToSend);
 
-				if((receiveClientResponseGet().toUpperCase().equals("READY"))) {
+					if (mapped != null) {
 
-					// Fragment the file send
-					int times = (buffer.length / 1000);
+						try {
 
-					// IF file under 1000 send whole thing
-					if(buffer.length < 1000) {
-						gOutputToClient.write(buffer, 0, buffer.length);
-						gOutputToClient.flush();
-					}
+							long start = Math.min(offset, mapped.size());
 
-					for(int i = 0; i < times; i++) {
+							messageClientGet(Long.toString(mapped.size() - start));
 
-						if((1000*i) < (buffer.length - 1000)) {
-							gOutputToClient.write(buffer, (1000*i), 1000);
+							if (!"READY".equalsIgnoreCase(receiveClientResponseGet())) {
+								return false;
+							}
+
+							return FTPTransferEngine.sendMapped(mapped, start, mapped.size() - start,
+									FTPTransferEngine.outputChannel(gSocket), transfer) == mapped.size() - start;
 						}
-						else {
-							gOutputToClient.write(buffer, (1000*i), buffer.length - (1000*i));
+						finally {
+							FTPMappedFileCache.release(mapped);
 						}
+					}
+				}
 
-						gOutputToClient.flush();
+				try (RandomAccessFile raf = new RandomAccessFile(fileToSend, "r");
+						FileChannel gChannel = raf.getChannel()) {
 
-						if(!statusMap.get(currentThread.getName())) {
-							break;
+					FileLock lock = FTPTransferEngine.tryLock(gChannel, true);
+
+					try {
+
+						long fileLength = gChannel.size();
+						long start = Math.min(offset, fileLength);
+
+						transfer.total(fileLength - start);
+
+						// Small files are read into the content cache once and sent from there
+						ByteBuffer loadedContent = compressed ? null
+								: FTPFileContentCache.load(fileToSend, gChannel, fileLength);
+
+						// Parse Long of the length of the rest of the file to a String to send to server
+						String fileLengthString = Long.toString(fileLength - start);
+
+						// Send file length to server
+						messageClientGet(fileLengthString);
+
+						if ("READY".equalsIgnoreCase(receiveClientResponseGet())) {
+
+							long sent;
+
+							if (loadedContent != null) {
+								skip(loadedContent, start);
+								sent = FTPDataStream.send(loadedContent, FTPTransferEngine.outputChannel(gSocket), digest);
+								transfer.add(fileLength - start);
+							}
+							else {
+
+								// Stream the file in bounded chunks, checking
+								// for termination between chunks
+								sent = FTPDataStream.send(fileToSend, gChannel, start, fileLength - start,
+										FTPTransferEngine.outputChannel(gSocket), compressionLevel, digest, transfer);
+							}
+
+							sentAll = (sent == fileLength - start);
 						}
 					}
+					finally {
 
-					// Release the lock - if it is not null!
-					if( lock != null ) {
-						lock.release();
+						// Release the lock - if it is not null!
+						if( lock != null ) {
+							lock.release();
+						}
 					}
 				}
 			}
@@ -742,10 +1884,8 @@ public class FTPServerWorker implements Runnable {
 			catch (IOException e) {
 				System.err.println("IOException: " + e + "\n" + e.getMessage());
 			}
-			finally {
-				gChannel.close();
-				raf.close();
-			}
+
+			return sentAll;
 		}
 
 		/**
@@ -788,22 +1928,33 @@ public class FTPServerWorker implements Runnable {
 		private PrintStream pOutputToClient = null;
 		private FileChannel pChannel;
 
-		private Thread currentThread;
+		// Entry of the transfer in the FTPTransferRegistry
+		private final FTPTransferRegistry.Transfer transfer;
 
-		private boolean pcleanUp;
+		// Offset the transfer starts at, set by REST
+		private final long offset;
 
-		FTPPutBackground(Socket socket, String filePath, String commandID) {
-			this.pSocket = socket;
-			this.fileName = filePath;
+		// Deflater level of the session, set by COMPRESS
+		private final int compressionLevel;
 
-			this.currentThread = Thread.currentThread();
-			this.currentThread.setName(commandID);
+		// Checksum algorithm of the session, set by VERIFY
+		private final String verifyAlgorithm;
 
+		FTPPutBackground(Socket socket, String filePath, FTPTransferRegistry.Transfer transfer, long offset,
+				int compressionLevel, String verifyAlgorithm) {
+			this.pSocket = socket;
+			this.fileName = filePath;
+			this.transfer = transfer;
+			this.offset = offset;
+			this.compressionLevel = compressionLevel;
+			this.verifyAlgorithm = verifyAlgorithm;
 		}
 
 		@Override
 		public void run(){
 
+			boolean completed = false;
+
 			try {
 
 				pInputFromClient = new DataInputStream(pSocket.getInputStream());
@@ -811,7 +1962,7 @@ public class FTPServerWorker implements Runnable {
 
 				pOutputToClient = new PrintStream(pSocket.getOutputStream(), true);
 
-				putFile();
+				completed = putFile();
 
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -836,99 +1987,111 @@ public class FTPServerWorker implements Runnable {
 				} catch (IOException e) {
 					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
 				}
-			}
 
-			statusMap.remove(currentThread.getName());
+				// Also on unchecked exceptions, or the transfer would be listed forever
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
 		}
 
-		private synchronized void putFile() throws IOException {
+		/**
+		 * Receives the file and writes it from the offset on.
+		 * @return False if not all of it arrived intact
+		 */
+		private boolean putFile() throws IOException {
 
 			File fileToCreate = null;			
 			RandomAccessFile raf = null;
+			FTPDigest digest = null;
+			boolean complete = false;
 
 			try {
 
 				// Create new file at specified path name
 				fileToCreate = new File(fileName);
+				invalidateCaches(fileToCreate);
+
+				// Content shared through the store is never written in place
+				FTPContentStore.detach(fileToCreate, offset > 0);
 
 				raf = new RandomAccessFile(fileToCreate, "rw");
 
 				pChannel = raf.getChannel();
 
-				FileLock lock = pChannel.tryLock();
+				FileLock lock = FTPTransferEngine.tryLock(pChannel, false);
 
-				// Receive file length from Client
+				// Receive length of the rest of the file from Client
 				String fileLengthFromClient = receiveClientResponsePut();
 
-				// Parse String of file length to int
-				Integer filesLength = Integer.parseInt(fileLengthFromClient);
-
-				byte[] buffer = new byte[filesLength];
-
-				messageClientPut("READY");
-
-				// Fragment the file to receive
-				int times = (filesLength / 1000);
+				// Parse String of file length to long
+				long filesLength = Long.parseLong(fileLengthFromClient);
 
-				// IF file under 1000 receive whole thing
-				if(filesLength < 1000) {
-
-					pInputFromClient.read(buffer, 0, buffer.length);
-
-					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-
-					pChannel.write(byteBuffer);
+				transfer.total(filesLength);
 
+				// A restart can only continue a file that is at least that long
+				if (offset > pChannel.size()) {
+					messageClientPut("RESTART FAILED");
+					return false;
 				}
 
-				for(int i = 0; i < times; i++) {
-
-					if((1000*i) < (filesLength - 1000)) {
-
-						pInputFromClient.read(buffer, (1000*i), 1000);
-
-					}
-					else {
-						pInputFromClient.read(buffer, (1000*i), buffer.length - (1000*i));
+				messageClientPut("READY");
 
-					}
-						
-					if(!(statusMap.get(currentThread.getName()))) {
+				// Write the file as it arrives, checking for
+				// termination between reads
+				digest = FTPDigest.of(verifyAlgorithm);
 
-						pcleanUp = true;
+				long received = FTPDataStream.receive(FTPTransferEngine.inputChannel(pSocket), pChannel, offset,
+						filesLength, compressionLevel, digest, transfer);
 
-						break;
-					}
+				// A file that arrived changed keeps nothing of this transfer
+				boolean verified = (digest != null) && (received == filesLength);
+				boolean intact = !verified || FTPDataStream.verify(FTPTransferEngine.inputChannel(pSocket), digest);
 
+				if (!intact) {
+					received = 0;
 				}
 
-				if(!pcleanUp) {
-					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-					pChannel.write(byteBuffer);
-				}
+				complete = intact && (received == filesLength);
 
+				// A terminated transfer keeps what arrived so it can be
+				// restarted, anything after it is left over from an older copy
+				pChannel.truncate(offset + received);
 
 				// Release the lock - if it is not null!
 				if( lock != null ) {
 					lock.release();
 				}
 
+				// Tell the Client whether the file arrived as it was sent
+				if (verified) {
+					messageClientPut(intact ? "RECEIVED" : "CHECKSUM MISMATCH");
+				}
 			}
 			catch (IOException e) {
 				System.err.println("IOException: " + e);
 			}
 			finally {
 
-				pChannel.close();
-				raf.close();
+				if (raf != null) {
+					pChannel.close();
+					raf.close();
+				}
 
 				fileToCreate.setReadable(true, false);
 				fileToCreate.setWritable(true, false);
 
-				if(pcleanUp) {
-					fileToCreate.delete();
-				}
+				// Drop anything cached while the file was being written
+				invalidateCaches(fileToCreate);
 			}
+
+			if (complete) {
+				fileStored(fileToCreate, digest, offset);
+			}
+
+			return complete;
 		}
 
 
@@ -958,80 +2121,245 @@ public class FTPServerWorker implements Runnable {
 
 	}
 
-	protected static class FTPServerTerminate extends Thread {
+	/**
+	 * Sends the files of a background mget over its data connection
+	 */
+	protected class FTPMGetBackground implements Runnable {
 
+		private final Socket mSocket;
+		private final List<File> files;
+		private final FTPTransferRegistry.Transfer transfer;
 
-		private Socket tSocket = null;
+		FTPMGetBackground(Socket socket, List<File> files, FTPTransferRegistry.Transfer transfer) {
+			this.mSocket = socket;
+			this.files = files;
+			this.transfer = transfer;
+		}
 
-		private static DataInputStream tInputFromClient = null;
-		private BufferedReader tInputFromClientBuffered = null;
-		private PrintStream tOutputToClient = null;
+		@Override
+		public void run() {
 
-		private static boolean tQuitCommand = false;
-		
-		FTPServerTerminate(Socket socket) {
-			this.tSocket = socket;
+			// Try streaming the files, checking for termination between
+			// files and chunks. Catch possible errors.
+			boolean completed = false;
+
+			try {
+				FTPFileStream.send(files, FTPTransferEngine.outputChannel(mSocket), transfer);
+				completed = true;
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e + "\n" + e.getMessage());
+			}
+			finally {
+
+				try {
+					mSocket.close();
+				}
+				catch (IOException e) {
+					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
+				}
+
+				if (!completed) {
+					transfer.failed();
+				}
+
+				transfer.finish();
+			}
 		}
+	}
+
+	/**
+	 * Sends one segment of a pget over its own data connection
+	 */
+	protected class FTPSegmentBackground implements Runnable {
 
+		private final Socket sSocket;
+		private final File file;
+		private final FTPTransferRegistry.Transfer transfer;
+
+		// Segments of the pget still running, the last one finishes the transfer
+		private final AtomicInteger remainingSegments;
+
+		FTPSegmentBackground(Socket socket, File file, FTPTransferRegistry.Transfer transfer,
+				AtomicInteger remainingSegments) {
+			this.sSocket = socket;
+			this.file = file;
+			this.transfer = transfer;
+			this.remainingSegments = remainingSegments;
+		}
 
 		@Override
 		public void run() {
 
+			// Try sending the range the Client asks for, checking for
+			// termination between reads. Catch possible errors.
+			boolean completed = false;
+
 			try {
+				FTPSegmentTransfer.serve(sSocket, file, transfer);
+				completed = true;
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e + "\n" + e.getMessage());
+			}
+			finally {
 
-				tInputFromClient = new DataInputStream(tSocket.getInputStream());
-				tInputFromClientBuffered = new BufferedReader(new InputStreamReader(tInputFromClient));
+				try {
+					sSocket.close();
+				}
+				catch (IOException e) {
+					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
+				}
 
-				tOutputToClient = new PrintStream(tSocket.getOutputStream(), true);
+				if (!completed) {
+					transfer.failed();
+				}
 
-				while (!tQuitCommand) {
-					processTerminate();
+				if (remainingSegments.decrementAndGet() == 0) {
+					transfer.finish();
 				}
+			}
+		}
+	}
+
+	/**
+	 * Receives the files of a background mput over its data connection
+	 */
+	protected class FTPMPutBackground implements Runnable {
+
+		private final Socket mSocket;
+		private final File directory;
+		private final FTPTransferRegistry.Transfer transfer;
+
+		FTPMPutBackground(Socket socket, File directory, FTPTransferRegistry.Transfer transfer) {
+			this.mSocket = socket;
+			this.directory = directory;
+			this.transfer = transfer;
+		}
+
+		@Override
+		public void run() {
 
+			// Try receiving the files, checking for termination between
+			// reads. Catch possible errors.
+			boolean completed = false;
+
+			try {
+				FTPFileStream.receive(FTPTransferEngine.inputChannel(mSocket), directory, transfer,
+						FTPServerWorker::invalidateCaches);
+				completed = true;
 			}
-			catch(IOException e) {
-				System.err.println("IOException for command while loop:  " + e + "\n" + e.getMessage());
+			catch (IOException e) {
+				System.err.println("IOException: " + e + "\n" + e.getMessage());
 			}
 			finally {
 
 				try {
-					if (tInputFromClient != null) {
-						tInputFromClient.close();
-					}
-					if (tOutputToClient != null) {
-						tOutputToClient.close();
-					}
-					if (tInputFromClientBuffered != null) {
-						tInputFromClientBuffered.close();
-					}
-					if (tSocket != null) {
-						tSocket.close();
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
+					mSocket.close();
+				}
+				catch (IOException e) {
+					System.err.println("IOException while trying to close streams:  " + e + "\n" + e.getMessage());
+				}
+
+				if (!completed) {
+					transfer.failed();
 				}
+
+				transfer.finish();
 			}
 		}
+	}
+
+	protected static class FTPServerTerminate extends Thread implements FTPSession {
+
+
+		private FTPControlConnection tConnection = null;
+		private PrintStream tOutputToClient = null;
+
+		private boolean tQuitCommand = false;
+		
+		FTPServerTerminate(Socket socket) {
+			this(new FTPControlConnection(socket.getChannel()));
+		}
+
+		FTPServerTerminate(FTPControlConnection connection) {
+			this.tConnection = connection;
+			this.tOutputToClient = connection.output();
+		}
 
-		private void processTerminate() {
 
-			String terminate = receiveClientResponseTerminate();
+		@Override
+		public void run() {
 
-			String arguments = null;
+			try {
 
-			try (Scanner separateTerminateCommand = new Scanner(terminate)) {
+				while (!tQuitCommand) {
 
-				if (separateTerminateCommand.hasNext()) {
+					String terminate = receiveClientResponseTerminate();
 
-					arguments = separateTerminateCommand.next();
+					if (terminate == null) {
+						break;
+					}
 
+					processTerminate(terminate);
 				}
-				
-				if(arguments.toUpperCase().equals("QUIT")) {
+
+			}
+			finally {
+				close();
+			}
+		}
+
+		@Override
+		public boolean serveRequest() {
+
+			processTerminate(tConnection.pollLine());
+
+			return !tQuitCommand;
+		}
+
+		@Override
+		public void close() {
+
+			try {
+				tConnection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void processTerminate(String terminate) {
+
+			// The line is QUIT or the id of a transfer, only its first word counts
+			int start = 0;
+
+			while ((start < terminate.length()) && Character.isWhitespace(terminate.charAt(start))) {
+				start++;
+			}
+
+			if (start == terminate.length()) {
+				return;
+			}
+
+			int end = start;
+
+			while ((end < terminate.length()) && !Character.isWhitespace(terminate.charAt(end))) {
+				end++;
+			}
+
+			String arguments = terminate.substring(start, end);
+
+			try {
+
+				if(arguments.equalsIgnoreCase("QUIT")) {
 					tQuitCommand = true;					
 				}
 				else {
+					long startedAt = System.nanoTime();
+
 					terminateCommand(arguments);
+
+					FTPServerMetrics.commandServed(FTPCommandType.TERMINATE, System.nanoTime() - startedAt);
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -1040,10 +2368,7 @@ public class FTPServerWorker implements Runnable {
 
 		private void terminateCommand(String commandID) throws IOException {
 
-			if(statusMap.containsKey(commandID)) {
-				statusMap.replace(commandID, false);
-			}
-			else {
+			if (!FTPTransferRegistry.cancel(commandID)) {
 				messageClientTerminate("Unknown commandID");
 			}
 
@@ -1068,7 +2393,7 @@ public class FTPServerWorker implements Runnable {
 		private String receiveClientResponseTerminate() {
 			String clientResponse = null;
 			try {
-				clientResponse = tInputFromClientBuffered.readLine();
+				clientResponse = tConnection.readLine();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,26 @@
+package FTPServer;
+
+import java.io.IOException;
+
+/**
+ * A connection that is served one request at a time. Lets the FTPReactor
+ * hand a session over once a complete request is buffered on its
+ * connection, without a thread having to block on the connection in
+ * between requests.
+ */
+public interface FTPSession {
+
+	/**
+	 * Processes the next request, which is already buffered on the
+	 * session's FTPControlConnection. May block while the command
+	 * exchanges further messages or file data with the Client.
+	 * @return True if the session stays open, false once it has ended
+	 * @throws IOException
+	 */
+	boolean serveRequest() throws IOException;
+
+	/**
+	 * Closes the connection of the session.
+	 */
+	void close();
+}
@@ -0,0 +1,483 @@
+package FTPServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BooleanSupplier;
+import java.util.zip.Checksum;
+
+/**
+ * Streams file contents between a FileChannel and a socket in bounded
+ * chunks. Sending uses FileChannel.transferTo so that the bytes move from
+ * the file to the socket without being copied onto the heap (sendfile on
+ * Linux). Received data is written to disk as it arrives through one
+ * reusable direct buffer. Either way the memory used per transfer stays
+ * small and fixed no matter how large the file is. Every transfer holds a
+ * permit of the FTPTransferLimiter while it moves data.
+ */
+public class FTPTransferEngine {
+
+	// Largest number of bytes handed to a single transferTo call. Keeps
+	// every call short enough to check for cancellation between chunks.
+	static final long CHUNK_SIZE = 1024 * 1024;
+
+	// Size of the buffer data is received into before going to disk
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private FTPTransferEngine() {
+	}
+
+	/**
+	 * Sends count bytes of the file starting at position to the target
+	 * channel, one chunk at a time.
+	 * @param source FileChannel of the file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param keepSending Checked before every chunk, stops the transfer when false. May be null
+	 * @return Number of bytes actually sent
+	 * @throws IOException
+	 */
+	static long sendFile(FileChannel source, long position, long count,
+			WritableByteChannel target, BooleanSupplier keepSending) throws IOException {
+
+		long sent = 0;
+
+		// Only allocated if transferTo stalls
+		ByteBuffer buffer = null;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (sent < count) {
+
+				if ((keepSending != null) && (!keepSending.getAsBoolean())) {
+					break;
+				}
+
+				long transferred = source.transferTo(position + sent,
+						Math.min(CHUNK_SIZE, count - sent), target);
+
+				// The file got shorter while we were sending it
+				if ((transferred <= 0) && (position + sent >= source.size())) {
+					break;
+				}
+
+				// Nothing went out although data remains, the socket is not
+				// ready. Write the next piece through a buffer, which waits for
+				// the socket, instead of calling transferTo again right away.
+				if (transferred == 0) {
+
+					if (buffer == null) {
+						buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+					}
+
+					transferred = writeThrough(source, position + sent, count - sent, target, buffer);
+				}
+
+				sent += transferred;
+
+				FTPTransferRegistry.sent(keepSending, transferred);
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Reads up to one buffer of the file at position and writes all of it
+	 * to the target, waiting for a non-blocking socket to become writable
+	 * when it takes nothing. A blocking socket waits in write itself.
+	 * @param source FileChannel of the file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Largest number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param buffer Direct buffer the bytes are read into
+	 * @return Number of bytes sent, 0 if the file ends at position
+	 * @throws IOException
+	 */
+	private static long writeThrough(FileChannel source, long position, long count,
+			WritableByteChannel target, ByteBuffer buffer) throws IOException {
+
+		buffer.clear();
+		buffer.limit((int) Math.min(buffer.capacity(), count));
+
+		if (source.read(buffer, position) < 0) {
+			return 0;
+		}
+
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+
+			if ((target.write(buffer) == 0) && (target instanceof SelectableChannel)
+					&& !((SelectableChannel) target).isBlocking()) {
+
+				try (Selector selector = Selector.open()) {
+					((SelectableChannel) target).register(selector, SelectionKey.OP_WRITE);
+					selector.select(1000);
+				}
+			}
+		}
+
+		return buffer.limit();
+	}
+
+	/**
+	 * Sends count bytes of the file starting at position to the target
+	 * channel by reading them into a buffer and writing them from there,
+	 * for the heap and direct GET strategies. A heap buffer is copied once
+	 * more on every read and write, through a temporary direct buffer of
+	 * the JDK.
+	 * @param source FileChannel of the file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param direct True for a direct buffer, false for a heap buffer
+	 * @param keepSending Checked before every read, stops the transfer when false. May be null
+	 * @return Number of bytes actually sent
+	 * @throws IOException
+	 */
+	static long sendBuffered(FileChannel source, long position, long count,
+			WritableByteChannel target, boolean direct, BooleanSupplier keepSending) throws IOException {
+
+		int size = (int) Math.min(BUFFER_SIZE, Math.max(count, 1));
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		long sent = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (sent < count) {
+
+				if ((keepSending != null) && (!keepSending.getAsBoolean())) {
+					break;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - sent));
+
+				// The file got shorter while we were sending it
+				if (source.read(buffer, position + sent) < 0) {
+					break;
+				}
+
+				buffer.flip();
+
+				while (buffer.hasRemaining()) {
+					sent += target.write(buffer);
+				}
+
+				FTPTransferRegistry.sent(keepSending, buffer.limit());
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Sends count bytes of the file starting at position to the target
+	 * channel through a buffer, adding every byte to the checksum on the
+	 * way. Costs the copy that sendFile avoids, but the bytes have to be
+	 * read to be checksummed anyway.
+	 * @param source FileChannel of the file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param checksum Checksum the sent bytes are added to
+	 * @param keepSending Checked before every read, stops the transfer when false. May be null
+	 * @return Number of bytes actually sent
+	 * @throws IOException
+	 */
+	static long sendChecksummed(FileChannel source, long position, long count,
+			WritableByteChannel target, Checksum checksum, BooleanSupplier keepSending) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+		long sent = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (sent < count) {
+
+				if ((keepSending != null) && (!keepSending.getAsBoolean())) {
+					break;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - sent));
+
+				// The file got shorter while we were sending it
+				if (source.read(buffer, position + sent) < 0) {
+					break;
+				}
+
+				buffer.flip();
+				checksum.update(buffer);
+				buffer.rewind();
+
+				while (buffer.hasRemaining()) {
+					sent += target.write(buffer);
+				}
+
+				FTPTransferRegistry.sent(keepSending, buffer.limit());
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Sends count bytes of a memory mapped file starting at position to
+	 * the target channel, one chunk at a time. The shared regions are only
+	 * read through duplicates, so many transfers can send the same mapping.
+	 * @param mapped The mapped file to send
+	 * @param position Offset in the file of the first byte to send
+	 * @param count Number of bytes to send
+	 * @param target Channel of the socket to send to
+	 * @param keepSending Checked before every chunk, stops the transfer when false. May be null
+	 * @return Number of bytes actually sent
+	 * @throws IOException
+	 */
+	static long sendMapped(FTPMappedFileCache.MappedFile mapped, long position, long count,
+			WritableByteChannel target, BooleanSupplier keepSending) throws IOException {
+
+		long sent = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (sent < count) {
+
+				if ((keepSending != null) && (!keepSending.getAsBoolean())) {
+					break;
+				}
+
+				long offset = position + sent;
+				ByteBuffer region = mapped.regions()[(int) (offset / FTPMappedFileCache.REGION_SIZE)].duplicate();
+
+				int start = (int) (offset % FTPMappedFileCache.REGION_SIZE);
+				int length = (int) Math.min(Math.min(CHUNK_SIZE, count - sent), region.capacity() - start);
+
+				region.limit(start + length);
+				region.position(start);
+
+				while (region.hasRemaining()) {
+					sent += target.write(region);
+				}
+
+				FTPTransferRegistry.sent(keepSending, length);
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Sends the remaining bytes of a buffer, e.g. file contents that are
+	 * already in memory, to the target channel.
+	 * @param content The bytes to send
+	 * @param target Channel of the socket to send to
+	 * @return Number of bytes sent
+	 * @throws IOException
+	 */
+	static long sendBuffer(ByteBuffer content, WritableByteChannel target) throws IOException {
+
+		long sent = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+			while (content.hasRemaining()) {
+				sent += target.write(content);
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+			FTPServerMetrics.sent(sent);
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Receives count bytes from the source channel and writes them to the
+	 * file starting at position. Handles short reads and stops early if
+	 * the client closes the connection.
+	 * @param source Channel of the socket to receive from
+	 * @param target FileChannel of the file to write to
+	 * @param position Offset in the file of the first byte to write
+	 * @param count Number of bytes to receive
+	 * @param keepReceiving Checked before every read, stops the transfer when false. May be null
+	 * @return Number of bytes actually received and written
+	 * @throws IOException
+	 */
+	static long receiveFile(ReadableByteChannel source, FileChannel target,
+			long position, long count, BooleanSupplier keepReceiving) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+		long received = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (received < count) {
+
+				if ((keepReceiving != null) && (!keepReceiving.getAsBoolean())) {
+					break;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - received));
+
+				if (source.read(buffer) < 0) {
+					break;
+				}
+
+				buffer.flip();
+
+				while (buffer.hasRemaining()) {
+					received += target.write(buffer, position + received);
+				}
+
+				FTPTransferRegistry.received(keepReceiving, buffer.limit());
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return received;
+	}
+
+	/**
+	 * Receives count bytes from the source channel and writes them to the
+	 * file starting at position, adding every byte to the checksum on the
+	 * way.
+	 * @param source Channel of the socket to receive from
+	 * @param target FileChannel of the file to write to
+	 * @param position Offset in the file of the first byte to write
+	 * @param count Number of bytes to receive
+	 * @param checksum Checksum the received bytes are added to
+	 * @param keepReceiving Checked before every read, stops the transfer when false. May be null
+	 * @return Number of bytes actually received and written
+	 * @throws IOException
+	 */
+	static long receiveChecksummed(ReadableByteChannel source, FileChannel target, long position,
+			long count, Checksum checksum, BooleanSupplier keepReceiving) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+		long received = 0;
+
+		FTPTransferLimiter.acquire();
+
+		try {
+
+			while (received < count) {
+
+				if ((keepReceiving != null) && (!keepReceiving.getAsBoolean())) {
+					break;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - received));
+
+				if (source.read(buffer) < 0) {
+					break;
+				}
+
+				buffer.flip();
+				checksum.update(buffer);
+				buffer.rewind();
+
+				while (buffer.hasRemaining()) {
+					received += target.write(buffer, position + received);
+				}
+
+				FTPTransferRegistry.received(keepReceiving, buffer.limit());
+			}
+		}
+		finally {
+			FTPTransferLimiter.release();
+		}
+
+		return received;
+	}
+
+	/**
+	 * Returns the channel to write to the socket with. Sockets opened
+	 * through a ServerSocketChannel have one, so transferTo can hand the
+	 * transfer to the kernel. Otherwise the socket's output stream is wrapped.
+	 * @param socket Socket to send data on
+	 * @return WritableByteChannel for the socket
+	 * @throws IOException
+	 */
+	static WritableByteChannel outputChannel(Socket socket) throws IOException {
+
+		if (socket.getChannel() != null) {
+			return socket.getChannel();
+		}
+
+		return Channels.newChannel(socket.getOutputStream());
+	}
+
+	/**
+	 * Returns the channel to read from the socket with. Falls back to
+	 * wrapping the socket's input stream if it was not opened through a channel.
+	 * @param socket Socket to receive data on
+	 * @return ReadableByteChannel for the socket
+	 * @throws IOException
+	 */
+	static ReadableByteChannel inputChannel(Socket socket) throws IOException {
+
+		if (socket.getChannel() != null) {
+			return socket.getChannel();
+		}
+
+		return Channels.newChannel(socket.getInputStream());
+	}
+
+	/**
+	 * Tries to lock the whole file. Returns null instead of throwing when
+	 * another session of this server already holds an overlapping lock.
+	 * @param channel FileChannel of the file to lock
+	 * @param shared True for a shared (read) lock, false for an exclusive one
+	 * @return The FileLock or null if it could not be acquired
+	 * @throws IOException
+	 */
+	static FileLock tryLock(FileChannel channel, boolean shared) throws IOException {
+
+		try {
+			return channel.tryLock(0L, Long.MAX_VALUE, shared);
+		}
+		catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package FTPServer;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Server wide cap on the number of transfers moving file data at the same
+ * time. Sessions are not bounded by a thread pool in virtual mode, so disk
+ * and network use are bounded here instead.
+ * Transfers over the cap wait for a permit.
+ */
+public class FTPTransferLimiter {
+
+	private static final Semaphore permits = new Semaphore(FTPServerConfig.transferPermits(), true);
+
+	private FTPTransferLimiter() {
+	}
+
+	/**
+	 * Waits until a transfer may start.
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	static void acquire() throws InterruptedIOException {
+
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to start transfer");
+		}
+	}
+
+	/**
+	 * Lets the next waiting transfer start.
+	 */
+	static void release() {
+		permits.release();
+	}
+
+	/**
+	 * @return Number of transfers that could start right now
+	 */
+	static int available() {
+		return permits.availablePermits();
+	}
+}
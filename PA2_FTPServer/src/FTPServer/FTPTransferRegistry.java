@@ -0,0 +1,342 @@
+package FTPServer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Every background transfer running on this server, for all sessions.
+ * Ids come from one atomic counter, so no two transfers get the same id.
+ *
+ * A Transfer is handed to the transfer loops as their keepSending or
+ * keepReceiving check, and the loops report the bytes they move with
+ * progress. Checking for termination is a volatile read and reporting is
+ * an atomic add, so neither the loops nor the sessions reading progress
+ * ever take a lock.
+ */
+public class FTPTransferRegistry {
+
+	// Weight of the newest sample in the smoothed rate
+	private static final double RATE_WEIGHT = 0.25;
+
+	// Shortest time between two samples of the rate
+	private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	// Time without a sample after which the transfer counts as stalled
+	private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final AtomicInteger nextId = new AtomicInteger(1000);
+
+	private static final Map<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+
+	private FTPTransferRegistry() {
+	}
+
+	/**
+	 * Registers a transfer under a new id.
+	 * @param session The session the transfer belongs to
+	 * @param command Command that started the transfer, e.g. GET
+	 * @param file Path of the file, or the pattern of an MGET or MPUT
+	 * @param total Number of bytes to move, -1 if not known yet
+	 * @return The transfer
+	 */
+	static Transfer start(String session, String command, String file, long total) {
+
+		Transfer transfer = new Transfer(Integer.toString(nextId.getAndIncrement()), session, command, file, total);
+
+		transfers.put(transfer.id, transfer);
+
+		return transfer;
+	}
+
+	/**
+	 * Stops a transfer between two chunks.
+	 * @param id Id of the transfer
+	 * @return False if no transfer has the id
+	 */
+	static boolean cancel(String id) {
+
+		Transfer transfer = transfers.get(id);
+
+		if (transfer == null) {
+			return false;
+		}
+
+		transfer.running = false;
+
+		return true;
+	}
+
+	/**
+	 * @param id Id of the transfer
+	 * @return The transfer, or null if no transfer has the id
+	 */
+	static Transfer get(String id) {
+		return transfers.get(id);
+	}
+
+	/**
+	 * @return Number of transfers running now
+	 */
+	static int count() {
+		return transfers.size();
+	}
+
+	/**
+	 * @return The transfers running now, in the order they started
+	 */
+	static List<Transfer> transfers() {
+
+		List<Transfer> running = new ArrayList<Transfer>(transfers.values());
+
+		running.sort(Comparator.comparingLong(Transfer::startedAt));
+
+		return running;
+	}
+
+	/**
+	 * Counts bytes a transfer loop sent, for the FTPServerMetrics and the
+	 * progress of the transfer.
+	 * @param keepSending The keepSending check of the loop. May be null
+	 * @param bytes Number of bytes sent
+	 */
+	static void sent(BooleanSupplier keepSending, long bytes) {
+
+		FTPServerMetrics.sent(bytes);
+		progress(keepSending, bytes);
+	}
+
+	/**
+	 * Counts bytes a transfer loop received, for the FTPServerMetrics and
+	 * the progress of the transfer.
+	 * @param keepReceiving The keepReceiving check of the loop. May be null
+	 * @param bytes Number of bytes received
+	 */
+	static void received(BooleanSupplier keepReceiving, long bytes) {
+
+		FTPServerMetrics.received(bytes);
+		progress(keepReceiving, bytes);
+	}
+
+	/**
+	 * Adds bytes to the progress of a transfer. Called by the transfer
+	 * loops with the check they were given, which is only a Transfer for
+	 * background transfers, directly for bytes the FTPServerMetrics count
+	 * when they are written.
+	 * @param keepGoing The keepSending or keepReceiving check of the loop. May be null
+	 * @param bytes Number of bytes moved
+	 */
+	static void progress(BooleanSupplier keepGoing, long bytes) {
+
+		if (keepGoing instanceof Transfer) {
+			((Transfer) keepGoing).add(bytes);
+		}
+	}
+
+	private static String bytesPerSecond(double rate) {
+
+		if (rate >= 1024 * 1024) {
+			return String.format("%.1f MB/s", rate / (1024 * 1024));
+		}
+
+		if (rate >= 1024) {
+			return String.format("%.1f KB/s", rate / 1024);
+		}
+
+		return String.format("%.0f B/s", rate);
+	}
+
+	private static String duration(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+
+	/**
+	 * One background transfer. True as a BooleanSupplier until it is
+	 * cancelled.
+	 */
+	static class Transfer implements BooleanSupplier {
+
+		private final String id;
+		private final String session;
+		private final String command;
+		private final String file;
+
+		private final long startedAt = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+
+		private volatile long total;
+		private volatile boolean running = true;
+		private volatile boolean failed = false;
+
+		private final AtomicLong done = new AtomicLong();
+
+		// Last sample of the rate, only taken by the thread that moves sampledAt
+		private final AtomicLong sampledAt = new AtomicLong(startNanos);
+		private volatile long sampledDone = 0;
+		private volatile double rate = -1;
+
+		private Transfer(String id, String session, String command, String file, long total) {
+			this.id = id;
+			this.session = session;
+			this.command = command;
+			this.file = file;
+			this.total = total;
+		}
+
+		/**
+		 * @return False once the transfer is cancelled
+		 */
+		@Override
+		public boolean getAsBoolean() {
+			return running;
+		}
+
+		/**
+		 * Adds bytes to the progress, and takes a sample of the rate if
+		 * the last one is old enough.
+		 * @param bytes Number of bytes moved
+		 */
+		void add(long bytes) {
+
+			long now = System.nanoTime();
+			long doneNow = done.addAndGet(bytes);
+			long last = sampledAt.get();
+
+			if ((now - last < SAMPLE_NANOS) || !sampledAt.compareAndSet(last, now)) {
+				return;
+			}
+
+			double sample = (doneNow - sampledDone) * 1e9 / (now - last);
+
+			rate = (rate < 0) ? sample : rate + RATE_WEIGHT * (sample - rate);
+			sampledDone = doneNow;
+		}
+
+		/**
+		 * Sets the number of bytes to move once it is known.
+		 * @param total Number of bytes
+		 */
+		void total(long total) {
+			this.total = total;
+		}
+
+		/**
+		 * Marks the transfer as ended before moving all its data, e.g. on
+		 * an error. It is counted as failed once it finishes, unless it was
+		 * cancelled.
+		 */
+		void failed() {
+			failed = true;
+		}
+
+		/**
+		 * Removes the transfer from the registry once it ended.
+		 */
+		void finish() {
+
+			boolean cancelled = !running;
+
+			running = false;
+
+			if (transfers.remove(id, this) && failed && !cancelled) {
+				System.err.println("Background transfer " + id + " (" + command + " " + file + ") failed");
+				FTPServerMetrics.transferFailed();
+			}
+		}
+
+		String id() {
+			return id;
+		}
+
+		String session() {
+			return session;
+		}
+
+		String command() {
+			return command;
+		}
+
+		String file() {
+			return file;
+		}
+
+		/**
+		 * @return Time the transfer started, in milliseconds since the epoch
+		 */
+		long startedAt() {
+			return startedAt;
+		}
+
+		/**
+		 * @return Number of bytes to move, -1 if not known
+		 */
+		long total() {
+			return total;
+		}
+
+		/**
+		 * @return Number of bytes moved so far
+		 */
+		long done() {
+			return done.get();
+		}
+
+		/**
+		 * @return Smoothed rate in bytes per second, the average so far until the first sample
+		 */
+		double rate() {
+
+			long now = System.nanoTime();
+			long last = sampledAt.get();
+
+			// Samples are only taken as bytes arrive, so a stalled
+			// transfer shows what it moved since the last one
+			if (now - last > STALL_NANOS) {
+				return (done.get() - sampledDone) * 1e9 / (now - last);
+			}
+
+			return (rate >= 0) ? rate : averageRate();
+		}
+
+		/**
+		 * @return Bytes per second since the transfer started
+		 */
+		double averageRate() {
+			return averageRate(done.get());
+		}
+
+		private double averageRate(long doneNow) {
+
+			long elapsed = System.nanoTime() - startNanos;
+
+			return (elapsed > 0) ? doneNow * 1e9 / elapsed : 0;
+		}
+
+		/**
+		 * Describes the transfer in one line for JOBS and STAT.
+		 * @return Id, command, file, bytes moved and percent done, current
+		 * and average rate, and the time left at the current rate
+		 */
+		String describe() {
+
+			long doneNow = done();
+			long totalNow = total;
+			double rateNow = rate();
+
+			String progress = (totalNow < 0) ? doneNow + " bytes"
+					: doneNow + "/" + totalNow + " bytes " + ((totalNow == 0) ? 100 : doneNow * 100 / totalNow) + "%";
+
+			String eta = ((totalNow < 0) || (rateNow <= 0)) ? "unknown"
+					: duration((long) ((totalNow - doneNow) / rateNow));
+
+			return id + " " + command + " " + file + "  " + progress + "  " + bytesPerSecond(rateNow) + " now, "
+					+ bytesPerSecond(averageRate(doneNow)) + " average  ETA " + eta;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package FTPServer;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One server wide scheduler for background transfers. A fixed number of
+ * workers takes transfers from a bounded queue, so the thread count and
+ * the concurrent disk I/O stay the same no matter how many sessions are
+ * connected. Each session may only have a limited number of transfers
+ * queued or running. A session over its cap, or submitting into a full
+ * queue, waits instead of failing.
+ */
+public class FTPTransferScheduler {
+
+	private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+			FTPServerConfig.transferWorkers(), FTPServerConfig.transferWorkers(),
+			0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(FTPServerConfig.transferQueueSize()),
+			FTPServerExecutors.transferThreadFactory(),
+			(transfer, executor) -> waitForRoom(transfer, executor));
+
+	// Transfers waiting for a worker and transfers running, counted here so
+	// reading them takes neither the queue's nor the pool's lock
+	private static final LongAdder queuedTransfers = new LongAdder();
+	private static final LongAdder runningTransfers = new LongAdder();
+
+	// Time transfers spent in the queue before a worker picked them up
+	private static final LongAdder startedTransfers = new LongAdder();
+	private static final LongAdder totalWaitNanos = new LongAdder();
+	private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+	private FTPTransferScheduler() {
+	}
+
+	/**
+	 * @return Slots limiting how many transfers one session may have queued or running
+	 */
+	static Semaphore newSessionSlots() {
+		return new Semaphore(FTPServerConfig.transfersPerSession());
+	}
+
+	/**
+	 * Queues a background transfer. Waits while the session already has
+	 * as many transfers as it may have, or while the queue is full.
+	 * @param sessionSlots Slots of the session submitting the transfer
+	 * @param transfer The transfer to run
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	static void submit(Semaphore sessionSlots, Runnable transfer) throws InterruptedIOException {
+
+		try {
+			sessionSlots.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to queue transfer");
+		}
+
+		long queuedAt = System.nanoTime();
+
+		queuedTransfers.increment();
+
+		try {
+
+			workers.execute(() -> {
+
+				long waited = System.nanoTime() - queuedAt;
+
+				queuedTransfers.decrement();
+				runningTransfers.increment();
+
+				startedTransfers.increment();
+				totalWaitNanos.add(waited);
+				maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+				try {
+					transfer.run();
+				}
+				finally {
+					runningTransfers.decrement();
+					sessionSlots.release();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			queuedTransfers.decrement();
+			sessionSlots.release();
+			throw new InterruptedIOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Number of transfers waiting for a worker
+	 */
+	static int queueDepth() {
+		return queuedTransfers.intValue();
+	}
+
+	/**
+	 * @return Number of workers currently running a transfer
+	 */
+	static int activeTransfers() {
+		return runningTransfers.intValue();
+	}
+
+	/**
+	 * @return Number of workers
+	 */
+	static int workerCount() {
+		return workers.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return Number of transfers a worker has picked up so far
+	 */
+	static long startedTransfers() {
+		return startedTransfers.sum();
+	}
+
+	/**
+	 * @return Average time in milliseconds transfers waited in the queue
+	 */
+	static double averageWaitMillis() {
+
+		long started = startedTransfers.sum();
+
+		if (started == 0) {
+			return 0;
+		}
+
+		return totalWaitNanos.sum() / (started * 1e6);
+	}
+
+	/**
+	 * @return Time in milliseconds all transfers picked up so far waited in the queue
+	 */
+	static double totalWaitMillis() {
+		return totalWaitNanos.sum() / 1e6;
+	}
+
+	/**
+	 * @return Longest time in milliseconds a transfer waited in the queue
+	 */
+	static double maxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return One line summary of the scheduler's state
+	 */
+	static String report() {
+		return String.format("Transfers: %d active of %d workers, %d queued, %d started, wait avg %.1f ms max %.1f ms",
+				activeTransfers(), workerCount(), queueDepth(), startedTransfers(),
+				averageWaitMillis(), maxWaitMillis());
+	}
+
+	/**
+	 * Prints the report every ftp.transfer.report.seconds if that is set.
+	 */
+	static void startReporting() {
+
+		int seconds = FTPServerConfig.transferReportSeconds();
+
+		if (seconds <= 0) {
+			return;
+		}
+
+		Thread reporter = new Thread(() -> {
+
+			while (true) {
+
+				try {
+					Thread.sleep(seconds * 1000L);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+
+				System.out.println(report());
+			}
+		}, "ftp-transfer-report");
+
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Rejection handler of the workers. Blocks the submitting session
+	 * until the queue has room again.
+	 * @param transfer The transfer that did not fit
+	 * @param executor The workers
+	 */
+	private static void waitForRoom(Runnable transfer, ThreadPoolExecutor executor) {
+
+		try {
+			executor.getQueue().put(transfer);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in the transfer queue", e);
+		}
+	}
+}
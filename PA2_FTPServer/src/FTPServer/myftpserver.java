@@ -1,9 +1,10 @@
 package FTPServer;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * A simple server program takes a single command line parameter, 
@@ -59,13 +60,46 @@ public class myftpserver {
 		// Try creating server socket for server to accept incoming connections
 		// using port number from command line. Create thread pool to enable multiple 
 		// clients to connect. Once created start accepting new client connections.
+		// The sockets are opened through channels so file data can be
+		// transferred to accepted sockets directly. In reactor mode the
+		// connections are handed to the FTPReactor instead of the thread pool,
+		// in virtual mode every session runs on its own virtual thread.
 		// Catch errors, print cause, and exit.
 		try {
 
-			normalServerSocket = new ServerSocket(nPortNumber);
-			terminateServerSocket = new ServerSocket(tPortNumber);
+			ServerSocketChannel normalServerChannel = ServerSocketChannel.open().bind(new InetSocketAddress(nPortNumber));
+			ServerSocketChannel terminateServerChannel = ServerSocketChannel.open().bind(new InetSocketAddress(tPortNumber));
 
-			ExecutorService normalThreadPoolServer = Executors.newFixedThreadPool(20);
+			normalServerSocket = normalServerChannel.socket();
+			terminateServerSocket = terminateServerChannel.socket();
+
+			FTPTransferScheduler.startReporting();
+			FTPContentStore.startSweeping();
+			FTPDataPorts.start();
+			FTPServerMetrics.register();
+			FTPMetricsEndpoint.start();
+
+			if (FTPServerConfig.serverMode().equals(FTPServerConfig.MODE_REACTOR)) {
+
+				FTPReactor reactor = new FTPReactor(FTPServerConfig.selectorThreads(), FTPServerConfig.reactorWorkers());
+
+				System.out.println("Server Ready");
+
+				reactor.serve(normalServerChannel, terminateServerChannel);
+			}
+
+			if (FTPServerConfig.serverMode().equals(FTPServerConfig.MODE_VIRTUAL)
+					&& !FTPServerExecutors.virtualThreadsAvailable()) {
+
+				System.err.println("Server mode virtual needs Java 21 or newer.\n System Terminating.");
+				System.exit(-1);
+			}
+
+			if (FTPServerConfig.serverMode().equals(FTPServerConfig.MODE_VIRTUAL)) {
+				System.err.println("Server mode virtual is experimental.");
+			}
+
+			ExecutorService normalThreadPoolServer = FTPServerExecutors.sessionExecutor();
 
 			System.out.println("Server Ready");
 
@@ -0,0 +1,221 @@
+package FTPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class FTPCommandParserTest {
+
+	private final FTPCommandParser parser = new FTPCommandParser(StandardCharsets.UTF_8);
+
+	private boolean parse(String line) {
+
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+		return parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	@Test
+	void commandWithoutArgument() {
+
+		assertTrue(parse("PWD"));
+		assertEquals(FTPCommandType.PWD, parser.type());
+		assertNull(parser.argument());
+		assertFalse(parser.background());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void commandIgnoresCase() {
+
+		parse("gEt file.txt");
+
+		assertEquals(FTPCommandType.GET, parser.type());
+		assertEquals("file.txt", parser.argument());
+	}
+
+	@Test
+	void unknownCommand() {
+
+		parse("FETCH file.txt");
+		assertEquals(FTPCommandType.UNKNOWN, parser.type());
+		assertEquals("file.txt", parser.argument());
+
+		// Names of background types and prefixes of commands are not commands
+		parse("GET_BACKGROUND file.txt");
+		assertEquals(FTPCommandType.UNKNOWN, parser.type());
+
+		parse("GE file.txt");
+		assertEquals(FTPCommandType.UNKNOWN, parser.type());
+
+		parse("GETS file.txt");
+		assertEquals(FTPCommandType.UNKNOWN, parser.type());
+	}
+
+	@Test
+	void everyTextCommandIsKnown() {
+
+		String[] commands = { "GET", "PUT", "MGET", "MPUT", "PGET", "DPUT", "CPUT", "SIZE", "REST", "COMPRESS",
+				"VERIFY", "CHECKSUM", "MUX", "JOBS", "STAT", "DELETE", "LS", "CD", "MKDIR", "PWD", "QUIT", "PROTO" };
+
+		for (String command : commands) {
+			parse(command.toLowerCase());
+			assertEquals(FTPCommandType.valueOf(command), parser.type(), command);
+		}
+	}
+
+	@Test
+	void backgroundIndicator() {
+
+		parse("GET file.txt &");
+
+		assertEquals(FTPCommandType.GET, parser.type());
+		assertEquals("file.txt", parser.argument());
+		assertTrue(parser.background());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void thirdWordOtherThanAmpersand() {
+
+		parse("GET file.txt now");
+
+		assertEquals("file.txt", parser.argument());
+		assertFalse(parser.background());
+		assertFalse(parser.wellFormed());
+
+		parse("GET file.txt &&");
+
+		assertFalse(parser.background());
+		assertFalse(parser.wellFormed());
+	}
+
+	@Test
+	void quotedArgumentKeepsSpaces() {
+
+		parse("PUT \"my  file.txt\" &");
+
+		assertEquals(FTPCommandType.PUT, parser.type());
+		assertEquals("my  file.txt", parser.argument());
+		assertTrue(parser.background());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void backslashEscapesInQuotes() {
+
+		parse("GET \"my \\\"best\\\" file\\\\.txt\"");
+
+		assertEquals("my \"best\" file\\.txt", parser.argument());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void backslashOutsideQuotesIsKept() {
+
+		parse("CD dir\\sub");
+
+		assertEquals("dir\\sub", parser.argument());
+	}
+
+	@Test
+	void emptyQuotedArgument() {
+
+		parse("MKDIR \"\"");
+
+		assertEquals("", parser.argument());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void unterminatedQuote() {
+
+		parse("GET \"my file.txt &");
+
+		assertEquals("my file.txt &", parser.argument());
+		assertFalse(parser.background());
+		assertFalse(parser.wellFormed());
+
+		// A backslash as the last byte escapes nothing
+		parse("GET \"file\\");
+
+		assertEquals("file\\", parser.argument());
+		assertFalse(parser.wellFormed());
+	}
+
+	@Test
+	void emptyLines() {
+
+		assertFalse(parse(""));
+		assertTrue(parser.isEmpty());
+
+		assertFalse(parse(" \t \r"));
+		assertTrue(parser.isEmpty());
+
+		assertTrue(parse("LS"));
+		assertFalse(parser.isEmpty());
+	}
+
+	@Test
+	void surroundingWhitespace() {
+
+		parse("\t CD   docs  \r");
+
+		assertEquals(FTPCommandType.CD, parser.type());
+		assertEquals("docs", parser.argument());
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void stateOfThePreviousLineIsCleared() {
+
+		parse("GET \"a b\" &");
+		parse("PWD");
+
+		assertEquals(FTPCommandType.PWD, parser.type());
+		assertNull(parser.argument());
+		assertFalse(parser.background());
+		assertTrue(parser.wellFormed());
+
+		parse("GET \"unterminated");
+		parse("LS");
+
+		assertTrue(parser.wellFormed());
+	}
+
+	@Test
+	void longArgument() {
+
+		String name = "n".repeat(10_000);
+
+		parse("GET \"" + name + " x\"");
+
+		assertEquals(name + " x", parser.argument());
+	}
+
+	@Test
+	void multiByteArgument() {
+
+		parse("GET \"données été.txt\"");
+
+		assertEquals("données été.txt", parser.argument());
+	}
+
+	@Test
+	void onlyTheGivenRangeIsParsed() {
+
+		byte[] bytes = "xxGET a.txt &yy".getBytes(StandardCharsets.US_ASCII);
+
+		parser.parse(ByteBuffer.wrap(bytes), 2, bytes.length - 2);
+
+		assertEquals(FTPCommandType.GET, parser.type());
+		assertEquals("a.txt", parser.argument());
+		assertTrue(parser.background());
+	}
+}
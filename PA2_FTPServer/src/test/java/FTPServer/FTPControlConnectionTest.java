@@ -0,0 +1,144 @@
+package FTPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FTPControlConnectionTest {
+
+	private SocketChannel client;
+	private SocketChannel server;
+	private FTPControlConnection connection;
+
+	@BeforeEach
+	void connect() throws IOException {
+
+		try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			client = SocketChannel.open(listener.getLocalAddress());
+			server = listener.accept();
+		}
+
+		connection = new FTPControlConnection(server);
+	}
+
+	@AfterEach
+	void disconnect() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	private void send(String text) throws IOException {
+
+		ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(Charset.defaultCharset()));
+
+		while (bytes.hasRemaining()) {
+			client.write(bytes);
+		}
+	}
+
+	private FTPCommandParser nextCommand() throws IOException {
+
+		assertTrue(connection.awaitRequest());
+
+		return connection.pollCommand();
+	}
+
+	@Test
+	void linesEndWithCrLfOrLf() throws IOException {
+
+		send("GET a.txt\r\nput \"b c.txt\" &\n\r\n\nLS");
+
+		FTPCommandParser command = nextCommand();
+		assertEquals(FTPCommandType.GET, command.type());
+		assertEquals("a.txt", command.argument());
+
+		command = nextCommand();
+		assertEquals(FTPCommandType.PUT, command.type());
+		assertEquals("b c.txt", command.argument());
+		assertTrue(command.background());
+
+		assertTrue(nextCommand().isEmpty());
+		assertTrue(nextCommand().isEmpty());
+
+		// LS has no terminator yet
+		assertNull(connection.pollCommand());
+
+		send("\n");
+
+		assertEquals(FTPCommandType.LS, nextCommand().type());
+	}
+
+	@Test
+	void crInsideALineIsKeptInQuotes() throws IOException {
+
+		send("GET \"a\rb\"\r\n");
+
+		assertEquals("a\rb", nextCommand().argument());
+	}
+
+	@Test
+	void linesAndCommandsShareTheBuffer() throws IOException {
+
+		send("PWD\nREADY\nLS\n");
+
+		assertSame(FTPCommandType.PWD, nextCommand().type());
+		assertEquals("READY", connection.readLine());
+		assertSame(FTPCommandType.LS, nextCommand().type());
+	}
+
+	@Test
+	void longLineBelowTheLimit() throws IOException {
+
+		String name = "n".repeat(60_000);
+
+		Thread writer = new Thread(() -> {
+			try {
+				send("GET " + name + "\n");
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		writer.start();
+
+		assertEquals(name, nextCommand().argument());
+	}
+
+	@Test
+	void overLongLineIsRejected() {
+
+		Thread writer = new Thread(() -> {
+			try {
+				send("GET " + "n".repeat(70_000));
+			}
+			catch (IOException e) {
+				// The server side gave up reading
+			}
+		});
+
+		writer.start();
+
+		assertThrows(IOException.class, () -> {
+			while (connection.pollCommand() == null) {
+				connection.fill();
+			}
+		});
+	}
+}
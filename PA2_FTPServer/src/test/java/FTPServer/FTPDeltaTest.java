@@ -0,0 +1,243 @@
+package FTPServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Signatures of the server's copy and new files built from the operations
+ * of the Client. The Client's side of the round trip is tested with the Client.
+ */
+class FTPDeltaTest {
+
+	private static final int BLOCK_SIZE = FTPDelta.MIN_BLOCK_SIZE;
+
+	@TempDir
+	Path directory;
+
+	private static byte[] random(int length, long seed) {
+
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Builds a list of operations.
+	 */
+	private static class Operations {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(bytes);
+
+		Operations copy(long first, int count) throws IOException {
+			output.writeByte(FTPDelta.COPY);
+			output.writeLong(first);
+			output.writeInt(count);
+			return this;
+		}
+
+		Operations literal(byte[] literal) throws IOException {
+			output.writeByte(FTPDelta.LITERAL);
+			output.writeInt(literal.length);
+			output.write(literal);
+			return this;
+		}
+
+		Operations end(long length) throws IOException {
+			output.writeByte(FTPDelta.END);
+			output.writeLong(length);
+			return this;
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Applies the operations to the basis.
+	 * @return The new file
+	 */
+	private byte[] apply(byte[] basis, byte[] operations) throws IOException {
+
+		Path basisPath = Files.write(directory.resolve("basis"), basis);
+		Path targetPath = directory.resolve("target");
+
+		try (FileChannel basisChannel = FileChannel.open(basisPath);
+				FileChannel target = FileChannel.open(targetPath, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			long length = FTPDelta.apply(Channels.newChannel(new ByteArrayInputStream(operations)), basisChannel,
+					BLOCK_SIZE, basis.length / BLOCK_SIZE, target, null);
+
+			assertEquals(target.size(), length);
+		}
+
+		return Files.readAllBytes(targetPath);
+	}
+
+	private static byte[] blocks(byte[] basis, int first, int count) {
+		return Arrays.copyOfRange(basis, first * BLOCK_SIZE, (first + count) * BLOCK_SIZE);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		for (byte[] part : parts) {
+			bytes.writeBytes(part);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	@Test
+	void blockSizeGrowsWithTheSquareRoot() {
+
+		assertEquals(FTPDelta.MIN_BLOCK_SIZE, FTPDelta.blockSize(0));
+		assertEquals(FTPDelta.MIN_BLOCK_SIZE, FTPDelta.blockSize(1024 * 1024));
+		assertEquals(32 * 1024, FTPDelta.blockSize(1L << 30));
+		assertEquals(FTPDelta.MAX_BLOCK_SIZE, FTPDelta.blockSize(1L << 40));
+
+		for (long length = 1; length < (1L << 42); length *= 3) {
+			assertEquals(0, FTPDelta.blockSize(length) % 1024, "For " + length);
+		}
+	}
+
+	@Test
+	void signaturesOfTheWholeBlocks() throws Exception {
+
+		byte[] basis = random(5 * BLOCK_SIZE + 100, 1);
+		Path path = Files.write(directory.resolve("basis"), basis);
+		ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+
+		try (FileChannel channel = FileChannel.open(path)) {
+			FTPDelta.sendSignatures(channel, BLOCK_SIZE, 5, Channels.newChannel(signatures));
+		}
+
+		ByteBuffer sent = ByteBuffer.wrap(signatures.toByteArray());
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		byte[] strong = new byte[16];
+
+		assertEquals(5 * FTPDelta.SIGNATURE_SIZE, sent.remaining());
+
+		for (int block = 0; block < 5; block++) {
+
+			md5.update(basis, block * BLOCK_SIZE, BLOCK_SIZE);
+
+			assertEquals(FTPDelta.weak(basis, block * BLOCK_SIZE, BLOCK_SIZE), sent.getInt());
+			sent.get(strong);
+			assertArrayEquals(md5.digest(), strong);
+		}
+	}
+
+	@Test
+	void signaturesOfAFileThatGotShorter() throws Exception {
+
+		Path path = Files.write(directory.resolve("basis"), random(2 * BLOCK_SIZE, 2));
+
+		try (FileChannel channel = FileChannel.open(path)) {
+			assertThrows(IOException.class, () -> FTPDelta.sendSignatures(channel, BLOCK_SIZE, 3,
+					Channels.newChannel(new ByteArrayOutputStream())));
+		}
+	}
+
+	@Test
+	void weakChecksumOfKnownBytes() {
+
+		byte[] bytes = { 1, 2, 3, (byte) 0xff };
+
+		// a = 1 + 2 + 3 + 255, b = 4 * 1 + 3 * 2 + 2 * 3 + 1 * 255
+		assertEquals(261 | (271 << 16), FTPDelta.weak(bytes, 0, 4));
+		assertEquals(5 | (7 << 16), FTPDelta.weak(bytes, 1, 2));
+	}
+
+	@Test
+	void copiesAndLiteralsInAnyOrder() throws Exception {
+
+		byte[] basis = random(10 * BLOCK_SIZE + 50, 3);
+		byte[] literal = random(777, 4);
+
+		byte[] file = concat(blocks(basis, 6, 3), literal, blocks(basis, 0, 2), blocks(basis, 6, 1));
+
+		byte[] operations = new Operations().copy(6, 3).literal(literal).copy(0, 2).copy(6, 1)
+				.end(file.length).toByteArray();
+
+		assertArrayEquals(file, apply(basis, operations));
+	}
+
+	@Test
+	void literalLargerThanTheBuffer() throws Exception {
+
+		byte[] literal = random(3 * FTPTransferEngine.BUFFER_SIZE + 1, 5);
+
+		byte[] operations = new Operations().literal(literal).end(literal.length).toByteArray();
+
+		assertArrayEquals(literal, apply(new byte[0], operations));
+	}
+
+	@Test
+	void emptyFile() throws Exception {
+		assertEquals(0, apply(random(BLOCK_SIZE, 6), new Operations().end(0).toByteArray()).length);
+	}
+
+	@Test
+	void copyOfBlocksTheBasisDoesNotHave() throws Exception {
+
+		// The partial block at the end has no signature
+		byte[] basis = random(4 * BLOCK_SIZE + 10, 7);
+
+		assertThrows(IOException.class, () -> apply(basis, new Operations().copy(3, 2).end(0).toByteArray()));
+		assertThrows(IOException.class, () -> apply(basis, new Operations().copy(-1, 1).end(0).toByteArray()));
+		assertThrows(IOException.class, () -> apply(basis, new Operations().copy(0, 0).end(0).toByteArray()));
+		assertThrows(IOException.class, () -> apply(new byte[0], new Operations().copy(0, 1).end(0).toByteArray()));
+	}
+
+	@Test
+	void corruptOperations() throws IOException {
+
+		byte[] basis = random(BLOCK_SIZE, 8);
+
+		// Wrong length in END
+		assertThrows(IOException.class, () -> apply(basis, new Operations().copy(0, 1).end(1).toByteArray()));
+
+		// Empty literal, unknown operation, stream ending early
+		assertThrows(IOException.class, () -> apply(basis, new Operations().literal(new byte[0]).end(0).toByteArray()));
+		assertThrows(IOException.class, () -> apply(basis, new byte[] { 9 }));
+		assertThrows(IOException.class, () -> apply(basis, new Operations().copy(0, 1).toByteArray()));
+
+		byte[] literal = new Operations().literal(random(100, 9)).end(100).toByteArray();
+
+		assertThrows(IOException.class, () -> apply(basis, Arrays.copyOf(literal, 50)));
+	}
+
+	@Test
+	void permitIsReturned() throws Exception {
+
+		int available = FTPTransferLimiter.available();
+
+		assertThrows(IOException.class, () -> apply(new byte[0], new byte[] { 9 }));
+		apply(new byte[0], new Operations().end(0).toByteArray());
+
+		assertEquals(available, FTPTransferLimiter.available());
+	}
+}
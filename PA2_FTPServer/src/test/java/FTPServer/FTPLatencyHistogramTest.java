@@ -0,0 +1,147 @@
+package FTPServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FTPLatencyHistogramTest {
+
+	// Largest power of two of microseconds the histogram has buckets for
+	private static final int MAX_EXPONENT = 40;
+
+	private static FTPLatencyHistogram histogram(long fromMicros, long toMicros) {
+
+		FTPLatencyHistogram histogram = new FTPLatencyHistogram();
+
+		for (long micros = fromMicros; micros <= toMicros; micros++) {
+			histogram.record(micros * 1000);
+		}
+
+		return histogram;
+	}
+
+	@Test
+	void smallLatenciesHaveBucketsOfTheirOwn() {
+
+		for (int micros = 0; micros <= 7; micros++) {
+			assertEquals(micros, FTPLatencyHistogram.index(micros));
+			assertEquals(micros, FTPLatencyHistogram.lowerBound(micros));
+		}
+
+		assertEquals(8, FTPLatencyHistogram.index(8));
+		assertEquals(8, FTPLatencyHistogram.lowerBound(8));
+	}
+
+	@Test
+	void powersOfTwoStartABucket() {
+
+		for (int exponent = 3; exponent <= MAX_EXPONENT; exponent++) {
+
+			long power = 1L << exponent;
+			int index = FTPLatencyHistogram.index(power);
+
+			assertEquals(power, FTPLatencyHistogram.lowerBound(index), "2^" + exponent);
+			assertEquals(index - 1, FTPLatencyHistogram.index(power - 1), "2^" + exponent + " - 1");
+
+			// Buckets from 8 to 15 are one microsecond wide, later ones wider
+			long above = (exponent == 3) ? power + 1 : power;
+
+			assertEquals(above, FTPLatencyHistogram.lowerBound(FTPLatencyHistogram.index(power + 1)),
+					"2^" + exponent + " + 1");
+		}
+	}
+
+	@Test
+	void everyLatencyFallsInTheBucketThatBoundsIt() {
+
+		for (int exponent = 3; exponent <= MAX_EXPONENT; exponent++) {
+
+			for (long micros : new long[] { (1L << exponent) - 1, 1L << exponent, (1L << exponent) + 1,
+					(3L << exponent) / 2 }) {
+
+				int index = FTPLatencyHistogram.index(micros);
+
+				assertTrue(FTPLatencyHistogram.lowerBound(index) <= micros, micros + " above its lower bound");
+
+				if (micros < FTPLatencyHistogram.MAX_MICROS) {
+					assertTrue(FTPLatencyHistogram.lowerBound(index + 1) > micros, micros + " below the next bound");
+				}
+			}
+		}
+	}
+
+	@Test
+	void bucketsAreAtMostAnEighthWide() {
+
+		for (int index = 8; FTPLatencyHistogram.lowerBound(index + 1) <= FTPLatencyHistogram.MAX_MICROS; index++) {
+
+			long lower = FTPLatencyHistogram.lowerBound(index);
+			long width = FTPLatencyHistogram.lowerBound(index + 1) - lower;
+
+			assertTrue(width * 8 <= lower, "bucket " + index);
+		}
+	}
+
+	@Test
+	void latenciesAreClamped() {
+
+		FTPLatencyHistogram histogram = new FTPLatencyHistogram();
+
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(2, histogram.count());
+		assertEquals(FTPLatencyHistogram.MAX_MICROS / 1e3, histogram.maxMillis(), 1e-9);
+		assertEquals(FTPLatencyHistogram.MAX_MICROS / 1e3, histogram.percentileMillis(1.0), 1e-9);
+		assertEquals(0, histogram.percentileMillis(0.5), 1e-9);
+		assertArrayEquals(new long[] { 1, 1, 2 }, histogram.cumulativeCounts(new long[] { 1, 1L << MAX_EXPONENT }));
+	}
+
+	@Test
+	void cumulativeCountsNeverDecrease() {
+
+		FTPLatencyHistogram histogram = histogram(0, 999);
+		long[] bounds = new long[21];
+
+		for (int exponent = 0; exponent < bounds.length; exponent++) {
+			bounds[exponent] = 1L << exponent;
+		}
+
+		long[] counts = histogram.cumulativeCounts(bounds);
+
+		assertEquals(bounds.length + 1, counts.length);
+
+		for (int bound = 0; bound < bounds.length; bound++) {
+			assertEquals(Math.min(bounds[bound], 1000), counts[bound], "below " + bounds[bound]);
+			assertTrue(counts[bound] <= counts[bound + 1]);
+		}
+
+		assertEquals(1000, counts[bounds.length]);
+	}
+
+	@Test
+	void percentilesOfAKnownDistribution() {
+
+		FTPLatencyHistogram histogram = histogram(1, 1000);
+
+		// 500 falls in the bucket 480 to 511, 990 in 960 to 1023, which is
+		// capped at the longest latency seen
+		assertEquals(0.511, histogram.percentileMillis(0.5), 1e-9);
+		assertEquals(1.0, histogram.percentileMillis(0.99), 1e-9);
+		assertEquals(0.001, histogram.percentileMillis(0), 1e-9);
+		assertEquals(0.5005, histogram.meanMillis(), 1e-9);
+	}
+
+	@Test
+	void emptyHistogram() {
+
+		FTPLatencyHistogram histogram = new FTPLatencyHistogram();
+
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.percentileMillis(0.99), 1e-9);
+		assertEquals(0, histogram.meanMillis(), 1e-9);
+		assertArrayEquals(new long[] { 0, 0 }, histogram.cumulativeCounts(new long[] { 8 }));
+	}
+}
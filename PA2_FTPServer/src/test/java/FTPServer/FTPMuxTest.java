@@ -0,0 +1,404 @@
+package FTPServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Streams of the server's FTPMux, with the test as the Client writing
+ * and reading the frames.
+ */
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class FTPMuxTest {
+
+	private SocketChannel client;
+	private FTPMux mux;
+
+	/**
+	 * A frame as it went over the connection.
+	 */
+	private static class Frame {
+
+		final int streamId;
+		final int type;
+		final byte[] payload;
+
+		Frame(int streamId, int type, byte[] payload) {
+			this.streamId = streamId;
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	@BeforeEach
+	void connect() throws IOException {
+
+		try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			client = SocketChannel.open(listener.getLocalAddress());
+			mux = new FTPMux(listener.accept().socket());
+		}
+	}
+
+	@AfterEach
+	void disconnect() throws IOException {
+		mux.close();
+		client.close();
+	}
+
+	private void send(int streamId, int type, byte[] payload) throws IOException {
+
+		ByteBuffer frame = ByteBuffer.allocate(FTPMux.HEADER_SIZE + payload.length);
+		frame.putInt(streamId).put((byte) type).putInt(payload.length).put(payload).flip();
+
+		while (frame.hasRemaining()) {
+			client.write(frame);
+		}
+	}
+
+	private void credit(int streamId, int bytes) throws IOException {
+		send(streamId, FTPMux.CREDIT, ByteBuffer.allocate(4).putInt(bytes).array());
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (client.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private Frame next() throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(FTPMux.HEADER_SIZE);
+		readFully(header);
+
+		byte[] payload = new byte[header.getInt(5)];
+		readFully(ByteBuffer.wrap(payload));
+
+		return new Frame(header.getInt(0), header.get(4), payload);
+	}
+
+	/**
+	 * Opens a stream the way the Client does for a transfer.
+	 * @return The stream as the transfer gets it
+	 */
+	private Socket open(int streamId) throws IOException {
+
+		try (FTPDataPorts.Endpoint endpoint = FTPDataPorts.open(0, 1)) {
+
+			String[] announced = endpoint.announce("1").split(" ");
+
+			send(streamId, FTPMux.OPEN, ByteBuffer.allocate(8).putLong(Long.parseUnsignedLong(announced[2], 16)).array());
+
+			return endpoint.accept();
+		}
+	}
+
+	private static byte[] pattern(int streamId, int length) {
+
+		byte[] bytes = new byte[length];
+
+		for (int index = 0; index < length; index++) {
+			bytes[index] = (byte) (streamId * 31 + index);
+		}
+
+		return bytes;
+	}
+
+	private static Thread start(ThrowingRunnable body) {
+
+		Thread thread = new Thread(() -> {
+			try {
+				body.run();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		thread.start();
+
+		return thread;
+	}
+
+	private interface ThrowingRunnable {
+		void run() throws IOException;
+	}
+
+	@Test
+	void streamWithAnUnknownTokenIsClosed() throws IOException {
+
+		send(5, FTPMux.OPEN, new byte[8]);
+
+		Frame frame = next();
+
+		assertEquals(5, frame.streamId);
+		assertEquals(FTPMux.CLOSE, frame.type);
+		assertTrue(mux.isOpen());
+	}
+
+	@Test
+	void streamOpenedTwiceDropsTheConnection() throws IOException {
+
+		open(1);
+		send(1, FTPMux.OPEN, new byte[8]);
+
+		assertThrows(EOFException.class, this::next);
+	}
+
+	@Test
+	void sendingStopsAtTheWindowUntilCredited() throws Exception {
+
+		Socket stream = open(1);
+		byte[] data = pattern(1, FTPMux.WINDOW + 100);
+
+		Thread writer = start(() -> stream.getOutputStream().write(data));
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		while (received.size() < FTPMux.WINDOW) {
+
+			Frame frame = next();
+
+			assertEquals(FTPMux.DATA, frame.type);
+			assertTrue(frame.payload.length <= FTPMux.MAX_FRAME);
+			received.writeBytes(frame.payload);
+		}
+
+		assertEquals(FTPMux.WINDOW, received.size());
+
+		// Nothing more until the Client read some of it
+		writer.join(200);
+		assertTrue(writer.isAlive());
+
+		credit(1, 100);
+
+		Frame rest = next();
+		assertEquals(100, rest.payload.length);
+		received.writeBytes(rest.payload);
+
+		writer.join();
+
+		assertArrayEquals(data, received.toByteArray());
+	}
+
+	@Test
+	void streamThatIsNotReadOnlyHoldsBackItself() throws Exception {
+
+		int[] ids = { 1, 2, 3 };
+		int length = 2 * FTPMux.WINDOW;
+
+		Map<Integer, ByteArrayOutputStream> received = new HashMap<Integer, ByteArrayOutputStream>();
+		List<Thread> writers = new ArrayList<Thread>();
+
+		Map<Integer, Socket> streams = new HashMap<Integer, Socket>();
+
+		for (int id : ids) {
+			streams.put(id, open(id));
+			received.put(id, new ByteArrayOutputStream());
+		}
+
+		for (int id : ids) {
+			writers.add(start(() -> streams.get(id).getOutputStream().write(pattern(id, length))));
+		}
+
+		// Every stream fills its window although the others are not read
+		for (int total = 0; total < ids.length * FTPMux.WINDOW;) {
+
+			Frame frame = next();
+
+			received.get(frame.streamId).writeBytes(frame.payload);
+			total += frame.payload.length;
+		}
+
+		for (int id : ids) {
+			assertEquals(FTPMux.WINDOW, received.get(id).size(), "Stream " + id);
+		}
+
+		for (int id : ids) {
+			credit(id, FTPMux.WINDOW);
+		}
+
+		for (int total = 0; total < ids.length * FTPMux.WINDOW;) {
+
+			Frame frame = next();
+
+			received.get(frame.streamId).writeBytes(frame.payload);
+			total += frame.payload.length;
+		}
+
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		for (int id : ids) {
+			assertArrayEquals(pattern(id, length), received.get(id).toByteArray(), "Stream " + id);
+		}
+	}
+
+	@Test
+	void readingGivesTheWindowBackInHalves() throws IOException {
+
+		Socket stream = open(1);
+		byte[] data = pattern(1, FTPMux.WINDOW);
+
+		for (int offset = 0; offset < data.length; offset += FTPMux.MAX_FRAME) {
+			send(1, FTPMux.DATA, Arrays.copyOfRange(data, offset, offset + FTPMux.MAX_FRAME));
+		}
+
+		InputStream input = stream.getInputStream();
+
+		assertArrayEquals(Arrays.copyOf(data, FTPMux.WINDOW / 2), input.readNBytes(FTPMux.WINDOW / 2));
+
+		Frame credit = next();
+
+		assertEquals(1, credit.streamId);
+		assertEquals(FTPMux.CREDIT, credit.type);
+		assertEquals(FTPMux.WINDOW / 2, ByteBuffer.wrap(credit.payload).getInt());
+
+		assertArrayEquals(Arrays.copyOfRange(data, FTPMux.WINDOW / 2, data.length),
+				input.readNBytes(FTPMux.WINDOW / 2));
+
+		assertEquals(FTPMux.WINDOW / 2, ByteBuffer.wrap(next().payload).getInt());
+	}
+
+	@Test
+	void interleavedFramesReachTheirStreams() throws Exception {
+
+		int[] ids = { 1, 2, 3 };
+		int length = FTPMux.WINDOW;
+
+		Map<Integer, ByteArrayOutputStream> received = new HashMap<Integer, ByteArrayOutputStream>();
+		List<Thread> readers = new ArrayList<Thread>();
+
+		for (int id : ids) {
+
+			Socket stream = open(id);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+			received.put(id, bytes);
+			readers.add(start(() -> bytes.writeBytes(stream.getInputStream().readAllBytes())));
+		}
+
+		// Frames of different sizes, taking turns
+		int[] offsets = new int[ids.length];
+		int size = 1000;
+
+		while (offsets[ids.length - 1] < length) {
+
+			for (int index = 0; index < ids.length; index++) {
+
+				int end = Math.min(length, offsets[index] + size);
+
+				send(ids[index], FTPMux.DATA, Arrays.copyOfRange(pattern(ids[index], length), offsets[index], end));
+				offsets[index] = end;
+
+				size = size * 7 % FTPMux.MAX_FRAME + 1;
+			}
+		}
+
+		for (int id : ids) {
+			send(id, FTPMux.CLOSE, new byte[0]);
+		}
+
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		for (int id : ids) {
+			assertArrayEquals(pattern(id, length), received.get(id).toByteArray(), "Stream " + id);
+		}
+	}
+
+	@Test
+	void closedByTheClient() throws IOException {
+
+		Socket stream = open(1);
+
+		send(1, FTPMux.CLOSE, new byte[0]);
+
+		assertEquals(-1, stream.getInputStream().read());
+		assertThrows(SocketException.class, () -> stream.getOutputStream().write(1));
+	}
+
+	@Test
+	void closedByTheTransfer() throws IOException {
+
+		Socket stream = open(1);
+
+		stream.close();
+
+		Frame frame = next();
+
+		assertEquals(1, frame.streamId);
+		assertEquals(FTPMux.CLOSE, frame.type);
+		assertTrue(stream.isClosed());
+		assertThrows(SocketException.class, () -> stream.getInputStream().read());
+
+		// The other streams go on
+		Socket other = open(2);
+
+		other.getOutputStream().write(7);
+
+		assertEquals(2, next().streamId);
+	}
+
+	@Test
+	void lostConnectionFailsEveryStream() throws Exception {
+
+		Socket reading = open(1);
+		Socket writing = open(2);
+
+		AtomicReference<IOException> writeFailure = new AtomicReference<IOException>();
+
+		// Blocks once the window is used up, as nobody reads
+		Thread writer = new Thread(() -> {
+			try {
+				writing.getOutputStream().write(new byte[2 * FTPMux.WINDOW]);
+			}
+			catch (IOException e) {
+				writeFailure.set(e);
+			}
+		});
+
+		writer.start();
+		client.close();
+
+		assertThrows(SocketException.class, () -> reading.getInputStream().read());
+
+		writer.join();
+
+		assertInstanceOf(IOException.class, writeFailure.get());
+		assertFalse(mux.isOpen());
+	}
+}